@@ -1,5 +1,7 @@
 package ths.core.loaders;
 
+import java.io.File;
+
 import ths.core.Resource;
 import ths.core.Loader;
 
@@ -46,4 +48,13 @@ public abstract class AbstractResource implements Resource {
         return -1;
     }
 
+    /**
+     * Get the local file backing this resource, for watching its changes.
+     * 
+     * @return the file, or null if not a local file.
+     */
+    public File getFile() {
+        return null;
+    }
+
 }
@@ -26,6 +26,15 @@ public class ClasspathResource extends InputStreamResource {
     }
 
     public long getLastModified() {
+        File file = getFile();
+        if (file != null) {
+            return file.lastModified();
+        }
+        return -1;
+    }
+
+    @Override
+    public File getFile() {
         try {
             URL url = Thread.currentThread().getContextClassLoader().getResource(path);
             if (url != null) {
@@ -36,7 +45,7 @@ public class ClasspathResource extends InputStreamResource {
                     }
                     File file = new File(path);
                     if (file.exists()) {
-                        return file.lastModified();
+                        return file;
                     }
                 } else if ("jar".equals(url.getProtocol())) {
                     String path = url.getFile();
@@ -52,13 +61,13 @@ public class ClasspathResource extends InputStreamResource {
                     }
                     File file = new File(path);
                     if (file.exists()) {
-                        return file.lastModified();
+                        return file;
                     }
                 }
             }
         } catch (Throwable t) {
         }
-        return -1;
+        return null;
     }
 
     public InputStream getInputStream() throws IOException {
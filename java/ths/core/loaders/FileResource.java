@@ -30,6 +30,11 @@ public class FileResource extends AbstractResource {
         return file.lastModified();
     }
 
+    @Override
+    public File getFile() {
+        return file;
+    }
+
     public long getLength() {
         return file.length();
     }
@@ -32,6 +32,11 @@ public class JarResource extends InputStreamResource {
 		return zipFile.getInputStream(zipFile.getEntry(getName()));
 	}
 
+	@Override
+	public File getFile() {
+		return file;
+	}
+
 	public long getLastModified() {
 		try {
 			JarFile zipFile = new JarFile(file);
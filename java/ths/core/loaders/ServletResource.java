@@ -1,5 +1,6 @@
 package ths.core.loaders;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -33,4 +34,16 @@ public class ServletResource extends InputStreamResource {
         return servletContext.getResourceAsStream(path);
     }
 
+    @Override
+    public File getFile() {
+        String realPath = servletContext.getRealPath(path);
+        if (realPath != null) {
+            File file = new File(realPath);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
 }
\ No newline at end of file
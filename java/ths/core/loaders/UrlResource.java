@@ -43,6 +43,11 @@ public class UrlResource extends InputStreamResource {
         return null;
     }
     
+    @Override
+    public File getFile() {
+        return file;
+    }
+
     public long getLastModified() {
         if (file != null) {
             return file.lastModified();
@@ -32,6 +32,11 @@ public class ZipResource extends InputStreamResource {
 		return zipFile.getInputStream(zipFile.getEntry(getName()));
 	}
 
+	@Override
+	public File getFile() {
+		return file;
+	}
+
 	public long getLastModified() {
 		try {
 			ZipFile zipFile = new ZipFile(file);
@@ -15,6 +15,7 @@ public class Configs extends AbstractPropertiesConfiguration {
 	public void loadDefaultConfig() {		
 		// extensions
 		this.setParameter("cache", 			"ths.template.support.caches.StrongCache");
+		this.setParameter("fragment.cache", 	"ths.template.support.caches.FragmentCache");
 		this.setParameter("loader", 		"ths.core.loaders.ClasspathLoader");
 		this.setParameter("parser", 		"ths.template.support.parsers.CommentParser");
 		this.setParameter("translator", 	"ths.template.support.translators.DfaTranslator");
@@ -33,15 +34,24 @@ public class Configs extends AbstractPropertiesConfiguration {
 		this.setParameter("template.suffix", 		".html");
 		this.setParameter("attribute.namespace", 	"");
 		this.setParameter("cache.capacity", 		"0");
+		this.setParameter("cache.weight", 			"0");
+		this.setParameter("fragment.cache.capacity", "1000");
 		this.setParameter("reloadable", 			"false");
+		this.setParameter("reload.watch", 			"false");
+		this.setParameter("reload.stale", 			"false");
 		this.setParameter("precompiled", 			"false");
+		this.setParameter("precompile.threads", 	"0");
 		this.setParameter("debug", 					"false");
 		this.setParameter("compile.directory", 		"");
+		this.setParameter("compile.threshold", 		"100");
 		this.setParameter("java.version", 			"1.6");
 		this.setParameter("foreach.status", 		"foreach");
 		this.setParameter("input.encoding", 		"UTF-8");
 		this.setParameter("output.encoding", 		"UTF-8");
 		this.setParameter("output.stream", 			"false");
+		this.setParameter("buffer.retain.size", 	"65536");
+		this.setParameter("flush.min.size", 		"0");
+		this.setParameter("fork.threads", 			"0");
 		this.setParameter("locale", 				"en_US");
 		this.setParameter("time.zone", 				"+0");
 		this.setParameter("date.format", 			"yyyy-MM-dd HH:mm:ss");
@@ -139,11 +149,23 @@ public class Configs extends AbstractPropertiesConfiguration {
 		return this.getTemplateParameter("cache.capacity", false);
 	}
 	
+	public String getCacheWeight() {
+		return this.getTemplateParameter("cache.weight", false);
+	}
+	
+	public String getFragmentCacheCapacity() {
+		return this.getTemplateParameter("fragment.cache.capacity", false);
+	}
+	
 	//----------------------------------
 	public String getCache() {
 		return this.getTemplateParameter("cache", false);
 	}
 	
+	public String getFragmentCache() {
+		return this.getTemplateParameter("fragment.cache", true);
+	}
+	
 	public String getLoader() {
 		return this.getTemplateParameter("loader", false);
 	}
@@ -184,10 +206,38 @@ public class Configs extends AbstractPropertiesConfiguration {
 		return this.getTemplateParameter("reloadable", false);
 	}
 	
+	public String getReloadWatch() {
+		return this.getTemplateParameter("reload.watch", false);
+	}
+	
+	public String getReloadStale() {
+		return this.getTemplateParameter("reload.stale", false);
+	}
+	
 	public String getPrecompiled() {
 		return this.getTemplateParameter("precompiled", false);
 	}
 	
+	public String getPrecompileThreads() {
+		return this.getTemplateParameter("precompile.threads", false);
+	}
+	
+	public String getBufferRetainSize() {
+		return this.getTemplateParameter("buffer.retain.size", false);
+	}
+	
+	public String getFlushMinSize() {
+		return this.getTemplateParameter("flush.min.size", false);
+	}
+	
+	public String getForkThreads() {
+		return this.getTemplateParameter("fork.threads", false);
+	}
+	
+	public String getCompileThreshold() {
+		return this.getTemplateParameter("compile.threshold", false);
+	}
+	
 	private String getTemplateParameter(String key, boolean hasEmpty) {
 		String val = null;
 		try {
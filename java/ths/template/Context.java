@@ -2,6 +2,7 @@ package ths.template;
 
 import java.io.Writer;
 import java.util.Map;
+import java.util.Set;
 
 import ths.template.Template;
 
@@ -13,6 +14,7 @@ import ths.template.Template;
 public class Context {
     private Template template;
     private Map<String, Object> parameters;
+    private Set<String> dependencies;
     
     private static ThreadLocal<Context> LOCAL = new ThreadLocal<Context>() {
         @Override
@@ -58,6 +60,9 @@ public class Context {
      */
     public Context setTemplate(Template template) {
         this.template = template;
+        if (template != null && dependencies != null) {
+            dependencies.add(template.getName());
+        }
         return this;
     }
     
@@ -83,4 +88,26 @@ public class Context {
         return this;
     }
     
+    /**
+     * Get the names of the templates rendered, if recorded.
+     * 
+     * @see #getContext()
+     * @return rendered template names, or null if not recorded.
+     */
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+    
+    /**
+     * Record the names of the templates rendered from now on, the included, extended and macro ones too.
+     * 
+     * @see #getContext()
+     * @param dependencies - thread safe set to add the names, or null to stop recording.
+     * @return current context.
+     */
+    public Context setDependencies(Set<String> dependencies) {
+        this.dependencies = dependencies;
+        return this;
+    }
+    
 }
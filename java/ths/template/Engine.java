@@ -6,11 +6,25 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import ths.core.Configurable;
@@ -28,6 +42,7 @@ import ths.template.support.Parser;
 import ths.template.support.Translator;
 import ths.template.support.sequences.StringSequence;
 import ths.template.util.ClassUtils;
+import ths.template.util.ConfigUtils;
 import ths.template.util.StringUtils;
 import ths.template.util.UrlUtils;
 
@@ -45,7 +60,7 @@ public class Engine implements Configurable<Configs> {
 
 	private static final ConcurrentMap<String, Engine> ENGINES = new ConcurrentHashMap<String, Engine>();
 
-    private final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+    private final ConcurrentMap<String, FutureTask<Template>> loadings = new ConcurrentHashMap<String, FutureTask<Template>>();
 
     private final StringLoader literal = new StringLoader();
 
@@ -55,6 +70,8 @@ public class Engine implements Configurable<Configs> {
 
     private volatile Cache cache;
     
+    private volatile Cache fragmentCache;
+    
     private volatile Loader loader;
 
     private volatile Parser parser;
@@ -71,6 +88,16 @@ public class Engine implements Configurable<Configs> {
 
     private volatile boolean reloadable;
 
+    private volatile TemplateWatcher watcher;
+
+    private volatile boolean reloadStale;
+
+    private volatile int precompileThreads;
+
+    private volatile ExecutorService forkExecutor;
+
+    private volatile boolean forkExecutorCreated;
+
     private final Map<Class<?>, Object> functions = new ConcurrentHashMap<Class<?>, Object>();
 
     private final List<StringSequence> sequences = new CopyOnWriteArrayList<StringSequence>();
@@ -195,6 +222,14 @@ public class Engine implements Configurable<Configs> {
             }
         }
         
+        String fragmentCache = config.getFragmentCache();
+        if (fragmentCache == null || fragmentCache.trim().length() == 0 
+                || Constants.NULL.equals(fragmentCache.trim())) {
+            setFragmentCache(null);
+        } else {
+            setFragmentCache((Cache) ClassUtils.newInstance(fragmentCache.trim()));
+        }
+        
         String loader = config.getLoader();
         if (loader != null && loader.trim().length() > 0) {
             setLoader((Loader) ClassUtils.newInstance(loader.trim()));
@@ -273,22 +308,181 @@ public class Engine implements Configurable<Configs> {
         }
         
         reloadable = "true".equalsIgnoreCase(config.getReloadable());
+        reloadStale = "true".equalsIgnoreCase(config.getReloadStale());
+        TemplateWatcher old = watcher;
+        watcher = null;
+        if (reloadable && "true".equalsIgnoreCase(config.getReloadWatch())) {
+            try {
+                watcher = new TemplateWatcher(this);
+            } catch (IOException e) {
+                logger.warn("Failed to watch template changes, check them on every getTemplate instead, cause: " + e.getMessage(), e);
+            }
+        }
+        if (old != null) {
+            old.close();
+        }
+
+        String threads = config.getPrecompileThreads();
+        if (threads != null && ConfigUtils.isInteger(threads.trim())) {
+            precompileThreads = Integer.parseInt(threads.trim());
+        }
+
+        String forkThreads = config.getForkThreads();
+        if (forkThreads != null && ConfigUtils.isInteger(forkThreads.trim()) && Integer.parseInt(forkThreads.trim()) > 0) {
+            int size = Integer.parseInt(forkThreads.trim());
+            // bounded by the threads, a fork beyond them is rendered by the caller.
+            setForkExecutor(new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new WorkerThreadFactory("TemplateFork-", Thread.currentThread().getContextClassLoader()),
+                    new ThreadPoolExecutor.CallerRunsPolicy()));
+            forkExecutorCreated = true;
+        } else if (forkExecutorCreated) {
+            setForkExecutor(null);
+        }
+
         boolean precompiled = "true".equalsIgnoreCase(config.getPrecompiled());
         if (precompiled) {
-            try {
-                List<String> list = getLoader().list();
-                for (String name : list) {
-                    try {
-                        getTemplate(name);
-                    } catch (Exception e) {
-                        logger.error(e.getMessage(), e);
+            precompile();
+        }
+
+    }
+
+    /**
+     * Precompile all templates listed by the loader on a bounded worker pool.
+     *
+     * @return failed template names and causes, empty if all succeeded.
+     */
+    public Map<String, Throwable> precompile() {
+        List<String> list;
+        try {
+            list = getLoader().list();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return Collections.emptyMap();
+        }
+        if (list == null || list.size() == 0) {
+            return Collections.emptyMap();
+        }
+        final int total = list.size();
+        int threads = precompileThreads > 0 ? precompileThreads : Runtime.getRuntime().availableProcessors();
+        threads = Math.max(1, Math.min(threads, total));
+        final int step = Math.max(1, total / 10);
+        final AtomicInteger done = new AtomicInteger();
+        final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new WorkerThreadFactory("TemplatePrecompiler-", Thread.currentThread().getContextClassLoader()));
+        // the compiled classes are only weakly referenced by their loaders, so they are held until the templates are instantiated.
+        List<Class<?>> classes = Collections.emptyList();
+        try {
+            classes = compile(list, threads, executor, failures);
+            for (final String name : list) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        // the failed ones are not compiled again.
+                        if (! failures.containsKey(name)) {
+                            try {
+                                getTemplate(name);
+                            } catch (Throwable t) {
+                                precompileFailed(failures, name, t);
+                            }
+                        }
+                        int count = done.incrementAndGet();
+                        if (count % step == 0 || count == total) {
+                            logger.info("Precompiled " + count + "/" + total + " templates.");
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            while (! executor.awaitTermination(1, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        classes.clear();
+        long elapsed = System.currentTimeMillis() - start;
+        if (failures.isEmpty()) {
+            logger.info("Precompiled " + total + " templates in " + elapsed + "ms with " + threads + " threads.");
+        } else {
+            logger.warn("Precompiled " + total + " templates in " + elapsed + "ms with " + threads + " threads, "
+                    + failures.size() + " failed: " + new TreeSet<String>(failures.keySet()));
+        }
+        return Collections.unmodifiableMap(new TreeMap<String, Throwable>(failures));
+    }
+
+    private void precompileFailed(Map<String, Throwable> failures, String name, Throwable t) {
+        failures.put(name, t);
+        logger.error("Failed to precompile template " + name + ", cause: " + t.getMessage(), t);
+    }
+
+    // generates the sources in parallel and compiles them in one batch per thread, the failed templates are put into the failures.
+    private List<Class<?>> compile(List<String> list, int threads, ExecutorService executor, 
+                                   final Map<String, Throwable> failures) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        try {
+            List<Future<String>> sources = new ArrayList<Future<String>>(list.size());
+            for (final String name : list) {
+                sources.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return getParser().generate(getResource(UrlUtils.cleanUrl(name)));
+                    }
+                }));
+            }
+            final List<String> codes = new ArrayList<String>();
+            final Map<String, String> names = new HashMap<String, String>();
+            for (int i = 0; i < sources.size(); i ++) {
+                String name = list.get(i);
+                try {
+                    String code = sources.get(i).get();
+                    if (code != null) {
+                        codes.add(code);
+                        names.put(code, name);
+                    }
+                } catch (ExecutionException e) {
+                    precompileFailed(failures, name, e.getCause());
+                }
+            }
+            if (codes.isEmpty()) {
+                return classes;
+            }
+            int size = (codes.size() + threads - 1) / threads;
+            List<Future<List<Class<?>>>> batches = new ArrayList<Future<List<Class<?>>>>();
+            for (int i = 0; i < codes.size(); i += size) {
+                final List<String> batch = codes.subList(i, Math.min(i + size, codes.size()));
+                batches.add(executor.submit(new Callable<List<Class<?>>>() {
+                    public List<Class<?>> call() {
+                        try {
+                            return getCompiler().compile(batch);
+                        } catch (ParseException e) {
+                            logger.debug(e.getMessage(), e);
+                        }
+                        // the failed batch compiled the others, they are loaded one by one.
+                        List<Class<?>> compiled = new ArrayList<Class<?>>(batch.size());
+                        for (String code : batch) {
+                            try {
+                                compiled.add(getCompiler().compile(code));
+                            } catch (ParseException e) {
+                                precompileFailed(failures, names.get(code), e);
+                            }
+                        }
+                        return compiled;
                     }
+                }));
+            }
+            for (Future<List<Class<?>>> batch : batches) {
+                try {
+                    classes.addAll(batch.get());
+                } catch (ExecutionException e) {
+                    logger.debug(e.getMessage(), e);
                 }
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        
+        return classes;
     }
     
     /**
@@ -385,14 +579,10 @@ public class Engine implements Configurable<Configs> {
 		if (cache == null) {
 		    return parseTemplate(name, encoding);
 		}
-		ReentrantLock lock = locks.get(name);
-        if (lock == null) {
-            locks.putIfAbsent(name, new ReentrantLock());
-            lock= locks.get(name);
-        }
-        assert(lock != null);
         Resource resource;
-        if (reloadable) {
+        TemplateWatcher watcher = this.watcher; // safe copy reference
+        // the macros are reloaded with their watched template, the templates not watched are checked here.
+        if (reloadable && (watcher == null || ! watcher.isWatched(i > 0 ? name.substring(0, i) : name))) {
             resource = getLoader().load(name, encoding);
         } else {
             resource = null;
@@ -400,23 +590,88 @@ public class Engine implements Configurable<Configs> {
 		Template template = (Template) cache.get(name);
 		if (template == null || (resource != null 
 		        && resource.getLastModified() > template.getLastModified())) {
-    		lock.lock();
-    		try {
-    			template = (Template) cache.get(name);
-    			// double check
-    			if (template == null || (resource != null 
-    			        && resource.getLastModified() > template.getLastModified())) {
-    				template = parseTemplate(name, encoding);
-    				cache.put(name, template);
-    			}
-    		} finally {
-    		    lock.unlock();
-    		}
+		    template = loadTemplate(cache, name, encoding, template, reloadStale);
 		}
 		assert(template != null);
 		return template;
 	}
 
+    // single flight: only one thread parses a template, the others wait for its result, or keep the stale one.
+    // the in-flight map only holds templates being loaded, so unknown names do not pile up in it.
+    private Template loadTemplate(final Cache cache, final String name, final String encoding, 
+                                  final Template stale, boolean serveStale) throws IOException, ParseException {
+        FutureTask<Template> task = new FutureTask<Template>(new Callable<Template>() {
+            public Template call() throws Exception {
+                Template template = (Template) cache.get(name);
+                // double check, loaded by another thread meanwhile
+                if (template != null && template != stale) {
+                    return template;
+                }
+                template = parseTemplate(name, encoding);
+                cache.put(name, template);
+                TemplateWatcher watcher = Engine.this.watcher;
+                if (watcher != null && ! literal.has(name)) {
+                    watcher.watch(name, getLoader().load(name, encoding));
+                }
+                return template;
+            }
+        });
+        FutureTask<Template> loading = loadings.putIfAbsent(name, task);
+        if (loading == null) {
+            loading = task;
+            try {
+                task.run();
+            } finally {
+                loadings.remove(name, task);
+            }
+        } else if (stale != null && serveStale) {
+            return stale;
+        }
+        try {
+            return loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for template " + name);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ParseException) {
+                throw (ParseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause.getMessage(), cause);
+        }
+    }
+
+    // called by the watcher thread, getTemplate keeps returning the old template until the new one is cached.
+    void reloadTemplate(String name) {
+        Cache cache = this.cache;
+        if (cache == null) {
+            return;
+        }
+        try {
+            loadTemplate(cache, name, null, (Template) cache.get(name), false);
+            logger.info("Reloaded changed template " + name);
+        } catch (Throwable t) { // let the next getTemplate report it
+            cache.remove(name);
+            logger.warn("Failed to reload changed template " + name + ", cause: " + t.getMessage(), t);
+        }
+        try {
+            // the macros were registered again by the new template, parse them again when used.
+            for (String macro : literal.list()) {
+                if (macro.startsWith(name + "#")) {
+                    cache.remove(macro);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
     /**
      * Parse the template. (No cache)
      * 
@@ -514,6 +769,50 @@ public class Engine implements Configurable<Configs> {
         this.cache = cache;
 	}
     
+    /**
+     * Get the executor rendering the fork directives.
+     * 
+     * @return fork executor, or null if the forks are rendered in place.
+     */
+    public ExecutorService getForkExecutor() {
+        return forkExecutor;
+    }
+    
+    /**
+     * Set the executor rendering the fork directives, the one created by the fork.threads is shut down.
+     * 
+     * @param forkExecutor fork executor, or null to render the forks in place.
+     */
+    public void setForkExecutor(ExecutorService forkExecutor) {
+        ExecutorService old = this.forkExecutor;
+        this.forkExecutor = forkExecutor;
+        if (old != null && old != forkExecutor && forkExecutorCreated) {
+            old.shutdown();
+        }
+        forkExecutorCreated = false;
+    }
+    
+    /**
+     * Get the cache of the rendered fragments, of the cache directives.
+     * 
+     * @return fragment cache, or null if the fragments are not cached.
+     */
+    public Cache getFragmentCache() {
+        return fragmentCache;
+    }
+    
+    /**
+     * Set the cache of the rendered fragments, of the cache directives.
+     * 
+     * @param fragmentCache fragment cache, or null to render the fragments every time.
+     */
+    public void setFragmentCache(Cache fragmentCache) {
+        if (fragmentCache != null) {
+            init(fragmentCache);
+        }
+        this.fragmentCache = fragmentCache;
+    }
+    
 	/**
 	 * Get template loader.
 	 * 
@@ -786,4 +1085,26 @@ public class Engine implements Configurable<Configs> {
             ((Configurable<Configs>) object).configure(getConfiguration());
         }
     }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        private final String name;
+
+        private final ClassLoader classLoader;
+
+        WorkerThreadFactory(String name, ClassLoader classLoader) {
+            this.name = name;
+            this.classLoader = classLoader;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }
+
+    }
 }
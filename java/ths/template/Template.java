@@ -93,6 +93,35 @@ public interface Template extends Resource, Statement {
      */
     void render(Map<String, Object> parameters, Writer writer) throws IOException;
     
+    /**
+     * Render the template to a string, with the parameters read from the bean getters of the same names.
+     * 
+     * @see #getParameterTypes()
+     * @param bean - Template parameters bean, or the parameters map or array.
+     * @return Template render result
+     */
+    String render(Object bean);
+    
+    /**
+     * Render the template to output stream, with the parameters read from the bean getters of the same names.
+     * 
+     * @see #getParameterTypes()
+     * @param bean - Template parameters bean, or the parameters map or array.
+     * @param output - Template output stream
+     * @throws IOException Failed to output
+     */
+    void render(Object bean, OutputStream output) throws IOException;
+    
+    /**
+     * Render the template to writer, with the parameters read from the bean getters of the same names.
+     * 
+     * @see #getParameterTypes()
+     * @param bean - Template parameters bean, or the parameters map or array.
+     * @param writer - Template writer
+     * @throws IOException Failed to writer
+     */
+    void render(Object bean, Writer writer) throws IOException;
+    
     /**
      * Get the template engine.
      * 
@@ -0,0 +1,168 @@
+package ths.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ths.core.Resource;
+import ths.core.loaders.AbstractResource;
+
+/**
+ * TemplateWatcher. (Engine, Singleton, ThreadSafe)
+ *
+ * Watches the directories of the loaded template files, and reloads the changed
+ * templates in a background thread, so the render path needs no timestamp checks
+ * for them. The templates not loaded from local files are left to those checks.
+ *
+ * @see ths.template.Engine#getTemplate(String, String)
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+final class TemplateWatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TemplateWatcher.class);
+
+    // editors often write a file in several steps, wait until it is quiet.
+    private static final long QUIET_PERIOD = 100;
+
+    private final Engine engine;
+
+    private final WatchService service;
+
+    private final ConcurrentMap<Path, Boolean> directories = new ConcurrentHashMap<Path, Boolean>();
+
+    private final ConcurrentMap<Path, Set<String>> templates = new ConcurrentHashMap<Path, Set<String>>();
+
+    private final Set<String> watched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Thread thread;
+
+    TemplateWatcher(Engine engine) throws IOException {
+        this.engine = engine;
+        this.service = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "TemplateWatcher");
+        this.thread.setDaemon(true);
+        this.thread.setContextClassLoader(Thread.currentThread().getContextClassLoader());
+        this.thread.start();
+    }
+
+    /**
+     * Watch the file of the template resource, if it is a local file.
+     *
+     * @param name - template name
+     * @param resource - template resource
+     * @return true if watched, false if the changes must be checked on getTemplate.
+     */
+    boolean watch(String name, Resource resource) {
+        if (! (resource instanceof AbstractResource)) {
+            return false;
+        }
+        File file = ((AbstractResource) resource).getFile();
+        if (file == null) {
+            return false;
+        }
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Path directory = path.getParent();
+        if (directory == null) {
+            return false;
+        }
+        if (directories.putIfAbsent(directory, Boolean.TRUE) == null) {
+            try {
+                directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (Exception e) {
+                directories.remove(directory);
+                logger.warn("Failed to watch template directory " + directory + ", cause: " + e.getMessage(), e);
+                return false;
+            }
+        }
+        Set<String> names = templates.get(path);
+        if (names == null) {
+            templates.putIfAbsent(path, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+            names = templates.get(path);
+        }
+        names.add(name);
+        watched.add(name);
+        return true;
+    }
+
+    /**
+     * Is the template file watched.
+     *
+     * @param name - template name
+     * @return true if its changes are reloaded by the watcher.
+     */
+    boolean isWatched(String name) {
+        return watched.contains(name);
+    }
+
+    void close() {
+        thread.interrupt();
+        try {
+            service.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    public void run() {
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+                Set<String> changed = new LinkedHashSet<String>();
+                WatchKey key = service.take();
+                while (key != null) {
+                    collect(key, changed);
+                    key = service.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                }
+                for (String name : changed) {
+                    engine.reloadTemplate(name);
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (ClosedWatchServiceException e) {
+        }
+    }
+
+    private void collect(WatchKey key, Set<String> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                for (Set<String> names : new ArrayList<Set<String>>(templates.values())) {
+                    changed.addAll(names);
+                }
+            } else {
+                Set<String> names = templates.get(directory.resolve((Path) event.context()));
+                if (names != null) {
+                    changed.addAll(names);
+                }
+            }
+        }
+        if (! key.reset()) {
+            // the directory is gone, or no longer accessible, check its templates on getTemplate again.
+            directories.remove(directory);
+            for (Map.Entry<Path, Set<String>> entry : templates.entrySet()) {
+                if (directory.equals(entry.getKey().getParent())) {
+                    watched.removeAll(entry.getValue());
+                }
+            }
+        }
+    }
+
+}
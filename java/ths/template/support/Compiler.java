@@ -1,6 +1,7 @@
 package ths.template.support;
 
 import java.text.ParseException;
+import java.util.List;
 
 /**
  * Compiler. (SPI, Singleton, ThreadSafe)
@@ -19,4 +20,21 @@ public interface Compiler {
 	 */
 	Class<?> compile(String code) throws ParseException;
 	
+	/**
+	 * Compile java source codes in one batch.
+	 * 
+	 * @param codes Java source codes
+	 * @return Compiled classes, in the same order as the codes
+	 * @throws ParseException If any code failed, after all the others were compiled
+	 */
+	List<Class<?>> compile(List<String> codes) throws ParseException;
+	
+	/**
+	 * Load previously compiled class.
+	 * 
+	 * @param name Class name
+	 * @return Compiled class, or null if it was never compiled
+	 */
+	Class<?> load(String name);
+	
 }
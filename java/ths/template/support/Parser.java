@@ -22,5 +22,13 @@ public interface Parser {
 	 * @return Java source code
 	 */
     Template parse(Resource source) throws IOException, ParseException;
+
+	/**
+	 * Generate the java source code of the template, without compiling it.
+	 * 
+	 * @param source - Template source.
+	 * @return Java source code, or null if the template class is already compiled
+	 */
+    String generate(Resource source) throws IOException, ParseException;
 	
 }
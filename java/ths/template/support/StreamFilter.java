@@ -0,0 +1,26 @@
+package ths.template.support;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * StreamFilter. (SPI, Singleton, ThreadSafe)
+ * 
+ * The filter writing the filtered value straight to the template output, instead of returning a new string,
+ * the value unchanged is written as it is.
+ * 
+ * @see com.googlecode.httl.Engine#setFilter(Filter)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public interface StreamFilter extends Filter {
+    
+    /**
+     * Filter the variable value to the output.
+     * 
+     * @param value - Original variable value, not null
+     * @param output - Template output
+     */
+    void filter(String value, Writer output) throws IOException;
+    
+}
@@ -21,7 +21,7 @@ public class AdaptiveCache implements Cache, Configurable<Configs> {
         String capacity = config.getCacheCapacity();
         
         if (capacity != null && capacity.trim().length() > 0 && Integer.parseInt(capacity.trim()) > 0) {
-            cache = new LruCache(Integer.parseInt(capacity.trim()));
+            cache = new ConcurrentLruCache(Integer.parseInt(capacity.trim()));
         } else {
             cache = new StrongCache();
         }
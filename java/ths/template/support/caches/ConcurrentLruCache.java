@@ -0,0 +1,166 @@
+package ths.template.support.caches;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ths.core.Configurable;
+import ths.template.Configs;
+import ths.template.support.Cache;
+import ths.template.util.ConfigUtils;
+
+/**
+ * ConcurrentLruCache. (SPI, Singleton, ThreadSafe)
+ *
+ * Reads never block: values are read from a concurrent map, and the access order
+ * is only updated when the key's segment lock is free. Writes lock one segment,
+ * which evicts its least recently used keys beyond capacity / segments.
+ *
+ * @see com.googlecode.httl.Engine#setCache(Cache)
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ConcurrentLruCache implements Cache, Configurable<Configs> {
+
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    // the map and its segments are replaced together, so a put racing with setCapacity
+    // writes into the old snapshot only, and the new one stays bounded.
+    private volatile Snapshot snapshot;
+
+    public ConcurrentLruCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ConcurrentLruCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        int capacity = 0;
+        for (Segment segment : snapshot.segments) {
+            capacity += segment.capacity;
+        }
+        return capacity;
+    }
+
+    public int getSize() {
+        return snapshot.map.size();
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 * MIN_SEGMENT_CAPACITY <= capacity) {
+            count *= 2;
+        }
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i ++) {
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+        this.snapshot = new Snapshot(new ConcurrentHashMap<Object, Object>(), segments);
+    }
+
+    @Override
+    public void configure(Configs config) {
+        String capacity = config.getCacheCapacity();
+
+        if (capacity != null && ConfigUtils.isInteger(capacity.trim())
+                && Integer.parseInt(capacity.trim()) > 0) {
+            setCapacity(Integer.parseInt(capacity.trim()));
+        }
+    }
+
+    public Object get(Object key) {
+        Snapshot snapshot = this.snapshot;
+        Object value = snapshot.map.get(key);
+        if (value != null) {
+            Segment segment = snapshot.segmentFor(key);
+            if (segment.tryLock()) {
+                try {
+                    segment.keys.get(key);
+                } finally {
+                    segment.unlock();
+                }
+            }
+        }
+        return value;
+    }
+
+    public void put(Object key, Object value) {
+        Snapshot snapshot = this.snapshot;
+        ConcurrentMap<Object, Object> map = snapshot.map;
+        Segment segment = snapshot.segmentFor(key);
+        segment.lock();
+        try {
+            map.put(key, value);
+            segment.keys.put(key, Boolean.TRUE);
+            if (segment.keys.size() > segment.capacity) {
+                Iterator<Object> iterator = segment.keys.keySet().iterator();
+                while (segment.keys.size() > segment.capacity && iterator.hasNext()) {
+                    Object eldest = iterator.next();
+                    iterator.remove();
+                    map.remove(eldest);
+                }
+            }
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    public void remove(Object key) {
+        Snapshot snapshot = this.snapshot;
+        Segment segment = snapshot.segmentFor(key);
+        segment.lock();
+        try {
+            segment.keys.remove(key);
+            snapshot.map.remove(key);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final ConcurrentMap<Object, Object> map;
+
+        private final Segment[] segments;
+
+        Snapshot(ConcurrentMap<Object, Object> map, Segment[] segments) {
+            this.map = map;
+            this.segments = segments;
+        }
+
+        Segment segmentFor(Object key) {
+            int hash = key.hashCode();
+            hash ^= (hash >>> 20) ^ (hash >>> 12);
+            hash ^= (hash >>> 7) ^ (hash >>> 4);
+            return segments[hash & (segments.length - 1)];
+        }
+
+    }
+
+    private static final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        // access ordered, eldest first.
+        private final LinkedHashMap<Object, Boolean> keys = new LinkedHashMap<Object, Boolean>(16, 0.75f, true);
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+    }
+
+}
@@ -0,0 +1,28 @@
+package ths.template.support.caches;
+
+import ths.template.Configs;
+import ths.template.util.ConfigUtils;
+
+/**
+ * FragmentCache. (SPI, Singleton, ThreadSafe)
+ *
+ * The ConcurrentLruCache of the rendered fragments, sized by fragment.cache.capacity
+ * instead of the cache.capacity of the templates.
+ *
+ * @see com.googlecode.httl.Engine#setFragmentCache(Cache)
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class FragmentCache extends ConcurrentLruCache {
+
+    @Override
+    public void configure(Configs config) {
+        String capacity = config.getFragmentCacheCapacity();
+
+        if (capacity != null && ConfigUtils.isInteger(capacity.trim())
+                && Integer.parseInt(capacity.trim()) > 0) {
+            setCapacity(Integer.parseInt(capacity.trim()));
+        }
+    }
+
+}
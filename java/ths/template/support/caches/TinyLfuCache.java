@@ -0,0 +1,438 @@
+package ths.template.support.caches;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ths.core.Configurable;
+import ths.template.Configs;
+import ths.template.Template;
+import ths.template.support.Cache;
+import ths.template.util.ConfigUtils;
+
+/**
+ * TinyLfuCache. (SPI, Singleton, ThreadSafe)
+ *
+ * Bounded by the estimated weight of the templates (static text plus generated code),
+ * and by cache.capacity entries if set. A new template is only admitted over the least
+ * recently used one if it was requested more often, as counted by a frequency sketch.
+ * The rejected templates, and the ones heavier than the whole cache, are kept in a small
+ * admission window, so that they are not recompiled on every request until admitted.
+ *
+ * @see com.googlecode.httl.Engine#setCache(Cache)
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TinyLfuCache implements Cache, Configurable<Configs> {
+
+    private static final long DEFAULT_WEIGHT = 32 * 1024 * 1024;
+
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private static final int ENTRY_WEIGHT = 256;
+
+    private static final int MIN_WINDOW_CAPACITY = 10;
+
+    private static final String TEXT_FIELD_PREFIX = "$TXT";
+
+    private final ConcurrentMap<Object, Entry> map = new ConcurrentHashMap<Object, Entry>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // access ordered, eldest first, guarded by lock.
+    private final LinkedHashMap<Object, Entry> order = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+    // the admission window, read without the lock, so the misses of a cold start do not queue on it.
+    private final ConcurrentMap<Object, Entry> window = new ConcurrentHashMap<Object, Entry>();
+
+    // insertion ordered, eldest first, guarded by lock.
+    private final LinkedHashMap<Object, Entry> windowOrder = new LinkedHashMap<Object, Entry>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+            if (size() > windowCapacity) {
+                window.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final ThreadLocal<Miss> misses = new ThreadLocal<Miss>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    private volatile long maxWeight = DEFAULT_WEIGHT;
+
+    private volatile int capacity;
+
+    private volatile int windowCapacity = MIN_WINDOW_CAPACITY;
+
+    private volatile Sketch sketch = new Sketch(DEFAULT_CAPACITY);
+
+    private long weight; // guarded by lock
+
+    @Override
+    public void configure(Configs config) {
+        String capacity = config.getCacheCapacity();
+        String weight = config.getCacheWeight();
+
+        if (capacity != null && ConfigUtils.isInteger(capacity.trim())
+                && Integer.parseInt(capacity.trim()) > 0) {
+            this.capacity = Integer.parseInt(capacity.trim());
+            this.sketch = new Sketch(this.capacity);
+            this.windowCapacity = Math.max(MIN_WINDOW_CAPACITY, this.capacity / 100);
+        }
+        if (weight != null && ConfigUtils.isInteger(weight.trim())
+                && Long.parseLong(weight.trim()) > 0) {
+            this.maxWeight = Long.parseLong(weight.trim());
+        }
+    }
+
+    public Object get(Object key) {
+        sketch.increment(key);
+        Entry entry = map.get(key);
+        if (entry == null) {
+            entry = getWindow(key);
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            Miss miss = misses.get();
+            if (miss == null || ! miss.key.equals(key)) {
+                misses.set(new Miss(key, System.nanoTime()));
+            }
+            return null;
+        }
+        hitCount.incrementAndGet();
+        if (lock.tryLock()) {
+            try {
+                order.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry.value;
+    }
+
+    public void put(Object key, Object value) {
+        Miss miss = misses.get();
+        if (miss != null && miss.key.equals(key)) {
+            misses.remove();
+            loadCount.incrementAndGet();
+            totalLoadTime.addAndGet(System.nanoTime() - miss.time);
+        }
+        Entry entry = new Entry(value, weigh(value));
+        lock.lock();
+        try {
+            Entry old = order.remove(key);
+            if (old != null) {
+                weight -= old.weight;
+                map.remove(key);
+            }
+            // the reloaded template was admitted before, the least recently used ones make room for it.
+            if (old != null ? ! fit(entry) : ! admit(key, entry)) {
+                putWindow(key, entry);
+                rejectionCount.incrementAndGet();
+                return;
+            }
+            removeWindow(key);
+            order.put(key, entry);
+            map.put(key, entry);
+            weight += entry.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(Object key) {
+        lock.lock();
+        try {
+            Entry old = order.remove(key);
+            if (old != null) {
+                weight -= old.weight;
+            }
+            map.remove(key);
+            removeWindow(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a template requested again from the window is promoted, if it is now admitted, and the lock is free.
+    private Entry getWindow(Object key) {
+        Entry entry = window.get(key);
+        if (entry != null && lock.tryLock()) {
+            try {
+                if (window.get(key) == entry && admit(key, entry)) {
+                    removeWindow(key);
+                    order.put(key, entry);
+                    map.put(key, entry);
+                    weight += entry.weight;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry;
+    }
+
+    // guarded by lock.
+    private void putWindow(Object key, Entry entry) {
+        windowOrder.remove(key);
+        window.put(key, entry);
+        windowOrder.put(key, entry);
+    }
+
+    // guarded by lock.
+    private void removeWindow(Object key) {
+        windowOrder.remove(key);
+        window.remove(key);
+    }
+
+    // evicts the least recently used entries until the replacing one fits.
+    private boolean fit(Entry entry) {
+        if (entry.weight > maxWeight) {
+            return false;
+        }
+        Iterator<Map.Entry<Object, Entry>> iterator = order.entrySet().iterator();
+        while (weight + entry.weight > maxWeight && iterator.hasNext()) {
+            Map.Entry<Object, Entry> victim = iterator.next();
+            iterator.remove();
+            map.remove(victim.getKey());
+            weight -= victim.getValue().weight;
+            evictionCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    // evicts the least recently used entries the candidate is more frequent than, until it fits,
+    // nothing is evicted if it does not fit over them.
+    private boolean admit(Object key, Entry entry) {
+        if (entry.weight > maxWeight) {
+            return false;
+        }
+        int frequency = sketch.frequency(key);
+        long fitWeight = weight;
+        int fitSize = order.size();
+        int victims = 0;
+        Iterator<Map.Entry<Object, Entry>> iterator = order.entrySet().iterator();
+        while (fitWeight + entry.weight > maxWeight || (capacity > 0 && fitSize >= capacity)) {
+            if (! iterator.hasNext()) {
+                return false;
+            }
+            Map.Entry<Object, Entry> victim = iterator.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            fitWeight -= victim.getValue().weight;
+            fitSize --;
+            victims ++;
+        }
+        iterator = order.entrySet().iterator();
+        for (int i = 0; i < victims; i ++) {
+            Map.Entry<Object, Entry> victim = iterator.next();
+            iterator.remove();
+            map.remove(victim.getKey());
+            weight -= victim.getValue().weight;
+            evictionCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    protected long weigh(Object value) {
+        long weight = ENTRY_WEIGHT;
+        if (value instanceof Template) {
+            Template template = (Template) value;
+            try {
+                String code = template.getCode();
+                if (code != null) {
+                    weight += code.length() * 2;
+                }
+            } catch (ParseException e) {
+            }
+            for (Field field : template.getClass().getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())
+                        && field.getName().startsWith(TEXT_FIELD_PREFIX)) {
+                    try {
+                        field.setAccessible(true);
+                        Object text = field.get(null);
+                        if (text instanceof String) {
+                            weight += ((String) text).length() * 2;
+                        } else if (text instanceof byte[]) {
+                            weight += ((byte[]) text).length;
+                        }
+                    } catch (Exception e) {
+                    }
+                }
+            }
+        }
+        return weight;
+    }
+
+    public int getSize() {
+        return map.size();
+    }
+
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * Get the total time from the first miss of a template to putting it, in nanoseconds.
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime.get();
+    }
+
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        long loads = loadCount.get();
+        return getClass().getSimpleName() + "(size: " + getSize() + ", weight: " + getWeight() + "/" + maxWeight
+                + ", hits: " + hitCount.get() + ", misses: " + missCount.get() + ", evictions: " + evictionCount.get()
+                + ", rejections: " + rejectionCount.get() + ", loads: " + loads
+                + ", average load time: " + (loads == 0 ? 0 : totalLoadTime.get() / loads / 1000000) + "ms)";
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+
+        private final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+
+    }
+
+    private static final class Miss {
+
+        private final Object key;
+
+        private final long time;
+
+        Miss(Object key, long time) {
+            this.key = key;
+            this.time = time;
+        }
+
+    }
+
+    // count-min sketch of 4 rows, counters saturate at 15 and are halved every 10 * width increments.
+    private static final class Sketch {
+
+        private static final int DEPTH = 4;
+
+        private static final int MAX_COUNT = 15;
+
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] table;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private final AtomicInteger additions = new AtomicInteger();
+
+        Sketch(int capacity) {
+            int width = 64;
+            while (width < capacity * 2 && width < (1 << 24)) {
+                width <<= 1;
+            }
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i ++) {
+                byte[] row = table[i];
+                int index = index(hash, i);
+                if (row[index] < MAX_COUNT) {
+                    row[index] ++;
+                }
+            }
+            if (additions.incrementAndGet() >= sampleSize) {
+                additions.set(0);
+                for (byte[] row : table) {
+                    for (int j = 0; j < row.length; j ++) {
+                        row[j] = (byte) (row[j] >> 1);
+                    }
+                }
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i ++) {
+                frequency = Math.min(frequency, table[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int i) {
+            int h = hash * SEEDS[i];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+    }
+
+}
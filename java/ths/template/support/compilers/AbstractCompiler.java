@@ -1,9 +1,22 @@
 package ths.template.support.compilers;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,6 +28,10 @@ import ths.template.util.ClassUtils;
 /**
  * Abstract compiler. (SPI, Prototype, ThreadSafe)
  * 
+ * Every compiled class is defined in a class loader of its own, with its nested classes, and only weakly
+ * referenced here, so a template class replaced by its reloaded one, or evicted from the cache, is unloaded
+ * together with its class loader, once its last template instance is collected.
+ * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
 public abstract class AbstractCompiler implements Compiler, Configurable<Configs> {
@@ -23,8 +40,19 @@ public abstract class AbstractCompiler implements Compiler, Configurable<Configs
     
     private static final Pattern CLASS_PATTERN = Pattern.compile("class\\s+([_a-zA-Z][_a-zA-Z0-9]*)\\s+");
     
+    private static final ThreadLocal<List<Class<?>>> DEFINED = new ThreadLocal<List<Class<?>>>();
+    
     private File compileDirectory;
     
+    // the defined classes by name, weakly, to reuse them while they are still loaded.
+    private final ConcurrentMap<String, ClassReference> classes = new ConcurrentHashMap<String, ClassReference>();
+    
+    private final ReferenceQueue<Class<?>> unloadedQueue = new ReferenceQueue<Class<?>>();
+    
+    private final AtomicLong definedCount = new AtomicLong();
+    
+    private final AtomicLong unloadedCount = new AtomicLong();
+    
     @Override
     public void configure(Configs config) {
         String directory = config.getCompileDirectory();
@@ -58,8 +86,138 @@ public abstract class AbstractCompiler implements Compiler, Configurable<Configs
         }
     }
 
+    protected byte[] loadBytecode(String name) throws IOException {
+        if (compileDirectory != null && compileDirectory.exists()) {
+            File file = new File(compileDirectory, name.replace('.', '/') + ".class");
+            if (file.exists() && file.isFile()) {
+                byte[] bytecode = new byte[(int) file.length()];
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    int off = 0;
+                    while (off < bytecode.length) {
+                        int len = in.read(bytecode, off, bytecode.length - off);
+                        if (len < 0) {
+                            throw new IOException("Unexpected end of file " + file.getAbsolutePath());
+                        }
+                        off += len;
+                    }
+                } finally {
+                    in.close();
+                }
+                return bytecode;
+            }
+        }
+        return null;
+    }
+
+    public Class<?> load(String name) {
+        Class<?> clazz = getDefinedClass(name);
+        if (clazz != null) {
+            return clazz;
+        }
+        try {
+            return Class.forName(name, true, getClassLoader());
+        } catch (ClassNotFoundException e) {
+        }
+        try {
+            byte[] bytecode = loadBytecode(name);
+            if (bytecode != null) {
+                return doLoad(name, bytecode);
+            }
+        } catch (Throwable t) { // broken or stale class file, compile it again
+        }
+        return null;
+    }
+
     public Class<?> compile(String code) throws ParseException {
+        boolean holding = hold();
+        try {
+            return compileClass(code);
+        } finally {
+            release(holding);
+        }
+    }
+
+    public List<Class<?>> compile(List<String> codes) throws ParseException {
+        boolean holding = hold();
+        try {
+            return compileClasses(codes);
+        } finally {
+            release(holding);
+        }
+    }
+
+    // the defined classes are only weakly referenced, so the compiling thread holds them until they are returned.
+    private static boolean hold() {
+        if (DEFINED.get() != null) {
+            return false;
+        }
+        DEFINED.set(new ArrayList<Class<?>>());
+        return true;
+    }
+
+    private static void release(boolean holding) {
+        if (holding) {
+            DEFINED.remove();
+        }
+    }
+
+    private Class<?> compileClass(String code) throws ParseException {
         code = code.trim();
+        String className = getClassName(code);
+        Class<?> clazz = load(className);
+        if (clazz != null) {
+            return clazz;
+        }
+        if (! code.endsWith("}")) {
+            throw new ParseException("The java code not endsWith \"}\", code: \n" + code + "\n", code.length() - 1);
+        }
+        try {
+            return doCompile(className, code);
+        } catch (ParseException t) {
+            throw t;
+        } catch (Throwable t) {
+            throw new ParseException("Failed to compile class, cause: " + t.getMessage() + ", class: " + className + ", code: \n" + code + "\n, stack: " + ClassUtils.toString(t), 0);
+        }
+    }
+
+    private List<Class<?>> compileClasses(List<String> codes) throws ParseException {
+        List<String> names = new ArrayList<String>(codes.size());
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        for (String code : codes) {
+            code = code.trim();
+            String className = getClassName(code);
+            names.add(className);
+            if (load(className) == null) {
+                if (! code.endsWith("}")) {
+                    throw new ParseException("The java code not endsWith \"}\", code: \n" + code + "\n", code.length() - 1);
+                }
+                sources.put(className, code);
+            }
+        }
+        if (sources.size() > 0) {
+            Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+            doCompile(sources, failures);
+            if (failures.size() > 0) {
+                StringBuilder buf = new StringBuilder("Failed to compile " + failures.size() + " of " + sources.size() + " classes");
+                for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+                    buf.append("\nclass: " + failure.getKey() + ", cause: " + failure.getValue().getMessage());
+                }
+                throw new ParseException(buf.toString(), 0);
+            }
+        }
+        List<Class<?>> classes = new ArrayList<Class<?>>(names.size());
+        for (String name : names) {
+            Class<?> clazz = load(name);
+            if (clazz == null) {
+                throw new ParseException("Not found compiled class " + name, 0);
+            }
+            classes.add(clazz);
+        }
+        return classes;
+    }
+
+    protected String getClassName(String code) {
         Matcher matcher = PACKAGE_PATTERN.matcher(code);
         String pkg;
         if (matcher.find()) {
@@ -74,23 +232,130 @@ public abstract class AbstractCompiler implements Compiler, Configurable<Configs
         } else {
             throw new IllegalArgumentException("No such class name in " + code);
         }
-        String className = pkg != null && pkg.length() > 0 ? pkg + "." + cls : cls;
-        try {
-            return Class.forName(className, true, Thread.currentThread().getContextClassLoader());
-        } catch (ClassNotFoundException e) {
-            if (! code.endsWith("}")) {
-                throw new ParseException("The java code not endsWith \"}\", code: \n" + code + "\n", code.length() - 1);
-            }
+        return pkg != null && pkg.length() > 0 ? pkg + "." + cls : cls;
+    }
+    
+    /**
+     * Get the parent class loader of the compiled classes.
+     */
+    protected ClassLoader getClassLoader() {
+        return Thread.currentThread().getContextClassLoader();
+    }
+    
+    /**
+     * Get the compiled class, if it is still loaded.
+     */
+    protected Class<?> getDefinedClass(String name) {
+        expungeUnloaded();
+        ClassReference reference = classes.get(name);
+        return reference == null ? null : reference.get();
+    }
+    
+    protected Class<?> defineClass(String name, byte[] bytecode) throws ClassNotFoundException {
+        return defineClass(name, Collections.singletonMap(name, bytecode));
+    }
+    
+    /**
+     * Define the class in a new class loader, with its nested classes.
+     * 
+     * @param name Class name
+     * @param bytecodes Bytecodes of the class and its nested classes, by the class names
+     * @return Defined class, or the one still loaded with the same name
+     */
+    protected Class<?> defineClass(String name, Map<String, byte[]> bytecodes) throws ClassNotFoundException {
+        Class<?> clazz = getDefinedClass(name);
+        if (clazz != null) {
+            return clazz;
+        }
+        ClassLoaderImpl classLoader = new ClassLoaderImpl(getClassLoader(), new HashMap<String, byte[]>(bytecodes));
+        clazz = classLoader.loadClass(name);
+        List<Class<?>> defined = DEFINED.get();
+        if (defined != null) {
+            defined.add(clazz);
+        }
+        classes.put(name, new ClassReference(name, clazz, unloadedQueue));
+        definedCount.incrementAndGet();
+        return clazz;
+    }
+    
+    private void expungeUnloaded() {
+        Reference<? extends Class<?>> reference;
+        while ((reference = unloadedQueue.poll()) != null) {
+            ClassReference unloaded = (ClassReference) reference;
+            classes.remove(unloaded.name, unloaded);
+            unloadedCount.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Get the count of the compiled classes, still loaded.
+     */
+    public long getLiveClassCount() {
+        expungeUnloaded();
+        return definedCount.get() - unloadedCount.get();
+    }
+    
+    /**
+     * Get the count of the compiled classes, defined since created.
+     */
+    public long getDefinedClassCount() {
+        return definedCount.get();
+    }
+    
+    /**
+     * Get the count of the compiled classes, unloaded since created.
+     */
+    public long getUnloadedClassCount() {
+        expungeUnloaded();
+        return unloadedCount.get();
+    }
+    
+    protected abstract Class<?> doCompile(String name, String source) throws Throwable;
+    
+    protected void doCompile(Map<String, String> sources, Map<String, Throwable> failures) {
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
             try {
-                return doCompile(className, code);
-            } catch (ParseException t) {
-                throw t;
+                doCompile(entry.getKey(), entry.getValue());
             } catch (Throwable t) {
-                throw new ParseException("Failed to compile class, cause: " + t.getMessage() + ", class: " + className + ", code: \n" + code + "\n, stack: " + ClassUtils.toString(t), 0);
+                failures.put(entry.getKey(), t);
             }
         }
     }
     
-    protected abstract Class<?> doCompile(String name, String source) throws Throwable;
+    protected Class<?> doLoad(String name, byte[] bytecode) throws Throwable {
+        return defineClass(name, bytecode);
+    }
+    
+    private static final class ClassReference extends WeakReference<Class<?>> {
+        
+        final String name;
+        
+        ClassReference(String name, Class<?> clazz, ReferenceQueue<Class<?>> queue) {
+            super(clazz, queue);
+            this.name = name;
+        }
+        
+    }
+    
+    // the class loader of one compiled class and its nested classes, collected with them.
+    private static final class ClassLoaderImpl extends ClassLoader {
+        
+        private final Map<String, byte[]> bytecodes;
+        
+        ClassLoaderImpl(ClassLoader parentClassLoader, Map<String, byte[]> bytecodes) {
+            super(parentClassLoader);
+            this.bytecodes = bytecodes;
+        }
+        
+        @Override
+        protected synchronized Class<?> findClass(String qualifiedClassName) throws ClassNotFoundException {
+            byte[] bytes = bytecodes.remove(qualifiedClassName);
+            if (bytes == null) {
+                throw new ClassNotFoundException(qualifiedClassName);
+            }
+            return defineClass(qualifiedClassName, bytes, 0, bytes.length);
+        }
+        
+    }
 
 }
@@ -1,6 +1,7 @@
 package ths.template.support.compilers;
 
 import java.text.ParseException;
+import java.util.List;
 
 import ths.core.Configurable;
 import ths.template.Configs;
@@ -37,4 +38,27 @@ public class AdaptiveCompiler implements Compiler, Configurable<Configs> {
         return compiler.compile(code);
     }
 
+    public List<Class<?>> compile(List<String> codes) throws ParseException {
+        return compiler.compile(codes);
+    }
+
+    public Class<?> load(String name) {
+        return compiler.load(name);
+    }
+
+    /**
+     * Get the count of the compiled classes, still loaded.
+     */
+    public long getLiveClassCount() {
+        return compiler instanceof AbstractCompiler ? ((AbstractCompiler) compiler).getLiveClassCount() : 0;
+    }
+
+    public long getDefinedClassCount() {
+        return compiler instanceof AbstractCompiler ? ((AbstractCompiler) compiler).getDefinedClassCount() : 0;
+    }
+
+    public long getUnloadedClassCount() {
+        return compiler instanceof AbstractCompiler ? ((AbstractCompiler) compiler).getUnloadedClassCount() : 0;
+    }
+
 }
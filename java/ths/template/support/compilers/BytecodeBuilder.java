@@ -0,0 +1,1145 @@
+package ths.template.support.compilers;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.DuplicateMemberException;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import ths.template.Engine;
+import ths.template.util.ClassUtils;
+
+/**
+ * BytecodeBuilder. (Tool, Prototype, ThreadUnsafe)
+ *
+ * Builds the bytecode of one method, with named local variables in nested scopes, branch labels,
+ * and the java conversions between the primitive, boxed and reference types.
+ * Whatever it can not emit the same as javac throws UnsupportedBytecodeException,
+ * so the caller can compile the java source instead.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class BytecodeBuilder {
+
+    // the modified UTF-8 length limit of a constant pool string.
+    private static final int MAX_CONSTANT_LENGTH = 65535;
+
+    private final ClassFile classFile;
+
+    private final Bytecode code;
+
+    private final String className;
+
+    private final int modifiers;
+
+    private final String name;
+
+    private final String descriptor;
+
+    private final LinkedList<Map<String, Local>> scopes = new LinkedList<Map<String, Local>>();
+
+    private int locals;
+
+    /**
+     * @param classFile - the class of the method, the receiver of the inherited calls.
+     * @param modifiers - the method modifiers, of java.lang.reflect.Modifier.
+     * @param name - the method name, &lt;init&gt; or &lt;clinit&gt; for the constructors.
+     */
+    public BytecodeBuilder(ClassFile classFile, int modifiers, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        this.classFile = classFile;
+        this.code = new Bytecode(classFile.getConstPool());
+        this.className = classFile.getName();
+        this.modifiers = modifiers;
+        this.name = name;
+        this.descriptor = getMethodDescriptor(returnType, parameterTypes);
+        this.locals = Modifier.isStatic(modifiers) ? 0 : 1;
+        for (Class<?> type : parameterTypes) {
+            locals += getSize(type);
+        }
+        scopes.add(new HashMap<String, Local>());
+    }
+
+    /**
+     * Create the public class of the version 49, which needs no stack map frames.
+     */
+    public static ClassFile newClass(String name, Class<?> superClass) {
+        ClassFile classFile = new ClassFile(false, name, superClass.getName());
+        classFile.setMajorVersion(ClassFile.JAVA_5);
+        classFile.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.SUPER);
+        return classFile;
+    }
+
+    public static void addField(ClassFile classFile, int modifiers, String name, Class<?> type) {
+        FieldInfo field = new FieldInfo(classFile.getConstPool(), name, getDescriptor(type));
+        field.setAccessFlags(modifiers);
+        try {
+            classFile.addField(field);
+        } catch (DuplicateMemberException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    public static byte[] toBytecode(ClassFile classFile) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            classFile.write(out);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Bytecode getBytecode() {
+        return code;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Add the built method to the class, the code must have returned.
+     */
+    public void addMethod() throws UnsupportedBytecodeException {
+        code.setMaxLocals(locals);
+        CodeAttribute attribute = code.toCodeAttribute();
+        try {
+            attribute.setMaxStack(attribute.computeMaxStack());
+        } catch (BadBytecode e) {
+            throw new UnsupportedBytecodeException("Failed to compute max stack of " + className + "." + name + ", cause: " + e.getMessage());
+        }
+        MethodInfo method = new MethodInfo(classFile.getConstPool(), name, descriptor);
+        method.setAccessFlags(modifiers);
+        method.setCodeAttribute(attribute);
+        try {
+            classFile.addMethod(method);
+        } catch (DuplicateMemberException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Return the value of the type on the stack, or return void.
+     */
+    public void returnValue(Class<?> type) {
+        if (type == void.class) {
+            code.addOpcode(Opcode.RETURN);
+        } else if (type == long.class) {
+            code.addOpcode(Opcode.LRETURN);
+        } else if (type == float.class) {
+            code.addOpcode(Opcode.FRETURN);
+        } else if (type == double.class) {
+            code.addOpcode(Opcode.DRETURN);
+        } else if (type.isPrimitive()) {
+            code.addOpcode(Opcode.IRETURN);
+        } else {
+            code.addOpcode(Opcode.ARETURN);
+        }
+    }
+
+    // ==== local variables ====
+
+    public void beginScope() {
+        scopes.addLast(new HashMap<String, Local>());
+    }
+
+    public void endScope() {
+        scopes.removeLast();
+    }
+
+    /**
+     * Declare the named variable in the current scope.
+     *
+     * @return the variable slot.
+     */
+    public int declare(String name, Class<?> type) {
+        int slot = allocate(type);
+        declare(name, slot, type);
+        return slot;
+    }
+
+    /**
+     * Name an allocated slot, or a method parameter, in the current scope.
+     */
+    public void declare(String name, int slot, Class<?> type) {
+        scopes.getLast().put(name, new Local(slot, type));
+    }
+
+    /**
+     * Allocate an unnamed slot.
+     */
+    public int allocate(Class<?> type) {
+        int slot = locals;
+        locals += getSize(type);
+        return slot;
+    }
+
+    public boolean isDeclared(String name) {
+        return getLocal(name) != null;
+    }
+
+    /**
+     * Load the named variable.
+     *
+     * @return the variable type.
+     */
+    public Class<?> load(String name) throws UnsupportedBytecodeException {
+        Local local = getLocal(name);
+        if (local == null) {
+            throw new UnsupportedBytecodeException("Undeclared variable " + name);
+        }
+        load(local.slot, local.type);
+        return local.type;
+    }
+
+    /**
+     * Store the value of the variable type into the named variable.
+     *
+     * @return the variable type.
+     */
+    public Class<?> store(String name) throws UnsupportedBytecodeException {
+        Local local = getLocal(name);
+        if (local == null) {
+            throw new UnsupportedBytecodeException("Undeclared variable " + name);
+        }
+        store(local.slot, local.type);
+        return local.type;
+    }
+
+    public void load(int slot, Class<?> type) {
+        if (type == long.class) {
+            code.addLload(slot);
+        } else if (type == float.class) {
+            code.addFload(slot);
+        } else if (type == double.class) {
+            code.addDload(slot);
+        } else if (type.isPrimitive()) {
+            code.addIload(slot);
+        } else {
+            code.addAload(slot);
+        }
+    }
+
+    public void store(int slot, Class<?> type) {
+        if (type == long.class) {
+            code.addLstore(slot);
+        } else if (type == float.class) {
+            code.addFstore(slot);
+        } else if (type == double.class) {
+            code.addDstore(slot);
+        } else if (type.isPrimitive()) {
+            code.addIstore(slot);
+        } else {
+            code.addAstore(slot);
+        }
+    }
+
+    /**
+     * Increment the int variable in the slot, without loading it.
+     */
+    public void increment(int slot, int delta) {
+        if (slot < 256 && delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE) {
+            code.addOpcode(Opcode.IINC);
+            code.add(slot);
+            code.add(delta);
+        } else {
+            code.addOpcode(Opcode.WIDE);
+            code.addOpcode(Opcode.IINC);
+            code.addIndex(slot);
+            code.addIndex(delta);
+        }
+    }
+
+    private Local getLocal(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i --) {
+            Local local = scopes.get(i).get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        return null;
+    }
+
+    // ==== branches ====
+
+    public Label newLabel() {
+        return new Label();
+    }
+
+    public void mark(Label label) throws UnsupportedBytecodeException {
+        if (label.position >= 0) {
+            throw new IllegalStateException("The label is marked already.");
+        }
+        label.position = code.currentPc();
+        for (Integer branch : label.branches) {
+            code.write16bit(branch.intValue() + 1, getOffset(branch.intValue(), label.position));
+        }
+        label.branches.clear();
+    }
+
+    /**
+     * Branch to the label, with GOTO or any IF opcode.
+     */
+    public void branch(int opcode, Label label) throws UnsupportedBytecodeException {
+        int pc = code.currentPc();
+        code.addOpcode(opcode);
+        if (label.position >= 0) {
+            code.addIndex(getOffset(pc, label.position));
+        } else {
+            label.branches.add(Integer.valueOf(pc));
+            code.addIndex(0);
+        }
+    }
+
+    public void jump(Label label) throws UnsupportedBytecodeException {
+        branch(Opcode.GOTO, label);
+    }
+
+    public void branchIfNull(Label label) throws UnsupportedBytecodeException {
+        branch(Opcode.IFNULL, label);
+    }
+
+    public void branchIfNonNull(Label label) throws UnsupportedBytecodeException {
+        branch(Opcode.IFNONNULL, label);
+    }
+
+    private static int getOffset(int from, int to) throws UnsupportedBytecodeException {
+        int offset = to - from;
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new UnsupportedBytecodeException("The branch offset " + offset + " is too long.");
+        }
+        return offset;
+    }
+
+    /**
+     * Branch to the label, if the value of the type on the stack is false, the same as StringUtils.getConditionCode(type, code).
+     */
+    public void branchIfFalse(Class<?> type, Label label) throws UnsupportedBytecodeException {
+        branchIf(type, label, false);
+    }
+
+    /**
+     * Branch to the label, if the value of the type on the stack is true.
+     */
+    public void branchIfTrue(Class<?> type, Label label) throws UnsupportedBytecodeException {
+        branchIf(type, label, true);
+    }
+
+    private void branchIf(Class<?> type, Label label, boolean when) throws UnsupportedBytecodeException {
+        if (type == null || type == void.class) {
+            throw new UnsupportedBytecodeException("Unsupported condition type " + type);
+        }
+        if (type == boolean.class || type == byte.class || type == short.class
+                || type == int.class || type == char.class) {
+            branch(when ? Opcode.IFNE : Opcode.IFEQ, label);
+        } else if (type == long.class) {
+            code.addLconst(0);
+            code.addOpcode(Opcode.LCMP);
+            branch(when ? Opcode.IFNE : Opcode.IFEQ, label);
+        } else if (type == float.class) {
+            code.addFconst(0);
+            code.addOpcode(Opcode.FCMPL);
+            branch(when ? Opcode.IFNE : Opcode.IFEQ, label);
+        } else if (type == double.class) {
+            code.addDconst(0);
+            code.addOpcode(Opcode.DCMPL);
+            branch(when ? Opcode.IFNE : Opcode.IFEQ, label);
+        } else if (type.isArray()) {
+            code.addOpcode(Opcode.ARRAYLENGTH);
+            branch(when ? Opcode.IFGT : Opcode.IFLE, label);
+        } else {
+            Method method = null;
+            if (type == String.class || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)) {
+                method = getMethod(type, type == String.class ? "length" : "size");
+            } else {
+                String size = ClassUtils.getSizeMethod(type);
+                if (size != null && size.length() > 0) {
+                    method = getMethod(type, size.substring(0, size.length() - 2));
+                }
+            }
+            if (method == null) {
+                branch(when ? Opcode.IFNONNULL : Opcode.IFNULL, label);
+                return;
+            }
+            invoke(type, method);
+            Class<?> sizeType = method.getReturnType();
+            Class<?> primitive = getPrimitive(sizeType);
+            if (primitive == null || primitive == boolean.class) {
+                throw new UnsupportedBytecodeException("Unsupported size type " + sizeType.getName() + " of " + type.getName());
+            }
+            primitive = promote(primitive, int.class);
+            convert(sizeType, primitive);
+            push(zero(primitive), primitive);
+            compare(">", primitive, label, when);
+        }
+    }
+
+    /**
+     * Branch to the label, if the comparison of the two values of the type on the stack is the given result.
+     *
+     * @param operator - one of ==, !=, &lt;, &lt;=, &gt;, &gt;=
+     * @param type - int, long, float, double or a reference type for == and !=.
+     */
+    public void compare(String operator, Class<?> type, Label label, boolean when) throws UnsupportedBytecodeException {
+        if (! when) {
+            operator = negate(operator);
+        }
+        if (type == long.class || type == float.class || type == double.class) {
+            if (type == long.class) {
+                code.addOpcode(Opcode.LCMP);
+            } else if (type == float.class) {
+                // javac makes NaN compare false, whatever the operator is.
+                code.addOpcode(operator.startsWith("<") == when ? Opcode.FCMPG : Opcode.FCMPL);
+            } else {
+                code.addOpcode(operator.startsWith("<") == when ? Opcode.DCMPG : Opcode.DCMPL);
+            }
+            branch(getCompareOpcode(operator, Opcode.IFEQ), label);
+        } else if (type == null || ! type.isPrimitive()) {
+            if (! "==".equals(operator) && ! "!=".equals(operator)) {
+                throw new UnsupportedBytecodeException("Unsupported operator " + operator + " of type " + type);
+            }
+            branch("==".equals(operator) ? Opcode.IF_ACMPEQ : Opcode.IF_ACMPNE, label);
+        } else {
+            branch(getCompareOpcode(operator, Opcode.IF_ICMPEQ), label);
+        }
+    }
+
+    private static String negate(String operator) throws UnsupportedBytecodeException {
+        if ("==".equals(operator)) {
+            return "!=";
+        } else if ("!=".equals(operator)) {
+            return "==";
+        } else if ("<".equals(operator)) {
+            return ">=";
+        } else if ("<=".equals(operator)) {
+            return ">";
+        } else if (">".equals(operator)) {
+            return "<=";
+        } else if (">=".equals(operator)) {
+            return "<";
+        }
+        throw new UnsupportedBytecodeException("Unsupported comparison operator " + operator);
+    }
+
+    // IFEQ, IFNE, IFLT, IFGE, IFGT, IFLE, and the same order of IF_ICMPXX.
+    private static int getCompareOpcode(String operator, int base) throws UnsupportedBytecodeException {
+        if ("==".equals(operator)) {
+            return base;
+        } else if ("!=".equals(operator)) {
+            return base + 1;
+        } else if ("<".equals(operator)) {
+            return base + 2;
+        } else if (">=".equals(operator)) {
+            return base + 3;
+        } else if (">".equals(operator)) {
+            return base + 4;
+        } else if ("<=".equals(operator)) {
+            return base + 5;
+        }
+        throw new UnsupportedBytecodeException("Unsupported comparison operator " + operator);
+    }
+
+    /**
+     * Apply the binary operator to the two values of the type on the stack, the shift distance is an int.
+     *
+     * @param operator - one of +, -, *, /, %, &amp;, |, ^, &lt;&lt;, &gt;&gt;, &gt;&gt;&gt;
+     * @param type - int, long, float or double, or boolean for the bitwise operators.
+     */
+    public void arithmetic(String operator, Class<?> type) throws UnsupportedBytecodeException {
+        int kind = getKind(type);
+        int opcode;
+        if ("+".equals(operator)) {
+            opcode = Opcode.IADD + kind;
+        } else if ("-".equals(operator)) {
+            opcode = Opcode.ISUB + kind;
+        } else if ("*".equals(operator)) {
+            opcode = Opcode.IMUL + kind;
+        } else if ("/".equals(operator)) {
+            opcode = Opcode.IDIV + kind;
+        } else if ("%".equals(operator)) {
+            opcode = Opcode.IREM + kind;
+        } else if (kind > 1) {
+            throw new UnsupportedBytecodeException("Unsupported operator " + operator + " of type " + type);
+        } else if ("&".equals(operator)) {
+            opcode = Opcode.IAND + kind;
+        } else if ("|".equals(operator)) {
+            opcode = Opcode.IOR + kind;
+        } else if ("^".equals(operator)) {
+            opcode = Opcode.IXOR + kind;
+        } else if ("<<".equals(operator)) {
+            opcode = Opcode.ISHL + kind;
+        } else if (">>".equals(operator)) {
+            opcode = Opcode.ISHR + kind;
+        } else if (">>>".equals(operator)) {
+            opcode = Opcode.IUSHR + kind;
+        } else {
+            throw new UnsupportedBytecodeException("Unsupported operator " + operator);
+        }
+        code.addOpcode(opcode);
+    }
+
+    public void negate(Class<?> type) throws UnsupportedBytecodeException {
+        code.addOpcode(Opcode.INEG + getKind(type));
+    }
+
+    // the opcode offset of the int, long, float and double instructions, the boolean and narrower types are ints.
+    private static int getKind(Class<?> type) throws UnsupportedBytecodeException {
+        if (type == long.class) {
+            return 1;
+        } else if (type == float.class) {
+            return 2;
+        } else if (type == double.class) {
+            return 3;
+        } else if (type == null || ! type.isPrimitive() || type == void.class) {
+            throw new UnsupportedBytecodeException("Unsupported arithmetic type " + type);
+        }
+        return 0;
+    }
+
+    /**
+     * Push the boolean result of the branches to the labels, true first.
+     */
+    public void pushBoolean(Label trueLabel, Label falseLabel) throws UnsupportedBytecodeException {
+        Label end = newLabel();
+        if (trueLabel != null) {
+            mark(trueLabel);
+        }
+        code.addIconst(1);
+        branch(Opcode.GOTO, end);
+        mark(falseLabel);
+        code.addIconst(0);
+        mark(end);
+    }
+
+    // ==== constants ====
+
+    /**
+     * Push the constant of the type.
+     */
+    public void push(Object value, Class<?> type) throws UnsupportedBytecodeException {
+        if (value == null) {
+            if (type != null && type.isPrimitive()) {
+                throw new UnsupportedBytecodeException("Unsupported null of primitive type " + type);
+            }
+            code.addOpcode(Opcode.ACONST_NULL);
+        } else if (type == boolean.class) {
+            code.addIconst(((Boolean) value).booleanValue() ? 1 : 0);
+        } else if (type == char.class) {
+            code.addIconst(((Character) value).charValue());
+        } else if (type == byte.class || type == short.class || type == int.class) {
+            code.addIconst(((Number) value).intValue());
+        } else if (type == long.class) {
+            code.addLconst(((Number) value).longValue());
+        } else if (type == float.class) {
+            code.addFconst(((Number) value).floatValue());
+        } else if (type == double.class) {
+            code.addDconst(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            push((String) value);
+        } else if (value instanceof Class<?>) {
+            pushClass((Class<?>) value);
+        } else {
+            throw new UnsupportedBytecodeException("Unsupported constant " + value + " of type " + type);
+        }
+    }
+
+    /**
+     * Push the string constant, built from pieces if it is longer than a constant.
+     */
+    public void push(String value) {
+        List<String> pieces = split(value);
+        if (pieces.size() == 1) {
+            code.addLdc(value);
+            return;
+        }
+        code.addNew(StringBuilder.class.getName());
+        code.addOpcode(Opcode.DUP);
+        code.addIconst(value.length());
+        code.addInvokespecial(StringBuilder.class.getName(), "<init>", "(I)V");
+        for (String piece : pieces) {
+            code.addLdc(piece);
+            code.addInvokevirtual(StringBuilder.class.getName(), "append", getMethodDescriptor(StringBuilder.class, String.class));
+        }
+        code.addInvokevirtual(StringBuilder.class.getName(), "toString", getMethodDescriptor(String.class));
+    }
+
+    private static List<String> split(String value) {
+        List<String> pieces = new ArrayList<String>(1);
+        int start = 0;
+        int length = 0;
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            int size = c != 0 && c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+            if (length + size > MAX_CONSTANT_LENGTH) {
+                pieces.add(value.substring(start, i));
+                start = i;
+                length = 0;
+            }
+            length += size;
+        }
+        pieces.add(value.substring(start));
+        return pieces;
+    }
+
+    public void pushInitValue(Class<?> type) throws UnsupportedBytecodeException {
+        if (type.isPrimitive()) {
+            push(type == boolean.class ? Boolean.FALSE : type == char.class ? (Object) Character.valueOf('\0') : zero(type), type);
+        } else {
+            code.addOpcode(Opcode.ACONST_NULL);
+        }
+    }
+
+    private static Object zero(Class<?> type) {
+        if (type == long.class) {
+            return Long.valueOf(0);
+        } else if (type == float.class) {
+            return Float.valueOf(0);
+        } else if (type == double.class) {
+            return Double.valueOf(0);
+        }
+        return Integer.valueOf(0);
+    }
+
+    public void pushClass(Class<?> type) throws UnsupportedBytecodeException {
+        if (type.isPrimitive()) {
+            Class<?> boxed = type == void.class ? Void.class : ClassUtils.getBoxedClass(type);
+            code.addGetstatic(boxed.getName(), "TYPE", getDescriptor(Class.class));
+        } else {
+            checkAccessible(type);
+            code.addLdc(code.getConstPool().addClassInfo(type.getName()));
+        }
+    }
+
+    public void pushThis() {
+        code.addAload(0);
+    }
+
+    /**
+     * Push the engine of the template or evaluator, with the inherited getEngine().
+     */
+    public void pushEngine() {
+        code.addAload(0);
+        code.addInvokevirtual(className, "getEngine", getMethodDescriptor(Engine.class));
+    }
+
+    /**
+     * Push the function instance of the engine.
+     */
+    public void pushFunction(Class<?> function) throws UnsupportedBytecodeException {
+        pushEngine();
+        pushClass(function);
+        code.addInvokevirtual(Engine.class.getName(), "getFunction", getMethodDescriptor(Object.class, Class.class));
+        checkcast(function);
+    }
+
+    // ==== objects and arrays ====
+
+    /**
+     * Push a new uninitialized instance twice, the arguments and the constructor come next.
+     */
+    public void newInstance(Class<?> type) throws UnsupportedBytecodeException {
+        checkAccessible(type);
+        code.addNew(type.getName());
+        code.addOpcode(Opcode.DUP);
+    }
+
+    public void newArray(Class<?> componentType, int length) throws UnsupportedBytecodeException {
+        code.addIconst(length);
+        if (componentType.isPrimitive()) {
+            int kind;
+            if (componentType == boolean.class) {
+                kind = Bytecode.T_BOOLEAN;
+            } else if (componentType == char.class) {
+                kind = Bytecode.T_CHAR;
+            } else if (componentType == byte.class) {
+                kind = Bytecode.T_BYTE;
+            } else if (componentType == short.class) {
+                kind = Bytecode.T_SHORT;
+            } else if (componentType == int.class) {
+                kind = Bytecode.T_INT;
+            } else if (componentType == long.class) {
+                kind = Bytecode.T_LONG;
+            } else if (componentType == float.class) {
+                kind = Bytecode.T_FLOAT;
+            } else {
+                kind = Bytecode.T_DOUBLE;
+            }
+            code.addOpcode(Opcode.NEWARRAY);
+            code.add(kind);
+        } else {
+            checkAccessible(componentType);
+            code.addAnewarray(componentType.getName());
+        }
+    }
+
+    public void arrayLoad(Class<?> componentType) {
+        code.addOpcode(getArrayOpcode(componentType, Opcode.IALOAD));
+    }
+
+    public void arrayStore(Class<?> componentType) {
+        code.addOpcode(getArrayOpcode(componentType, Opcode.IASTORE));
+    }
+
+    public void arrayLength() {
+        code.addOpcode(Opcode.ARRAYLENGTH);
+    }
+
+    // IALOAD, LALOAD, FALOAD, DALOAD, AALOAD, BALOAD, CALOAD, SALOAD, and the same order of XASTORE.
+    private static int getArrayOpcode(Class<?> componentType, int base) {
+        if (componentType == int.class) {
+            return base;
+        } else if (componentType == long.class) {
+            return base + 1;
+        } else if (componentType == float.class) {
+            return base + 2;
+        } else if (componentType == double.class) {
+            return base + 3;
+        } else if (componentType == byte.class || componentType == boolean.class) {
+            return base + 5;
+        } else if (componentType == char.class) {
+            return base + 6;
+        } else if (componentType == short.class) {
+            return base + 7;
+        }
+        return base + 4;
+    }
+
+    public void instanceOf(Class<?> type) throws UnsupportedBytecodeException {
+        checkAccessible(type);
+        code.addInstanceof(type.getName());
+    }
+
+    public void checkcast(Class<?> type) throws UnsupportedBytecodeException {
+        if (type != Object.class) {
+            checkAccessible(type);
+            code.addCheckcast(type.getName());
+        }
+    }
+
+    /**
+     * The emitted class can only name the public classes, where the java source would not compile either.
+     */
+    public static void checkAccessible(Class<?> type) throws UnsupportedBytecodeException {
+        if (! isAccessible(type)) {
+            throw new UnsupportedBytecodeException("Unsupported non-public class " + type.getName());
+        }
+    }
+
+    public static boolean isAccessible(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        for (Class<?> cls = type; cls != null; cls = cls.getDeclaringClass()) {
+            if (! cls.isPrimitive() && ! Modifier.isPublic(cls.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void dup(Class<?> type) {
+        code.addOpcode(getSize(type) == 2 ? Opcode.DUP2 : Opcode.DUP);
+    }
+
+    public void pop(Class<?> type) {
+        if (type != void.class) {
+            code.addOpcode(getSize(type) == 2 ? Opcode.POP2 : Opcode.POP);
+        }
+    }
+
+    // ==== invocations ====
+
+    /**
+     * Invoke the method, on the receiver of the static type, or statically.
+     */
+    public void invoke(Class<?> receiverType, Method method) throws UnsupportedBytecodeException {
+        String descriptor = getMethodDescriptor(method.getReturnType(), method.getParameterTypes());
+        Class<?> owner = receiverType == null || ! isAccessible(receiverType) ? method.getDeclaringClass() : receiverType;
+        checkAccessible(owner);
+        if (Modifier.isStatic(method.getModifiers())) {
+            checkAccessible(method.getDeclaringClass());
+            code.addInvokestatic(method.getDeclaringClass().getName(), method.getName(), descriptor);
+        } else if (method.getDeclaringClass() == Object.class) {
+            code.addInvokevirtual(Object.class.getName(), method.getName(), descriptor);
+        } else if (owner.isInterface()) {
+            int count = 1;
+            for (Class<?> type : method.getParameterTypes()) {
+                count += getSize(type);
+            }
+            code.addInvokeinterface(owner.getName(), method.getName(), descriptor, count);
+        } else {
+            code.addInvokevirtual(owner.getName(), method.getName(), descriptor);
+        }
+    }
+
+    /**
+     * Invoke the public method declared or inherited by the class.
+     */
+    public void invoke(Class<?> type, String name, Class<?>... parameterTypes) throws UnsupportedBytecodeException {
+        try {
+            invoke(type, type.getMethod(name, parameterTypes));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Invoke the constructor, on the instance pushed by newInstance().
+     */
+    public void invoke(Constructor<?> constructor) throws UnsupportedBytecodeException {
+        if (! Modifier.isPublic(constructor.getModifiers())) {
+            throw new UnsupportedBytecodeException("Unsupported non-public constructor " + constructor);
+        }
+        code.addInvokespecial(constructor.getDeclaringClass().getName(), "<init>", getMethodDescriptor(void.class, constructor.getParameterTypes()));
+    }
+
+    /**
+     * Invoke the public constructor of the class, on the instance pushed by newInstance().
+     */
+    public void invokeConstructor(Class<?> type, Class<?>... parameterTypes) throws UnsupportedBytecodeException {
+        try {
+            invoke(type.getConstructor(parameterTypes));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Invoke the super class constructor, on this.
+     */
+    public void invokeSuperConstructor(Class<?>... parameterTypes) {
+        code.addInvokespecial(classFile.getSuperclass(), "<init>", getMethodDescriptor(void.class, parameterTypes));
+    }
+
+    public void getStatic(String name, Class<?> type) {
+        code.addGetstatic(className, name, getDescriptor(type));
+    }
+
+    public void putStatic(String name, Class<?> type) {
+        code.addPutstatic(className, name, getDescriptor(type));
+    }
+
+    /**
+     * Get the field of this class, from the instance pushed.
+     */
+    public void getField(String name, Class<?> type) {
+        code.addGetfield(className, name, getDescriptor(type));
+    }
+
+    /**
+     * Put the field of this class, on the instance and the value pushed.
+     */
+    public void putField(String name, Class<?> type) {
+        code.addPutfield(className, name, getDescriptor(type));
+    }
+
+    /**
+     * Invoke the method of this class, or inherited from the super class, including the protected ones.
+     */
+    public void invokeThis(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        code.addInvokevirtual(className, name, getMethodDescriptor(returnType, parameterTypes));
+    }
+
+    private static Method getMethod(Class<?> type, String name) {
+        try {
+            return type.getMethod(name, new Class<?>[0]);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // ==== conversions ====
+
+    /**
+     * Convert the value on the stack, the same as the java cast (to)(value).
+     *
+     * @param from - the static type of the value, or null for the null literal.
+     */
+    public void convert(Class<?> from, Class<?> to) throws UnsupportedBytecodeException {
+        if (from == to) {
+            return;
+        }
+        if (to == null || to == void.class || from == void.class) {
+            throw new UnsupportedBytecodeException("Unsupported conversion from " + from + " to " + to);
+        }
+        if (from == null) {
+            if (to.isPrimitive()) {
+                throw new UnsupportedBytecodeException("Unsupported conversion from null to " + to);
+            }
+            return;
+        }
+        if (from.isPrimitive()) {
+            if (to.isPrimitive()) {
+                convertPrimitive(from, to);
+                return;
+            }
+            Class<?> boxed = ClassUtils.getBoxedClass(from);
+            if (! to.isAssignableFrom(boxed)) {
+                throw new UnsupportedBytecodeException("Unsupported conversion from " + from + " to " + to.getName());
+            }
+            box(from);
+        } else if (to.isPrimitive()) {
+            Class<?> primitive = getPrimitive(from);
+            if (primitive == null) {
+                Class<?> boxed = ClassUtils.getBoxedClass(to);
+                if (! from.isAssignableFrom(boxed)) {
+                    throw new UnsupportedBytecodeException("Unsupported conversion from " + from.getName() + " to " + to);
+                }
+                checkcast(boxed);
+                primitive = to;
+            }
+            unbox(primitive);
+            convertPrimitive(primitive, to);
+        } else if (! to.isAssignableFrom(from)) {
+            if (! from.isAssignableFrom(to) && ! from.isInterface() && ! to.isInterface()) {
+                // the java compiler rejects the cast of the unrelated classes.
+                throw new UnsupportedBytecodeException("Unsupported conversion from " + from.getName() + " to " + to.getName());
+            }
+            checkcast(to);
+        }
+    }
+
+    private void convertPrimitive(Class<?> from, Class<?> to) throws UnsupportedBytecodeException {
+        if (from == to) {
+            return;
+        }
+        if (from == boolean.class || to == boolean.class) {
+            throw new UnsupportedBytecodeException("Unsupported conversion from " + from + " to " + to);
+        }
+        if (from == long.class) {
+            if (to == float.class) {
+                code.addOpcode(Opcode.L2F);
+                return;
+            } else if (to == double.class) {
+                code.addOpcode(Opcode.L2D);
+                return;
+            }
+            code.addOpcode(Opcode.L2I);
+        } else if (from == float.class) {
+            if (to == long.class) {
+                code.addOpcode(Opcode.F2L);
+                return;
+            } else if (to == double.class) {
+                code.addOpcode(Opcode.F2D);
+                return;
+            }
+            code.addOpcode(Opcode.F2I);
+        } else if (from == double.class) {
+            if (to == long.class) {
+                code.addOpcode(Opcode.D2L);
+                return;
+            } else if (to == float.class) {
+                code.addOpcode(Opcode.D2F);
+                return;
+            }
+            code.addOpcode(Opcode.D2I);
+        } else if (to == long.class) {
+            code.addOpcode(Opcode.I2L);
+            return;
+        } else if (to == float.class) {
+            code.addOpcode(Opcode.I2F);
+            return;
+        } else if (to == double.class) {
+            code.addOpcode(Opcode.I2D);
+            return;
+        }
+        // the int value is narrowed, unless it was narrower already.
+        if (to == byte.class && from != byte.class) {
+            code.addOpcode(Opcode.I2B);
+        } else if (to == short.class && from != byte.class && from != short.class) {
+            code.addOpcode(Opcode.I2S);
+        } else if (to == char.class && from != char.class) {
+            code.addOpcode(Opcode.I2C);
+        }
+    }
+
+    /**
+     * Convert the value on the stack, the same as the java assignment or method invocation conversion,
+     * the widening, boxing and unboxing ones only.
+     */
+    public void assign(Class<?> from, Class<?> to) throws UnsupportedBytecodeException {
+        if (! isAssignable(from, to)) {
+            throw new UnsupportedBytecodeException("Unsupported assigning " + from + " to " + to);
+        }
+        convert(from, to);
+    }
+
+    public static boolean isAssignable(Class<?> from, Class<?> to) {
+        if (from == to) {
+            return true;
+        } else if (to == null || to == void.class || from == void.class) {
+            return false;
+        } else if (from == null) {
+            return ! to.isPrimitive();
+        } else if (! from.isPrimitive() && ! to.isPrimitive()) {
+            return to.isAssignableFrom(from);
+        } else if (! to.isPrimitive()) {
+            return to.isAssignableFrom(ClassUtils.getBoxedClass(from));
+        }
+        Class<?> primitive = getPrimitive(from);
+        if (primitive == null || primitive == boolean.class || to == boolean.class) {
+            return primitive == to;
+        }
+        if (primitive == to) {
+            return true;
+        } else if (to == char.class || to == byte.class || primitive == double.class) {
+            return false;
+        } else if (to == short.class) {
+            return primitive == byte.class;
+        } else if (to == int.class) {
+            return primitive == byte.class || primitive == short.class || primitive == char.class;
+        } else if (to == long.class) {
+            return primitive != float.class;
+        }
+        return true; // float and double
+    }
+
+    /**
+     * Box the primitive value on the stack, with valueOf().
+     */
+    public void box(Class<?> type) {
+        Class<?> boxed = ClassUtils.getBoxedClass(type);
+        code.addInvokestatic(boxed.getName(), "valueOf", getMethodDescriptor(boxed, type));
+    }
+
+    /**
+     * Unbox the boxed value of the primitive type on the stack, with xxxValue().
+     */
+    public void unbox(Class<?> type) {
+        Class<?> boxed = ClassUtils.getBoxedClass(type);
+        code.addInvokevirtual(boxed.getName(), type.getName() + "Value", getMethodDescriptor(type));
+    }
+
+    /**
+     * Get the primitive type of the primitive or boxed type, or null for the others.
+     */
+    public static Class<?> getPrimitive(Class<?> type) {
+        if (type == null || type.isPrimitive()) {
+            return type == void.class ? null : type;
+        } else if (type == Boolean.class) {
+            return boolean.class;
+        } else if (type == Character.class) {
+            return char.class;
+        } else if (type == Byte.class) {
+            return byte.class;
+        } else if (type == Short.class) {
+            return short.class;
+        } else if (type == Integer.class) {
+            return int.class;
+        } else if (type == Long.class) {
+            return long.class;
+        } else if (type == Float.class) {
+            return float.class;
+        } else if (type == Double.class) {
+            return double.class;
+        }
+        return null;
+    }
+
+    /**
+     * Get the binary numeric promotion of the primitive types, or null if any is not numeric.
+     */
+    public static Class<?> promote(Class<?> left, Class<?> right) {
+        if (left == null || right == null || left == boolean.class || right == boolean.class
+                || ! left.isPrimitive() || ! right.isPrimitive()) {
+            return null;
+        }
+        if (left == double.class || right == double.class) {
+            return double.class;
+        } else if (left == float.class || right == float.class) {
+            return float.class;
+        } else if (left == long.class || right == long.class) {
+            return long.class;
+        }
+        return int.class;
+    }
+
+    // ==== descriptors ====
+
+    public static int getSize(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : (type == void.class ? 0 : 1);
+    }
+
+    public static String getDescriptor(Class<?> type) {
+        if (type.isPrimitive()) {
+            if (type == boolean.class) {
+                return "Z";
+            } else if (type == char.class) {
+                return "C";
+            } else if (type == byte.class) {
+                return "B";
+            } else if (type == short.class) {
+                return "S";
+            } else if (type == int.class) {
+                return "I";
+            } else if (type == long.class) {
+                return "J";
+            } else if (type == float.class) {
+                return "F";
+            } else if (type == double.class) {
+                return "D";
+            }
+            return "V";
+        } else if (type.isArray()) {
+            return type.getName().replace('.', '/');
+        }
+        return "L" + type.getName().replace('.', '/') + ";";
+    }
+
+    public static String getMethodDescriptor(Class<?> returnType, Class<?>... parameterTypes) {
+        StringBuilder buf = new StringBuilder("(");
+        for (Class<?> type : parameterTypes) {
+            buf.append(getDescriptor(type));
+        }
+        buf.append(")");
+        buf.append(getDescriptor(returnType));
+        return buf.toString();
+    }
+
+    /**
+     * Label. (Tool, Prototype, ThreadUnsafe)
+     */
+    public static final class Label {
+
+        private int position = -1;
+
+        private final List<Integer> branches = new ArrayList<Integer>(2);
+
+        private Label() {}
+
+    }
+
+    private static final class Local {
+
+        private final int slot;
+
+        private final Class<?> type;
+
+        Local(int slot, Class<?> type) {
+            this.slot = slot;
+            this.type = type;
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+package ths.template.support.compilers;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Map;
+
+import ths.template.Configs;
+import ths.template.util.ClassUtils;
+
+/**
+ * BytecodeCompiler. (SPI, Singleton, ThreadSafe)
+ *
+ * Defines the template and expression classes the parser and translator emit as bytecode directly,
+ * without generating and compiling the java source. Whatever can not be emitted is generated as java source
+ * still, and compiled by the AdaptiveCompiler, created on the first use, so the JDK compiler is not needed otherwise.
+ *
+ * @see com.googlecode.httl.Engine#setCompiler(Compiler)
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class BytecodeCompiler extends AbstractCompiler {
+
+    private final ClassLoader classLoader;
+
+    private volatile Configs config;
+
+    private volatile AdaptiveCompiler sourceCompiler;
+
+    public BytecodeCompiler() {
+        classLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    @Override
+    public void configure(Configs config) {
+        super.configure(config);
+        this.config = config;
+        this.sourceCompiler = null;
+    }
+
+    /**
+     * Define the emitted class.
+     *
+     * @param name Class name
+     * @param bytecode Class bytecode
+     * @return Defined class, or the one defined before with the same name
+     */
+    public Class<?> compile(String name, byte[] bytecode) throws ParseException {
+        try {
+            saveBytecode(name, bytecode);
+            return defineClass(name, bytecode);
+        } catch (IOException e) {
+            throw new ParseException("Failed to save class " + name + ", cause: " + e.getMessage(), 0);
+        } catch (Throwable t) {
+            throw new ParseException("Failed to define class " + name + ", cause: " + ClassUtils.toString(t), 0);
+        }
+    }
+
+    @Override
+    public Class<?> load(String name) {
+        Class<?> clazz = super.load(name);
+        if (clazz == null && sourceCompiler != null) {
+            clazz = sourceCompiler.load(name);
+        }
+        return clazz;
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    @Override
+    protected Class<?> doCompile(String name, String source) throws Throwable {
+        return getSourceCompiler().compile(source);
+    }
+
+    @Override
+    protected void doCompile(Map<String, String> sources, Map<String, Throwable> failures) {
+        AdaptiveCompiler compiler = getSourceCompiler();
+        try {
+            compiler.compile(new ArrayList<String>(sources.values()));
+        } catch (ParseException e) {
+            // the batch compiled all the others, find the failed ones.
+            for (String name : sources.keySet()) {
+                if (compiler.load(name) == null) {
+                    failures.put(name, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getLiveClassCount() {
+        AdaptiveCompiler compiler = sourceCompiler;
+        return super.getLiveClassCount() + (compiler == null ? 0 : compiler.getLiveClassCount());
+    }
+
+    @Override
+    public long getDefinedClassCount() {
+        AdaptiveCompiler compiler = sourceCompiler;
+        return super.getDefinedClassCount() + (compiler == null ? 0 : compiler.getDefinedClassCount());
+    }
+
+    @Override
+    public long getUnloadedClassCount() {
+        AdaptiveCompiler compiler = sourceCompiler;
+        return super.getUnloadedClassCount() + (compiler == null ? 0 : compiler.getUnloadedClassCount());
+    }
+
+    private AdaptiveCompiler getSourceCompiler() {
+        AdaptiveCompiler compiler = sourceCompiler;
+        if (compiler == null) {
+            synchronized (this) {
+                compiler = sourceCompiler;
+                if (compiler == null) {
+                    compiler = new AdaptiveCompiler();
+                    if (config != null) {
+                        compiler.configure(config);
+                    }
+                    sourceCompiler = compiler;
+                }
+            }
+        }
+        return compiler;
+    }
+
+}
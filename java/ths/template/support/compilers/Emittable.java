@@ -0,0 +1,22 @@
+package ths.template.support.compilers;
+
+import java.text.ParseException;
+
+/**
+ * Emittable. (API, Prototype, ThreadSafe)
+ *
+ * The expression emitting its bytecode for the BytecodeCompiler, instead of its java code.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public interface Emittable {
+
+    /**
+     * Emit the bytecode pushing the expression value, of the expression return type.
+     *
+     * @param builder Method bytecode builder, with the expression variables declared
+     * @throws UnsupportedBytecodeException If the expression can only be compiled from its java code
+     */
+    void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException;
+
+}
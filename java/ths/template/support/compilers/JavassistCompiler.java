@@ -104,8 +104,9 @@ public class JavassistCompiler extends AbstractCompiler {
                 }
             }
         }
-        saveBytecode(name, cls.toBytecode());
-        return cls.toClass();
+        byte[] bytecode = cls.toBytecode();
+        saveBytecode(name, bytecode);
+        return defineClass(name, bytecode);
     }
 
 }
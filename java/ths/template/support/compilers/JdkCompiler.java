@@ -9,18 +9,18 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
@@ -33,10 +33,14 @@ import javax.tools.StandardJavaFileManager;
 import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import ths.core.Configurable;
 import ths.template.Configs;
 import ths.template.support.Compiler;
 import ths.template.util.ClassUtils;
+import ths.template.util.ConfigUtils;
 
 /**
  * JdkCompiler. (SPI, Singleton, ThreadSafe)
@@ -47,13 +51,18 @@ import ths.template.util.ClassUtils;
  */
 public class JdkCompiler extends AbstractCompiler implements Configurable<Configs> {
 
+    private static final Logger logger = LoggerFactory.getLogger(JdkCompiler.class);
+
     private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
 
-    private final DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
-    
-    private final ClassLoaderImpl classLoader;
-    
-    private final JavaFileManagerImpl javaFileManager;
+    private final ClassLoader classLoader;
+
+    private final List<File> classPath;
+
+    // javac file managers are not thread safe, so a compiling thread borrows one, the idle ones
+    // beyond the precompile threads are closed, not kept open by every request thread compiling once.
+    private volatile BlockingQueue<JavaFileManagerImpl> javaFileManagers = 
+            new ArrayBlockingQueue<JavaFileManagerImpl>(Runtime.getRuntime().availableProcessors());
 
     private volatile List<String> options;
 
@@ -61,27 +70,19 @@ public class JdkCompiler extends AbstractCompiler implements Configurable<Config
         options = new ArrayList<String>();
         options.add("-target");
         options.add("1.6");
-        StandardJavaFileManager manager = compiler.getStandardFileManager(diagnosticCollector, null, null);
         final ClassLoader loader = Thread.currentThread().getContextClassLoader();
         if (loader instanceof URLClassLoader 
                 && (! loader.getClass().getName().equals("sun.misc.Launcher$AppClassLoader"))) {
-            try {
-                URLClassLoader urlClassLoader = (URLClassLoader) loader;
-                List<File> files = new ArrayList<File>();
-                for (URL url : urlClassLoader.getURLs()) {
-                    files.add(new File(url.getFile()));
-                }
-                manager.setLocation(StandardLocation.CLASS_PATH, files);
-            } catch (IOException e) {
-                throw new IllegalStateException(e.getMessage(), e);
+            URLClassLoader urlClassLoader = (URLClassLoader) loader;
+            List<File> files = new ArrayList<File>();
+            for (URL url : urlClassLoader.getURLs()) {
+                files.add(new File(url.getFile()));
             }
+            classPath = files;
+        } else {
+            classPath = null;
         }
-        classLoader = AccessController.doPrivileged(new PrivilegedAction<ClassLoaderImpl>() {
-            public ClassLoaderImpl run() {
-                return new ClassLoaderImpl(loader);
-            }
-        });
-        javaFileManager = new JavaFileManagerImpl(manager, classLoader);
+        classLoader = loader;
     }
     
     @Override
@@ -94,76 +95,155 @@ public class JdkCompiler extends AbstractCompiler implements Configurable<Config
             options.add("-target");
             options.add(version.trim());
         }
+        String threads = config.getPrecompileThreads();
+        if (threads != null && ConfigUtils.isInteger(threads.trim()) && Integer.parseInt(threads.trim()) > 0) {
+            BlockingQueue<JavaFileManagerImpl> old = javaFileManagers;
+            javaFileManagers = new ArrayBlockingQueue<JavaFileManagerImpl>(Integer.parseInt(threads.trim()));
+            for (JavaFileManagerImpl javaFileManager = old.poll(); javaFileManager != null; javaFileManager = old.poll()) {
+                close(javaFileManager);
+            }
+        }
     }
     
     @Override
     public Class<?> doCompile(String name, String sourceCode) throws Throwable {
-        int i = name.lastIndexOf('.');
-        String packageName = i < 0 ? "" : name.substring(0, i);
-        String className = i < 0 ? name : name.substring(i + 1);
-        JavaFileObjectImpl javaFileObject = new JavaFileObjectImpl(className, sourceCode);
-        javaFileManager.putFileForInput(StandardLocation.SOURCE_PATH, packageName, 
-                                        className + ClassUtils.JAVA_EXTENSION, javaFileObject);
-        Boolean result = compiler.getTask(null, javaFileManager, diagnosticCollector, options, 
-                                          null, Arrays.asList(new JavaFileObject[]{javaFileObject})).call();
-        if (result == null || ! result.booleanValue()) {
-            throw new IllegalStateException("Compilation failed. class: " + name + ", diagnostics: " + diagnosticCollector);
-        }
-        return classLoader.loadClass(name);
+        Map<String, Throwable> failures = new HashMap<String, Throwable>();
+        doCompile(Collections.singletonMap(name, sourceCode), failures);
+        Throwable failure = failures.get(name);
+        if (failure != null) {
+            throw failure;
+        }
+        Class<?> clazz = getDefinedClass(name);
+        if (clazz == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return clazz;
     }
-    
-    private final class ClassLoaderImpl extends ClassLoader {
-        
-        private final Map<String, JavaFileObject> classes = new HashMap<String, JavaFileObject>();
 
-        ClassLoaderImpl(final ClassLoader parentClassLoader) {
-            super(parentClassLoader);
+    // compiles all the sources in one javac task, the sources with errors are dropped and the rest compiled again.
+    @Override
+    protected void doCompile(Map<String, String> sources, Map<String, Throwable> failures) {
+        JavaFileManagerImpl javaFileManager = javaFileManagers.poll();
+        if (javaFileManager == null) {
+            javaFileManager = newJavaFileManager();
         }
-
-        Collection<JavaFileObject> files() {
-            return Collections.unmodifiableCollection(classes.values());
+        try {
+            doCompile(javaFileManager, sources, failures);
+        } finally {
+            javaFileManager.clear(); // the sources and bytecodes are not kept after defined.
+            if (! javaFileManagers.offer(javaFileManager)) {
+                close(javaFileManager);
+            }
         }
+    }
 
-        @Override
-        protected Class<?> findClass(final String qualifiedClassName) throws ClassNotFoundException {
-            JavaFileObject file = classes.get(qualifiedClassName);
-            if (file != null) {
-                byte[] bytes = ((JavaFileObjectImpl) file).getByteCode();
-                try {
-                    saveBytecode(qualifiedClassName, bytes);
-                } catch (IOException e) {
-                    throw new IllegalStateException(e.getMessage(), e);
-                }
-                return defineClass(qualifiedClassName, bytes, 0, bytes.length);
-            }
+    private JavaFileManagerImpl newJavaFileManager() {
+        StandardJavaFileManager manager = compiler.getStandardFileManager(null, null, null);
+        if (classPath != null) {
             try {
-                return Class.forName(qualifiedClassName);
-            } catch (ClassNotFoundException nf) {
-                return super.findClass(qualifiedClassName);
+                manager.setLocation(StandardLocation.CLASS_PATH, classPath);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
             }
         }
+        return new JavaFileManagerImpl(manager, classLoader);
+    }
 
-        void add(final String qualifiedClassName, final JavaFileObject javaFile) {
-            classes.put(qualifiedClassName, javaFile);
+    private void close(JavaFileManagerImpl javaFileManager) {
+        try {
+            javaFileManager.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the java file manager, cause: " + e.getMessage(), e);
         }
+    }
 
-        @Override
-        protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
-            return super.loadClass(name, resolve);
+    private void doCompile(JavaFileManagerImpl javaFileManager, Map<String, String> sources, Map<String, Throwable> failures) {
+        Map<URI, String> names = new HashMap<URI, String>();
+        Map<String, JavaFileObject> files = new LinkedHashMap<String, JavaFileObject>();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            String name = entry.getKey();
+            int i = name.lastIndexOf('.');
+            String packageName = i < 0 ? "" : name.substring(0, i);
+            String className = i < 0 ? name : name.substring(i + 1);
+            JavaFileObjectImpl javaFileObject = new JavaFileObjectImpl(className, entry.getValue());
+            javaFileManager.putFileForInput(StandardLocation.SOURCE_PATH, packageName, 
+                                            className + ClassUtils.JAVA_EXTENSION, javaFileObject);
+            names.put(javaFileObject.toUri(), name);
+            files.put(name, javaFileObject);
         }
-
-        @Override
-        public InputStream getResourceAsStream(final String name) {
-            if (name.endsWith(ClassUtils.CLASS_EXTENSION)) {
-                String qualifiedClassName = name.substring(0, name.length() - ClassUtils.CLASS_EXTENSION.length()).replace('/', '.');
-                JavaFileObjectImpl file = (JavaFileObjectImpl) classes.get(qualifiedClassName);
-                if (file != null) {
-                    return new ByteArrayInputStream(file.getByteCode());
+        while (files.size() > 0) {
+            DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
+            javaFileManager.clearOutputs();
+            Boolean result = compiler.getTask(null, javaFileManager, diagnosticCollector, options, 
+                                              null, new ArrayList<JavaFileObject>(files.values())).call();
+            if (result != null && result.booleanValue()) {
+                for (String name : files.keySet()) {
+                    try {
+                        define(name, javaFileManager.getOutputs());
+                    } catch (Throwable t) {
+                        failures.put(name, t);
+                    }
+                }
+                return;
+            }
+            Map<String, StringBuilder> errors = new LinkedHashMap<String, StringBuilder>();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnosticCollector.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    String name = diagnostic.getSource() == null ? null : names.get(diagnostic.getSource().toUri());
+                    if (name == null || ! files.containsKey(name)) {
+                        errors.clear();
+                        break;
+                    }
+                    StringBuilder buf = errors.get(name);
+                    if (buf == null) {
+                        buf = new StringBuilder();
+                        errors.put(name, buf);
+                    }
+                    buf.append("\nline " + diagnostic.getLineNumber() + ": " + diagnostic.getMessage(null));
+                }
+            }
+            if (errors.isEmpty()) { // not caused by any single source, fail them all
+                for (String name : files.keySet()) {
+                    failures.put(name, new IllegalStateException("Compilation failed. class: " + name + ", diagnostics: " + toMessage(diagnosticCollector)));
                 }
+                return;
+            }
+            for (Map.Entry<String, StringBuilder> error : errors.entrySet()) {
+                failures.put(error.getKey(), new IllegalStateException("Compilation failed. class: " + error.getKey() + ", diagnostics: " + error.getValue()));
+                files.remove(error.getKey());
             }
-            return super.getResourceAsStream(name);
         }
     }
+
+    // each class is defined in its own class loader, with its nested classes.
+    private Class<?> define(String name, Map<String, JavaFileObjectImpl> outputs) throws IOException, ClassNotFoundException {
+        Map<String, byte[]> bytecodes = new HashMap<String, byte[]>();
+        for (Map.Entry<String, JavaFileObjectImpl> output : outputs.entrySet()) {
+            String outputName = output.getKey();
+            if (outputName.equals(name) || outputName.startsWith(name + "$")) {
+                byte[] bytecode = output.getValue().getByteCode();
+                saveBytecode(outputName, bytecode);
+                bytecodes.put(outputName, bytecode);
+            }
+        }
+        if (! bytecodes.containsKey(name)) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytecodes);
+    }
+
+    private static String toMessage(DiagnosticCollector<JavaFileObject> diagnosticCollector) {
+        StringBuilder buf = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnosticCollector.getDiagnostics()) {
+            buf.append("\n" + diagnostic.getKind() + ": " + diagnostic.getMessage(null));
+        }
+        return buf.toString();
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+        return classLoader;
+    }
     
     private static final class JavaFileObjectImpl extends SimpleJavaFileObject {
 
@@ -209,15 +289,26 @@ public class JdkCompiler extends AbstractCompiler implements Configurable<Config
         }
     }
     
+    private static final class ProcessorClassLoader extends ClassLoader {
+
+        ProcessorClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+    }
+
     private static final class JavaFileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
         
-        private final ClassLoaderImpl classLoader;
+        private final ClassLoader classLoader;
 
         private final Map<URI, JavaFileObject> fileObjects = new HashMap<URI, JavaFileObject>();
 
-        public JavaFileManagerImpl(JavaFileManager fileManager, ClassLoaderImpl classLoader) {
+        private final Map<String, JavaFileObjectImpl> outputs = new LinkedHashMap<String, JavaFileObjectImpl>();
+
+        public JavaFileManagerImpl(JavaFileManager fileManager, ClassLoader classLoader) {
             super(fileManager);
-            this.classLoader = classLoader;
+            // javac closes the processor loader if it is closeable, never hand it the application loader itself.
+            this.classLoader = new ProcessorClassLoader(classLoader);
         }
 
         @Override
@@ -232,6 +323,19 @@ public class JdkCompiler extends AbstractCompiler implements Configurable<Config
             fileObjects.put(uri(location, packageName, relativeName), file);
         }
 
+        Map<String, JavaFileObjectImpl> getOutputs() {
+            return outputs;
+        }
+
+        void clearOutputs() {
+            outputs.clear();
+        }
+
+        void clear() {
+            fileObjects.clear();
+            outputs.clear();
+        }
+
         private URI uri(Location location, String packageName, String relativeName) {
             return ClassUtils.toURI(location.getName() + '/' + packageName + '/' + relativeName);
         }
@@ -239,8 +343,8 @@ public class JdkCompiler extends AbstractCompiler implements Configurable<Config
         @Override
         public JavaFileObject getJavaFileForOutput(Location location, String qualifiedName, Kind kind, FileObject outputFile)
                 throws IOException {
-            JavaFileObject file = new JavaFileObjectImpl(qualifiedName, kind);
-            classLoader.add(qualifiedName, file);
+            JavaFileObjectImpl file = new JavaFileObjectImpl(qualifiedName, kind);
+            outputs.put(qualifiedName, file);
             return file;
         }
 
@@ -277,7 +381,6 @@ public class JdkCompiler extends AbstractCompiler implements Configurable<Config
                     }
                 }
 
-                files.addAll(classLoader.files());
             } else if (location == StandardLocation.SOURCE_PATH && kinds.contains(JavaFileObject.Kind.SOURCE)) {
                 for (JavaFileObject file : fileObjects.values()) {
                     if (file.getKind() == Kind.SOURCE && file.getName().startsWith(packageName)) {
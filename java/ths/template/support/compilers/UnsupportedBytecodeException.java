@@ -0,0 +1,19 @@
+package ths.template.support.compilers;
+
+/**
+ * UnsupportedBytecodeException. (API, Prototype, ThreadSafe)
+ *
+ * Thrown for what can not be emitted the same as javac compiles it,
+ * the template or expression is compiled from its java source instead.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class UnsupportedBytecodeException extends Exception {
+
+    private static final long serialVersionUID = -3721405918462931057L;
+
+    public UnsupportedBytecodeException(String message) {
+        super(message);
+    }
+
+}
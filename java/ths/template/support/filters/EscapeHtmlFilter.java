@@ -1,6 +1,9 @@
 package ths.template.support.filters;
 
-import ths.template.support.Filter;
+import java.io.IOException;
+import java.io.Writer;
+
+import ths.template.support.StreamFilter;
 import ths.template.util.StringUtils;
 
 /**
@@ -10,10 +13,48 @@ import ths.template.util.StringUtils;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public class EscapeHtmlFilter implements Filter {
+public class EscapeHtmlFilter implements StreamFilter {
 
     public String filter(String value) {
         return StringUtils.escapeHtml(value);
     }
 
+    // writes the runs between the escaped chars, or the whole value if none is.
+    public void filter(String value, Writer output) throws IOException {
+        int length = value.length();
+        int last = 0;
+        for (int i = 0; i < length; i ++) {
+            String str;
+            switch (value.charAt(i)) {
+                case '&':
+                    str = "&amp;";
+                    break;
+                case '<':
+                    str = "&lt;";
+                    break;
+                case '>':
+                    str = "&gt;";
+                    break;
+                case '\"':
+                    str = "&quot;";
+                    break;
+                case '\'':
+                    str = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+            if (i > last) {
+                output.write(value, last, i - last);
+            }
+            output.write(str);
+            last = i + 1;
+        }
+        if (last == 0) {
+            output.write(value);
+        } else if (last < length) {
+            output.write(value, last, length - last);
+        }
+    }
+
 }
@@ -1,11 +1,15 @@
 package ths.template.support.filters;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import ths.core.Configurable;
 import ths.template.Configs;
 import ths.template.support.Filter;
+import ths.template.support.StreamFilter;
 import ths.template.util.ClassUtils;
 
 /**
@@ -60,6 +64,25 @@ public class MultiFilter implements Filter, Configurable<Configs> {
     public void clear() {
         templateFilters.clear();
     }
+    
+    public List<Filter> getFilters() {
+        return Collections.unmodifiableList(templateFilters);
+    }
+
+    /**
+     * Compose the filters added now into one, for the templates to bind once.
+     * 
+     * @return null if no filter is added, the only one, or the chain of them all
+     */
+    public Filter compose() {
+        Filter[] filters = templateFilters.toArray(new Filter[0]);
+        if (filters.length == 0) {
+            return null;
+        } else if (filters.length == 1) {
+            return filters[0];
+        }
+        return new ChainFilter(filters);
+    }
 
     public String filter(String value) {
         if (templateFilters.size() > 0) {
@@ -70,4 +93,38 @@ public class MultiFilter implements Filter, Configurable<Configs> {
         return value;
     }
 
+    // the last filter writes the value the others filtered, straight to the output if it can.
+    private static final class ChainFilter implements StreamFilter {
+
+        private final Filter[] filters;
+
+        private final StreamFilter streamFilter;
+
+        ChainFilter(Filter[] filters) {
+            this.filters = filters;
+            Filter last = filters[filters.length - 1];
+            this.streamFilter = last instanceof StreamFilter ? (StreamFilter) last : null;
+        }
+
+        public String filter(String value) {
+            for (Filter filter : filters) {
+                value = filter.filter(value);
+            }
+            return value;
+        }
+
+        public void filter(String value, Writer output) throws IOException {
+            int last = filters.length - 1;
+            for (int i = 0; i < last; i ++) {
+                value = filters[i].filter(value);
+            }
+            if (value != null && streamFilter != null) {
+                streamFilter.filter(value, output);
+            } else {
+                output.write(filters[last].filter(value));
+            }
+        }
+
+    }
+
 }
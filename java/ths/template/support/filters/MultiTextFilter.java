@@ -1,5 +1,6 @@
 package ths.template.support.filters;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -60,6 +61,10 @@ public class MultiTextFilter implements Filter, Configurable<Configs> {
     public void clear() {
         templateFilters.clear();
     }
+    
+    public List<Filter> getFilters() {
+        return Collections.unmodifiableList(templateFilters);
+    }
 
     public String filter(String value) {
         if (templateFilters.size() > 0) {
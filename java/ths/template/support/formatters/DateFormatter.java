@@ -1,11 +1,11 @@
 package ths.template.support.formatters;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import ths.core.Configurable;
 import ths.template.Configs;
 import ths.template.support.Formatter;
+import ths.template.util.DatePattern;
 import ths.template.util.DateUtils;
 
 /**
@@ -17,20 +17,18 @@ import ths.template.util.DateUtils;
  */
 public class DateFormatter implements Formatter<Date>, Configurable<Configs> {
     
-    private String dateFormat;
+    private DatePattern dateFormat = DateUtils.getDatePattern(null);
     
     @Override
     public void configure(Configs config) {
         String format = config.getDateFormat();
         if (format != null && format.trim().length() > 0) {
-            format = format.trim();
-            new SimpleDateFormat(format).format(new Date());
-            this.dateFormat = format;
+            this.dateFormat = new DatePattern(format.trim());
         }
     }
     
     public String format(Date value) {
-        return DateUtils.formatDate(value, dateFormat);
+        return dateFormat.format(value);
     }
     
 }
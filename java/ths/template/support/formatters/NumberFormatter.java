@@ -1,11 +1,11 @@
 package ths.template.support.formatters;
 
-import java.text.DecimalFormat;
 import java.text.NumberFormat;
 
 import ths.core.Configurable;
 import ths.template.Configs;
 import ths.template.support.Formatter;
+import ths.template.util.DecimalPattern;
 
 /**
  * NumberFormatter. (SPI, Singleton, ThreadSafe)
@@ -16,21 +16,21 @@ import ths.template.support.Formatter;
  */
 public class NumberFormatter implements Formatter<Number>, Configurable<Configs> {
     
-    private String numberFormat;
+    private DecimalPattern numberFormat;
     
     @Override
     public void configure(Configs config) {
         String format = config.getNumberFormat();
-        
-        new DecimalFormat(format).format(0);
-        this.numberFormat = format;
+        if (format != null && format.length() > 0) {
+            this.numberFormat = new DecimalPattern(format);
+        }
     }
     
     public String format(Number value) {
-        if (numberFormat == null || numberFormat == null) {
+        if (numberFormat == null) {
             return NumberFormat.getNumberInstance().format(value);
         }
-        return new DecimalFormat(numberFormat).format(value);
+        return numberFormat.format(value);
     }
 
 }
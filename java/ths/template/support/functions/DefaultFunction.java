@@ -2,9 +2,7 @@ package ths.template.support.functions;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
-import java.text.DecimalFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
@@ -18,7 +16,9 @@ import ths.template.Context;
 import ths.template.Template;
 import ths.template.support.runtime.Cycle;
 import ths.template.util.ClassUtils;
+import ths.template.util.DatePattern;
 import ths.template.util.DateUtils;
+import ths.template.util.DecimalPattern;
 import ths.template.util.IOUtils;
 import ths.template.util.NumberUtils;
 import ths.template.util.StringUtils;
@@ -40,23 +40,28 @@ public class DefaultFunction implements Configurable<Configs> {
 
     private String numberFormat;
 
+    // the configured patterns, compiled once.
+    private DatePattern datePattern = DateUtils.getDatePattern(null);
+
+    private DecimalPattern numberPattern = NumberUtils.getDecimalPattern(null);
+
     protected String[] importPackages;
     
     @Override
     public void configure(Configs config) {
         String format = config.getDateFormat();
-        format = config.getNumberFormat();
         String packages = config.getImportPackages();
         
         if (format != null && format.trim().length() > 0) {
             format = format.trim();
-            new SimpleDateFormat(format).format(new Date());
+            this.datePattern = DateUtils.getDatePattern(format);
             this.dateFormat = format;
         }
         
+        format = config.getNumberFormat();
         if (format != null && format.trim().length() > 0) {
             format = format.trim();
-            new DecimalFormat(format).format(0);
+            this.numberPattern = NumberUtils.getDecimalPattern(format);
             this.numberFormat = format;
         }
         
@@ -205,7 +210,7 @@ public class DefaultFunction implements Configurable<Configs> {
     }
     
     public String toString(Date value) {
-        return DateUtils.formatDate(value, dateFormat);
+        return datePattern.format(value);
     }
     
     public String format(Date value, String format) {
@@ -221,55 +226,55 @@ public class DefaultFunction implements Configurable<Configs> {
     }
     
     public String toString(byte value) {
-        return format(Byte.valueOf(value), numberFormat);
+        return numberPattern.format((long) value);
     }
     
     public String toString(short value) {
-        return format(Short.valueOf(value), numberFormat);
+        return numberPattern.format((long) value);
     }
     
     public String toString(int value) {
-        return format(Integer.valueOf(value), numberFormat);
+        return numberPattern.format((long) value);
     }
     
     public String toString(long value) {
-        return format(Long.valueOf(value), numberFormat);
+        return numberPattern.format(value);
     }
     
     public String toString(float value) {
-        return format(Float.valueOf(value), numberFormat);
+        return numberPattern.format((double) value);
     }
     
     public String toString(double value) {
-        return format(Double.valueOf(value), numberFormat);
+        return numberPattern.format(value);
     }
     
     public String toString(Number value) {
-        return format(value, numberFormat);
+        return numberPattern.format(value);
     }
     
     public String format(byte value, String format) {
-        return format(Byte.valueOf(value), format);
+        return NumberUtils.formatNumber((long) value, format);
     }
     
     public String format(short value, String format) {
-        return format(Short.valueOf(value), format);
+        return NumberUtils.formatNumber((long) value, format);
     }
     
     public String format(int value, String format) {
-        return format(Integer.valueOf(value), format);
+        return NumberUtils.formatNumber((long) value, format);
     }
     
     public String format(long value, String format) {
-        return format(Long.valueOf(value), format);
+        return NumberUtils.formatNumber(value, format);
     }
     
     public String format(float value, String format) {
-        return format(Float.valueOf(value), format);
+        return NumberUtils.formatNumber((double) value, format);
     }
     
     public String format(double value, String format) {
-        return format(Double.valueOf(value), format);
+        return NumberUtils.formatNumber(value, format);
     }
     
     public String format(Number value, String format) {
@@ -2,8 +2,10 @@ package ths.template.support.parsers;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -11,13 +13,18 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import ths.core.Resource;
 import ths.core.Configurable;
 import ths.template.Configs;
@@ -27,13 +34,23 @@ import ths.template.Expression;
 import ths.template.support.Compiler;
 import ths.template.support.EngineAware;
 import ths.template.support.Filter;
+import ths.template.support.Formatter;
 import ths.template.support.Parser;
 import ths.template.support.Translator;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.BytecodeCompiler;
+import ths.template.support.compilers.UnsupportedBytecodeException;
+import ths.template.support.filters.MultiFilter;
+import ths.template.support.filters.MultiTextFilter;
 import ths.template.support.runtime.AbstractTemplate;
 import ths.template.support.runtime.ForeachStatus;
 import ths.template.support.runtime.OrderedTypeMap;
 import ths.template.support.runtime.OutputStreamTemplate;
 import ths.template.support.runtime.WriterTemplate;
+import ths.template.support.sequences.CharacterSequence;
+import ths.template.support.sequences.IntegerSequence;
+import ths.template.support.translators.expression.BinaryOperator;
+import ths.template.support.translators.expression.ExpressionImpl;
 import ths.template.util.ClassUtils;
 import ths.template.util.IOUtils;
 import ths.template.util.StringUtils;
@@ -49,6 +66,8 @@ import ths.template.util.UnsafeStringWriter;
  */
 public abstract class AbstractParser implements Parser, Configurable<Configs>, EngineAware {
     
+    private static final Logger logger = LoggerFactory.getLogger(AbstractParser.class);
+    
     protected static final char SPECIAL = '\27';
 
     protected static final char POUND = '#';
@@ -63,22 +82,14 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
     
     protected static final String RIGHT = SPECIAL + ">";
     
-    protected static final Pattern DIRECTIVE_PATTERN = Pattern.compile(RIGHT + "([^" + SPECIAL + "]*)" + LEFT + "([0-9]*)([a-z]*)");
-    
-    protected static final Pattern EXPRESSION_PATTERN = Pattern.compile("(\\$[!]?)\\{([^}]*)\\}");
-
     protected static final Pattern COMMA_PATTERN = Pattern.compile("\\s*\\,+\\s*");
 
     protected static final Pattern IN_PATTERN = Pattern.compile("(\\s+in\\s+)");
 
     protected static final Pattern ASSIGN_PATTERN = Pattern.compile("(\\s*=\\s*)");
 
-    protected static final Pattern ESCAPE_PATTERN = Pattern.compile("(\\\\+)([#$])");
-    
-    protected static final Pattern COMMENT_PATTERN = Pattern.compile("<!--##.*?-->", Pattern.DOTALL);
+    protected static final Pattern TTL_PATTERN = Pattern.compile("\\s*\\,\\s*([0-9]+)\\s*(ms|s|m|h|d)?\\s*$");
 
-    protected static final Pattern CDATA_PATTERN = Pattern.compile("<!\\[CDATA\\[##(.*?)\\]\\]>", Pattern.DOTALL);
-    
     protected static final String CDATA_LEFT = LEFT + "11" + RIGHT;
     
     protected static final String CDATA_RIGHT = LEFT + "3" + RIGHT;
@@ -101,6 +112,12 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
 
     protected static final String MACRO = "macro";
 
+    protected static final String CACHE = "cache";
+
+    protected static final String FLUSH = "flush";
+
+    protected static final String FORK = "fork";
+
     protected static final String END = "end";
 
     protected String ifName = IF;
@@ -121,9 +138,17 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
 
     protected String macroName = MACRO;
 
+    protected String cacheName = CACHE;
+
+    protected String flushName = FLUSH;
+
+    protected String forkName = FORK;
+
     protected String endName = END;
 
     protected String foreachStatus = FOREACH;
+
+    protected Pattern foreachStatusPattern = getStatusPattern(FOREACH);
     
     protected String version;
     
@@ -139,6 +164,13 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
     
     protected boolean isOutput = false;
     
+    protected String outputEncoding;
+    
+    protected String configKey = "";
+    
+    // increased whenever the generated code changes, so the classes stored by an older parser are not reused.
+    protected static final int GENERATOR_VERSION = 2;
+    
     public void setEngine(Engine engine) {
         this.engine = engine;
     }
@@ -152,10 +184,20 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
         String packages = config.getImportPackages();
         version = config.getJavaVersion();
         
+        // everything that changes the generated code, a cached template class is reused only if this matches.
+        configKey = getClass().getName() + "\n" + output + "\n" + config.getOutputEncoding() + "\n" + namespace + "\n" 
+                + status + "\n" + packages + "\n" + version + "\n" + config.getTranslator() + "\n" 
+                + config.getTextFilter() + "\n" + config.getTextFilters() + "\n" + config.getFunctions() + "\n" + config.getSequences();
+        
         if (output != null && output.trim().length() > 0) {
             isOutput = "true".equalsIgnoreCase(output);
         }
         
+        String encoding = config.getOutputEncoding();
+        if (encoding != null && encoding.trim().length() > 0) {
+            outputEncoding = encoding.trim();
+        }
+        
         if (namespace != null && namespace.trim().length() > 0) {
             namespace = namespace.trim() + ":";
             ifName = namespace + IF;
@@ -167,11 +209,15 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
             defineName = namespace + DEFINE;
             blockName = namespace + BLOCK;
             macroName = namespace + MACRO;
+            cacheName = namespace + CACHE;
+            flushName = namespace + FLUSH;
+            forkName = namespace + FORK;
         }
         
         if (status != null && status.trim().length() > 0 
                 && StringUtils.isNamed(status.trim())) {
             foreachStatus = status.trim();
+            foreachStatusPattern = getStatusPattern(foreachStatus);
         }
         
         if (version != null) {
@@ -186,83 +232,20 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
     
     protected abstract String doParse(String name, String source, Translator resolver, 
                                       List<String> parameters, List<Class<?>> parameterTypes, 
-                                      Set<String> variables, Map<String, Class<?>> types) throws IOException, ParseException;
+                                      Set<String> variables, Map<String, Class<?>> types, Map<String, String> macros, 
+                                      ParseContext context) throws IOException, ParseException;
 
     public Template parse(Resource resource) throws IOException, ParseException {
         try {
-            String name = TEMPLATE_CLASS_PREFIX + SYMBOL_PATTERN.matcher(resource.getName() + "_" + resource.getEncoding() + "_" + resource.getLastModified()).replaceAll("_");
-            Class<?> clazz;
-            try {
-                clazz = Class.forName(name, true, Thread.currentThread().getContextClassLoader());
-            } catch (ClassNotFoundException e) {
-                Translator resolver = engine.getTranslator();
-                Filter filter = engine.getTextFilter();
-                Set<String> variables = new HashSet<String>();
-                Map<String, Class<?>> types = new HashMap<String, Class<?>>();
-                types.put(foreachStatus, ForeachStatus.class);
-                List<String> parameters = new ArrayList<String>();
-                List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
-                StringBuilder fields = new StringBuilder();
-                String src = IOUtils.readToString(resource.getReader());
-                src = filterCData(src);
-                src = filterComment(src);
-                src = filterEscape(src);
-                src = doParse(resource.getName(), src, resolver, parameters, parameterTypes, variables, types);
-                String code = filterStatement(src, filter, resolver, fields, types, new AtomicInteger());
-                StringBuilder declare = new StringBuilder();
-                for (String var : variables) {
-                    Class<?> type = types.get(var);
-                    String pkgName = type.getPackage() == null ? null : type.getPackage().getName();
-                    String typeName;
-                    if (pkgName != null && ("java.lang".equals(pkgName) 
-                            || (importPackageSet != null && importPackageSet.contains(pkgName)))) {
-                        typeName = type.getSimpleName();
-                    } else {
-                        typeName = type.getCanonicalName();
-                    }
-                    declare.append(typeName + " " + var + " = " + ClassUtils.getInitCode(type) + ";\n");
-                }
-                int i = name.lastIndexOf('.');
-                String packageName = i < 0 ? "" : name.substring(0, i);
-                String className = i < 0 ? name : name.substring(i + 1);
-                StringBuilder imports = new StringBuilder();
-                String[] packages = importPackages;
-                if (packages != null && packages.length > 0) {
-                    for (String pkg : packages) {
-                        imports.append("import ");
-                        imports.append(pkg);
-                        imports.append(".*;\n");
-                    }
-                }
-                List<String> returns = new ArrayList<String>();
-                List<Class<?>> returnTypes = new ArrayList<Class<?>>();
-                String methodCode = declare.toString() + code;
-                String sorceCode = "package " + packageName + ";\n" 
-                        + imports.toString()
-                        + "public class " + className + " extends " + (isOutput ? OutputStreamTemplate.class.getName() : WriterTemplate.class.getName()) + " {\n" 
-                         + fields
-                        + "public " + className + "(" + Engine.class.getName() + " engine, " 
-                        + Resource.class.getName() + " resource) {\n" 
-                        + "super(engine, resource);\n" 
-                        + "}\n"
-                        + "protected void doRender(" + Map.class.getName() + " $parameters, " 
-                        + (isOutput ? OutputStream.class.getName() : Writer.class.getName())
-                        + " $output) throws " + Exception.class.getName() + " {\n" 
-                        + ForeachStatus.class.getName() + " " + foreachStatus + " = new " + ForeachStatus.class.getName() + "();\n"
-                        + methodCode 
-                        + "}\n"
-                        + "public " + String.class.getSimpleName() + " getCode() {\n"
-                        + "return \"" + StringUtils.escapeString(methodCode) + "\";"
-                        + "}\n"
-                        + "public " + Map.class.getName() + " getParameterTypes() {\n"
-                        + toTypeCode(parameters, parameterTypes)
-                        + "}\n"
-                        + "public " + Map.class.getName() + " getReturnTypes() {\n"
-                        + toTypeCode(returns, returnTypes)
-                        + "}\n"
-                        + "}";
-                Compiler compiler = engine.getCompiler();
-                clazz = compiler.compile(sorceCode);
+            String source = IOUtils.readToString(resource.getReader());
+            String name = getClassName(resource, source);
+            Compiler compiler = engine.getCompiler();
+            Class<?> clazz = compiler.load(name);
+            if (clazz == null && compiler instanceof BytecodeCompiler) {
+                clazz = emit(resource, source, name, (BytecodeCompiler) compiler);
+            }
+            if (clazz == null) {
+                clazz = compiler.compile(generate(resource, source, name));
             }
             Constructor<?> constructor = clazz.getConstructor(new Class<?>[] { Engine.class, Resource.class});
             return (Template) constructor.newInstance(new Object[] { engine, resource });
@@ -275,6 +258,166 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
         }
     }
     
+    public String generate(Resource resource) throws IOException, ParseException {
+        try {
+            String source = IOUtils.readToString(resource.getReader());
+            String name = getClassName(resource, source);
+            Compiler compiler = engine.getCompiler();
+            if (compiler.load(name) != null) {
+                return null;
+            }
+            if (compiler instanceof BytecodeCompiler 
+                    && emit(resource, source, name, (BytecodeCompiler) compiler) != null) {
+                return null;
+            }
+            return generate(resource, source, name);
+        } catch (IOException e) {
+            throw e;
+        } catch (ParseException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new ParseException("Filed to parse template: " + resource.getName() + ", cause: " + ClassUtils.toString(e), 0);
+        }
+    }
+    
+    protected String getClassName(Resource resource, String source) {
+        return TEMPLATE_CLASS_PREFIX + SYMBOL_PATTERN.matcher(resource.getName() + "_" + resource.getEncoding() + "_" + StringUtils.getDigest(GENERATOR_VERSION + "\n" + configKey + "\n" + getEngineKey() + "\n" + source)).replaceAll("_");
+    }
+    
+    // the filters and functions set on the engine, they may differ from the configured ones.
+    private String getEngineKey() {
+        if (engine == null) {
+            return "";
+        }
+        Set<String> functions = new TreeSet<String>();
+        for (Class<?> type : engine.getFunctions().keySet()) {
+            functions.add(type.getName());
+        }
+        return getFilterKey(engine.getTextFilter()) + "\n" + getFilterKey(engine.getFilter()) + "\n" + functions;
+    }
+    
+    private static String getFilterKey(Filter filter) {
+        if (filter == null) {
+            return "";
+        }
+        StringBuilder buf = new StringBuilder(filter.getClass().getName());
+        List<Filter> filters = null;
+        if (filter instanceof MultiFilter) {
+            filters = ((MultiFilter) filter).getFilters();
+        } else if (filter instanceof MultiTextFilter) {
+            filters = ((MultiTextFilter) filter).getFilters();
+        }
+        if (filters != null) {
+            buf.append("[");
+            for (Filter child : filters) {
+                buf.append(getFilterKey(child) + ",");
+            }
+            buf.append("]");
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Emit the template class as bytecode, without the java code.
+     * 
+     * @return Emitted class, or null if the template can only be compiled from the java code.
+     */
+    protected Class<?> emit(Resource resource, String source, String name, BytecodeCompiler compiler) throws IOException, ParseException {
+        BytecodeGenerator generator = new BytecodeGenerator(name, isOutput, outputEncoding);
+        boolean status = foreachStatusPattern.matcher(source).find();
+        ParseContext context = new ParseContext(generator, status);
+        byte[] bytecode;
+        try {
+            Translator resolver = engine.getTranslator();
+            Set<String> variables = new HashSet<String>();
+            Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+            types.put(foreachStatus, ForeachStatus.class);
+            List<String> parameters = new ArrayList<String>();
+            List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
+            Map<String, String> macros = new LinkedHashMap<String, String>();
+            String src = doParse(resource.getName(), source, resolver, parameters, parameterTypes, variables, types, macros, context);
+            String code = filterStatement(src, engine.getTextFilter(), resolver, types, context);
+            bytecode = generator.generate(code, variables, types, status ? foreachStatus : null, parameters, parameterTypes, macros);
+        } catch (UnsupportedBytecodeException e) {
+            logger.debug("Compile template " + resource.getName() + " from the java code, cause: " + e.getMessage());
+            return null;
+        }
+        return compiler.compile(name, bytecode);
+    }
+    
+    protected String generate(Resource resource, String source, String name) throws IOException, ParseException {
+        boolean status = foreachStatusPattern.matcher(source).find();
+        ParseContext context = new ParseContext(null, status);
+        Translator resolver = engine.getTranslator();
+        Filter filter = engine.getTextFilter();
+        Set<String> variables = new HashSet<String>();
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put(foreachStatus, ForeachStatus.class);
+        List<String> parameters = new ArrayList<String>();
+        List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
+        Map<String, String> macros = new LinkedHashMap<String, String>();
+        String src = doParse(resource.getName(), source, resolver, parameters, parameterTypes, variables, types, macros, context);
+        String code = filterStatement(src, filter, resolver, types, context);
+        StringBuilder declare = new StringBuilder();
+        for (String var : variables) {
+            Class<?> type = types.get(var);
+            String pkgName = type.getPackage() == null ? null : type.getPackage().getName();
+            String typeName;
+            if (pkgName != null && ("java.lang".equals(pkgName) 
+                    || (importPackageSet != null && importPackageSet.contains(pkgName)))) {
+                typeName = type.getSimpleName();
+            } else {
+                typeName = type.getCanonicalName();
+            }
+            declare.append(typeName + " " + var + " = " + ClassUtils.getInitCode(type) + ";\n");
+        }
+        int i = name.lastIndexOf('.');
+        String packageName = i < 0 ? "" : name.substring(0, i);
+        String className = i < 0 ? name : name.substring(i + 1);
+        StringBuilder imports = new StringBuilder();
+        String[] packages = importPackages;
+        if (packages != null && packages.length > 0) {
+            for (String pkg : packages) {
+                imports.append("import ");
+                imports.append(pkg);
+                imports.append(".*;\n");
+            }
+        }
+        StringBuilder register = new StringBuilder();
+        for (Map.Entry<String, String> macro : macros.entrySet()) {
+            register.append("engine.addTemplate(\"" + StringUtils.escapeString(macro.getKey()) + "\", \"" + StringUtils.escapeString(macro.getValue()) + "\");\n");
+        }
+        List<String> returns = new ArrayList<String>();
+        List<Class<?>> returnTypes = new ArrayList<Class<?>>();
+        String methodCode = declare.toString() + code;
+        return "package " + packageName + ";\n" 
+                + imports.toString()
+                + "public class " + className + " extends " + (isOutput ? OutputStreamTemplate.class.getName() : WriterTemplate.class.getName()) + " {\n" 
+                 + context.getFields()
+                + "public " + className + "(" + Engine.class.getName() + " engine, " 
+                + Resource.class.getName() + " resource) {\n" 
+                + "super(engine, resource);\n" 
+                + register
+                + "}\n"
+                + "protected void doRender(" + Map.class.getName() + " $parameters, " 
+                + (isOutput ? OutputStream.class.getName() : Writer.class.getName())
+                + " $output) throws " + Exception.class.getName() + " {\n" 
+                + (status ? ForeachStatus.class.getName() + " " + foreachStatus + " = new " + ForeachStatus.class.getName() + "();\n" : "")
+                + methodCode 
+                + "join($output);\n"
+                + "}\n"
+                + "public " + String.class.getSimpleName() + " getCode() {\n"
+                + "return \"" + StringUtils.escapeString(methodCode) + "\";"
+                + "}\n"
+                + "public " + Map.class.getName() + " getParameterTypes() {\n"
+                + toTypeCode(parameters, parameterTypes)
+                + "}\n"
+                + "public " + Map.class.getName() + " getReturnTypes() {\n"
+                + toTypeCode(returns, returnTypes)
+                + "}\n"
+                + "}";
+    }
+    
     protected String toTypeCode(List<String> names, List<Class<?>> types) {
         StringBuilder buf = new StringBuilder("return new " + OrderedTypeMap.class.getName() + "(");
         if (names == null || names.size() == 0) {
@@ -315,100 +458,147 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
         return buf.toString();
     }
 
-    protected String filterComment(String source) {
-        StringBuffer buf = new StringBuffer();
-        Matcher matcher = COMMENT_PATTERN.matcher(source);
-        while(matcher.find()) {
-            matcher.appendReplacement(buf, LEFT + matcher.group().length() + RIGHT);
-        }
-        matcher.appendTail(buf);
-        return buf.toString();
-    }
-    
-    protected String filterCData(String source) {
-        StringBuffer buf = new StringBuffer();
-        Matcher matcher = CDATA_PATTERN.matcher(source);
-        while(matcher.find()) {
-            String target = matcher.group(1).replace(POUND, POUND_SPECIAL).replace(DOLLAR, DOLLAR_SPECIAL);
-            matcher.appendReplacement(buf, CDATA_LEFT + Matcher.quoteReplacement(target) + CDATA_RIGHT);
+    /**
+     * Filter the comments, cdata and escapes of the template source into code markers, in one scan.
+     */
+    protected String filterSource(String source) {
+        StringBuilder buf = new StringBuilder(source.length() + 16);
+        TemplateLexer lexer = new TemplateLexer(source);
+        while (lexer.next()) {
+            filterToken(lexer, buf);
         }
-        matcher.appendTail(buf);
         return buf.toString();
     }
     
-    protected String filterEscape(String source) {
-        StringBuffer buf = new StringBuffer();
-        Matcher matcher = ESCAPE_PATTERN.matcher(source);
-        while(matcher.find()) {
-            String slash = matcher.group(1);
-            int length = slash.length();
-            int half = (length - length % 2) / 2;
-            slash = slash.substring(0, half);
-            char symbol = matcher.group(2).charAt(0);
-            if (length % 2 != 0) {
-                if (symbol == DOLLAR) {
-                    symbol = DOLLAR_SPECIAL;
+    protected void filterToken(TemplateLexer lexer, StringBuilder buf) {
+        switch (lexer.getType()) {
+            case TemplateLexer.COMMENT:
+                buf.append(LEFT);
+                buf.append(lexer.getEnd() - lexer.getStart());
+                buf.append(RIGHT);
+                break;
+            case TemplateLexer.CDATA:
+                buf.append(CDATA_LEFT);
+                buf.append(lexer.getValue().replace(POUND, POUND_SPECIAL).replace(DOLLAR, DOLLAR_SPECIAL));
+                buf.append(CDATA_RIGHT);
+                break;
+            case TemplateLexer.ESCAPE:
+                String symbol = lexer.getValue();
+                int length = lexer.getEnd() - lexer.getStart() - symbol.length();
+                int half = length / 2;
+                buf.append(LEFT);
+                buf.append(length - half);
+                buf.append(RIGHT);
+                for (int i = 0; i < half; i ++) {
+                    buf.append('\\');
+                }
+                if (symbol.length() > 0) {
+                    buf.append(symbol.charAt(0) == DOLLAR ? DOLLAR_SPECIAL : POUND_SPECIAL);
                 } else {
-                    symbol = POUND_SPECIAL;
+                    buf.append(LEFT + "0" + RIGHT); // keeps the symbol apart from the backslashes, when scanned again.
                 }
-            }
-            matcher.appendReplacement(buf, LEFT + (length - half) + RIGHT + Matcher.quoteReplacement(slash + symbol));
+                break;
+            default:
+                buf.append(lexer.getSource(), lexer.getStart(), lexer.getEnd());
         }
-        matcher.appendTail(buf);
-        return buf.toString();
     }
     
-    protected String filterStatement(String message, Filter filter, Translator resolver, StringBuilder fields, Map<String, Class<?>> types, AtomicInteger seq) throws ParseException {
+    protected String filterStatement(String message, Filter filter, Translator resolver, Map<String, Class<?>> types, ParseContext context) throws ParseException {
         int offset = 0;
-        message = RIGHT + message + LEFT;
-        StringBuffer buf = new StringBuffer();
-        Matcher matcher = DIRECTIVE_PATTERN.matcher(message);
-        while (matcher.find()) {
-            String text = matcher.group(1);
-            String len = matcher.group(2);
-            String next = matcher.group(3);
-            int length = 0;
-            if (len != null && len.length() > 0) {
-                length = Integer.parseInt(len);
+        int length = message.length();
+        StringBuilder buf = new StringBuilder(length);
+        int position = 0;
+        while (true) {
+            int left = message.indexOf(LEFT, position);
+            String text = message.substring(position, left < 0 ? length : left);
+            if (left < 0) {
+                buf.append(getWriteCode(filterExpression(text, filter, resolver, types, offset, context), context));
+                break;
+            }
+            int i = left + LEFT.length();
+            int digits = i;
+            while (i < length && Character.isDigit(message.charAt(i))) {
+                i ++;
+            }
+            int len = i > digits ? Integer.parseInt(message.substring(digits, i)) : 0;
+            int letters = i;
+            while (i < length && message.charAt(i) >= 'a' && message.charAt(i) <= 'z') {
+                i ++;
             }
+            String next = message.substring(letters, i);
             if ("else".equals(next)) {
-                if (text != null && text.trim().length() > 0) {
+                if (text.trim().length() > 0) {
                     throw new ParseException("Found invaild text \"" + text.trim() + "\" before " + next + " directive!", offset);
                 }
-                matcher.appendReplacement(buf, "" + next);
+                buf.append(next);
             } else {
-                matcher.appendReplacement(buf, Matcher.quoteReplacement("$output.write(" + filterExpression(text, filter, resolver, fields, types, offset, seq) + ");\n" + next));
+                buf.append(getWriteCode(filterExpression(text, filter, resolver, types, offset, context), context) + next);
             }
-            if (text != null) {
-                offset += text.length();
+            offset += text.length() + len;
+            int right = message.indexOf(RIGHT, i);
+            buf.append(message, i, right < 0 ? length : right);
+            if (right < 0) {
+                break;
             }
-            offset += length;
+            position = right + RIGHT.length();
         }
-        matcher.appendTail(buf);
         return buf.toString().replace("$output.write();\n", "");
     }
     
-    protected String filterExpression(String message, Filter filter, Translator resolver, StringBuilder fields, Map<String, Class<?>> types, int offset, AtomicInteger seq) throws ParseException {
+    // the emitted statements write by themselves.
+    private String getWriteCode(String expression, ParseContext context) {
+        return context.isEmitted() ? expression : "$output.write(" + expression + ");\n";
+    }
+    
+    protected String filterExpression(String message, Filter filter, Translator resolver, Map<String, Class<?>> types, int offset, ParseContext context) throws ParseException {
         if (message == null || message.length() == 0) {
             return "";
         }
         StringBuffer buf = new StringBuffer();
-        Matcher matcher = EXPRESSION_PATTERN.matcher(message);
+        int length = message.length();
         int last = 0;
-        while (matcher.find()) {
-            int off = matcher.start(2) + offset;
-            String expression = resolver.translate(matcher.group(2), types, off).getCode();
-            expression = "format(" + expression + ")";
-            if (! "$!".equals(matcher.group(1))) {
-                expression = "filter(" + expression + ")";
+        int i = message.indexOf(DOLLAR);
+        while (i >= 0) {
+            int j = i + 1;
+            boolean raw = j < length && message.charAt(j) == '!';
+            if (raw) {
+                j ++;
             }
-            if (isOutput) {
-                expression = "serialize(" + expression + ")";
+            if (j >= length || message.charAt(j) != '{') {
+                i = message.indexOf(DOLLAR, i + 1);
+                continue;
+            }
+            int end = message.indexOf('}', j + 1);
+            if (end < 0) {
+                break;
+            }
+            int off = j + 1 + offset;
+            Expression translated = resolver.translate(message.substring(j + 1, end), types, off);
+            // the untyped range loop variable is formatted as its boxed value, the same as the untyped variables.
+            boolean boxed = context.getBoxedVariables().contains(translated.getCode().trim());
+            String expression;
+            if (boxed) {
+                expression = "format((Object) " + translated.getCode() + ")";
+            } else if (! context.isEmitted() && isFormatterBound(translated.getReturnType())) {
+                expression = getFormatterField(translated.getReturnType(), context) + ".format(" + translated.getCode() + ")";
+            } else {
+                expression = "format(" + translated.getCode() + ")";
+            }
+            String txt = message.substring(last, i);
+            appendText(buf, txt, filter, context);
+            BytecodeGenerator generator = context.getGenerator();
+            if (generator != null) {
+                buf.append((raw ? BytecodeGenerator.RAW : BytecodeGenerator.PRINT) + " " + generator.addExpression(translated) + (boxed ? " " + BytecodeGenerator.BOXED : "") + "\n");
+            } else if (! raw) {
+                // the filter writes the value to the output by itself.
+                buf.append(");\nfilter($output, " + expression + ");\n$output.write(");
+            } else if (isOutput) {
+                buf.append(");\nserialize($output, " + expression + ");\n$output.write(");
+            } else {
+                buf.append(");\n$output.write(" + expression + ");\n$output.write(");
             }
-            String txt = message.substring(last, matcher.start());
-            appendText(buf, txt, filter, fields, seq);
-            buf.append(");\n$output.write(" + expression + ");\n$output.write(");
-            last = matcher.end();
+            last = end + 1;
+            i = message.indexOf(DOLLAR, last);
         }
         String txt;
         if (last == 0) {
@@ -418,19 +608,42 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
         } else {
             txt = null;
         }
-        appendText(buf, txt, filter, fields, seq);
+        appendText(buf, txt, filter, context);
         return buf.toString();
     }
     
-    private void appendText(StringBuffer buf, String txt, Filter filter, StringBuilder fields, AtomicInteger seq) {
+    // the field of the formatter bound to the static type, declared once for the template.
+    private String getFormatterField(Class<?> type, ParseContext context) {
+        Map<Class<?>, String> formatters = context.getFormatters();
+        String var = formatters.get(type);
+        if (var == null) {
+            var = "$FMT" + context.nextSequence();
+            context.getFields().append("private transient final " + Formatter.class.getName() + "<Object> " + var 
+                    + " = getFormatter(" + type.getCanonicalName() + ".class);\n");
+            formatters.put(type, var);
+        }
+        return var;
+    }
+    
+    private void appendText(StringBuffer buf, String txt, Filter filter, ParseContext context) throws ParseException {
         if (txt != null && txt.length() > 0) {
             txt = txt.replace(POUND_SPECIAL, POUND);
             txt = txt.replace(DOLLAR_SPECIAL, DOLLAR);
             txt = filter.filter(txt);
-            if (txt != null && txt.length() > 0) {
-                String var = "$TXT" + seq.incrementAndGet();
+            BytecodeGenerator generator = context.getGenerator();
+            if (generator != null && txt != null && txt.length() > 0) {
+                buf.append(BytecodeGenerator.TEXT + " " + generator.addText(txt) + "\n");
+            } else if (txt != null && txt.length() > 0) {
+                String var = "$TXT" + context.nextSequence();
+                StringBuilder fields = context.getFields();
                 if (isOutput) {
-                    fields.append("protected static final byte[] " + var + " = new byte[] {" + StringUtils.toByteString(txt.getBytes()) + "};\n");
+                    byte[] bytes;
+                    try {
+                        bytes = outputEncoding == null ? txt.getBytes() : txt.getBytes(outputEncoding);
+                    } catch (UnsupportedEncodingException e) {
+                        throw new ParseException("Unsupported output.encoding " + outputEncoding, 0);
+                    }
+                    fields.append("protected static final byte[] " + var + " = new byte[] {" + StringUtils.toByteString(bytes) + "};\n");
                 } else {
                     fields.append("protected static final String " + var + " = \"" + StringUtils.escapeString(txt) + "\";\n");
                 }
@@ -439,55 +652,111 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
         }
     }
     
-    protected String getStatementEndCode(String name, String value) throws ParseException {
+    protected String getStatementEndCode(String name, String value, ParseContext context) throws ParseException {
+        String fragment = null;
+        if (cacheName.equals(name)) {
+            if (context.getFragments().isEmpty()) {
+                throw new ParseException("Unmatched " + name + " end", 0);
+            }
+            fragment = context.getFragments().removeLast();
+        }
+        if (context.isEmitted()) {
+            if (ifName.equals(name) || elseifName.equals(name) || elseName.equals(name) 
+                    || foreachName.equals(name) || blockName.equals(name) || cacheName.equals(name)) {
+                return BytecodeGenerator.END + "\n";
+            }
+            return null;
+        }
         if (ifName.equals(name) || elseifName.equals(name) || elseName.equals(name)) {
             return "}\n"; // 插入结束指令
         } else if (foreachName.equals(name)) {
-            return foreachStatus + ".increment();\n}\n" + foreachStatus + ".pop();\n"; // 插入结束指令
+            if (! context.isForeachStatus()) {
+                return "}\n}\n"; // 插入结束指令
+            }
+            return foreachStatus + ".increment();\n}\n" + foreachStatus + ".pop();\n}\n"; // 插入结束指令
         } else if (blockName.equals(name)) {
             StringBuffer buf = new StringBuffer();
             if (isOutput) {
                 buf.append(value + " = toString((" + UnsafeByteArrayOutputStream.class.getName() + ")$output);\n");
+                buf.append("release((" + UnsafeByteArrayOutputStream.class.getName() + ")$output);\n");
             } else {
                 buf.append(value + " = $output.toString();\n");
+                buf.append("release((" + UnsafeStringWriter.class.getName() + ")$output);\n");
             }
             buf.append("$output = $output_" + value + ";\n");
             return buf.toString(); // 插入结束指令
+        } else if (cacheName.equals(name)) {
+            String var = "$fragment_" + fragment;
+            StringBuffer buf = new StringBuffer();
+            if (isOutput) {
+                buf.append(var + " = ((" + UnsafeByteArrayOutputStream.class.getName() + ")$output).toByteArray();\n");
+                buf.append("release((" + UnsafeByteArrayOutputStream.class.getName() + ")$output);\n");
+            } else {
+                buf.append(var + " = $output.toString();\n");
+                buf.append("release((" + UnsafeStringWriter.class.getName() + ")$output);\n");
+            }
+            buf.append("$output = $output_fragment_" + fragment + ";\n");
+            buf.append("putFragment(\"" + fragment + "\", " + var + "_key, " + var + ", " + var + "_ttl);\n");
+            buf.append("}\n");
+            buf.append("$output.write(" + var + ");\n");
+            return buf.toString(); // 插入结束指令
         }
         return null;
     }
     
     protected String getStatementCode(String name, String value, int begin, int offset, Translator resolver,
                                     Set<String> variables, Map<String, Class<?>> types, 
-                                    List<String> parameters, List<Class<?>> parameterTypes, boolean comment) throws ParseException {
+                                    List<String> parameters, List<Class<?>> parameterTypes, boolean comment, 
+                                    ParseContext context) throws ParseException {
         name = name == null ? null : name.trim();
         value = value == null ? null : value.trim();
         StringBuilder buf = new StringBuilder();
+        BytecodeGenerator generator = context.getGenerator();
         if (ifName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The if expression == null!", begin);
             }
-            buf.append("if (");
-            buf.append(getConditionCode(resolver.translate(value, types, offset)));
-            buf.append(") {\n");
+            Expression expression = resolver.translate(value, types, offset);
+            if (generator != null) {
+                buf.append(BytecodeGenerator.IF + " " + generator.addExpression(expression) + "\n");
+            } else {
+                buf.append("if (");
+                buf.append(getConditionCode(expression));
+                buf.append(") {\n");
+            }
         } else if (elseifName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The elseif expression == null!", begin);
             }
-            if (comment) {
-                buf.append("} ");
+            Expression expression = resolver.translate(value, types, offset);
+            if (generator != null) {
+                if (comment) {
+                    buf.append(BytecodeGenerator.END + "\n");
+                }
+                buf.append(BytecodeGenerator.ELSE + " " + BytecodeGenerator.IF + " " + generator.addExpression(expression) + "\n");
+            } else {
+                if (comment) {
+                    buf.append("} ");
+                }
+                buf.append("else if (");
+                buf.append(getConditionCode(expression));
+                buf.append(") {\n");
             }
-            buf.append("else if (");
-            buf.append(getConditionCode(resolver.translate(value, types, offset)));
-            buf.append(") {\n");
         } else if (elseName.equals(name)) {
             if (value != null && value.length() > 0) {
                 throw new ParseException("Unsupported else expression " + value, begin);
             }
-            if (comment) {
-                buf.append("} ");
+            if (generator != null) {
+                if (comment) {
+                    buf.append(BytecodeGenerator.END + "\n");
+                }
+                buf.append(BytecodeGenerator.ELSE + "\n");
+            } else {
+                if (comment) {
+                    buf.append("} ");
+                }
+                buf.append("else {\n");
             }
-            buf.append("else {\n");
         } else if (foreachName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The foreach expression == null!", begin);
@@ -507,10 +776,17 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
             String[] tokens = value.substring(0, start).trim().split("\\s+");
             String type;
             String var;
+            boolean boxed = false;
             if (tokens.length == 1) {
                 // TODO 获取in参数List的泛型
                 if (returnType.isArray()) {
                     type = returnType.getComponentType().getName();
+                } else if (returnType == IntegerSequence.class) {
+                    type = int.class.getName();
+                    boxed = true;
+                } else if (returnType == CharacterSequence.class) {
+                    type = char.class.getName();
+                    boxed = true;
                 } else if (Map.class.isAssignableFrom(returnType)) {
                     type = Map.class.getName() + ".Entry";
                 } else if (Collection.class.isAssignableFrom(returnType)
@@ -529,14 +805,52 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
             }
             Class<?> clazz = ClassUtils.forName(importPackages, type);
             types.put(var, clazz);
-            buf.append(getForeachCode(type, clazz, var, code));
+            if (boxed) {
+                context.getBoxedVariables().add(var);
+            } else {
+                context.getBoxedVariables().remove(var);
+            }
+            if (generator != null) {
+                buf.append(BytecodeGenerator.FOREACH + " " + generator.addType(clazz) + " " + var + " " + generator.addExpression(expression) + "\n");
+            } else {
+                BinaryOperator range = getRange(expression, clazz);
+                if (range != null) {
+                    buf.append(getRangeCode(type, clazz, var, range, context));
+                } else {
+                    buf.append(getForeachCode(type, clazz, var, returnType, code, context));
+                }
+            }
         } else if (breakifName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The breakif expression == null!", begin);
             }
-            buf.append("if (");
-            buf.append(getConditionCode(resolver.translate(value, types, offset)));
-            buf.append(") break;");
+            Expression expression = resolver.translate(value, types, offset);
+            if (generator != null) {
+                buf.append(BytecodeGenerator.BREAKIF + " " + generator.addExpression(expression) + "\n");
+            } else {
+                buf.append("if (");
+                buf.append(getConditionCode(expression));
+                buf.append(") break;");
+            }
+        } else if (flushName.equals(name)) {
+            if (value != null && value.length() > 0) {
+                throw new ParseException("Unsupported flush expression " + value, begin);
+            }
+            if (generator != null) {
+                buf.append(BytecodeGenerator.FLUSH + "\n");
+            } else {
+                buf.append("flush($output);\n");
+            }
+        } else if (forkName.equals(name)) {
+            if (value == null || value.length() == 0) {
+                throw new ParseException("The fork template name == null!", begin);
+            }
+            Expression expression = resolver.translate(value, types, offset);
+            if (generator != null) {
+                buf.append(BytecodeGenerator.FORK + " " + generator.addExpression(expression) + "\n");
+            } else {
+                buf.append("$output = fork($output, $parameters, " + String.class.getSimpleName() + ".valueOf(" + expression.getCode() + "));\n");
+            }
         } else if (setName.equals(name)) {
             Matcher matcher = ASSIGN_PATTERN.matcher(value);
             if (! matcher.find()) {
@@ -565,12 +879,16 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
             }
             variables.add(var);
             types.put(var, clazz);
-            buf.append(var + " = (" + type + ")(" + expression.getCode() + ");\n");
-            buf.append("$parameters.put(\"");
-            buf.append(var);
-            buf.append("\", ");
-            buf.append(ClassUtils.class.getName() + ".boxed(" + var + ")");
-            buf.append(");\n");
+            if (generator != null) {
+                buf.append(BytecodeGenerator.SET + " " + generator.addType(clazz) + " " + var + " " + generator.addExpression(expression) + "\n");
+            } else {
+                buf.append(var + " = (" + type + ")(" + expression.getCode() + ");\n");
+                buf.append("$parameters.put(\"");
+                buf.append(var);
+                buf.append("\", ");
+                buf.append(ClassUtils.class.getName() + ".boxed(" + var + ")");
+                buf.append(");\n");
+            }
         } else if (defineName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The in parameters == null!", begin);
@@ -594,6 +912,10 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
                 parameters.add(var);
                 parameterTypes.add(ClassUtils.forName(importPackages, type));
                 types.put(var, ClassUtils.forName(importPackages, type));
+                if (generator != null) {
+                    buf.append(BytecodeGenerator.DEFINE + " " + generator.addType(types.get(var)) + " " + var + "\n");
+                    continue;
+                }
                 buf.append(type);
                 buf.append(" ");
                 buf.append(var);
@@ -607,12 +929,14 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
             if (value == null || value.length() == 0) {
                 throw new ParseException("The block name == null!", begin);
             }
-            if (isOutput) {
+            if (generator != null) {
+                buf.append(BytecodeGenerator.BLOCK + " " + value + "\n");
+            } else if (isOutput) {
                 buf.append(OutputStream.class.getName() + " $output_" + value + " = $output;\n");
-                buf.append("$output = new " + UnsafeByteArrayOutputStream.class.getName() + "();\n");
+                buf.append("$output = getOutputStream();\n");
             } else {
                 buf.append(Writer.class.getName() + " $output_" + value + " = $output;\n");
-                buf.append("$output = new " + UnsafeStringWriter.class.getName() + "();\n");
+                buf.append("$output = getWriter();\n");
             }
             Class<?> cls = types.get(value);
             if (cls != null && ! cls.equals(String.class)) {
@@ -620,12 +944,56 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
             }
             variables.add(value);
             types.put(value, String.class);
+        } else if (cacheName.equals(name)) {
+            if (value == null || value.length() == 0) {
+                throw new ParseException("The cache key == null!", begin);
+            }
+            long ttl = 0;
+            Matcher matcher = TTL_PATTERN.matcher(value);
+            if (matcher.find()) {
+                ttl = toMillis(Long.parseLong(matcher.group(1)), matcher.group(2));
+                value = value.substring(0, matcher.start());
+            }
+            Expression expression = resolver.translate(value, types, offset);
+            String fragment = String.valueOf(begin);
+            context.getFragments().addLast(fragment);
+            if (generator != null) {
+                buf.append(BytecodeGenerator.CACHE + " " + generator.addExpression(expression) + " " + fragment + " " + ttl + "\n");
+            } else {
+                String var = "$fragment_" + fragment;
+                String type = isOutput ? "byte[]" : String.class.getName();
+                buf.append(Object.class.getName() + " " + var + "_key = " + ClassUtils.class.getName() + ".boxed(" + expression.getCode() + ");\n");
+                buf.append("long " + var + "_ttl = " + ttl + "L;\n");
+                buf.append(type + " " + var + " = (" + type + ") getFragment(\"" + fragment + "\", " + var + "_key);\n");
+                buf.append("if (" + var + " == null) {\n");
+                if (isOutput) {
+                    buf.append(OutputStream.class.getName() + " $output_fragment_" + fragment + " = $output;\n");
+                    buf.append("$output = getOutputStream();\n");
+                } else {
+                    buf.append(Writer.class.getName() + " $output_fragment_" + fragment + " = $output;\n");
+                    buf.append("$output = getWriter();\n");
+                }
+            }
         } else {
             throw new ParseException("Unsupported directive " + name, begin);
         }
         return buf.toString();
     }
     
+    // the cache ttl in milliseconds, for the optional unit.
+    private static long toMillis(long ttl, String unit) {
+        if ("s".equals(unit)) {
+            return ttl * 1000;
+        } else if ("m".equals(unit)) {
+            return ttl * 60 * 1000;
+        } else if ("h".equals(unit)) {
+            return ttl * 60 * 60 * 1000;
+        } else if ("d".equals(unit)) {
+            return ttl * 24 * 60 * 60 * 1000;
+        }
+        return ttl;
+    }
+    
     protected String parseGenericType(String type, String var, Map<String, Class<?>> types, int offset) throws ParseException {
         int i = type.indexOf('<');
         if (i > 0) {
@@ -649,18 +1017,166 @@ public abstract class AbstractParser implements Parser, Configurable<Configs>, E
         return StringUtils.getConditionCode(expression.getReturnType(), expression.getCode());
     }
 
-    protected String getForeachCode(String type, Class<?> clazz, String var, String code) {
+    /**
+     * Get the loop code, indexed over the arrays and the lists, the status is pushed only if the template references it.
+     */
+    protected String getForeachCode(String type, Class<?> clazz, String var, Class<?> returnType, String code, ParseContext context) {
         StringBuilder buf = new StringBuilder();
         String name = "_i_" + var;
-        buf.append("for (" + Iterator.class.getName() + " " + name + " = " + ClassUtils.class.getName() + ".toIterator(" + foreachStatus + ".push(" + code + ")); " + name + ".hasNext();) {\n");
-        if (clazz.isPrimitive()) {
-            buf.append(type + " " + var + " = " + ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(clazz).getSimpleName() + ")" + name + ".next());\n");
+        String size = "_n_" + var;
+        if (context.isForeachStatus()) {
+            code = foreachStatus + ".push(" + code + ")";
+        }
+        buf.append("{\n");
+        if (isIndexed(returnType, clazz)) {
+            String array = "_a_" + var;
+            buf.append(returnType.getCanonicalName() + " " + array + " = " + code + ";\n");
+            buf.append("int " + size + " = " + array + " == null ? 0 : " + array + ".length;\n");
+            buf.append("for (int " + name + " = 0; " + name + " < " + size + "; " + name + " ++) {\n");
+            buf.append(type + " " + var + " = (" + type + ") " + array + "[" + name + "];\n");
+        } else if (List.class.isAssignableFrom(returnType)) {
+            // the linked lists are iterated still, not to get each element from the head.
+            String list = "_l_" + var;
+            String iterator = "_t_" + var;
+            buf.append(List.class.getName() + " " + list + " = " + code + ";\n");
+            buf.append("int " + size + " = " + list + " == null ? 0 : " + list + ".size();\n");
+            buf.append(Iterator.class.getName() + " " + iterator + " = " + list + " == null || " + list + " instanceof " + RandomAccess.class.getName() + " ? null : " + list + ".iterator();\n");
+            buf.append("for (int " + name + " = 0; " + name + " < " + size + "; " + name + " ++) {\n");
+            buf.append(getForeachVarCode(type, clazz, var, "(" + iterator + " == null ? " + list + ".get(" + name + ") : " + iterator + ".next())"));
+        } else {
+            buf.append("for (" + Iterator.class.getName() + " " + name + " = " + ClassUtils.class.getName() + ".toIterator(" + code + "); " + name + ".hasNext();) {\n");
+            buf.append(getForeachVarCode(type, clazz, var, name + ".next()"));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get the loop code counting over the integer or character range, without the sequence.
+     */
+    protected String getRangeCode(String type, Class<?> clazz, String var, BinaryOperator range, ParseContext context) throws ParseException {
+        StringBuilder buf = new StringBuilder();
+        String name = "_i_" + var;
+        String size = "_n_" + var;
+        String value = "_v_" + var;
+        String end = "_e_" + var;
+        String step = "_s_" + var;
+        String count = "(" + end + " - " + value + ") * " + step + " + 1";
+        if (context.isForeachStatus()) {
+            count = foreachStatus + ".push(" + count + ")";
+        }
+        buf.append("{\n");
+        buf.append("int " + value + " = " + getRangeBoundCode(range.getLeftParameter()) + ";\n");
+        buf.append("int " + end + " = " + getRangeBoundCode(range.getRightParameter()) + ";\n");
+        buf.append("int " + step + " = " + value + " < " + end + " ? 1 : -1;\n");
+        buf.append("int " + size + " = " + count + ";\n");
+        buf.append("for (int " + name + " = 0; " + name + " < " + size + "; " + name + " ++, " + value + " += " + step + ") {\n");
+        if (range.getReturnType() == CharacterSequence.class) {
+            buf.append(type + " " + var + " = (" + type + ") (char) " + value + ";\n");
         } else {
-            buf.append(type + " " + var + " = (" + type + ") " + name + ".next();\n");
+            buf.append(type + " " + var + " = (" + type + ") " + value + ";\n");
         }
         return buf.toString();
     }
 
+    // the null bounds are zero, the same as the sequence constructors.
+    private static String getRangeBoundCode(Expression bound) throws ParseException {
+        Class<?> type = bound.getReturnType();
+        String code = bound.getCode();
+        if (! type.isPrimitive()) {
+            code = ClassUtils.class.getName() + ".unboxed(" + code + ")";
+            type = BytecodeBuilder.getPrimitive(type);
+        }
+        return type == long.class ? "(int) (" + code + ")" : code;
+    }
+
+    private String getForeachVarCode(String type, Class<?> clazz, String var, String element) {
+        if (clazz.isPrimitive()) {
+            return type + " " + var + " = " + ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(clazz).getSimpleName() + ")" + element + ");\n";
+        }
+        return type + " " + var + " = (" + type + ") " + element + ";\n";
+    }
+
+    /**
+     * Get the range operator the foreach counts over, or null if the loop is over its value.
+     */
+    static BinaryOperator getRange(Expression expression, Class<?> varType) throws ParseException {
+        Class<?> returnType = expression.getReturnType();
+        if (! (expression instanceof ExpressionImpl) 
+                || (returnType != IntegerSequence.class && returnType != CharacterSequence.class)) {
+            return null;
+        }
+        Expression node = ((ExpressionImpl) expression).getNode();
+        if (! (node instanceof BinaryOperator) || ! "..".equals(((BinaryOperator) node).getName())) {
+            return null;
+        }
+        BinaryOperator range = (BinaryOperator) node;
+        Class<?> elementType = returnType == CharacterSequence.class ? char.class : int.class;
+        if (! isRangeBound(range.getLeftParameter(), elementType) 
+                || ! isRangeBound(range.getRightParameter(), elementType)
+                || ! BytecodeBuilder.isAssignable(elementType, varType)) {
+            return null;
+        }
+        return range;
+    }
+
+    private static boolean isRangeBound(Expression bound, Class<?> elementType) throws ParseException {
+        Class<?> type = BytecodeBuilder.getPrimitive(bound.getReturnType());
+        if (elementType == char.class) {
+            return type == char.class;
+        }
+        return type == int.class || type == short.class || type == long.class;
+    }
+
+    /**
+     * Whether the foreach over the type is indexed over the array, its elements are cast to the variable type without boxing.
+     */
+    static boolean isIndexed(Class<?> type, Class<?> varType) {
+        if (! type.isArray() || ! BytecodeBuilder.isAccessible(type)) {
+            return false;
+        }
+        Class<?> componentType = type.getComponentType();
+        if (varType.isPrimitive()) {
+            // the boxed elements are unboxed by the iterator, null as zero.
+            return componentType.isPrimitive() && BytecodeBuilder.isAssignable(componentType, varType);
+        }
+        return BytecodeBuilder.isAssignable(componentType, varType) 
+                || (! componentType.isPrimitive() && componentType.isAssignableFrom(varType));
+    }
+
+    /**
+     * Whether the values of the static type are formatted by the formatter bound to the type, instead of the
+     * format(Object) looking it up by the value class, the other types have their typed format methods.
+     */
+    static boolean isFormatterBound(Class<?> type) {
+        if (type == null || type.isPrimitive() || type == Object.class || ! BytecodeBuilder.isAccessible(type)) {
+            return false;
+        }
+        for (Method method : AbstractTemplate.class.getDeclaredMethods()) {
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            if ("format".equals(method.getName()) && parameterTypes.length == 1 
+                    && parameterTypes[0] != Object.class && parameterTypes[0].isAssignableFrom(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the status referenced as a variable, not the foreach directive or attribute of the same name.
+    private static Pattern getStatusPattern(String status) {
+        return Pattern.compile("(?<![\\w$.:#])" + Pattern.quote(status) + "(?![\\w$]|\\s*\\(|\\s*=(?!=))");
+    }
+
+    /**
+     * Get the code assigning the macro template to its variable.
+     */
+    protected String getMacroCode(String var, String key, ParseContext context) {
+        BytecodeGenerator generator = context.getGenerator();
+        if (generator != null) {
+            return BytecodeGenerator.MACRO + " " + var + " " + generator.addString(key) + "\n";
+        }
+        return var + " = getEngine().getTemplate(\"" + key + "\");\n";
+    }
+
     protected String getMacroPath(String template, String value) {
         if (value == null) {
             value = "";
@@ -32,10 +32,11 @@ public class AttributeParser extends AbstractParser {
 
     protected String doParse(String name, String reader, Translator resolver, 
                              List<String> parameters, List<Class<?>> parameterTypes, 
-                             Set<String> variables, Map<String, Class<?>> types) throws IOException, ParseException {
-        Source source = new Source(reader);
+                             Set<String> variables, Map<String, Class<?>> types, Map<String, String> macros, 
+                             ParseContext context) throws IOException, ParseException {
+        Source source = new Source(filterSource(reader));
         OutputDocument document = new OutputDocument(source);
-        parseAttribute(name, source, source, document, resolver, parameters, parameterTypes, variables, types);
+        parseAttribute(name, source, source, document, resolver, parameters, parameterTypes, variables, types, macros, context);
         return document.toString();
     }
 
@@ -44,7 +45,8 @@ public class AttributeParser extends AbstractParser {
                                  Segment segment, OutputDocument document, 
                                  Translator resolver, 
                                  List<String> parameters, List<Class<?>> parameterTypes, 
-                                 Set<String> variables, Map<String, Class<?>> types) throws ParseException {
+                                 Set<String> variables, Map<String, Class<?>> types, Map<String, String> macros, 
+                                 ParseContext context) throws ParseException {
         List<Element> elements = segment.getChildElements();
         if (elements == null) {
             return;
@@ -73,7 +75,7 @@ public class AttributeParser extends AbstractParser {
                 if (! ifName.equals(name) && ! elseifName.equals(name) && ! elseName.equals(name)
                         && ! foreachName.equals(name) && ! breakifName.equals(name)
                         && ! setName.equals(name) && ! defineName.equals(name) 
-                        && ! blockName.equals(name)) {
+                        && ! blockName.equals(name) && ! cacheName.equals(name)) {
                     continue;
                 }
                 statements.add(attribute);
@@ -108,7 +110,7 @@ public class AttributeParser extends AbstractParser {
                 es = es.substring(0, macro.getBegin() - 1 - element.getBegin()) 
                     + (param == null || param.length() == 0 ? "" : " in=\"" + param + "\"")
                     + es.substring(macro.getEnd() - element.getBegin()); // 去掉macro属性
-                engine.addTemplate(key, es);
+                macros.put(key, es);
                 Class<?> cls = types.get(var);
                 if (cls != null && ! cls.equals(Template.class)) {
                     throw new ParseException("Duplicate macro variable " + var + ", conflict types: " + cls.getName() + ", " + Template.class.getName(), macro.getBegin());
@@ -118,7 +120,7 @@ public class AttributeParser extends AbstractParser {
                 StringBuffer buf = new StringBuffer();
                 buf.append(LEFT);
                 buf.append(element.length());
-                buf.append(var + " = getEngine().getTemplate(\"" + key + "\");\n");
+                buf.append(getMacroCode(var, key, context));
                 buf.append(RIGHT);
                 document.insert(element.getBegin(), buf.toString()); // 插入块指令
                 document.remove(element); // 移除宏
@@ -143,12 +145,12 @@ public class AttributeParser extends AbstractParser {
                 } else {
                     offset ++;
                 }
-                String code = getStatementCode(name, value, attribute.getBegin(), offset, resolver, variables, types, parameters, parameterTypes, false);
+                String code = getStatementCode(name, value, attribute.getBegin(), offset, resolver, variables, types, parameters, parameterTypes, false, context);
                 buf.append(code);
                 buf.append(RIGHT);
                 document.insert(element.getBegin(), buf.toString()); // 插入块指令
                 document.remove(new Segment(source, attribute.getBegin() - 1, attribute.getEnd())); // 移除属性
-                String end = getStatementEndCode(name, value);
+                String end = getStatementEndCode(name, value, context);
                 if (end != null && end.length() > 0) {
                     ends.push(end); // 插入结束指令
                 }
@@ -157,7 +159,7 @@ public class AttributeParser extends AbstractParser {
                 String end = ends.pop();
                 document.insert(element.getEnd(), LEFT + end + RIGHT); // 插入结束指令
             }
-            parseAttribute(template, source, element, document, resolver, parameters, parameterTypes, variables, types); // 递归处理子标签
+            parseAttribute(template, source, element, document, resolver, parameters, parameterTypes, variables, types, macros, context); // 递归处理子标签
         }
     }
     
@@ -0,0 +1,885 @@
+package ths.template.support.parsers;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import ths.core.Resource;
+import ths.template.Engine;
+import ths.template.Expression;
+import ths.template.Template;
+import ths.template.support.Formatter;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.BytecodeBuilder.Label;
+import ths.template.support.compilers.Emittable;
+import ths.template.support.compilers.UnsupportedBytecodeException;
+import ths.template.support.runtime.ForeachStatus;
+import ths.template.support.runtime.OrderedTypeMap;
+import ths.template.support.runtime.OutputStreamTemplate;
+import ths.template.support.runtime.WriterTemplate;
+import ths.template.support.sequences.CharacterSequence;
+import ths.template.support.translators.expression.BinaryOperator;
+import ths.template.util.ClassUtils;
+import ths.template.util.StringUtils;
+import ths.template.util.UnsafeByteArrayOutputStream;
+import ths.template.util.UnsafeStringWriter;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.ClassFile;
+
+/**
+ * BytecodeGenerator. (Tool, Prototype, ThreadUnsafe)
+ *
+ * Emits the template class as bytecode, from the statement lines the parser generates instead of the java code:
+ *
+ * <pre>
+ * text N, print E, raw E, if E, else if E, else, end, foreach T var E, breakif E, set T var E, define T var, block var, macro var K,
+ * cache E id ttl, flush, fork E
+ * </pre>
+ *
+ * E, T, N and K are the indexes of the added expressions, types, texts and strings.
+ * Whatever can not be emitted throws UnsupportedBytecodeException, and the template is generated as java code.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+class BytecodeGenerator {
+
+    private static final int PARAMETERS = 1;
+
+    private static final int OUTPUT = 2;
+
+    private final String name;
+
+    private final boolean isOutput;
+
+    private final String outputEncoding;
+
+    private final List<Expression> expressions = new ArrayList<Expression>();
+
+    private final List<Class<?>> types = new ArrayList<Class<?>>();
+
+    private final List<String> strings = new ArrayList<String>();
+
+    private final List<Object> texts = new ArrayList<Object>();
+
+    // the formatter fields of the static types, assigned by the constructor.
+    private final Map<Class<?>, String> formatters = new LinkedHashMap<Class<?>, String>();
+
+    private BytecodeBuilder builder;
+
+    private LinkedList<Frame> frames;
+
+    private Frame pendingIf;
+
+    BytecodeGenerator(String name, boolean isOutput, String outputEncoding) {
+        this.name = name;
+        this.isOutput = isOutput;
+        this.outputEncoding = outputEncoding;
+    }
+
+    int addExpression(Expression expression) {
+        expressions.add(expression);
+        return expressions.size() - 1;
+    }
+
+    int addType(Class<?> type) {
+        types.add(type);
+        return types.size() - 1;
+    }
+
+    int addString(String value) {
+        strings.add(value);
+        return strings.size() - 1;
+    }
+
+    /**
+     * Add the filtered text, encoded with the output encoding for the output stream templates.
+     */
+    int addText(String text) throws ParseException {
+        if (isOutput) {
+            try {
+                byte[] bytes = outputEncoding == null ? text.getBytes() : text.getBytes(outputEncoding);
+                texts.add(bytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new ParseException("Unsupported output.encoding " + outputEncoding, 0);
+            }
+        } else {
+            texts.add(text);
+        }
+        return texts.size() - 1;
+    }
+
+    byte[] generate(String code, Set<String> variables, Map<String, Class<?>> variableTypes, String foreachStatus,
+                    List<String> parameters, List<Class<?>> parameterTypes, Map<String, String> macros) throws ParseException, UnsupportedBytecodeException {
+        Class<?> superClass = isOutput ? OutputStreamTemplate.class : WriterTemplate.class;
+        ClassFile classFile = BytecodeBuilder.newClass(name, superClass);
+        Class<?> textType = isOutput ? byte[].class : String.class;
+        BytecodeBuilder initializer = new BytecodeBuilder(classFile, Modifier.STATIC, "<clinit>", void.class);
+        for (int i = 0; i < texts.size(); i ++) {
+            String field = "$TXT" + (i + 1);
+            BytecodeBuilder.addField(classFile, AccessFlag.PROTECTED | AccessFlag.STATIC | AccessFlag.FINAL, field, textType);
+            if (isOutput) {
+                // one char per byte, the smallest constant of the bytes.
+                initializer.push(toLatin((byte[]) texts.get(i)));
+                initializer.push("ISO-8859-1");
+                initializer.invoke(String.class, "getBytes", String.class);
+            } else {
+                initializer.push((String) texts.get(i));
+            }
+            initializer.putStatic(field, textType);
+        }
+        initializer.returnValue(void.class);
+        initializer.addMethod();
+
+        Class<?> outputType = isOutput ? OutputStream.class : Writer.class;
+        builder = new BytecodeBuilder(classFile, Modifier.PROTECTED, "doRender", void.class, Map.class, outputType);
+        frames = new LinkedList<Frame>();
+        pendingIf = null;
+        if (foreachStatus != null) {
+            builder.newInstance(ForeachStatus.class);
+            builder.invokeConstructor(ForeachStatus.class);
+            builder.store(builder.declare(foreachStatus, ForeachStatus.class), ForeachStatus.class);
+        }
+        for (String var : variables) {
+            Class<?> type = variableTypes.get(var);
+            checkNamed(var);
+            builder.pushInitValue(type);
+            builder.store(builder.declare(var, type), type);
+        }
+        for (String line : code.split("\n")) {
+            line = line.trim();
+            if (line.length() > 0) {
+                generateLine(line.split(" "), foreachStatus);
+            }
+        }
+        closeIf();
+        if (! frames.isEmpty()) {
+            throw new UnsupportedBytecodeException("Unclosed " + frames.size() + " statements in template " + name);
+        }
+        builder.pushThis();
+        builder.load(OUTPUT, getOutputType());
+        builder.invokeThis("join", void.class, getOutputType());
+        builder.returnValue(void.class);
+        builder.addMethod();
+
+        // after the render method, which declared the formatter fields.
+        BytecodeBuilder constructor = new BytecodeBuilder(classFile, Modifier.PUBLIC, "<init>", void.class, Engine.class, Resource.class);
+        constructor.pushThis();
+        constructor.load(1, Engine.class);
+        constructor.load(2, Resource.class);
+        constructor.invokeSuperConstructor(Engine.class, Resource.class);
+        for (Map.Entry<Class<?>, String> formatter : formatters.entrySet()) {
+            BytecodeBuilder.addField(classFile, AccessFlag.PRIVATE | AccessFlag.TRANSIENT | AccessFlag.FINAL, formatter.getValue(), Formatter.class);
+            constructor.pushThis();
+            constructor.pushThis();
+            constructor.pushClass(formatter.getKey());
+            constructor.invokeThis("getFormatter", Formatter.class, Class.class);
+            constructor.putField(formatter.getValue(), Formatter.class);
+        }
+        for (Map.Entry<String, String> macro : macros.entrySet()) {
+            constructor.load(1, Engine.class);
+            constructor.push(macro.getKey());
+            constructor.push(macro.getValue());
+            constructor.invoke(Engine.class, "addTemplate", String.class, String.class);
+        }
+        constructor.returnValue(void.class);
+        constructor.addMethod();
+
+        BytecodeBuilder getter = new BytecodeBuilder(classFile, Modifier.PUBLIC, "getCode", String.class);
+        getter.push(code);
+        getter.returnValue(String.class);
+        getter.addMethod();
+        addTypesMethod(classFile, "getParameterTypes", parameters, parameterTypes);
+        addTypesMethod(classFile, "getReturnTypes", new ArrayList<String>(), new ArrayList<Class<?>>());
+        return BytecodeBuilder.toBytecode(classFile);
+    }
+
+    private void generateLine(String[] tokens, String foreachStatus) throws ParseException, UnsupportedBytecodeException {
+        String op = tokens[0];
+        if (ELSE.equals(op)) {
+            if (pendingIf == null) {
+                throw new UnsupportedBytecodeException("Unmatched else in template " + name);
+            }
+            Frame previous = pendingIf;
+            pendingIf = null;
+            builder.jump(previous.end);
+            builder.mark(previous.next);
+            if (tokens.length > 1) {
+                Frame frame = new Frame(IF);
+                frame.end = previous.end;
+                frame.next = builder.newLabel();
+                Expression expression = getExpression(tokens[2]);
+                emit(expression);
+                builder.branchIfFalse(expression.getReturnType(), frame.next);
+                open(frame);
+            } else {
+                Frame frame = new Frame(ELSE);
+                frame.end = previous.end;
+                open(frame);
+            }
+            return;
+        }
+        closeIf();
+        if (END.equals(op)) {
+            if (frames.isEmpty()) {
+                throw new UnsupportedBytecodeException("Unmatched end in template " + name);
+            }
+            Frame frame = frames.removeLast();
+            if (frame.type != BLOCK && frame.type != CACHE) {
+                builder.endScope();
+            }
+            if (frame.type == IF) {
+                pendingIf = frame; // the else may follow.
+            } else if (frame.type == ELSE) {
+                builder.mark(frame.end);
+            } else if (frame.type == FOREACH) {
+                if (foreachStatus != null) {
+                    builder.load(foreachStatus);
+                    builder.invoke(ForeachStatus.class, "increment");
+                }
+                if (frame.index >= 0) {
+                    builder.increment(frame.index, 1);
+                }
+                if (frame.step >= 0) {
+                    builder.load(frame.value, int.class);
+                    builder.load(frame.step, int.class);
+                    builder.arithmetic("+", int.class);
+                    builder.store(frame.value, int.class);
+                }
+                builder.jump(frame.next);
+                builder.mark(frame.end);
+                builder.endScope();
+                if (foreachStatus != null) {
+                    builder.load(foreachStatus);
+                    builder.invoke(ForeachStatus.class, "pop");
+                }
+            } else if (frame.type == CACHE) {
+                endCache(frame);
+            } else {
+                endBlock(frame);
+            }
+        } else if (TEXT.equals(op)) {
+            int index = Integer.parseInt(tokens[1]);
+            Class<?> textType = isOutput ? byte[].class : String.class;
+            builder.load(OUTPUT, getOutputType());
+            builder.getStatic("$TXT" + (index + 1), textType);
+            builder.invoke(getOutputType(), "write", textType);
+        } else if (PRINT.equals(op) || RAW.equals(op)) {
+            emitPrint(getExpression(tokens[1]), RAW.equals(op), tokens.length > 2 && BOXED.equals(tokens[2]));
+        } else if (IF.equals(op)) {
+            Frame frame = new Frame(IF);
+            frame.end = builder.newLabel();
+            frame.next = builder.newLabel();
+            Expression expression = getExpression(tokens[1]);
+            emit(expression);
+            builder.branchIfFalse(expression.getReturnType(), frame.next);
+            open(frame);
+        } else if (FOREACH.equals(op)) {
+            emitForeach(types.get(Integer.parseInt(tokens[1])), tokens[2], getExpression(tokens[3]), foreachStatus);
+        } else if (BREAKIF.equals(op)) {
+            Frame loop = null;
+            for (Iterator<Frame> i = frames.descendingIterator(); i.hasNext();) {
+                Frame frame = i.next();
+                if (frame.type == FOREACH) {
+                    loop = frame;
+                    break;
+                }
+            }
+            if (loop == null) {
+                throw new UnsupportedBytecodeException("Break outside foreach in template " + name);
+            }
+            Expression expression = getExpression(tokens[1]);
+            emit(expression);
+            builder.branchIfTrue(expression.getReturnType(), loop.end);
+        } else if (SET.equals(op)) {
+            Class<?> type = types.get(Integer.parseInt(tokens[1]));
+            String var = tokens[2];
+            Expression expression = getExpression(tokens[3]);
+            emit(expression);
+            builder.convert(expression.getReturnType(), type);
+            checkStored(var, type);
+            builder.load(PARAMETERS, Map.class);
+            builder.push(var);
+            builder.load(var);
+            if (type.isPrimitive()) {
+                builder.box(type);
+            }
+            builder.invoke(Map.class, "put", Object.class, Object.class);
+            builder.pop(Object.class);
+        } else if (DEFINE.equals(op)) {
+            Class<?> type = types.get(Integer.parseInt(tokens[1]));
+            String var = declarable(tokens[2]);
+            builder.load(PARAMETERS, Map.class);
+            builder.push(var);
+            builder.invoke(Map.class, "get", Object.class);
+            builder.convert(Object.class, type);
+            builder.store(builder.declare(var, type), type);
+        } else if (BLOCK.equals(op)) {
+            Frame frame = new Frame(BLOCK);
+            frame.var = tokens[1];
+            checkNamed(frame.var);
+            String saved = declarable("$output_" + frame.var);
+            builder.load(OUTPUT, getOutputType());
+            builder.store(builder.declare(saved, getOutputType()), getOutputType());
+            builder.pushThis();
+            if (isOutput) {
+                builder.invokeThis("getOutputStream", UnsafeByteArrayOutputStream.class);
+            } else {
+                builder.invokeThis("getWriter", UnsafeStringWriter.class);
+            }
+            builder.store(OUTPUT, getOutputType());
+            frames.add(frame);
+        } else if (CACHE.equals(op)) {
+            Frame frame = new Frame(CACHE);
+            frame.var = tokens[2];
+            frame.ttl = Long.parseLong(tokens[3]);
+            frame.end = builder.newLabel();
+            Class<?> fragmentType = getFragmentType();
+            Expression expression = getExpression(tokens[1]);
+            emit(expression);
+            builder.assign(expression.getReturnType(), Object.class);
+            builder.store(builder.declare(declarable("$fragment_" + frame.var + "_key"), Object.class), Object.class);
+            builder.pushThis();
+            builder.push(frame.var);
+            builder.load("$fragment_" + frame.var + "_key");
+            builder.invokeThis("getFragment", Object.class, String.class, Object.class);
+            builder.checkcast(fragmentType);
+            builder.store(builder.declare(declarable("$fragment_" + frame.var), fragmentType), fragmentType);
+            builder.load("$fragment_" + frame.var);
+            builder.branchIfNonNull(frame.end);
+            builder.load(OUTPUT, getOutputType());
+            builder.store(builder.declare(declarable("$output_fragment_" + frame.var), getOutputType()), getOutputType());
+            builder.pushThis();
+            if (isOutput) {
+                builder.invokeThis("getOutputStream", UnsafeByteArrayOutputStream.class);
+            } else {
+                builder.invokeThis("getWriter", UnsafeStringWriter.class);
+            }
+            builder.store(OUTPUT, getOutputType());
+            frames.add(frame);
+        } else if (FLUSH.equals(op)) {
+            builder.pushThis();
+            builder.load(OUTPUT, getOutputType());
+            builder.invokeThis("flush", void.class, getOutputType());
+        } else if (FORK.equals(op)) {
+            Expression expression = getExpression(tokens[1]);
+            if (expression.getReturnType() != String.class) {
+                throw new UnsupportedBytecodeException("Unsupported fork template name of type " + expression.getReturnType() + " in template " + name);
+            }
+            builder.pushThis();
+            builder.load(OUTPUT, getOutputType());
+            builder.load(PARAMETERS, Map.class);
+            emit(expression);
+            builder.invokeThis("fork", getOutputType(), getOutputType(), Map.class, String.class);
+            builder.store(OUTPUT, getOutputType());
+        } else if (MACRO.equals(op)) {
+            builder.pushEngine();
+            builder.push(strings.get(Integer.parseInt(tokens[2])));
+            builder.invoke(Engine.class, "getTemplate", String.class);
+            checkStored(tokens[1], Template.class);
+        } else {
+            throw new UnsupportedBytecodeException("Unsupported statement " + op + " in template " + name);
+        }
+    }
+
+    private void emitPrint(Expression expression, boolean raw, boolean boxed) throws ParseException, UnsupportedBytecodeException {
+        Class<?> type = boxed ? Object.class : expression.getReturnType();
+        Method format = getFormatMethod(type);
+        if (isOutput || ! raw) {
+            builder.pushThis();
+        }
+        builder.load(OUTPUT, getOutputType());
+        Class<?> parameterType = format.getParameterTypes()[0];
+        if (parameterType == Object.class && AbstractParser.isFormatterBound(type)) {
+            builder.pushThis();
+            builder.getField(getFormatterField(type), Formatter.class);
+            emit(expression);
+            builder.invoke(Formatter.class, "format", Object.class);
+        } else if (boxed) {
+            builder.pushThis();
+            emit(expression);
+            builder.box(expression.getReturnType());
+            builder.invokeThis("format", format.getReturnType(), parameterType);
+        } else {
+            builder.pushThis();
+            emit(expression);
+            builder.assign(type, parameterType);
+            builder.invokeThis("format", format.getReturnType(), parameterType);
+        }
+        if (! raw) {
+            // the filter writes the value to the output by itself.
+            builder.invokeThis("filter", void.class, getOutputType(), String.class);
+        } else if (isOutput) {
+            builder.invokeThis("serialize", void.class, OutputStream.class, String.class);
+        } else {
+            builder.invoke(Writer.class, "write", String.class);
+        }
+    }
+
+    private String getFormatterField(Class<?> type) {
+        String field = formatters.get(type);
+        if (field == null) {
+            field = "$FMT" + (formatters.size() + 1);
+            formatters.put(type, field);
+        }
+        return field;
+    }
+
+    private void emitForeach(Class<?> type, String var, Expression expression, String foreachStatus) throws ParseException, UnsupportedBytecodeException {
+        Frame frame = new Frame(FOREACH);
+        frame.next = builder.newLabel();
+        frame.end = builder.newLabel();
+        Class<?> returnType = expression.getReturnType();
+        builder.beginScope();
+        BinaryOperator range = AbstractParser.getRange(expression, type);
+        if (range != null) {
+            emitRange(frame, type, var, range, foreachStatus);
+            return;
+        }
+        if (foreachStatus != null) {
+            builder.load(foreachStatus);
+        }
+        emit(expression);
+        if (Map.class.isAssignableFrom(returnType)) {
+            builder.invoke(returnType, "entrySet");
+            returnType = Set.class;
+        }
+        boolean indexed = AbstractParser.isIndexed(returnType, type);
+        boolean listed = ! indexed && List.class.isAssignableFrom(returnType);
+        Class<?> loopType = indexed ? returnType : listed ? List.class : Object.class;
+        builder.assign(returnType, loopType);
+        if (foreachStatus != null) {
+            builder.invoke(ForeachStatus.class, "push", Object.class);
+            builder.checkcast(loopType);
+        }
+        if (indexed || listed) {
+            int values = builder.allocate(loopType);
+            builder.store(values, loopType);
+            Label empty = builder.newLabel();
+            Label sized = builder.newLabel();
+            builder.load(values, loopType);
+            builder.branchIfNull(empty);
+            builder.load(values, loopType);
+            if (indexed) {
+                builder.arrayLength();
+            } else {
+                builder.invoke(List.class, "size");
+            }
+            builder.jump(sized);
+            builder.mark(empty);
+            builder.push(Integer.valueOf(0), int.class);
+            builder.mark(sized);
+            int size = builder.allocate(int.class);
+            builder.store(size, int.class);
+            int iterator = -1;
+            if (listed) {
+                // the linked lists are iterated still, not to get each element from the head.
+                Label random = builder.newLabel();
+                Label iterated = builder.newLabel();
+                iterator = builder.allocate(Iterator.class);
+                builder.load(values, loopType);
+                builder.branchIfNull(random);
+                builder.load(values, loopType);
+                builder.instanceOf(RandomAccess.class);
+                builder.branchIfTrue(boolean.class, random);
+                builder.load(values, loopType);
+                builder.invoke(List.class, "iterator");
+                builder.jump(iterated);
+                builder.mark(random);
+                builder.pushInitValue(Iterator.class);
+                builder.mark(iterated);
+                builder.store(iterator, Iterator.class);
+            }
+            frame.index = builder.allocate(int.class);
+            builder.push(Integer.valueOf(0), int.class);
+            builder.store(frame.index, int.class);
+            builder.mark(frame.next);
+            builder.load(frame.index, int.class);
+            builder.load(size, int.class);
+            builder.compare("<", int.class, frame.end, false);
+            if (indexed) {
+                builder.load(values, loopType);
+                builder.load(frame.index, int.class);
+                builder.arrayLoad(returnType.getComponentType());
+                builder.convert(returnType.getComponentType(), type);
+            } else {
+                Label next = builder.newLabel();
+                Label loaded = builder.newLabel();
+                builder.load(iterator, Iterator.class);
+                builder.branchIfNonNull(next);
+                builder.load(values, loopType);
+                builder.load(frame.index, int.class);
+                builder.invoke(List.class, "get", int.class);
+                builder.jump(loaded);
+                builder.mark(next);
+                builder.load(iterator, Iterator.class);
+                builder.invoke(Iterator.class, "next");
+                builder.mark(loaded);
+                castElement(type);
+            }
+        } else {
+            builder.invoke(ClassUtils.class, "toIterator", Object.class);
+            int iterator = builder.allocate(Iterator.class);
+            builder.store(iterator, Iterator.class);
+            builder.mark(frame.next);
+            builder.load(iterator, Iterator.class);
+            builder.invoke(Iterator.class, "hasNext");
+            builder.branchIfFalse(boolean.class, frame.end);
+            builder.load(iterator, Iterator.class);
+            builder.invoke(Iterator.class, "next");
+            castElement(type);
+        }
+        open(frame);
+        builder.store(builder.declare(declarable(var), type), type);
+    }
+
+    // the same loop as AbstractParser.getRangeCode(), the value is stepped at the end.
+    private void emitRange(Frame frame, Class<?> type, String var, BinaryOperator range, String foreachStatus) throws ParseException, UnsupportedBytecodeException {
+        frame.value = builder.allocate(int.class);
+        emitRangeBound(range.getLeftParameter());
+        builder.store(frame.value, int.class);
+        int end = builder.allocate(int.class);
+        emitRangeBound(range.getRightParameter());
+        builder.store(end, int.class);
+        Label ascending = builder.newLabel();
+        Label stepped = builder.newLabel();
+        frame.step = builder.allocate(int.class);
+        builder.load(frame.value, int.class);
+        builder.load(end, int.class);
+        builder.compare("<", int.class, ascending, true);
+        builder.push(Integer.valueOf(-1), int.class);
+        builder.jump(stepped);
+        builder.mark(ascending);
+        builder.push(Integer.valueOf(1), int.class);
+        builder.mark(stepped);
+        builder.store(frame.step, int.class);
+        if (foreachStatus != null) {
+            builder.load(foreachStatus);
+        }
+        builder.load(end, int.class);
+        builder.load(frame.value, int.class);
+        builder.arithmetic("-", int.class);
+        builder.load(frame.step, int.class);
+        builder.arithmetic("*", int.class);
+        builder.push(Integer.valueOf(1), int.class);
+        builder.arithmetic("+", int.class);
+        if (foreachStatus != null) {
+            builder.invoke(ForeachStatus.class, "push", int.class);
+        }
+        int size = builder.allocate(int.class);
+        builder.store(size, int.class);
+        frame.index = builder.allocate(int.class);
+        builder.push(Integer.valueOf(0), int.class);
+        builder.store(frame.index, int.class);
+        builder.mark(frame.next);
+        builder.load(frame.index, int.class);
+        builder.load(size, int.class);
+        builder.compare("<", int.class, frame.end, false);
+        builder.load(frame.value, int.class);
+        if (range.getReturnType() == CharacterSequence.class) {
+            builder.convert(int.class, char.class);
+            builder.convert(char.class, type);
+        } else {
+            builder.convert(int.class, type);
+        }
+        open(frame);
+        builder.store(builder.declare(declarable(var), type), type);
+    }
+
+    // the null bounds are zero, the same as the sequence constructors.
+    private void emitRangeBound(Expression bound) throws ParseException, UnsupportedBytecodeException {
+        Class<?> type = bound.getReturnType();
+        emit(bound);
+        if (! type.isPrimitive()) {
+            builder.invoke(ClassUtils.class, "unboxed", type);
+            type = BytecodeBuilder.getPrimitive(type);
+        }
+        builder.convert(type, int.class);
+    }
+
+    private void castElement(Class<?> type) throws UnsupportedBytecodeException {
+        if (type.isPrimitive()) {
+            Class<?> boxed = ClassUtils.getBoxedClass(type);
+            builder.checkcast(boxed);
+            builder.invoke(ClassUtils.class, "unboxed", boxed);
+        } else {
+            builder.checkcast(type);
+        }
+    }
+
+    private void endBlock(Frame frame) throws UnsupportedBytecodeException {
+        if (isOutput) {
+            builder.pushThis();
+            builder.load(OUTPUT, OutputStream.class);
+            builder.checkcast(UnsafeByteArrayOutputStream.class);
+            builder.invokeThis("toString", String.class, UnsafeByteArrayOutputStream.class);
+        } else {
+            builder.load(OUTPUT, Writer.class);
+            builder.invoke(Object.class, "toString");
+        }
+        checkStored(frame.var, String.class);
+        builder.pushThis();
+        builder.load(OUTPUT, getOutputType());
+        if (isOutput) {
+            builder.checkcast(UnsafeByteArrayOutputStream.class);
+            builder.invokeThis("release", void.class, UnsafeByteArrayOutputStream.class);
+        } else {
+            builder.checkcast(UnsafeStringWriter.class);
+            builder.invokeThis("release", void.class, UnsafeStringWriter.class);
+        }
+        builder.load("$output_" + frame.var);
+        builder.store(OUTPUT, getOutputType());
+    }
+
+    // renders the missed fragment into the cache, then writes the cached or rendered one.
+    private void endCache(Frame frame) throws UnsupportedBytecodeException {
+        Class<?> fragmentType = getFragmentType();
+        String fragment = "$fragment_" + frame.var;
+        builder.load(OUTPUT, getOutputType());
+        if (isOutput) {
+            builder.checkcast(UnsafeByteArrayOutputStream.class);
+            builder.invoke(UnsafeByteArrayOutputStream.class, "toByteArray");
+        } else {
+            builder.invoke(Object.class, "toString");
+        }
+        builder.store(fragment);
+        builder.pushThis();
+        builder.load(OUTPUT, getOutputType());
+        if (isOutput) {
+            builder.checkcast(UnsafeByteArrayOutputStream.class);
+            builder.invokeThis("release", void.class, UnsafeByteArrayOutputStream.class);
+        } else {
+            builder.checkcast(UnsafeStringWriter.class);
+            builder.invokeThis("release", void.class, UnsafeStringWriter.class);
+        }
+        builder.load("$output_fragment_" + frame.var);
+        builder.store(OUTPUT, getOutputType());
+        builder.pushThis();
+        builder.push(frame.var);
+        builder.load(fragment + "_key");
+        builder.load(fragment);
+        builder.push(Long.valueOf(frame.ttl), long.class);
+        builder.invokeThis("putFragment", void.class, String.class, Object.class, Object.class, long.class);
+        builder.mark(frame.end);
+        builder.load(OUTPUT, getOutputType());
+        builder.load(fragment);
+        builder.invoke(getOutputType(), "write", fragmentType);
+    }
+
+    private Class<?> getFragmentType() {
+        return isOutput ? byte[].class : String.class;
+    }
+
+    // the if without the else ends here, after its following statement is known.
+    private void closeIf() throws UnsupportedBytecodeException {
+        if (pendingIf != null) {
+            builder.mark(pendingIf.next);
+            builder.mark(pendingIf.end);
+            pendingIf = null;
+        }
+    }
+
+    private void open(Frame frame) {
+        builder.beginScope();
+        frames.add(frame);
+    }
+
+    private void emit(Expression expression) throws ParseException, UnsupportedBytecodeException {
+        if (! (expression instanceof Emittable)) {
+            throw new UnsupportedBytecodeException("Unsupported emitting expression " + expression.getCode());
+        }
+        ((Emittable) expression).emit(builder);
+    }
+
+    private Expression getExpression(String index) {
+        return expressions.get(Integer.parseInt(index));
+    }
+
+    private Class<?> getOutputType() {
+        return isOutput ? OutputStream.class : Writer.class;
+    }
+
+    // a local the java code declares again fails to compile, so does the bytecode.
+    private String declarable(String var) throws UnsupportedBytecodeException {
+        checkNamed(var.startsWith("$") ? var.substring(1) : var);
+        if (builder.isDeclared(var)) {
+            throw new UnsupportedBytecodeException("Duplicate variable " + var + " in template " + name);
+        }
+        return var;
+    }
+
+    // the variables are declared at first, of the same types as the stored values.
+    private void checkStored(String var, Class<?> type) throws UnsupportedBytecodeException {
+        if (builder.store(var) != type) {
+            throw new UnsupportedBytecodeException("Unsupported storing " + type + " to variable " + var + " in template " + name);
+        }
+    }
+
+    private void checkNamed(String var) throws UnsupportedBytecodeException {
+        if (! StringUtils.isNamed(var)) {
+            throw new UnsupportedBytecodeException("Unsupported variable name " + var + " in template " + name);
+        }
+    }
+
+    /**
+     * Get the format(value) the java compiler would choose for the static type, the most specific one,
+     * by the widening conversions first, then by the boxing ones.
+     */
+    private Method getFormatMethod(Class<?> type) throws UnsupportedBytecodeException {
+        List<Method> formats = new ArrayList<Method>();
+        for (Class<?> cls = isOutput ? OutputStreamTemplate.class : WriterTemplate.class; cls != null; cls = cls.getSuperclass()) {
+            for (Method method : cls.getDeclaredMethods()) {
+                if ("format".equals(method.getName()) && method.getParameterTypes().length == 1
+                        && ! Modifier.isPrivate(method.getModifiers()) && ! containsParameter(formats, method.getParameterTypes()[0])) {
+                    formats.add(method);
+                }
+            }
+        }
+        Method format = getMostSpecific(formats, type, false);
+        if (format == null) {
+            format = getMostSpecific(formats, type, true);
+        }
+        if (format == null) {
+            throw new UnsupportedBytecodeException("No most specific format(" + type + ") in template " + name);
+        }
+        return format;
+    }
+
+    private static boolean containsParameter(List<Method> methods, Class<?> parameterType) {
+        for (Method method : methods) {
+            if (method.getParameterTypes()[0] == parameterType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Method getMostSpecific(List<Method> methods, Class<?> type, boolean boxing) {
+        List<Method> applicables = new ArrayList<Method>();
+        for (Method method : methods) {
+            if (isApplicable(type, method.getParameterTypes()[0], boxing)) {
+                applicables.add(method);
+            }
+        }
+        for (Method method : applicables) {
+            boolean specific = true;
+            for (Method other : applicables) {
+                if (! isApplicable(method.getParameterTypes()[0], other.getParameterTypes()[0], false)) {
+                    specific = false;
+                    break;
+                }
+            }
+            if (specific) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isApplicable(Class<?> from, Class<?> to, boolean boxing) {
+        if (boxing || from == null || from.isPrimitive() == to.isPrimitive()) {
+            return BytecodeBuilder.isAssignable(from, to);
+        }
+        return false;
+    }
+
+    private void addTypesMethod(ClassFile classFile, String method, List<String> names, List<Class<?>> classes) throws UnsupportedBytecodeException {
+        BytecodeBuilder getter = new BytecodeBuilder(classFile, Modifier.PUBLIC, method, Map.class);
+        getter.newInstance(OrderedTypeMap.class);
+        getter.newArray(String.class, names.size());
+        for (int i = 0; i < names.size(); i ++) {
+            getter.dup(Object.class);
+            getter.push(i, int.class);
+            getter.push(names.get(i));
+            getter.arrayStore(String.class);
+        }
+        getter.newArray(Class.class, classes.size());
+        for (int i = 0; i < classes.size(); i ++) {
+            getter.dup(Object.class);
+            getter.push(i, int.class);
+            getter.pushClass(classes.get(i));
+            getter.arrayStore(Class.class);
+        }
+        getter.invokeConstructor(OrderedTypeMap.class, String[].class, Class[].class);
+        getter.returnValue(Map.class);
+        getter.addMethod();
+    }
+
+    private static String toLatin(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i ++) {
+            chars[i] = (char) (bytes[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    static final String TEXT = "text";
+
+    static final String PRINT = "print";
+
+    static final String RAW = "raw";
+
+    // the option of print and raw, formatting the primitive value boxed.
+    static final String BOXED = "boxed";
+
+    static final String IF = "if";
+
+    static final String ELSE = "else";
+
+    static final String END = "end";
+
+    static final String FOREACH = "foreach";
+
+    static final String BREAKIF = "breakif";
+
+    static final String SET = "set";
+
+    static final String DEFINE = "define";
+
+    static final String BLOCK = "block";
+
+    static final String MACRO = "macro";
+
+    static final String CACHE = "cache";
+
+    static final String FLUSH = "flush";
+
+    static final String FORK = "fork";
+
+    private static final class Frame {
+
+        final String type;
+
+        Label next;
+
+        Label end;
+
+        String var;
+
+        long ttl;
+
+        // the slot of the loop index, or -1 if the loop is iterated.
+        int index = -1;
+
+        // the slots of the range value and its step, or -1 if the loop is not over a range.
+        int value = -1;
+
+        int step = -1;
+
+        Frame(String type) {
+            this.type = type;
+        }
+
+    }
+
+}
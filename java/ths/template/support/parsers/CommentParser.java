@@ -5,8 +5,6 @@ import java.text.ParseException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import ths.template.Template;
 import ths.template.support.Parser;
@@ -22,10 +20,30 @@ import ths.template.util.LinkedStack;
  */
 public class CommentParser extends AbstractParser {
     
-    protected static final Pattern STATEMENT_PATTERN = Pattern.compile("<!--#([a-z:]+)(.*?)-->", Pattern.DOTALL);
+    protected String getDirectivePrefix() {
+        return "<!--#";
+    }
+    
+    protected String getDirectiveOpen() {
+        return null;
+    }
     
-    protected Pattern getPattern() {
-        return STATEMENT_PATTERN;
+    protected String getDirectiveSuffix() {
+        return "-->";
+    }
+    
+    /**
+     * Get the directive value from the text between the directive name and suffix.
+     */
+    protected String getDirectiveValue(String value, String directive, int begin) throws ParseException {
+        value = value.trim();
+        if (value.length() > 0) {
+            if (value.length() < 2 || ! value.startsWith("(") || ! value.endsWith(")")) {
+                throw new ParseException("Invalied statement " + directive, begin);
+            }
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
     }
     
     protected String getDiretive(String name, String value) {
@@ -34,41 +52,40 @@ public class CommentParser extends AbstractParser {
     
     protected String doParse(String name, String source, Translator resolver, 
                              List<String> parameters, List<Class<?>> parameterTypes, 
-                             Set<String> variables, Map<String, Class<?>> types) throws IOException, ParseException {
-        return parseComment(name, source, resolver, parameters, parameterTypes, variables, types);
+                             Set<String> variables, Map<String, Class<?>> types, Map<String, String> macros, 
+                             ParseContext context) throws IOException, ParseException {
+        return parseComment(name, source, resolver, parameters, parameterTypes, variables, types, macros, context);
     }
     
     public String parseComment(String template, String source, Translator resolver, List<String> parameters,
                                 List<Class<?>> parameterTypes, Set<String> variables, 
-                                Map<String, Class<?>> types) throws ParseException {
+                                Map<String, Class<?>> types, Map<String, String> macros, ParseContext context) throws ParseException {
         LinkedStack<String> nameStack = new LinkedStack<String>();
         LinkedStack<String> valueStack = new LinkedStack<String>();
-        StringBuffer macro = null;
+        boolean macro = false;
         int macroStart = 0;
+        int macroBodyStart = 0;
         int macroParameterStart = 0;
-        StringBuffer buf = new StringBuffer();
-        Matcher matcher = getPattern().matcher(source);
-        while (matcher.find()) {
-            String name = matcher.group(1);
-            String value = matcher.group(2);
-            value = value == null ? null : value.trim();
-            int offset = matcher.end(1);
-            if (value != null && value.length() > 0) {
-                offset = matcher.start(2) + value.indexOf('(') + 1;
-                value = value.trim();
-                if (value.length() > 0) {
-                    if (value.length() < 2 || ! value.startsWith("(") || ! value.endsWith(")")) {
-                        throw new ParseException("Invalied statement " + matcher.group(), matcher.start());
-                    }
-                    value = value.substring(1, value.length() - 1);
+        StringBuilder buf = new StringBuilder(source.length() + 256);
+        TemplateLexer lexer = new TemplateLexer(source, getDirectivePrefix(), getDirectiveOpen(), getDirectiveSuffix());
+        while (lexer.next()) {
+            if (lexer.getType() != TemplateLexer.DIRECTIVE) {
+                if (! macro) {
+                    filterToken(lexer, buf);
                 }
-            } else {
-                offset = matcher.end(1);
+                continue; // the macro body is copied from the source at its end directive.
             }
+            String name = lexer.getName();
+            String value = lexer.getValue();
+            int offset = lexer.getNameStart() + name.length();
+            if (value.trim().length() > 0) {
+                offset = lexer.getValueStart() + value.indexOf('(') + 1;
+            }
+            value = getDirectiveValue(value, lexer.getText(), lexer.getStart());
             if (endName.equals(name)) {
                 String startName = nameStack.pop();
                 String startValue = valueStack.pop();
-                if (macro != null) {
+                if (macro) {
                     if (macroName.equals(startName)) {
                         int i = startValue.indexOf('(');
                         String var;
@@ -83,13 +100,12 @@ public class CommentParser extends AbstractParser {
                             var = startValue;
                             param = null;
                         }
-                        matcher.appendReplacement(macro, "");
                         String key = getMacroPath(template, var);
-                        String es = macro.toString();
+                        String es = source.substring(macroBodyStart, lexer.getStart());
                         if (param != null && param.length() > 0) {
                             es = getDiretive(defineName, param) + es;
                         }
-                        engine.addTemplate(key, es);
+                        macros.put(key, es);
                         Class<?> cls = types.get(var);
                         if (cls != null && ! cls.equals(Template.class)) {
                             throw new ParseException("Duplicate macro variable " + var + ", conflict types: " + cls.getName() + ", " + Template.class.getName(), macroParameterStart);
@@ -97,53 +113,49 @@ public class CommentParser extends AbstractParser {
                         variables.add(var);
                         types.put(var, Template.class);
                         buf.append(LEFT);
-                        buf.append(matcher.end() - macroStart);
-                        buf.append(var + " = getEngine().getTemplate(\"" + key + "\");\n");
+                        buf.append(lexer.getEnd() - macroStart);
+                        buf.append(getMacroCode(var, key, context));
                         buf.append(RIGHT);
-                        macro = null;
+                        macro = false;
                         macroStart = 0;
+                        macroBodyStart = 0;
                         macroParameterStart = 0;
-                    } else {
-                        matcher.appendReplacement(macro, "$0");
                     }
                 } else {
-                    matcher.appendReplacement(buf, "");
                     buf.append(LEFT);
-                    buf.append(matcher.group().length());
-                    String code = getStatementEndCode(startName, startValue);
+                    buf.append(lexer.getEnd() - lexer.getStart());
+                    String code = getStatementEndCode(startName, startValue, context);
                     buf.append(code);
                     buf.append(RIGHT);
                 }
             } else {
                 if (ifName.equals(name) || elseifName.equals(name) 
                         || elseName.equals(name) || foreachName.equals(name)
-                        || blockName.equals(name) || macroName.equals(name)) {
+                        || blockName.equals(name) || macroName.equals(name)
+                        || cacheName.equals(name)) {
                     nameStack.push(name);
                     valueStack.push(value);
                 }
-                if (macro != null) {
-                    matcher.appendReplacement(macro, "$0");
-                } else {
-                    matcher.appendReplacement(buf, "");
+                if (! macro) {
                     if (macroName.equals(name)) {
                         if (value == null || value.trim().length() == 0) {
-                            throw new ParseException("Macro name == null!", matcher.start(1));
+                            throw new ParseException("Macro name == null!", lexer.getNameStart());
                         }
-                        macro = new StringBuffer();
-                        macroStart = matcher.start();
-                        macroParameterStart = matcher.start(1);
+                        macro = true;
+                        macroStart = lexer.getStart();
+                        macroBodyStart = lexer.getEnd();
+                        macroParameterStart = lexer.getNameStart();
                     } else {
                         buf.append(LEFT);
-                        buf.append(matcher.group().length());
-                        String code = getStatementCode(name, value, matcher.start(1), offset, resolver, variables, types, parameters, parameterTypes, true);
+                        buf.append(lexer.getEnd() - lexer.getStart());
+                        String code = getStatementCode(name, value, lexer.getNameStart(), offset, resolver, variables, types, parameters, parameterTypes, true, context);
                         buf.append(code);
                         buf.append(RIGHT);
                     }
                 }
             }
         }
-        matcher.appendTail(buf);
         return buf.toString();
     }
     
-}
\ No newline at end of file
+}
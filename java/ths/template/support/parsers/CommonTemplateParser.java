@@ -1,7 +1,5 @@
 package ths.template.support.parsers;
 
-import java.util.regex.Pattern;
-
 import ths.template.support.Parser;
 
 /**
@@ -13,14 +11,24 @@ import ths.template.support.Parser;
  */
 public class CommonTemplateParser extends CommentParser {
     
-    protected static final Pattern COMMON_TEMPLATE_PATTERN = Pattern.compile("$([a-z:]+)\\{([^}]*?)\\}");
-
-    protected Pattern getPattern() {
-        return COMMON_TEMPLATE_PATTERN;
+    protected String getDirectivePrefix() {
+        return "$";
+    }
+    
+    protected String getDirectiveOpen() {
+        return "{";
+    }
+    
+    protected String getDirectiveSuffix() {
+        return "}";
+    }
+    
+    protected String getDirectiveValue(String value, String directive, int begin) {
+        return value.trim();
     }
     
     protected String getDiretive(String name, String value) {
         return "$" + name + "{" + value + "}";
     }
     
-}
\ No newline at end of file
+}
@@ -68,6 +68,7 @@ public class MultiParser extends AbstractParser {
         super.configure(config);
         this.config = config;
         String value = config.getParsers();
+        configKey = configKey + "\n" + value;
         if (value != null && value.length() > 0) {
             String[] values = value.split("\\,");
             for (String v : values) {
@@ -83,9 +84,10 @@ public class MultiParser extends AbstractParser {
 
     protected String doParse(String name, String source, Translator resolver, 
                              List<String> parameters, List<Class<?>> parameterTypes, 
-                             Set<String> variables, Map<String, Class<?>> types) throws IOException, ParseException {
+                             Set<String> variables, Map<String, Class<?>> types, Map<String, String> macros, 
+                             ParseContext context) throws IOException, ParseException {
         for (AbstractParser parser : parsers) {
-            source = parser.doParse(name, source, resolver, parameters, parameterTypes, variables, types);
+            source = parser.doParse(name, source, resolver, parameters, parameterTypes, variables, types, macros, context);
         }
         return source;
     }
@@ -0,0 +1,90 @@
+package ths.template.support.parsers;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ParseContext. (API, Prototype, ThreadUnsafe)
+ * 
+ * The state of the template being parsed, passed along the parse instead of kept by the parser,
+ * so the parsers are shared by the threads, and a template may be parsed while parsing another.
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public final class ParseContext {
+
+    private final BytecodeGenerator generator;
+
+    private final boolean foreachStatus;
+
+    // the ids of the unclosed cache directives.
+    private final LinkedList<String> fragments = new LinkedList<String>();
+
+    // the formatter fields of the static types.
+    private final Map<Class<?>, String> formatters = new HashMap<Class<?>, String>();
+
+    // the untyped range loop variables, counted as primitives but printed boxed, as the untyped variables are.
+    private final Set<String> boxedVariables = new HashSet<String>();
+
+    private final StringBuilder fields = new StringBuilder();
+
+    private int sequence;
+
+    ParseContext(BytecodeGenerator generator, boolean foreachStatus) {
+        this.generator = generator;
+        this.foreachStatus = foreachStatus;
+    }
+
+    /**
+     * The generator of the template being emitted, the statements are generated for it instead of the java code.
+     * 
+     * @return null if the java code is generated
+     */
+    BytecodeGenerator getGenerator() {
+        return generator;
+    }
+
+    /**
+     * Whether the template is emitted as bytecode, instead of generated as java code.
+     */
+    public boolean isEmitted() {
+        return generator != null;
+    }
+
+    /**
+     * Whether the template references the foreach status, the loops only count for it then.
+     */
+    public boolean isForeachStatus() {
+        return foreachStatus;
+    }
+
+    LinkedList<String> getFragments() {
+        return fragments;
+    }
+
+    Map<Class<?>, String> getFormatters() {
+        return formatters;
+    }
+
+    Set<String> getBoxedVariables() {
+        return boxedVariables;
+    }
+
+    /**
+     * The java code of the template class fields.
+     */
+    StringBuilder getFields() {
+        return fields;
+    }
+
+    /**
+     * The next number of the generated field names.
+     */
+    int nextSequence() {
+        return ++ sequence;
+    }
+
+}
@@ -0,0 +1,284 @@
+package ths.template.support.parsers;
+
+/**
+ * TemplateLexer. (Tool, Prototype, ThreadUnsafe)
+ *
+ * Scans the template source once, from left to right, into text, comment, cdata, escape,
+ * directive and expression tokens, with their positions in the source.
+ * Code markers inserted by a previous parser are returned as opaque tokens,
+ * so a source can be scanned again by the next parser.
+ *
+ * <pre>
+ * TemplateLexer lexer = new TemplateLexer(source, "&lt;!--#", null, "--&gt;");
+ * while (lexer.next()) {
+ *     if (lexer.getType() == TemplateLexer.DIRECTIVE) {
+ *         String name = lexer.getName();
+ *         String value = lexer.getValue();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TemplateLexer {
+
+    public static final int TEXT = 0;
+
+    /**
+     * &lt;!--## comment --&gt;
+     */
+    public static final int COMMENT = 1;
+
+    /**
+     * &lt;![CDATA[## text ]]&gt;, the value is the text.
+     */
+    public static final int CDATA = 2;
+
+    /**
+     * Backslashes before # or $, the value is the escaped symbol, or empty if the backslashes are escaped themselves.
+     */
+    public static final int ESCAPE = 3;
+
+    /**
+     * prefix name open value suffix, such as &lt;!--#if(value)--&gt;
+     */
+    public static final int DIRECTIVE = 4;
+
+    /**
+     * ${value} or $!{value}, the name is $ or $!
+     */
+    public static final int EXPRESSION = 5;
+
+    /**
+     * Code inserted by a parser.
+     */
+    public static final int MARKER = 6;
+
+    private static final String COMMENT_LEFT = "<!--##";
+
+    private static final String COMMENT_RIGHT = "-->";
+
+    private static final String CDATA_LEFT = "<![CDATA[##";
+
+    private static final String CDATA_RIGHT = "]]>";
+
+    private final String source;
+
+    private final int length;
+
+    private final String directivePrefix;
+
+    private final String directiveOpen;
+
+    private final String directiveSuffix;
+
+    private int position;
+
+    private int type;
+
+    private int start;
+
+    private int end;
+
+    private int nameEnd;
+
+    private int valueStart;
+
+    private int valueEnd;
+
+    public TemplateLexer(String source) {
+        this(source, null, null, null);
+    }
+
+    /**
+     * @param source - template source
+     * @param directivePrefix - directive prefix, or null for no directives
+     * @param directiveOpen - required between the directive name and value, or null
+     * @param directiveSuffix - directive suffix
+     */
+    public TemplateLexer(String source, String directivePrefix, String directiveOpen, String directiveSuffix) {
+        if (directivePrefix != null && (directivePrefix.length() == 0
+                || directiveSuffix == null || directiveSuffix.length() == 0)) {
+            throw new IllegalArgumentException("directive suffix == null");
+        }
+        this.source = source == null ? "" : source;
+        this.length = this.source.length();
+        this.directivePrefix = directivePrefix;
+        this.directiveOpen = directiveOpen == null || directiveOpen.length() == 0 ? null : directiveOpen;
+        this.directiveSuffix = directiveSuffix;
+    }
+
+    /**
+     * Scan the next token.
+     *
+     * @return false if the end of the source is reached.
+     */
+    public boolean next() {
+        if (position >= length) {
+            return false;
+        }
+        int i = position;
+        while (i < length) {
+            char c = source.charAt(i);
+            if ((c == '<' || c == '\\' || c == '$' || (directivePrefix != null && c == directivePrefix.charAt(0)))
+                    && scan(i)) {
+                if (i == position) {
+                    position = end;
+                    return true;
+                }
+                break;
+            }
+            if (c == '\\') {
+                while (i + 1 < length && source.charAt(i + 1) == '\\') {
+                    i ++; // no symbol after the backslashes, no escape starts inside them either.
+                }
+            }
+            i ++;
+        }
+        set(TEXT, position, i, i, i, i);
+        position = i;
+        return true;
+    }
+
+    private boolean scan(int i) {
+        char c = source.charAt(i);
+        if (c == '<') {
+            if (i + 1 < length && source.charAt(i + 1) == AbstractParser.SPECIAL) {
+                int right = source.indexOf(AbstractParser.RIGHT, i + 2);
+                if (right >= 0) {
+                    return set(MARKER, i, right + 2, i, i + 2, right);
+                }
+            } else if (source.startsWith(CDATA_LEFT, i)) {
+                int right = source.indexOf(CDATA_RIGHT, i + CDATA_LEFT.length());
+                if (right >= 0) {
+                    return set(CDATA, i, right + CDATA_RIGHT.length(), i, i + CDATA_LEFT.length(), right);
+                }
+            } else if (source.startsWith(COMMENT_LEFT, i)) {
+                int right = source.indexOf(COMMENT_RIGHT, i + COMMENT_LEFT.length());
+                if (right >= 0) {
+                    return set(COMMENT, i, right + COMMENT_RIGHT.length(), i, i + COMMENT_LEFT.length(), right);
+                }
+            }
+        } else if (c == '\\') {
+            int j = i + 1;
+            while (j < length && source.charAt(j) == '\\') {
+                j ++;
+            }
+            if (j < length && (source.charAt(j) == AbstractParser.POUND || source.charAt(j) == AbstractParser.DOLLAR)) {
+                if ((j - i) % 2 == 0) {
+                    return set(ESCAPE, i, j, i, j, j); // escaped backslashes, the symbol is scanned as usual.
+                }
+                return set(ESCAPE, i, j + 1, i, j, j + 1);
+            }
+        }
+        if (directivePrefix != null && source.startsWith(directivePrefix, i) && scanDirective(i)) {
+            return true;
+        }
+        return c == '$' && scanExpression(i);
+    }
+
+    private boolean scanExpression(int i) {
+        int j = i + 1;
+        if (j < length && source.charAt(j) == '!') {
+            j ++;
+        }
+        if (j < length && source.charAt(j) == '{') {
+            int right = source.indexOf('}', j + 1);
+            if (right >= 0) {
+                return set(EXPRESSION, i, right + 1, j, j + 1, right);
+            }
+        }
+        return false;
+    }
+
+    private boolean scanDirective(int i) {
+        int j = i + directivePrefix.length();
+        int nameStart = j;
+        while (j < length && ((source.charAt(j) >= 'a' && source.charAt(j) <= 'z') || source.charAt(j) == ':')) {
+            j ++;
+        }
+        if (j == nameStart) {
+            return false;
+        }
+        int nameEnd = j;
+        if (directiveOpen != null) {
+            if (! source.startsWith(directiveOpen, j)) {
+                return false;
+            }
+            j += directiveOpen.length();
+        }
+        int right = source.indexOf(directiveSuffix, j);
+        if (right < 0) {
+            return false;
+        }
+        return set(DIRECTIVE, i, right + directiveSuffix.length(), nameEnd, j, right);
+    }
+
+    private boolean set(int type, int start, int end, int nameEnd, int valueStart, int valueEnd) {
+        this.type = type;
+        this.start = start;
+        this.end = end;
+        this.nameEnd = nameEnd;
+        this.valueStart = valueStart;
+        this.valueEnd = valueEnd;
+        return true;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Get the token start position in the source.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Get the token end position in the source, exclusive.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public String getText() {
+        return source.substring(start, end);
+    }
+
+    /**
+     * Get the directive name, or the expression $ or $! prefix.
+     */
+    public String getName() {
+        if (type == DIRECTIVE) {
+            return source.substring(start + directivePrefix.length(), nameEnd);
+        }
+        if (type == EXPRESSION) {
+            return source.substring(start, nameEnd);
+        }
+        return null;
+    }
+
+    /**
+     * Get the name start position in the source.
+     */
+    public int getNameStart() {
+        return type == DIRECTIVE ? start + directivePrefix.length() : start;
+    }
+
+    public String getValue() {
+        return source.substring(valueStart, valueEnd);
+    }
+
+    /**
+     * Get the value start position in the source.
+     */
+    public int getValueStart() {
+        return valueStart;
+    }
+
+}
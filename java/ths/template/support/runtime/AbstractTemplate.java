@@ -7,11 +7,18 @@ import java.io.Serializable;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.lang.reflect.Modifier;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ths.core.Loader;
 import ths.core.Resource;
@@ -19,12 +26,20 @@ import ths.core.Resource;
 import ths.template.Context;
 import ths.template.Engine;
 import ths.template.Template;
+import ths.template.support.Cache;
 import ths.template.support.Filter;
 import ths.template.support.Formatter;
+import ths.template.support.StreamFilter;
+import ths.template.support.filters.MultiFilter;
 import ths.template.support.formatters.MultiFormatter;
+import ths.template.util.BufferPool;
+import ths.template.util.ConfigUtils;
 import ths.template.util.IOUtils;
 import ths.template.util.StringUtils;
+import ths.template.util.UrlUtils;
+import ths.template.util.Utf8Writer;
 import ths.template.util.UnsafeByteArrayOutputStream;
+import ths.template.util.UnsafeStringWriter;
 
 /**
  * Abstract template. (SPI, Prototype, ThreadSafe)
@@ -37,10 +52,19 @@ public abstract class AbstractTemplate implements Template, Serializable {
     
     private static final long serialVersionUID = 8780375327644594903L;
     
+    private static final ThreadLocal<Utf8Writer> WRITER = new ThreadLocal<Utf8Writer>() {
+        @Override
+        protected Utf8Writer initialValue() {
+            return new Utf8Writer(8192);
+        }
+    };
+    
     private transient final Engine engine;
     
     private transient final Filter filter;
     
+    private transient final StreamFilter streamFilter;
+    
     private transient final Formatter<Object> formatter;
     
     private transient final Formatter<Boolean> booleanFormatter;
@@ -69,6 +93,20 @@ public abstract class AbstractTemplate implements Template, Serializable {
 
     private transient final String falseValue;
 
+    private transient final String outputEncoding;
+
+    private transient final boolean isUtf8;
+
+    private transient final int bufferRetainSize;
+
+    private transient final int flushMinSize;
+
+    private transient final Cache fragmentCache;
+
+    private transient final ConcurrentMap<Class<?>, BeanReader> beanReaders = new ConcurrentHashMap<Class<?>, BeanReader>();
+
+    private transient volatile String[] parameterNames;
+
     private final String name;
     
     private final String encoding;
@@ -91,7 +129,10 @@ public abstract class AbstractTemplate implements Template, Serializable {
         } catch (IOException e) {
             throw new IllegalStateException(e.getMessage(), e);
         }
-		this.filter = engine.getFilter();
+		// the filters composed once, not walked for every value.
+		Filter filter = engine.getFilter();
+		this.filter = filter instanceof MultiFilter ? ((MultiFilter) filter).compose() : filter;
+		this.streamFilter = this.filter instanceof StreamFilter ? (StreamFilter) this.filter : null;
 		this.formatter = (Formatter<Object>) engine.getFormatter();
 		if (formatter instanceof MultiFormatter) {
 		    MultiFormatter multi = (MultiFormatter) formatter;
@@ -120,6 +161,16 @@ public abstract class AbstractTemplate implements Template, Serializable {
 		this.nullValue = engine.getConfiguration().getNullValue();
 		this.trueValue = engine.getConfiguration().getTrueValue();
 		this.falseValue = engine.getConfiguration().getFalseValue();
+		String output = engine.getConfiguration().getOutputEncoding();
+		this.outputEncoding = output == null || output.trim().length() == 0 ? null : output.trim();
+		this.isUtf8 = "UTF-8".equalsIgnoreCase(outputEncoding) || "UTF8".equalsIgnoreCase(outputEncoding);
+		String retain = engine.getConfiguration().getBufferRetainSize();
+		this.bufferRetainSize = retain != null && ConfigUtils.isInteger(retain.trim()) 
+		        ? Integer.parseInt(retain.trim()) : BufferPool.DEFAULT_RETAIN_SIZE;
+		String flush = engine.getConfiguration().getFlushMinSize();
+		this.flushMinSize = flush != null && ConfigUtils.isInteger(flush.trim()) 
+		        ? Integer.parseInt(flush.trim()) : 0;
+		this.fragmentCache = engine.getFragmentCache();
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -130,6 +181,37 @@ public abstract class AbstractTemplate implements Template, Serializable {
 	    }
 	    return formatter;
 	}
+
+    /**
+     * Get the formatter of the values of the static type, resolved once, for the generated templates.
+     * The formatter of the type is bound, the same as the typed format methods do; the values of the final types
+     * without one are converted to string directly, and the others are still formatted by their class.
+     */
+    @SuppressWarnings("unchecked")
+    protected Formatter<Object> getFormatter(Class<?> type) {
+        if (formatter instanceof MultiFormatter) {
+            Formatter<Object> bound = ((MultiFormatter) formatter).get((Class<Object>) type);
+            if (bound != null) {
+                return bound;
+            }
+            if (isFinal(type)) {
+                return new StringFormatter(formatter, null);
+            }
+            return formatter;
+        }
+        if (formatter != null) {
+            return formatter;
+        }
+        return new StringFormatter(null, nullValue);
+    }
+
+    // no value of the type is of an other class, the arrays are covariant.
+    private static boolean isFinal(Class<?> type) {
+        if (type.isArray()) {
+            return type.getComponentType().isPrimitive() || isFinal(type.getComponentType());
+        }
+        return Modifier.isFinal(type.getModifiers());
+    }
 	
 	public Engine getEngine() {
 		return engine;
@@ -163,6 +245,13 @@ public abstract class AbstractTemplate implements Template, Serializable {
         return new StringReader(source);
     }
 
+    /**
+     * Get the configured output.encoding, or null for the platform encoding.
+     */
+    protected String getOutputEncoding() {
+        return outputEncoding;
+    }
+
     public Object evaluate(Map<String, Object> parameters) throws ParseException {
         return render(parameters);
     }
@@ -191,6 +280,38 @@ public abstract class AbstractTemplate implements Template, Serializable {
         render(toMap(parameters), output);
     }
     
+    @SuppressWarnings("unchecked")
+    public String render(Object bean) {
+        if (bean == null || bean instanceof Map) {
+            return render((Map<String, Object>) bean);
+        } else if (bean instanceof Object[]) {
+            return render((Object[]) bean);
+        }
+        return render(toBeanMap(bean));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void render(Object bean, Writer writer) throws IOException {
+        if (bean == null || bean instanceof Map) {
+            render((Map<String, Object>) bean, writer);
+        } else if (bean instanceof Object[]) {
+            render((Object[]) bean, writer);
+        } else {
+            render(toBeanMap(bean), writer);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void render(Object bean, OutputStream output) throws IOException {
+        if (bean == null || bean instanceof Map) {
+            render((Map<String, Object>) bean, output);
+        } else if (bean instanceof Object[]) {
+            render((Object[]) bean, output);
+        } else {
+            render(toBeanMap(bean), output);
+        }
+    }
+    
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -219,6 +340,24 @@ public abstract class AbstractTemplate implements Template, Serializable {
         return render();
     }
 
+    private Map<String, Object> toBeanMap(Object bean) {
+        String[] names = parameterNames;
+        if (names == null) {
+            names = getParameterTypes().keySet().toArray(new String[0]);
+            parameterNames = names;
+        }
+        Class<?> type = bean.getClass();
+        BeanReader reader = beanReaders.get(type);
+        if (reader == null) {
+            reader = BeanReader.getReader(getEngine(), type, names, getClass().getName());
+            BeanReader old = beanReaders.putIfAbsent(type, reader);
+            if (old != null) {
+                reader = old;
+            }
+        }
+        return new BeanMap(bean, reader, names);
+    }
+
     private Map<String, Object> toMap(Object[] parameters) {
         Map<String, Object> map = new HashMap<String, Object>();
         if (parameters == null || parameters.length == 0) {
@@ -235,24 +374,144 @@ public abstract class AbstractTemplate implements Template, Serializable {
     }
     
     protected String toString(UnsafeByteArrayOutputStream output) {
-        String encoding = engine.getConfiguration().getOutputEncoding();
-        if (encoding != null && encoding.length() > 0) {
+        if (outputEncoding != null) {
             try {
-                return new String(output.toByteArray(), encoding);
+                return output.toString(outputEncoding);
             } catch (UnsupportedEncodingException e) {
                 throw new IllegalStateException(e);
             }
         } else {
-            return new String(output.toByteArray());
+            return output.toString();
         }
     }
-    
+
+    // render buffers are reused per thread, a buffer not released is just left to the gc.
+    protected UnsafeStringWriter getWriter() {
+        return BufferPool.getWriter();
+    }
+
+    protected UnsafeByteArrayOutputStream getOutputStream() {
+        return BufferPool.getOutputStream();
+    }
+
+    protected void release(UnsafeStringWriter writer) {
+        BufferPool.release(writer, bufferRetainSize);
+    }
+
+    protected void release(UnsafeByteArrayOutputStream output) {
+        BufferPool.release(output, bufferRetainSize);
+    }
+
+    /**
+     * Get the minimum size written between two flushes, of the flush directives.
+     * 
+     * @return minimum chunk size, or 0 to flush at every flush directive.
+     */
+    protected int getFlushMinSize() {
+        return flushMinSize;
+    }
+
+    /**
+     * Get the template of the fork directive, relative to this template.
+     */
+    protected Template getForkTemplate(String name) throws IOException, ParseException {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("fork template name == null");
+        }
+        return getEngine().getTemplate(UrlUtils.relativeUrl(name, getName()), getEncoding());
+    }
+
+    /**
+     * Submit the render of the fork directive, with the caller's context.
+     */
+    protected <T> Future<T> fork(ExecutorService executor, final Callable<T> render) {
+        final Template template = this;
+        final Map<String, Object> parameters = Context.getContext().getParameters();
+        final Set<String> dependencies = Context.getContext().getDependencies();
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                Context context = Context.getContext();
+                Template preTemplate = context.getTemplate();
+                Map<String, Object> preParameters = context.getParameters();
+                Set<String> preDependencies = context.getDependencies();
+                context.setDependencies(dependencies).setTemplate(template).setParameters(parameters);
+                try {
+                    return render.call();
+                } finally {
+                    // restored, as the caller runs the fork itself when the executor is busy.
+                    context.setDependencies(preDependencies).setTemplate(preTemplate).setParameters(preParameters);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Get the cached output of the cache directive, the string for the writer templates, the bytes for the output stream ones.
+     * 
+     * @param id - the directive id, unique in the template.
+     * @param key - the directive key value.
+     * @return cached output, or null if not cached or expired.
+     */
+    protected Object getFragment(String id, Object key) {
+        Cache cache = fragmentCache;
+        if (cache == null) {
+            return null;
+        }
+        FragmentKey fragmentKey = new FragmentKey(getClass().getName(), id, key);
+        Fragment fragment = (Fragment) cache.get(fragmentKey);
+        if (fragment == null) {
+            return null;
+        }
+        if (fragment.expired > 0 && fragment.expired < System.currentTimeMillis()) {
+            cache.remove(fragmentKey);
+            return null;
+        }
+        return fragment.output;
+    }
+
+    /**
+     * Cache the rendered output of the cache directive.
+     * 
+     * @param ttl - the time to live in milliseconds, or 0 until evicted.
+     */
+    protected void putFragment(String id, Object key, Object output, long ttl) {
+        Cache cache = fragmentCache;
+        if (cache != null) {
+            // keyed by the class name, not the class, so a changed template neither reads the old output nor keeps its class loaded.
+            cache.put(new FragmentKey(getClass().getName(), id, key), 
+                    new Fragment(output, ttl > 0 ? System.currentTimeMillis() + ttl : 0));
+        }
+    }
+
     protected String filter(String value) {
         if (filter != null)
             return filter.filter(value);
         return value;
     }
 
+    protected void filter(Writer output, String value) throws IOException {
+        if (streamFilter != null && value != null) {
+            streamFilter.filter(value, output);
+        } else {
+            output.write(filter(value));
+        }
+    }
+
+    // the utf-8 output is filtered straight into the encoded bytes.
+    protected void filter(OutputStream output, String value) throws IOException {
+        if (streamFilter != null && value != null && isUtf8) {
+            Utf8Writer writer = WRITER.get().setOutput(output);
+            try {
+                streamFilter.filter(value, writer);
+                writer.flushBuffer();
+            } finally {
+                writer.setOutput(null); // not holding the stream on the pooled threads
+            }
+        } else {
+            serialize(output, filter(value));
+        }
+    }
+
     protected String format(Object value) {
         if (formatter != null)
             return formatter.format(value);
@@ -388,7 +647,111 @@ public abstract class AbstractTemplate implements Template, Serializable {
     }
     
     protected byte[] serialize(String value) {
-        return value == null ? new byte[0] : value.getBytes();
+        if (value == null) {
+            return new byte[0];
+        }
+        if (outputEncoding != null) {
+            try {
+                return value.getBytes(outputEncoding);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return value.getBytes();
+    }
+
+    // encodes straight into a per thread buffer, instead of a new byte array for every value.
+    protected void serialize(OutputStream output, String value) throws IOException {
+        if (value == null || value.length() == 0) {
+            return;
+        }
+        if (! isUtf8) {
+            output.write(serialize(value));
+            return;
+        }
+        Utf8Writer writer = WRITER.get().setOutput(output);
+        try {
+            writer.write(value);
+            writer.flushBuffer();
+        } finally {
+            writer.setOutput(null); // not holding the stream on the pooled threads
+        }
+    }
+
+    private static final class FragmentKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String template;
+
+        private final String id;
+
+        private final Object key;
+
+        FragmentKey(String template, String id, Object key) {
+            this.template = template;
+            this.id = id;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return (template.hashCode() * 31 + id.hashCode()) * 31 + (key == null ? 0 : key.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (! (obj instanceof FragmentKey)) {
+                return false;
+            }
+            FragmentKey other = (FragmentKey) obj;
+            return template.equals(other.template) && id.equals(other.id) 
+                    && (key == null ? other.key == null : key.equals(other.key));
+        }
+
+        @Override
+        public String toString() {
+            return template + "#" + id + ":" + key;
+        }
+
+    }
+
+    private static final class StringFormatter implements Formatter<Object> {
+
+        private final Formatter<Object> nullFormatter;
+
+        private final String nullValue;
+
+        StringFormatter(Formatter<Object> nullFormatter, String nullValue) {
+            this.nullFormatter = nullFormatter;
+            this.nullValue = nullValue;
+        }
+
+        public String format(Object value) {
+            if (value == null) {
+                return nullFormatter == null ? nullValue : nullFormatter.format(null);
+            }
+            return StringUtils.toString(value);
+        }
+
+    }
+
+    private static final class Fragment implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object output;
+
+        private final long expired;
+
+        Fragment(Object output, long expired) {
+            this.output = output;
+            this.expired = expired;
+        }
+
     }
 
 }
@@ -0,0 +1,131 @@
+package ths.template.support.runtime;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BeanMap. (SPI, Prototype, ThreadUnsafe)
+ * 
+ * The template parameters read from a bean. The template reads its parameters by the same name constants,
+ * so the names are compared by the identity first, and the values are read by the bean reader, without hashing.
+ * The assignments of the template are kept in a map created on the first one.
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class BeanMap implements Map<String, Object> {
+
+    private final Object bean;
+
+    private final BeanReader reader;
+
+    private final String[] names;
+
+    private Map<String, Object> assigned;
+
+    public BeanMap(Object bean, BeanReader reader, String[] names) {
+        if (bean == null)
+            throw new IllegalArgumentException("bean == null");
+        if (reader == null)
+            throw new IllegalArgumentException("reader == null");
+        this.bean = bean;
+        this.reader = reader;
+        this.names = names;
+    }
+
+    public Object getBean() {
+        return bean;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < names.length; i ++) {
+            if (names[i] == key) {
+                return i;
+            }
+        }
+        if (key != null) {
+            for (int i = 0; i < names.length; i ++) {
+                if (key.equals(names[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public Object get(Object key) {
+        if (assigned != null) {
+            Object value = assigned.get(key);
+            if (value != null || assigned.containsKey(key)) {
+                return value;
+            }
+        }
+        int i = indexOf(key);
+        return i < 0 ? null : reader.get(bean, i);
+    }
+
+    public boolean containsKey(Object key) {
+        return (assigned != null && assigned.containsKey(key)) || indexOf(key) >= 0;
+    }
+
+    // returns the previous assignment only, without reading the bean.
+    public Object put(String key, Object value) {
+        if (assigned == null) {
+            assigned = new HashMap<String, Object>();
+        }
+        return assigned.put(key, value);
+    }
+
+    public void putAll(Map<? extends String, ? extends Object> m) {
+        for (Map.Entry<? extends String, ? extends Object> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException("Readonly bean.");
+    }
+
+    public void clear() {
+        throw new UnsupportedOperationException("Readonly bean.");
+    }
+
+    public int size() {
+        return toMap().size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsValue(Object value) {
+        return toMap().containsValue(value);
+    }
+
+    public Set<String> keySet() {
+        return toMap().keySet();
+    }
+
+    public Collection<Object> values() {
+        return toMap().values();
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return toMap().entrySet();
+    }
+
+    // a snapshot for the iterations, which the templates do not use.
+    private Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < names.length; i ++) {
+            map.put(names[i], reader.get(bean, i));
+        }
+        if (assigned != null) {
+            map.putAll(assigned);
+        }
+        return map;
+    }
+
+}
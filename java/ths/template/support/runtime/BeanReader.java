@@ -0,0 +1,153 @@
+package ths.template.support.runtime;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ths.template.Engine;
+import ths.template.util.ClassUtils;
+import ths.template.util.StringUtils;
+
+/**
+ * BeanReader. (SPI, Singleton, ThreadSafe)
+ * 
+ * Reads the template parameters from the bean properties, by the parameter indexes.
+ * The readers of the public bean classes are compiled to call the getters directly,
+ * the others read by the reflection.
+ * 
+ * @see ths.template.Template#render(Object)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public abstract class BeanReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(BeanReader.class);
+
+    /**
+     * Read the parameter of the index.
+     * 
+     * @param bean - the bean of the reader type.
+     * @param index - the parameter index.
+     * @return the property value, or null if the bean has no such property.
+     */
+    public abstract Object get(Object bean, int index);
+
+    /**
+     * Create the reader of the bean type, for the template parameter names.
+     */
+    public static BeanReader getReader(Engine engine, Class<?> type, String[] names, String prefix) {
+        Member[] members = new Member[names.length];
+        boolean accessible = Modifier.isPublic(type.getModifiers()) && type.getCanonicalName() != null;
+        for (int i = 0; i < names.length; i ++) {
+            members[i] = getMember(type, names[i]);
+            if (members[i] != null && ! Modifier.isPublic(members[i].getDeclaringClass().getModifiers())) {
+                accessible = false;
+            }
+        }
+        if (accessible) {
+            String body = getBody(type, members);
+            // named by content, so a changed bean class gets a new reader, not the stale one stored in compile.directory.
+            String name = prefix + "_Reader_" + StringUtils.getDigest(type.getName() + Arrays.toString(members) + body);
+            try {
+                Class<?> reader = engine.getCompiler().compile(getCode(name, body));
+                return (BeanReader) reader.getDeclaredConstructor().newInstance();
+            } catch (InvocationTargetException e) {
+                logger.warn("Failed to create the bean reader of " + type.getName() + ", read it by the reflection, cause: " + e.getTargetException().getMessage());
+            } catch (Throwable t) {
+                // the compile failures, and the reflective ones of the generated constructor.
+                logger.warn("Failed to compile the bean reader of " + type.getName() + ", read it by the reflection, cause: " + t.getMessage());
+            }
+        }
+        return new ReflectReader(members);
+    }
+
+    private static Member getMember(Class<?> type, String name) {
+        String property = name.substring(0, 1).toUpperCase() + name.substring(1);
+        try {
+            return type.getMethod("get" + property);
+        } catch (NoSuchMethodException e) {
+        }
+        try {
+            Method method = type.getMethod("is" + property);
+            if (method.getReturnType() == boolean.class) {
+                return method;
+            }
+        } catch (NoSuchMethodException e) {
+        }
+        try {
+            Field field = type.getField(name);
+            if (! Modifier.isStatic(field.getModifiers())) {
+                return field;
+            }
+        } catch (NoSuchFieldException e) {
+        }
+        return null;
+    }
+
+    private static String getCode(String name, String body) {
+        int i = name.lastIndexOf('.');
+        StringBuilder buf = new StringBuilder();
+        buf.append("package " + name.substring(0, i) + ";\n");
+        buf.append("public class " + name.substring(i + 1) + " extends " + BeanReader.class.getName() + " {\n");
+        buf.append(body);
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    private static String getBody(Class<?> type, Member[] members) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("public Object get(Object $bean, int $index) {\n");
+        buf.append(type.getCanonicalName() + " bean = (" + type.getCanonicalName() + ") $bean;\n");
+        buf.append("switch ($index) {\n");
+        for (int j = 0; j < members.length; j ++) {
+            if (members[j] instanceof Method) {
+                buf.append("case " + j + ": return " + ClassUtils.class.getName() + ".boxed(bean." + members[j].getName() + "());\n");
+            } else if (members[j] instanceof Field) {
+                buf.append("case " + j + ": return " + ClassUtils.class.getName() + ".boxed(bean." + members[j].getName() + ");\n");
+            }
+        }
+        buf.append("default: return null;\n");
+        buf.append("}\n");
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    private static final class ReflectReader extends BeanReader {
+
+        private final Member[] members;
+
+        ReflectReader(Member[] members) {
+            this.members = members;
+            for (Member member : members) {
+                if (member instanceof Method) {
+                    ((Method) member).setAccessible(true);
+                } else if (member instanceof Field) {
+                    ((Field) member).setAccessible(true);
+                }
+            }
+        }
+
+        @Override
+        public Object get(Object bean, int index) {
+            Member member = members[index];
+            try {
+                if (member instanceof Method) {
+                    return ((Method) member).invoke(bean);
+                } else if (member instanceof Field) {
+                    return ((Field) member).get(bean);
+                }
+                return null;
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to read " + member + ", cause: " + ClassUtils.toString(e), e);
+            }
+        }
+
+    }
+
+}
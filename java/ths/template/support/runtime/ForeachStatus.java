@@ -20,6 +20,14 @@ public class ForeachStatus implements Serializable {
         stack.push(new ForeachCounter(stack.peek(), ClassUtils.getSize(list), stack.size()));
         return list;
     }
+
+    /**
+     * Push the counter of the loop over the range, without the list.
+     */
+    public int push(int size) {
+        stack.push(new ForeachCounter(stack.peek(), size, stack.size()));
+        return size;
+    }
     
     public void pop() {
         stack.pop();
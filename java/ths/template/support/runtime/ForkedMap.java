@@ -0,0 +1,24 @@
+package ths.template.support.runtime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ForkedMap. (SPI, Prototype, ThreadUnsafe)
+ * 
+ * The parameters of a forked render: a copy of the caller's parameters taken at the fork point,
+ * as the caller goes on rendering and assigning on its own thread while the fork runs.
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ForkedMap extends HashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    public ForkedMap(Map<String, Object> parent) {
+        if (parent != null) {
+            putAll(parent);
+        }
+    }
+
+}
@@ -3,15 +3,21 @@ package ths.template.support.runtime;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import ths.core.Resource;
 import ths.template.Context;
 import ths.template.Engine;
 import ths.template.Template;
+import ths.template.util.ChunkedOutputStream;
 import ths.template.util.ClassUtils;
+import ths.template.util.SplicingOutputStream;
 import ths.template.util.UnsafeByteArrayOutputStream;
+import ths.template.util.WriterOutputStream;
 
 /**
  * OutputStream template. (SPI, Prototype, ThreadSafe)
@@ -28,13 +34,16 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
         super(engine, resource);
     }
     public String render(Map<String, Object> parameters) {
-        UnsafeByteArrayOutputStream output = new UnsafeByteArrayOutputStream();
+        UnsafeByteArrayOutputStream output = getOutputStream();
         try {
-            render(parameters, output);
+            // the forks are spliced into the buffer, as the ones inside the blocks are rendered in place.
+            render(parameters, getEngine().getForkExecutor() == null ? output : new SplicingOutputStream(output));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
-        return toString(output);
+        String result = toString(output);
+        release(output);
+        return result;
     }
     
     public void render(Map<String, Object> parameters, OutputStream output) throws IOException {
@@ -45,6 +54,9 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
         Template preTemplate = context.getTemplate();
         Map<String, Object> preParameters = context.getParameters();
         context.setTemplate(this).setParameters(parameters);
+        if (getFlushMinSize() > 0 && ! (output instanceof ChunkedOutputStream) && ! (output instanceof UnsafeByteArrayOutputStream)) {
+            output = new ChunkedOutputStream(output, getFlushMinSize());
+        }
         try {
             doRender(parameters, output);
         } catch (RuntimeException e) {
@@ -59,7 +71,59 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
     }
     
     public void render(Map<String, Object> parameters, Writer writer) throws IOException {
-        writer.write(render(parameters));
+        // decodes as the template writes, instead of rendering the whole page into a string first.
+        WriterOutputStream output = new WriterOutputStream(writer, getOutputEncoding());
+        render(parameters, output);
+        output.finish();
+    }
+    
+    /**
+     * Flush the output at the flush directive, but not the blocks rendered into the buffers.
+     */
+    protected void flush(OutputStream output) throws IOException {
+        if (output instanceof SplicingOutputStream) {
+            ((SplicingOutputStream) output).drain(false);
+            output = ((SplicingOutputStream) output).getOutputStream();
+        }
+        if (output instanceof ChunkedOutputStream) {
+            ((ChunkedOutputStream) output).flushChunk();
+        } else if (! (output instanceof UnsafeByteArrayOutputStream)) {
+            output.flush();
+        }
+    }
+    
+    /**
+     * Render the template of the fork directive on the engine fork executor, spliced into the output in order.
+     * Without the executor, or inside the blocks, it is rendered in place.
+     * 
+     * @return the output to write on after the fork.
+     */
+    protected OutputStream fork(OutputStream output, Map<String, Object> parameters, String name) throws IOException, ParseException {
+        final Template template = getForkTemplate(name);
+        final Map<String, Object> forked = new ForkedMap(parameters);
+        ExecutorService executor = getEngine().getForkExecutor();
+        if (executor == null || output instanceof UnsafeByteArrayOutputStream) {
+            template.render(forked, output);
+            return output;
+        }
+        SplicingOutputStream splicing = output instanceof SplicingOutputStream ? (SplicingOutputStream) output : new SplicingOutputStream(output);
+        splicing.splice(fork(executor, new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                UnsafeByteArrayOutputStream buffer = new UnsafeByteArrayOutputStream();
+                template.render(forked, buffer);
+                return buffer.toByteArray();
+            }
+        }));
+        return splicing;
+    }
+    
+    /**
+     * Write the pending forks at the end of the render.
+     */
+    protected void join(OutputStream output) throws IOException {
+        if (output instanceof SplicingOutputStream) {
+            ((SplicingOutputStream) output).drain(true);
+        }
     }
     
     protected abstract void doRender(Map<String, Object> parameters, OutputStream output) throws Exception;
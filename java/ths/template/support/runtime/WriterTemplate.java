@@ -4,14 +4,19 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import ths.core.Resource;
 import ths.template.Engine;
 import ths.template.Template;
 import ths.template.Context;
+import ths.template.util.ChunkedWriter;
 import ths.template.util.ClassUtils;
+import ths.template.util.SplicingWriter;
 import ths.template.util.UnsafeStringWriter;
 
 /**
@@ -30,17 +35,23 @@ public abstract class WriterTemplate extends AbstractTemplate {
     }
     
     public String render(Map<String, Object> parameters) {
-        UnsafeStringWriter output = new UnsafeStringWriter();
+        UnsafeStringWriter output = getWriter();
         try {
-            render(parameters, output);
+            // the forks are spliced into the buffer, as the ones inside the blocks are rendered in place.
+            render(parameters, getEngine().getForkExecutor() == null ? output : new SplicingWriter(output));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
-        return output.toString();
+        String result = output.toString();
+        release(output);
+        return result;
     }
     
     public void render(Map<String, Object> parameters, OutputStream output) throws IOException {
-        render(parameters, new OutputStreamWriter(output));
+        String encoding = getOutputEncoding();
+        Writer writer = encoding == null ? new OutputStreamWriter(output) : new OutputStreamWriter(output, encoding);
+        render(parameters, writer);
+        writer.flush(); // the caller owns the stream, flush the encoder without closing it.
     }
     
     public void render(Map<String, Object> parameters, Writer writer) throws IOException {
@@ -51,6 +62,9 @@ public abstract class WriterTemplate extends AbstractTemplate {
         Template preTemplate = context.getTemplate();
         Map<String, Object> preParameters = context.getParameters();
         context.setTemplate(this).setParameters(parameters);
+        if (getFlushMinSize() > 0 && ! (writer instanceof ChunkedWriter) && ! (writer instanceof UnsafeStringWriter)) {
+            writer = new ChunkedWriter(writer, getFlushMinSize());
+        }
         try {
             doRender(parameters, writer);
         } catch (RuntimeException e) {
@@ -64,6 +78,53 @@ public abstract class WriterTemplate extends AbstractTemplate {
         }
     }
     
+    /**
+     * Flush the output at the flush directive, but not the blocks rendered into the buffers.
+     */
+    protected void flush(Writer output) throws IOException {
+        if (output instanceof SplicingWriter) {
+            ((SplicingWriter) output).drain(false);
+            output = ((SplicingWriter) output).getWriter();
+        }
+        if (output instanceof ChunkedWriter) {
+            ((ChunkedWriter) output).flushChunk();
+        } else if (! (output instanceof UnsafeStringWriter)) {
+            output.flush();
+        }
+    }
+    
+    /**
+     * Render the template of the fork directive on the engine fork executor, spliced into the output in order.
+     * Without the executor, or inside the blocks, it is rendered in place.
+     * 
+     * @return the output to write on after the fork.
+     */
+    protected Writer fork(Writer output, Map<String, Object> parameters, String name) throws IOException, ParseException {
+        final Template template = getForkTemplate(name);
+        final Map<String, Object> forked = new ForkedMap(parameters);
+        ExecutorService executor = getEngine().getForkExecutor();
+        if (executor == null || output instanceof UnsafeStringWriter) {
+            template.render(forked, output);
+            return output;
+        }
+        SplicingWriter splicing = output instanceof SplicingWriter ? (SplicingWriter) output : new SplicingWriter(output);
+        splicing.splice(fork(executor, new Callable<String>() {
+            public String call() throws Exception {
+                return template.render(forked);
+            }
+        }));
+        return splicing;
+    }
+    
+    /**
+     * Write the pending forks at the end of the render.
+     */
+    protected void join(Writer output) throws IOException {
+        if (output instanceof SplicingWriter) {
+            ((SplicingWriter) output).drain(true);
+        }
+    }
+    
     protected abstract void doRender(Map<String, Object> parameters, Writer output) throws Exception;
     
 }
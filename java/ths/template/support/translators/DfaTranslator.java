@@ -1,16 +1,24 @@
 package ths.template.support.translators;
 
 import java.text.ParseException;
+import java.util.AbstractMap;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import ths.core.Configurable;
 import ths.template.Engine;
+import ths.template.Evaluable;
 import ths.template.Expression;
 import ths.template.Configs;
 import ths.template.support.EngineAware;
 import ths.template.support.Translator;
+import ths.template.support.caches.ConcurrentLruCache;
 import ths.template.support.translators.expression.ExpressionImpl;
+import ths.template.support.translators.expression.TieredEvaluator;
+import ths.template.util.ConfigUtils;
 import ths.template.util.StringUtils;
 
 /**
@@ -18,16 +26,33 @@ import ths.template.util.StringUtils;
  * 
  * Deterministic Finite state Automata (DFA)
  * 
+ * The translated code is cached by the expression source, and reused where the
+ * parameter types the expression looked up are the same, in any template.
+ * The evaluator is shared with the translation, so the expression is interpreted
+ * until it is evaluated compile.threshold times in total, then compiled.
+ * 
  * @see com.googlecode.httl.Engine#setTranslator(Translator)
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
 public class DfaTranslator implements Translator, Configurable<Configs>, EngineAware {
     
+    private static final int CACHE_CAPACITY = 10000;
+
+    private static final int MAX_VARIANTS = 8;
+
+    private static final int DEFAULT_COMPILE_THRESHOLD = 100;
+
     private Engine engine;
 
     protected String[] importPackages;
 
+    private int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+
+    private volatile ConcurrentLruCache cache = new ConcurrentLruCache(CACHE_CAPACITY);
+
+    private volatile Set<Class<?>> functionTypes = new HashSet<Class<?>>();
+
     public void setEngine(Engine engine) {
         this.engine = engine;
     }
@@ -36,13 +61,143 @@ public class DfaTranslator implements Translator, Configurable<Configs>, EngineA
     public void configure(Configs config) {
         String packages = config.getImportPackages(); 
         this.importPackages = packages.trim().split("\\s*\\,\\s*");
+        String threshold = config.getCompileThreshold();
+        this.compileThreshold = threshold != null && ConfigUtils.isInteger(threshold.trim()) 
+                ? Integer.parseInt(threshold.trim()) : DEFAULT_COMPILE_THRESHOLD;
+        this.cache = new ConcurrentLruCache(CACHE_CAPACITY);
     }
     
 	public Expression translate(String source, Map<String, Class<?>> parameterTypes, int offset) throws ParseException {
-	    source = StringUtils.unescapeHtml(source);
 	    Collection<Class<?>> functions = engine.getFunctions().keySet();
-	    Expression node = new DfaParser(this, parameterTypes, functions, importPackages, offset).parse(source);
-	    return new ExpressionImpl(engine, engine.getCompiler(), this, source, parameterTypes, offset, node.getCode(), node.getReturnType(), importPackages);
+	    if (! functionTypes.equals(functions)) {
+	        synchronized (this) {
+	            if (! functionTypes.equals(functions)) {
+	                cache = new ConcurrentLruCache(CACHE_CAPACITY); // the functions changed, drop the translations.
+	                functionTypes = new HashSet<Class<?>>(functions);
+	            }
+	        }
+	    }
+	    ConcurrentLruCache cache = this.cache;
+	    Translation[] translations = (Translation[]) cache.get(source);
+	    if (translations != null) {
+	        for (Translation translation : translations) {
+	            if (translation.matches(parameterTypes)) {
+	                return new ExpressionImpl(engine, engine.getCompiler(), this, translation.source, parameterTypes, offset, translation.code, translation.returnType, importPackages, translation.evaluator, translation.node);
+	            }
+	        }
+	    }
+	    String expression = StringUtils.unescapeHtml(source);
+	    TypeRecorder types = new TypeRecorder(parameterTypes);
+	    Expression node = new DfaParser(this, types, functions, importPackages, offset).parse(expression);
+	    String code = node.getCode();
+	    Class<?> returnType = node.getReturnType();
+	    boolean complete = types.freeze();
+	    Evaluable evaluator = new TieredEvaluator(engine, engine.getCompiler(), code, importPackages, offset, node, compileThreshold);
+	    if (complete) {
+	        Translation translation = new Translation(expression, new HashMap<String, Class<?>>(types.lookups), code, returnType, evaluator, node);
+	        if (translations == null || translations.length >= MAX_VARIANTS) {
+	            translations = new Translation[] { translation };
+	        } else {
+	            Translation[] added = new Translation[translations.length + 1];
+	            System.arraycopy(translations, 0, added, 0, translations.length);
+	            added[translations.length] = translation;
+	            translations = added;
+	        }
+	        cache.put(source, translations);
+	    }
+	    return new ExpressionImpl(engine, engine.getCompiler(), this, expression, parameterTypes, offset, code, returnType, importPackages, evaluator, node);
+	}
+
+	private static final class Translation {
+
+	    private final String source;
+
+	    private final Map<String, Class<?>> lookups;
+
+	    private final String code;
+
+	    private final Class<?> returnType;
+
+	    private final Evaluable evaluator;
+
+	    private final Expression node;
+
+	    Translation(String source, Map<String, Class<?>> lookups, String code, Class<?> returnType, Evaluable evaluator, Expression node) {
+	        this.source = source;
+	        this.lookups = lookups;
+	        this.code = code;
+	        this.returnType = returnType;
+	        this.evaluator = evaluator;
+	        this.node = node;
+	    }
+
+	    boolean matches(Map<String, Class<?>> parameterTypes) {
+	        for (Map.Entry<String, Class<?>> entry : lookups.entrySet()) {
+	            if (parameterTypes.get(entry.getKey()) != entry.getValue()) {
+	                return false;
+	            }
+	        }
+	        return true;
+	    }
+
+	}
+
+	// records the parameter types the translation depends on, including the absent ones.
+	private static final class TypeRecorder extends AbstractMap<String, Class<?>> {
+
+	    private volatile Map<String, Class<?>> types;
+
+	    private final Map<String, Class<?>> lookups = new HashMap<String, Class<?>>();
+
+	    private boolean complete = true;
+
+	    private volatile boolean frozen;
+
+	    TypeRecorder(Map<String, Class<?>> types) {
+	        this.types = types;
+	    }
+
+	    // the nodes keep the types for interpreting, detached from the template types still being parsed.
+	    boolean freeze() {
+	        Map<String, Class<?>> snapshot = new HashMap<String, Class<?>>();
+	        for (Map.Entry<String, Class<?>> entry : (complete ? lookups : types).entrySet()) {
+	            if (entry.getValue() != null) {
+	                snapshot.put(entry.getKey(), entry.getValue());
+	            }
+	        }
+	        types = snapshot;
+	        frozen = true;
+	        return complete;
+	    }
+
+	    @Override
+	    public Class<?> get(Object key) {
+	        Class<?> type = types.get(key);
+	        if (frozen) {
+	            return type;
+	        }
+	        if (key instanceof String) {
+	            lookups.put((String) key, type);
+	        } else {
+	            complete = false;
+	        }
+	        return type;
+	    }
+
+	    @Override
+	    public boolean containsKey(Object key) {
+	        return get(key) != null || types.containsKey(key);
+	    }
+
+	    @Override
+	    public Set<Map.Entry<String, Class<?>>> entrySet() {
+	        if (frozen) {
+	            return types.entrySet();
+	        }
+	        complete = false; // depends on all the types.
+	        return types.entrySet();
+	    }
+
 	}
 
 }
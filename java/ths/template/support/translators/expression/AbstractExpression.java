@@ -1,17 +1,23 @@
 package ths.template.support.translators.expression;
 
 import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import ths.template.Engine;
 import ths.template.Expression;
 import ths.template.support.Translator;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.UnsupportedBytecodeException;
+import ths.template.support.compilers.Emittable;
 
 /**
  * AbstractExpression
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public abstract class AbstractExpression implements Expression {
+public abstract class AbstractExpression implements Expression, Emittable {
     
     private final Translator resolver;
 
@@ -21,6 +27,10 @@ public abstract class AbstractExpression implements Expression {
     
     private final Map<String, Class<?>> parameterTypes;
 
+    private volatile Class<?> resolvedType;
+
+    private volatile boolean resolved;
+
     public AbstractExpression(Translator resolver, String source, int offset, Map<String, Class<?>> parameterTypes){
         this.resolver = resolver;
         this.source = source;
@@ -52,5 +62,84 @@ public abstract class AbstractExpression implements Expression {
     public Object evaluate(Map<String, Object> parameters) throws ParseException {
         return null;
     }
+
+    /**
+     * Can the whole expression be interpreted by evaluate(Engine, Map), decided from the types
+     * before any evaluation, as a failure in the middle would have run the method calls before it.
+     */
+    public boolean isInterpretable() throws ParseException {
+        return false;
+    }
+
+    /**
+     * Can the expression be interpreted as a parameter list by evaluateAll(Engine, Map).
+     */
+    public boolean isInterpretableAll() throws ParseException {
+        return isInterpretable();
+    }
+
+    /**
+     * Interpret the expression with the parameter values, without compiling it.
+     * 
+     * @throws UnsupportedOperationException - if not isInterpretable().
+     */
+    public Object evaluate(Engine engine, Map<String, Object> parameters) throws ParseException {
+        throw new UnsupportedOperationException("Unsupported interpreting " + getClass().getSimpleName() + " " + this);
+    }
+
+    /**
+     * Interpret the expression as a parameter list, matching getReturnTypes().
+     */
+    public Object[] evaluateAll(Engine engine, Map<String, Object> parameters) throws ParseException {
+        return new Object[] { evaluate(engine, parameters) };
+    }
+
+    /**
+     * Emit the bytecode of getCode(), pushing the value of getReturnType().
+     * 
+     * @throws UnsupportedBytecodeException - if the expression can only be compiled from the code.
+     */
+    public void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        throw new UnsupportedBytecodeException("Unsupported emitting " + getClass().getSimpleName() + " " + this);
+    }
+
+    /**
+     * Emit the value with the method invocation conversion to the type.
+     */
+    protected void emit(BytecodeBuilder builder, Class<?> type) throws ParseException, UnsupportedBytecodeException {
+        emit(builder);
+        builder.assign(getResolvedType(), type);
+    }
+
+    /**
+     * Emit the values of the parameter list, matching getReturnTypes(), with the conversions to the types.
+     */
+    protected void emitAll(BytecodeBuilder builder, Class<?>[] types, int offset) throws ParseException, UnsupportedBytecodeException {
+        List<AbstractExpression> arguments = getArguments();
+        if (arguments.size() != types.length - offset) {
+            throw new UnsupportedBytecodeException("Unsupported emitting " + arguments.size() + " arguments to " + (types.length - offset) + " parameters");
+        }
+        for (int i = 0; i < arguments.size(); i ++) {
+            arguments.get(i).emit(builder, types[offset + i]);
+        }
+    }
+
+    /**
+     * The expressions of the parameter list, matching getReturnTypes().
+     */
+    protected List<AbstractExpression> getArguments() throws UnsupportedBytecodeException {
+        return Collections.singletonList(this);
+    }
+
+    /**
+     * The return type resolved once, the parameter types do not change after translated.
+     */
+    protected Class<?> getResolvedType() throws ParseException {
+        if (! resolved) {
+            resolvedType = getReturnType();
+            resolved = true;
+        }
+        return resolvedType;
+    }
     
 }
@@ -1,16 +1,24 @@
 package ths.template.support.translators.expression;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.text.ParseException;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import ths.template.Engine;
 import ths.template.Expression;
 import ths.template.support.Translator;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.BytecodeBuilder.Label;
+import ths.template.support.compilers.UnsupportedBytecodeException;
 import ths.template.support.sequences.CharacterSequence;
 import ths.template.support.sequences.IntegerSequence;
 import ths.template.support.sequences.StringSequence;
@@ -28,6 +36,11 @@ public final class BinaryOperator extends Operator {
     private AbstractExpression leftParameter;
     
     private AbstractExpression rightParameter;
+
+    // the resolved method, or the map key of the property.
+    private volatile Object target;
+
+    private volatile Class<?> function;
     
     public BinaryOperator(Translator resolver, String source, int offset, 
                           Map<String, Class<?>> parameterTypes, Collection<Class<?>> functions, String[] packages, String name, int priority){
@@ -320,6 +333,638 @@ public final class BinaryOperator extends Operator {
         }
     }
     
+    @Override
+    public boolean isInterpretableAll() throws ParseException {
+        if (getName().equals(",")) {
+            return leftParameter.isInterpretableAll() && rightParameter.isInterpretableAll();
+        }
+        return isInterpretable();
+    }
+
+    // the same branches as evaluate(Engine, Map).
+    @Override
+    public boolean isInterpretable() throws ParseException {
+        String name = getName();
+        if (StringUtils.isFunction(name)) {
+            return isCallable();
+        } else if ("&&".equals(name) || "||".equals(name)) {
+            return leftParameter.isInterpretable() && rightParameter.isInterpretable()
+                    && Interpreter.isTestable(leftParameter.getResolvedType())
+                    && Interpreter.isTestable(rightParameter.getResolvedType());
+        } else if (":".equals(name)) {
+            if (leftParameter instanceof BinaryOperator 
+                    && "?".equals(((BinaryOperator)leftParameter).getName())) {
+                BinaryOperator condition = (BinaryOperator) leftParameter;
+                return condition.leftParameter.isInterpretable() && condition.rightParameter.isInterpretable()
+                        && rightParameter.isInterpretable()
+                        && Interpreter.isTestable(condition.leftParameter.getResolvedType());
+            }
+            return leftParameter.isInterpretable() && rightParameter.isInterpretable();
+        } else if ("?".equals(name) || ",".equals(name) || "instanceof".equals(name)) {
+            return false;
+        }
+        Class<?> leftType = leftParameter.getResolvedType();
+        Class<?> rightType = rightParameter.getResolvedType();
+        if (leftType == null || ! leftParameter.isInterpretable() || ! rightParameter.isInterpretable()) {
+            return false;
+        } else if ("|".equals(name) 
+                && ! leftType.isPrimitive()
+                && ! Number.class.isAssignableFrom(leftType)
+                && ! Boolean.class.isAssignableFrom(leftType)) {
+            return true;
+        } else if ("[".equals(name)) {
+            return Map.class.isAssignableFrom(leftType) 
+                    || int.class.equals(rightType) 
+                    || resolveIndex(leftType, rightType) != null;
+        } else if ("..".equals(name)) {
+            return true;
+        } else if (("==".equals(name) || "!=".equals(name)) 
+                && leftParameter != Constant.NULL && rightParameter != Constant.NULL
+                && ! leftType.isPrimitive() && ! rightType.isPrimitive()) {
+            return true;
+        } else if (Date.class.isAssignableFrom(leftType) 
+                && ("<".equals(name) || "<=".equals(name) || ">".equals(name) || ">=".equals(name))) {
+            return true;
+        } else if ("+".equals(name) && (leftType == String.class || rightType == String.class)) {
+            return true;
+        }
+        return Interpreter.isBinary(name, leftType, rightType);
+    }
+
+    @Override
+    public Object[] evaluateAll(Engine engine, Map<String, Object> parameters) throws ParseException {
+        if (getName().equals(",")) {
+            Object[] leftValues = leftParameter.evaluateAll(engine, parameters);
+            Object[] rightValues = rightParameter.evaluateAll(engine, parameters);
+            Object[] values = new Object[leftValues.length + rightValues.length];
+            System.arraycopy(leftValues, 0, values, 0, leftValues.length);
+            System.arraycopy(rightValues, 0, values, leftValues.length, rightValues.length);
+            return values;
+        }
+        return super.evaluateAll(engine, parameters);
+    }
+
+    @Override
+    public Object evaluate(Engine engine, Map<String, Object> parameters) throws ParseException {
+        String name = getName();
+        if (StringUtils.isFunction(name)) {
+            return call(engine, parameters);
+        } else if ("&&".equals(name)) {
+            return Boolean.valueOf(Interpreter.isTrue(leftParameter.getResolvedType(), leftParameter.evaluate(engine, parameters))
+                    && Interpreter.isTrue(rightParameter.getResolvedType(), rightParameter.evaluate(engine, parameters)));
+        } else if ("||".equals(name)) {
+            return Boolean.valueOf(Interpreter.isTrue(leftParameter.getResolvedType(), leftParameter.evaluate(engine, parameters))
+                    || Interpreter.isTrue(rightParameter.getResolvedType(), rightParameter.evaluate(engine, parameters)));
+        } else if (":".equals(name)) {
+            if (leftParameter instanceof BinaryOperator 
+                    && "?".equals(((BinaryOperator)leftParameter).getName())) {
+                BinaryOperator condition = (BinaryOperator) leftParameter;
+                if (Interpreter.isTrue(condition.leftParameter.getResolvedType(), condition.leftParameter.evaluate(engine, parameters))) {
+                    return condition.rightParameter.evaluate(engine, parameters);
+                }
+                return rightParameter.evaluate(engine, parameters);
+            }
+            return new MapEntry<Object, Object>(leftParameter.evaluate(engine, parameters), rightParameter.evaluate(engine, parameters));
+        } else if ("?".equals(name) || ",".equals(name) || "instanceof".equals(name)) {
+            throw new IllegalStateException("Not interpretable operator " + name);
+        }
+        Class<?> leftType = leftParameter.getResolvedType();
+        Object left = leftParameter.evaluate(engine, parameters);
+        if ("|".equals(name) 
+                && ! leftType.isPrimitive()
+                && ! Number.class.isAssignableFrom(leftType)
+                && ! Boolean.class.isAssignableFrom(leftType)) {
+            return ClassUtils.isNotEmpty(left) ? left : rightParameter.evaluate(engine, parameters);
+        }
+        Class<?> rightType = rightParameter.getResolvedType();
+        Object right = rightParameter.evaluate(engine, parameters);
+        if ("[".equals(name)) {
+            if (Map.class.isAssignableFrom(leftType)) {
+                return ((Map<?, ?>) left).get(right);
+            } else if (int.class.equals(rightType)) {
+                if (List.class.isAssignableFrom(leftType)) {
+                    return ((List<?>) left).get(((Integer) right).intValue());
+                }
+                return Array.get(left, ((Integer) right).intValue());
+            }
+            Method method = resolveIndex(leftType, rightType);
+            if (method == null) {
+                throw new IllegalStateException("Not interpretable index " + rightType + " of " + leftType);
+            }
+            return Interpreter.invoke(method, null, new Object[] { left, right });
+        } else if ("..".equals(name)) {
+            if (leftType == char.class || leftType == Character.class) {
+                return new CharacterSequence((Character) left, (Character) right);
+            } else if (leftType == String.class) {
+                return engine.getSequence((String) left, (String) right);
+            }
+            return new IntegerSequence(left == null ? 0 : ((Number) left).intValue(), right == null ? 0 : ((Number) right).intValue());
+        } else if (("==".equals(name) || "!=".equals(name)) 
+                && leftParameter != Constant.NULL && rightParameter != Constant.NULL
+                && ! leftType.isPrimitive() && ! rightType.isPrimitive()) {
+            return Boolean.valueOf(left.equals(right) == "==".equals(name));
+        } else if (Date.class.isAssignableFrom(leftType) 
+                && ("<".equals(name) || "<=".equals(name) || ">".equals(name) || ">=".equals(name))) {
+            Date date = (Date) left;
+            if ("<".equals(name)) {
+                return Boolean.valueOf(date.before((Date) right));
+            } else if ("<=".equals(name)) {
+                return Boolean.valueOf(! date.after((Date) right));
+            } else if (">".equals(name)) {
+                return Boolean.valueOf(date.after((Date) right));
+            }
+            return Boolean.valueOf(! date.before((Date) right));
+        } else if ("+".equals(name) && (leftType == String.class || rightType == String.class)) {
+            return String.valueOf(left) + String.valueOf(right);
+        }
+        return Interpreter.binary(name, left, right);
+    }
+
+    @Override
+    protected List<AbstractExpression> getArguments() throws UnsupportedBytecodeException {
+        if (getName().equals(",")) {
+            List<AbstractExpression> arguments = new ArrayList<AbstractExpression>(leftParameter.getArguments());
+            arguments.addAll(rightParameter.getArguments());
+            return arguments;
+        }
+        return super.getArguments();
+    }
+
+    // the same branches as getCode().
+    @Override
+    public void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        String name = getName();
+        if (StringUtils.isFunction(name)) {
+            emitCall(builder);
+            return;
+        }
+        Class<?> type = getResolvedType();
+        Class<?> leftType = leftParameter.getResolvedType();
+        if ("[".equals(name)) {
+            emitIndex(builder);
+        } else if ("..".equals(name)) {
+            Class<?> sequence = leftType == char.class || leftType == Character.class ? CharacterSequence.class : IntegerSequence.class;
+            if (type != sequence) {
+                throw new UnsupportedBytecodeException("Unsupported emitting sequence of " + leftType);
+            }
+            Constructor<?> constructor;
+            try {
+                constructor = sequence.getConstructor(leftType, rightParameter.getResolvedType());
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedBytecodeException("Unsupported emitting sequence of " + leftType + " and " + rightParameter.getResolvedType());
+            }
+            builder.newInstance(sequence);
+            leftParameter.emit(builder);
+            rightParameter.emit(builder);
+            builder.invoke(constructor);
+        } else if (("==".equals(name) || "!=".equals(name)) 
+                && ! "null".equals(leftParameter.getCode()) && ! "null".equals(rightParameter.getCode())
+                && ! leftType.isPrimitive() && ! rightParameter.getResolvedType().isPrimitive()) {
+            leftParameter.emit(builder);
+            rightParameter.emit(builder, Object.class);
+            builder.invoke(Object.class, "equals", Object.class);
+            if ("!=".equals(name)) {
+                builder.push(Boolean.TRUE, boolean.class);
+                builder.arithmetic("^", boolean.class);
+            }
+        } else if ("&&".equals(name) || "||".equals(name)) {
+            Label shortcut = builder.newLabel();
+            Label end = builder.newLabel();
+            leftParameter.emit(builder);
+            if ("&&".equals(name)) {
+                builder.branchIfFalse(leftType, shortcut);
+                rightParameter.emit(builder);
+                builder.branchIfFalse(rightParameter.getResolvedType(), shortcut);
+            } else {
+                builder.branchIfTrue(leftType, shortcut);
+                rightParameter.emit(builder);
+                builder.branchIfTrue(rightParameter.getResolvedType(), shortcut);
+            }
+            builder.push(Boolean.valueOf("&&".equals(name)), boolean.class);
+            builder.jump(end);
+            builder.mark(shortcut);
+            builder.push(Boolean.valueOf("||".equals(name)), boolean.class);
+            builder.mark(end);
+        } else if ("|".equals(name) 
+                && ! leftType.isPrimitive()
+                && ! Number.class.isAssignableFrom(leftType)
+                && ! Boolean.class.isAssignableFrom(leftType)) {
+            Label end = builder.newLabel();
+            leftParameter.emit(builder);
+            builder.dup(leftType);
+            builder.invoke(ClassUtils.class, "isNotEmpty", Object.class);
+            builder.branchIfTrue(boolean.class, end);
+            builder.pop(leftType);
+            rightParameter.emit(builder, leftType);
+            builder.mark(end);
+        } else if (":".equals(name) && leftParameter instanceof BinaryOperator 
+                && "?".equals(((BinaryOperator) leftParameter).getName())) {
+            BinaryOperator condition = (BinaryOperator) leftParameter;
+            Class<?> trueType = condition.rightParameter.getResolvedType();
+            Class<?> falseType = rightParameter.getResolvedType();
+            if (trueType == null || type != trueType || (trueType != falseType && (trueType.isPrimitive() 
+                    || falseType != null && falseType.isPrimitive() || ! BytecodeBuilder.isAssignable(falseType, trueType)))) {
+                // the java conditional type is not the type of the true value.
+                throw new UnsupportedBytecodeException("Unsupported emitting conditional of " + trueType + " and " + falseType);
+            }
+            Label otherwise = builder.newLabel();
+            Label end = builder.newLabel();
+            condition.leftParameter.emit(builder);
+            builder.branchIfFalse(condition.leftParameter.getResolvedType(), otherwise);
+            condition.rightParameter.emit(builder);
+            builder.jump(end);
+            builder.mark(otherwise);
+            rightParameter.emit(builder, trueType);
+            builder.mark(end);
+        } else if (":".equals(name)) {
+            Class<?> rightType = rightParameter.getResolvedType();
+            Class<?> keyType = leftType != null && leftType.isPrimitive() ? leftType : Object.class;
+            Class<?> valueType = rightType != null && rightType.isPrimitive() ? rightType : Object.class;
+            if (keyType.isPrimitive() && valueType.isPrimitive() && keyType != valueType) {
+                throw new UnsupportedBytecodeException("Unsupported emitting entry of " + keyType + " and " + valueType);
+            }
+            Constructor<?> constructor;
+            try {
+                constructor = MapEntry.class.getConstructor(keyType, valueType);
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedBytecodeException(e.getMessage());
+            }
+            builder.newInstance(MapEntry.class);
+            leftParameter.emit(builder, keyType);
+            rightParameter.emit(builder, valueType);
+            builder.invoke(constructor);
+        } else {
+            emitOperator(builder, name, type, leftType, rightParameter.getResolvedType());
+        }
+    }
+
+    private void emitOperator(BytecodeBuilder builder, String name, Class<?> type, Class<?> leftType, Class<?> rightType) throws ParseException, UnsupportedBytecodeException {
+        boolean compare = "<".equals(name) || "<=".equals(name) || ">".equals(name) || ">=".equals(name);
+        if (compare && leftType != null && Date.class.isAssignableFrom(leftType)) {
+            leftParameter.emit(builder);
+            rightParameter.emit(builder, Date.class);
+            builder.invoke(Date.class, "<".equals(name) || ">=".equals(name) ? "before" : "after", Date.class);
+            if ("<=".equals(name) || ">=".equals(name)) {
+                builder.push(Boolean.TRUE, boolean.class);
+                builder.arithmetic("^", boolean.class);
+            }
+            return;
+        }
+        if ("+".equals(name) && (leftType == String.class || rightType == String.class)) {
+            if (type == null || ! type.isAssignableFrom(String.class)) {
+                throw new UnsupportedBytecodeException("Unsupported emitting string concatenation as " + type);
+            }
+            builder.newInstance(StringBuilder.class);
+            builder.invokeConstructor(StringBuilder.class);
+            leftParameter.emit(builder);
+            builder.invoke(StringBuilder.class, "append", getAppendType(leftType));
+            rightParameter.emit(builder);
+            builder.invoke(StringBuilder.class, "append", getAppendType(rightType));
+            builder.invoke(StringBuilder.class, "toString");
+            return;
+        }
+        Class<?> left = BytecodeBuilder.getPrimitive(leftType);
+        Class<?> right = BytecodeBuilder.getPrimitive(rightType);
+        if ("==".equals(name) || "!=".equals(name)) {
+            Class<?> common;
+            if (left == boolean.class && right == boolean.class) {
+                common = boolean.class;
+            } else if (leftType == null || rightType == null) {
+                common = leftType == null ? rightType : leftType;
+                if (common == null) {
+                    common = Object.class;
+                } else if (common.isPrimitive()) {
+                    throw new UnsupportedBytecodeException("Unsupported emitting null compared to " + common);
+                }
+            } else {
+                common = BytecodeBuilder.promote(left, right);
+                if (common == null || ! leftType.isPrimitive() && ! rightType.isPrimitive()) {
+                    throw new UnsupportedBytecodeException("Unsupported emitting " + leftType + " " + name + " " + rightType);
+                }
+            }
+            emitCompare(builder, name, common);
+            return;
+        } else if (compare) {
+            Class<?> common = BytecodeBuilder.promote(left, right);
+            if (common == null) {
+                throw new UnsupportedBytecodeException("Unsupported emitting " + leftType + " " + name + " " + rightType);
+            }
+            emitCompare(builder, name, common);
+            return;
+        }
+        Class<?> common;
+        if ("<<".equals(name) || ">>".equals(name) || ">>>".equals(name)) {
+            // the operands are promoted apart, the type is the left one.
+            common = BytecodeBuilder.promote(left, int.class);
+            Class<?> distance = BytecodeBuilder.promote(right, int.class);
+            if (common == null || distance == null || common == float.class || common == double.class
+                    || distance == float.class || distance == double.class) {
+                throw new UnsupportedBytecodeException("Unsupported emitting " + leftType + " " + name + " " + rightType);
+            }
+            checkResultType(name, common, type);
+            leftParameter.emit(builder);
+            builder.convert(leftType, common);
+            rightParameter.emit(builder);
+            builder.convert(rightType, int.class);
+        } else {
+            if (left == boolean.class && right == boolean.class 
+                    && ("&".equals(name) || "|".equals(name) || "^".equals(name))) {
+                common = boolean.class;
+            } else {
+                common = BytecodeBuilder.promote(left, right);
+                if (common == null) {
+                    throw new UnsupportedBytecodeException("Unsupported emitting " + leftType + " " + name + " " + rightType);
+                }
+            }
+            checkResultType(name, common, type);
+            leftParameter.emit(builder);
+            builder.convert(leftType, common);
+            rightParameter.emit(builder);
+            builder.convert(rightType, common);
+        }
+        builder.arithmetic(name, common);
+        builder.convert(common, type);
+    }
+
+    // the java result type must be the resolved type, or its box.
+    private static void checkResultType(String name, Class<?> common, Class<?> type) throws UnsupportedBytecodeException {
+        if (BytecodeBuilder.getPrimitive(type) != common) {
+            throw new UnsupportedBytecodeException("Unsupported emitting operator " + name + " of " + common + " as " + type);
+        }
+    }
+
+    private void emitCompare(BytecodeBuilder builder, String name, Class<?> common) throws ParseException, UnsupportedBytecodeException {
+        Class<?> type = common.isPrimitive() ? common : Object.class;
+        leftParameter.emit(builder);
+        builder.convert(leftParameter.getResolvedType(), type);
+        rightParameter.emit(builder);
+        builder.convert(rightParameter.getResolvedType(), type);
+        Label otherwise = builder.newLabel();
+        builder.compare(name, type, otherwise, false);
+        builder.pushBoolean(null, otherwise);
+    }
+
+    // the StringBuilder.append() overload of the java string concatenation.
+    private static Class<?> getAppendType(Class<?> type) {
+        if (type == null) {
+            return String.class;
+        } else if (type == byte.class || type == short.class) {
+            return int.class;
+        } else if (type.isPrimitive() || type == String.class) {
+            return type;
+        }
+        return Object.class;
+    }
+
+    private void emitIndex(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        Class<?> type = getResolvedType();
+        Class<?> leftType = leftParameter.getResolvedType();
+        Class<?> rightType = rightParameter.getResolvedType();
+        leftParameter.emit(builder);
+        if (Map.class.isAssignableFrom(leftType)) {
+            rightParameter.emit(builder, Object.class);
+            builder.invoke(leftType, "get", Object.class);
+            builder.convert(Object.class, type);
+        } else if (IntegerSequence.class.equals(rightType) || int[].class == rightType) {
+            rightParameter.emit(builder);
+            Method method;
+            try {
+                method = ClassUtils.searchMethod(ClassUtils.class, List.class.isAssignableFrom(leftType) ? "subList" : "subArray", new Class<?>[] { leftType, rightType });
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedBytecodeException(e.getMessage());
+            }
+            builder.invoke(null, method);
+            builder.convert(method.getReturnType(), type);
+        } else if (List.class.isAssignableFrom(leftType)) {
+            rightParameter.emit(builder);
+            builder.invoke(leftType, "get", int.class);
+            builder.convert(Object.class, type);
+        } else {
+            rightParameter.emit(builder);
+            builder.arrayLoad(type);
+        }
+    }
+
+    private void emitCall(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        String name =  getName().substring(1);
+        Class<?> type = getResolvedType();
+        Class<?> leftType = leftParameter.getResolvedType();
+        if ("to".equals(name) 
+                && rightParameter instanceof Constant
+                && rightParameter.getResolvedType() == String.class) {
+            String rightCode = rightParameter.getCode();
+            if (rightCode.length() > 2 && rightCode.startsWith("\"") && rightCode.endsWith("\"")) {
+                leftParameter.emit(builder);
+                builder.convert(leftType, type);
+                return;
+            }
+        } else if ("class".equals(name)) {
+            if (leftType.isPrimitive()) {
+                builder.pushClass(leftType);
+            } else {
+                leftParameter.emit(builder);
+                builder.invoke(Object.class, "getClass");
+            }
+            return;
+        }
+        Object target = resolve(name, leftType);
+        if (target == null) {
+            throw new UnsupportedBytecodeException("Unsupported emitting property " + name + " of " + leftType.getName());
+        }
+        Class<?>[] rightTypes = rightParameter.getReturnTypes();
+        if (target instanceof Method && function != null) {
+            Method method = (Method) target;
+            if (method.getReturnType() == void.class) {
+                throw new UnsupportedBytecodeException("Unsupported emitting void function " + method);
+            }
+            builder.pushFunction(function);
+            if (Modifier.isStatic(method.getModifiers())) {
+                builder.pop(function); // the static method is called on the instance by the java code.
+            }
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            leftParameter.emit(builder, parameterTypes[0]);
+            if (rightTypes != null && rightTypes.length > 0) {
+                rightParameter.emitAll(builder, parameterTypes, 1);
+            } else if (parameterTypes.length != 1) {
+                throw new UnsupportedBytecodeException("Unsupported emitting function " + method);
+            }
+            builder.invoke(function, method);
+            return;
+        }
+        if (leftType.isPrimitive() || target instanceof String && hasField(leftType, name)) {
+            // the null check of a primitive does not compile, and the field is not read by the java code.
+            throw new UnsupportedBytecodeException("Unsupported emitting property " + name + " of " + leftType.getName());
+        }
+        Label present = builder.newLabel();
+        Label end = builder.newLabel();
+        leftParameter.emit(builder);
+        builder.dup(leftType);
+        builder.branchIfNonNull(present);
+        builder.pop(leftType);
+        builder.pushInitValue(type);
+        builder.jump(end);
+        builder.mark(present);
+        if (target instanceof Method) {
+            Method method = (Method) target;
+            if (method.getReturnType() == void.class) {
+                throw new UnsupportedBytecodeException("Unsupported emitting void method " + method);
+            }
+            rightParameter.emitAll(builder, method.getParameterTypes(), 0);
+            builder.invoke(leftType, method);
+            builder.convert(method.getReturnType(), type);
+        } else {
+            builder.push((String) target);
+            builder.invoke(leftType, "get", Object.class);
+            builder.convert(Object.class, type);
+        }
+        builder.mark(end);
+    }
+
+    private static boolean hasField(Class<?> type, String name) {
+        try {
+            type.getField(name);
+            return true;
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    // the ClassUtils.subList or subArray of the sequence index.
+    private Method resolveIndex(Class<?> leftType, Class<?> rightType) {
+        Method method = (Method) target;
+        if (method == null) {
+            try {
+                method = ClassUtils.searchMethod(ClassUtils.class, List.class.isAssignableFrom(leftType) ? "subList" : "subArray", new Class<?>[] { leftType, rightType });
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+            target = method;
+        }
+        return method;
+    }
+
+    // the same branches as call(Engine, Map).
+    private boolean isCallable() throws ParseException {
+        String name =  getName().substring(1);
+        Class<?> leftType = leftParameter.getResolvedType();
+        if ("to".equals(name) 
+                && rightParameter instanceof Constant
+                && rightParameter.getResolvedType() == String.class) {
+            String rightCode = rightParameter.getCode();
+            if (rightCode.length() > 2 && rightCode.startsWith("\"") && rightCode.endsWith("\"")) {
+                return leftParameter.isInterpretable();
+            }
+        } else if ("class".equals(name)) {
+            return leftType != null && leftParameter.isInterpretable();
+        }
+        if (leftType == null || ! leftParameter.isInterpretable() || ! rightParameter.isInterpretableAll()) {
+            return false;
+        }
+        Object target = resolve(name, leftType);
+        if (target instanceof Method) {
+            return Interpreter.isAccessible((Method) target);
+        }
+        return target != null;
+    }
+
+    private Object call(Engine engine, Map<String, Object> parameters) throws ParseException {
+        String name =  getName().substring(1);
+        Class<?> leftType = leftParameter.getResolvedType();
+        if ("to".equals(name) 
+                && rightParameter instanceof Constant
+                && rightParameter.getResolvedType() == String.class) {
+            String rightCode = rightParameter.getCode();
+            if (rightCode.length() > 2 && rightCode.startsWith("\"") && rightCode.endsWith("\"")) {
+                return Interpreter.cast(getResolvedType(), leftParameter.evaluate(engine, parameters));
+            }
+        } else if ("class".equals(name)) {
+            if (leftType.isPrimitive()) {
+                return leftType;
+            }
+            return leftParameter.evaluate(engine, parameters).getClass();
+        }
+        Object target = resolve(name, leftType);
+        if (target == null) {
+            throw new IllegalStateException("Not interpretable property " + name + " of " + leftType.getName());
+        }
+        Object left = leftParameter.evaluate(engine, parameters);
+        Object[] rights = rightParameter.evaluateAll(engine, parameters);
+        if (target instanceof Method && function != null) {
+            Object[] args = new Object[rights.length + 1];
+            args[0] = left;
+            System.arraycopy(rights, 0, args, 1, rights.length);
+            return Interpreter.invoke((Method) target, engine.getFunction(function), args);
+        }
+        if (left == null) {
+            return Interpreter.getInitValue(getResolvedType());
+        }
+        if (target instanceof Method) {
+            return Interpreter.invoke((Method) target, left, rights);
+        }
+        return ((Map<?, ?>) left).get(target);
+    }
+
+    // the same resolution as getCode(), with the functions first, then the method, the property getter, and the map key.
+    private Object resolve(String name, Class<?> leftType) throws ParseException {
+        Object resolved = target;
+        if (resolved != null) {
+            return resolved;
+        }
+        Class<?>[] rightTypes = rightParameter.getReturnTypes();
+        Collection<Class<?>> functions = getFunctions();
+        if (functions != null && functions.size() > 0) {
+            Class<?>[] allTypes;
+            if (rightTypes == null || rightTypes.length == 0) {
+                allTypes = new Class<?>[] {leftType};
+            } else {
+                allTypes = new Class<?>[rightTypes.length + 1];
+                allTypes[0] = leftType;
+                System.arraycopy(rightTypes, 0, allTypes, 1, rightTypes.length);
+            }
+            for (Class<?> function : functions) {
+                try {
+                    Method method = ClassUtils.searchMethod(function, name, allTypes);
+                    if (Object.class.equals(method.getDeclaringClass())) {
+                        break;
+                    }
+                    this.function = function;
+                    target = method;
+                    return method;
+                } catch (NoSuchMethodException e) {
+                }
+            }
+        }
+        if (leftType == null) {
+            throw new ParseException("No such method " + name + "("
+                                     + Arrays.toString(rightTypes) + ") in null class.", getOffset());
+        }
+        try {
+            resolved = ClassUtils.searchMethod(leftType, name, rightTypes);
+        } catch (NoSuchMethodException e) {
+            if (rightTypes != null && rightTypes.length > 0 || name.startsWith("get") || name.startsWith("is")) {
+                throw new ParseException("No such method " + name + "("
+                        + Arrays.toString(rightTypes) + ") in class "
+                        + leftType.getName(), getOffset());
+            }
+            String property = name.substring(0, 1).toUpperCase() + name.substring(1);
+            try {
+                resolved = leftType.getMethod("get" + property, new Class<?>[0]);
+            } catch (NoSuchMethodException e2) {
+                try {
+                    resolved = leftType.getMethod("is" + property, new Class<?>[0]);
+                } catch (NoSuchMethodException e3) {
+                    if (Map.class.isAssignableFrom(leftType)) {
+                        resolved = name;
+                    } else {
+                        return null; // the java code reads the field.
+                    }
+                }
+            }
+        }
+        target = resolved;
+        return resolved;
+    }
+    
     private String getMethodName(Class<?> leftType, String name, Class<?>[] rightTypes, String leftCode, String rightCode) throws ParseException {
         if (leftType == null) {
             throw new ParseException("No such method " + name + "("
@@ -1,6 +1,13 @@
 package ths.template.support.translators.expression;
 
 import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import ths.template.Engine;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.UnsupportedBytecodeException;
 
 /**
  * Constant
@@ -42,6 +49,47 @@ public final class Constant extends AbstractExpression {
         return literal;
     }
 
+    @Override
+    public boolean isInterpretable() throws ParseException {
+        // the escapes are only decoded by the java code.
+        return ! (value instanceof String && ((String) value).indexOf('\\') >= 0);
+    }
+
+    @Override
+    public Object evaluate(Engine engine, Map<String, Object> parameters) throws ParseException {
+        if (! isInterpretable()) {
+            throw new IllegalStateException("Not interpretable escaped literal " + literal);
+        }
+        return value;
+    }
+
+    @Override
+    public Object[] evaluateAll(Engine engine, Map<String, Object> parameters) throws ParseException {
+        if (type == null) {
+            return new Object[0];
+        }
+        return new Object[] { evaluate(engine, parameters) };
+    }
+
+    @Override
+    public void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        if (this == EMPTY || value instanceof String && ((String) value).indexOf('\\') >= 0) {
+            throw new UnsupportedBytecodeException("Unsupported emitting literal " + literal);
+        }
+        builder.push(value, type);
+    }
+
+    @Override
+    protected List<AbstractExpression> getArguments() throws UnsupportedBytecodeException {
+        if (this == EMPTY) {
+            return Collections.emptyList();
+        } else if (type == null) {
+            // no parameter types, but the null code.
+            throw new UnsupportedBytecodeException("Unsupported emitting " + literal + " as parameters");
+        }
+        return super.getArguments();
+    }
+
     @Override
     public String toString() {
         return literal;
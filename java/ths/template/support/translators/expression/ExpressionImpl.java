@@ -2,23 +2,22 @@ package ths.template.support.translators.expression;
 
 import java.text.ParseException;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import ths.template.Engine;
 import ths.template.Evaluable;
 import ths.template.Expression;
 import ths.template.support.Compiler;
 import ths.template.support.Translator;
-import ths.template.util.ClassUtils;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.UnsupportedBytecodeException;
+import ths.template.support.compilers.Emittable;
 
 /**
  * ExpressionImpl. (SPI, Prototype, ThreadSafe)
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public class ExpressionImpl implements Expression {
-
-    private static final AtomicInteger sequence = new AtomicInteger();
+public class ExpressionImpl implements Expression, Emittable {
 
     private final Engine engine;
     
@@ -40,6 +39,8 @@ public class ExpressionImpl implements Expression {
 
     private final String[] importPackages;
 
+    private Expression node;
+
     public ExpressionImpl(Engine engine, Compiler compiler, Translator resolver, String source, Map<String, Class<?>> parameterTypes, int offset, String code, Class<?> returnType, String[] importPackages){
         this.engine = engine;
         this.compiler = compiler;
@@ -51,6 +52,22 @@ public class ExpressionImpl implements Expression {
         this.returnType = returnType;
         this.importPackages = importPackages;
     }
+
+    /**
+     * @param evaluator - shared by the expressions translated from the same source and types.
+     */
+    public ExpressionImpl(Engine engine, Compiler compiler, Translator resolver, String source, Map<String, Class<?>> parameterTypes, int offset, String code, Class<?> returnType, String[] importPackages, Evaluable evaluator){
+        this(engine, compiler, resolver, source, parameterTypes, offset, code, returnType, importPackages);
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * @param node - the translated expression tree, emitted for the bytecode compiler.
+     */
+    public ExpressionImpl(Engine engine, Compiler compiler, Translator resolver, String source, Map<String, Class<?>> parameterTypes, int offset, String code, Class<?> returnType, String[] importPackages, Evaluable evaluator, Expression node){
+        this(engine, compiler, resolver, source, parameterTypes, offset, code, returnType, importPackages, evaluator);
+        this.node = node;
+    }
     
     public Translator getResolver() {
         return resolver;
@@ -75,44 +92,30 @@ public class ExpressionImpl implements Expression {
     public int getOffset() {
         return offset;
     }
+
+    /**
+     * Get the translated expression tree, or null if the expression was not translated from it.
+     */
+    public Expression getNode() {
+        return node;
+    }
     
     public Object evaluate(Map<String, Object> parameters) throws ParseException {
         if (evaluator == null) {
             synchronized (this) {
                 if (evaluator == null) {
-                    evaluator = newEvaluator();
+                    evaluator = new TieredEvaluator(engine, compiler, code, importPackages, offset, null, 0);
                 }
             }
         }
         return evaluator.evaluate(parameters);
     }
-    
-    private Evaluable newEvaluator() throws ParseException {
-        StringBuilder imports = new StringBuilder();
-        String[] packages = importPackages;
-        if (packages != null && packages.length > 0) {
-            for (String pkg : packages) {
-                imports.append("import ");
-                imports.append(pkg);
-                imports.append(".*;\n");
-            }
-        }
-        String className = (ExpressionImpl.class.getSimpleName() + "_" + sequence.incrementAndGet());
-        String sourceCode = "package " + ExpressionImpl.class.getPackage().getName() + ";\n" 
-                + imports.toString()
-                + "public class " + className + " extends " + AbstractEvaluator.class.getName() + " {\n" 
-                + "public " + className + "(" + Engine.class.getName() + " engine) {\n" 
-                + "super(engine);\n" 
-                + "}\n"
-                + "public " + Object.class.getSimpleName() + " evaluate(" + Map.class.getName() + " parameters) throws " + ParseException.class.getName() + " {\n"
-                + "return " + ClassUtils.class.getName() + ".boxed(" + getCode() + ");\n"
-                + "}\n"
-                + "}";
-        try {
-            return (Evaluable) compiler.compile(sourceCode).getConstructor(Engine.class).newInstance(engine);
-        } catch (Exception e) {
-            throw new ParseException("Failed to parse expression code: \n" + sourceCode + ", cause:" + ClassUtils.toString(e), getOffset());
+
+    public void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        if (! (node instanceof Emittable)) {
+            throw new UnsupportedBytecodeException("Unsupported emitting expression " + source);
         }
+        ((Emittable) node).emit(builder);
     }
     
 }
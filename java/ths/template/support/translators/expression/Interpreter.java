@@ -0,0 +1,433 @@
+package ths.template.support.translators.expression;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Map;
+
+import ths.template.util.ClassUtils;
+
+/**
+ * Interpreter. (Tool, Static, ThreadSafe)
+ *
+ * The java semantics of the operators on boxed values, for interpreting the expression tree.
+ * Where the result depends on the declared type, such as the condition of a value, the static type is given.
+ * The is* checks decide from the static types whether an operator is interpreted, before any evaluation.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+final class Interpreter {
+
+    private static final int INT = 0;
+
+    private static final int LONG = 1;
+
+    private static final int FLOAT = 2;
+
+    private static final int DOUBLE = 3;
+
+    private Interpreter() {}
+
+    /**
+     * Can isTrue(type, value) test the value of the type.
+     */
+    public static boolean isTestable(Class<?> type) {
+        if (type == null) {
+            return false;
+        } else if (type.isPrimitive()
+                || type == String.class
+                || type.isArray()
+                || Collection.class.isAssignableFrom(type)
+                || Map.class.isAssignableFrom(type)) {
+            return true;
+        }
+        String method = ClassUtils.getSizeMethod(type);
+        if (method != null && method.length() > 0) {
+            try {
+                return isAccessible(type.getMethod(method.substring(0, method.length() - 2), new Class<?>[0]));
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Can invoke(method, target, args) call the method by reflection.
+     */
+    public static boolean isAccessible(Method method) {
+        return Modifier.isPublic(method.getModifiers())
+                && Modifier.isPublic(method.getDeclaringClass().getModifiers());
+    }
+
+    /**
+     * Can newInstance(constructor, args) call the constructor by reflection.
+     */
+    public static boolean isAccessible(Constructor<?> constructor) {
+        Class<?> type = constructor.getDeclaringClass();
+        return Modifier.isPublic(constructor.getModifiers())
+                && Modifier.isPublic(type.getModifiers())
+                && ! Modifier.isAbstract(type.getModifiers());
+    }
+
+    /**
+     * Can unary(name, value) interpret the operator on the type.
+     */
+    public static boolean isUnary(String name, Class<?> type) {
+        if ("!".equals(name)) {
+            return type == boolean.class || type == Boolean.class;
+        } else if ("-".equals(name) || "+".equals(name)) {
+            return isNumeric(type);
+        } else if ("~".equals(name)) {
+            return isIntegral(type);
+        }
+        return false;
+    }
+
+    /**
+     * Can binary(name, left, right) interpret the operator on the types.
+     */
+    public static boolean isBinary(String name, Class<?> leftType, Class<?> rightType) {
+        if ((leftType == boolean.class || leftType == Boolean.class)
+                && (rightType == boolean.class || rightType == Boolean.class)) {
+            return "==".equals(name) || "!=".equals(name)
+                    || "&".equals(name) || "|".equals(name) || "^".equals(name);
+        } else if ("==".equals(name) || "!=".equals(name)) {
+            return true;
+        } else if ("<<".equals(name) || ">>".equals(name) || ">>>".equals(name)
+                || "&".equals(name) || "|".equals(name) || "^".equals(name)) {
+            return isIntegral(leftType) && isIntegral(rightType);
+        } else if ("<".equals(name) || "<=".equals(name) || ">".equals(name) || ">=".equals(name)
+                || "+".equals(name) || "-".equals(name) || "*".equals(name) || "/".equals(name) || "%".equals(name)) {
+            return isNumeric(leftType) && isNumeric(rightType);
+        }
+        return false;
+    }
+
+    private static boolean isNumeric(Class<?> type) {
+        return isIntegral(type)
+                || type == float.class || type == Float.class
+                || type == double.class || type == Double.class;
+    }
+
+    private static boolean isIntegral(Class<?> type) {
+        return type == int.class || type == Integer.class
+                || type == long.class || type == Long.class
+                || type == short.class || type == Short.class
+                || type == byte.class || type == Byte.class
+                || type == char.class || type == Character.class;
+    }
+
+    /**
+     * The same condition as StringUtils.getConditionCode(type, code).
+     */
+    public static boolean isTrue(Class<?> type, Object value) throws ParseException {
+        if (type == boolean.class || type == null) {
+            return ((Boolean) value).booleanValue();
+        } else if (type == byte.class
+                || type == short.class
+                || type == int.class
+                || type == long.class) {
+            return ((Number) value).longValue() != 0;
+        } else if (type == float.class
+                || type == double.class) {
+            return ((Number) value).doubleValue() != 0;
+        } else if (type == char.class) {
+            return ((Character) value).charValue() != '\0';
+        } else if (type == String.class) {
+            return ((String) value).length() > 0;
+        } else if (type.isArray()) {
+            return Array.getLength(value) > 0;
+        } else if (Collection.class.isAssignableFrom(type)) {
+            return ((Collection<?>) value).size() > 0;
+        } else if (Map.class.isAssignableFrom(type)) {
+            return ((Map<?, ?>) value).size() > 0;
+        }
+        String method = ClassUtils.getSizeMethod(type);
+        if (method != null && method.length() > 0) {
+            try {
+                Object size = invoke(type.getMethod(method.substring(0, method.length() - 2), new Class<?>[0]), value, new Object[0]);
+                return ((Number) size).longValue() > 0;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return value != null;
+    }
+
+    /**
+     * The boxed value of ClassUtils.getInitCode(type).
+     */
+    public static Object getInitValue(Class<?> type) {
+        if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        } else if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        } else if (type == short.class) {
+            return Short.valueOf((short) 0);
+        } else if (type == float.class) {
+            return Float.valueOf(0);
+        } else if (type == double.class) {
+            return Double.valueOf(0);
+        } else if (type == char.class) {
+            return Character.valueOf('\0');
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    public static Object cast(Class<?> type, Object value) {
+        if (type.isPrimitive()) {
+            if (type == boolean.class) {
+                return (Boolean) value;
+            }
+            if (value instanceof Character) {
+                value = Integer.valueOf(((Character) value).charValue());
+            }
+            Number number = (Number) value;
+            if (type == int.class) {
+                return Integer.valueOf(number.intValue());
+            } else if (type == long.class) {
+                return Long.valueOf(number.longValue());
+            } else if (type == double.class) {
+                return Double.valueOf(number.doubleValue());
+            } else if (type == float.class) {
+                return Float.valueOf(number.floatValue());
+            } else if (type == short.class) {
+                return Short.valueOf(number.shortValue());
+            } else if (type == byte.class) {
+                return Byte.valueOf(number.byteValue());
+            } else {
+                return Character.valueOf((char) number.intValue());
+            }
+        }
+        if (value != null && ! type.isInstance(value)) {
+            throw new ClassCastException(value.getClass().getName() + " cannot be cast to " + type.getName());
+        }
+        return value;
+    }
+
+    public static Object unary(String name, Object value) {
+        if ("!".equals(name)) {
+            return Boolean.valueOf(! ((Boolean) value).booleanValue());
+        }
+        int kind = getKind(value, Integer.valueOf(0));
+        if ("-".equals(name)) {
+            switch (kind) {
+                case DOUBLE: return Double.valueOf(- toNumber(value).doubleValue());
+                case FLOAT: return Float.valueOf(- toNumber(value).floatValue());
+                case LONG: return Long.valueOf(- toNumber(value).longValue());
+                default: return Integer.valueOf(- toNumber(value).intValue());
+            }
+        } else if ("+".equals(name)) {
+            return cast(kind == DOUBLE ? double.class : kind == FLOAT ? float.class : kind == LONG ? long.class : int.class, value);
+        } else if ("~".equals(name)) {
+            if (kind == LONG) {
+                return Long.valueOf(~ toNumber(value).longValue());
+            } else if (kind == INT) {
+                return Integer.valueOf(~ toNumber(value).intValue());
+            }
+        }
+        throw new IllegalStateException("Not interpretable operator " + name);
+    }
+
+    /**
+     * The arithmetic, bitwise, shift and compare operators on numbers, characters and booleans.
+     */
+    public static Object binary(String name, Object left, Object right) {
+        if (left instanceof Boolean && right instanceof Boolean) {
+            boolean l = ((Boolean) left).booleanValue();
+            boolean r = ((Boolean) right).booleanValue();
+            if ("==".equals(name)) {
+                return Boolean.valueOf(l == r);
+            } else if ("!=".equals(name)) {
+                return Boolean.valueOf(l != r);
+            } else if ("&".equals(name)) {
+                return Boolean.valueOf(l & r);
+            } else if ("|".equals(name)) {
+                return Boolean.valueOf(l | r);
+            } else if ("^".equals(name)) {
+                return Boolean.valueOf(l ^ r);
+            }
+            throw new IllegalStateException("Not interpretable operator " + name + " on boolean");
+        }
+        if ("==".equals(name) || "!=".equals(name)) {
+            boolean equal;
+            if ((left instanceof Number || left instanceof Character)
+                    && (right instanceof Number || right instanceof Character)) {
+                equal = compare(left, right) == 0;
+            } else {
+                equal = left == right;
+            }
+            return Boolean.valueOf("==".equals(name) ? equal : ! equal);
+        }
+        if ("<<".equals(name) || ">>".equals(name) || ">>>".equals(name)) {
+            int distance = toNumber(right).intValue();
+            if (getKind(left, Integer.valueOf(0)) == LONG) {
+                long l = toNumber(left).longValue();
+                return Long.valueOf("<<".equals(name) ? l << distance : ">>".equals(name) ? l >> distance : l >>> distance);
+            }
+            int l = toNumber(left).intValue();
+            return Integer.valueOf("<<".equals(name) ? l << distance : ">>".equals(name) ? l >> distance : l >>> distance);
+        }
+        if ("<".equals(name)) {
+            return Boolean.valueOf(compare(left, right) < 0);
+        } else if ("<=".equals(name)) {
+            return Boolean.valueOf(compare(left, right) <= 0);
+        } else if (">".equals(name)) {
+            return Boolean.valueOf(compare(left, right) > 0);
+        } else if (">=".equals(name)) {
+            return Boolean.valueOf(compare(left, right) >= 0);
+        }
+        int kind = getKind(left, right);
+        Number l = toNumber(left);
+        Number r = toNumber(right);
+        if (kind == DOUBLE || kind == FLOAT) {
+            double a = l.doubleValue();
+            double b = r.doubleValue();
+            double result;
+            if ("+".equals(name)) {
+                result = a + b;
+            } else if ("-".equals(name)) {
+                result = a - b;
+            } else if ("*".equals(name)) {
+                result = a * b;
+            } else if ("/".equals(name)) {
+                result = kind == FLOAT ? l.floatValue() / r.floatValue() : a / b;
+            } else if ("%".equals(name)) {
+                result = kind == FLOAT ? l.floatValue() % r.floatValue() : a % b;
+            } else {
+                throw new IllegalStateException("Not interpretable operator " + name + " on floating point");
+            }
+            return kind == FLOAT ? (Object) Float.valueOf((float) result) : (Object) Double.valueOf(result);
+        }
+        long a = l.longValue();
+        long b = r.longValue();
+        long result;
+        if ("+".equals(name)) {
+            result = a + b;
+        } else if ("-".equals(name)) {
+            result = a - b;
+        } else if ("*".equals(name)) {
+            result = a * b;
+        } else if ("/".equals(name)) {
+            result = kind == INT ? l.intValue() / r.intValue() : a / b;
+        } else if ("%".equals(name)) {
+            result = kind == INT ? l.intValue() % r.intValue() : a % b;
+        } else if ("&".equals(name)) {
+            result = a & b;
+        } else if ("|".equals(name)) {
+            result = a | b;
+        } else if ("^".equals(name)) {
+            result = a ^ b;
+        } else {
+            throw new IllegalStateException("Not interpretable operator " + name);
+        }
+        return kind == INT ? (Object) Integer.valueOf((int) result) : (Object) Long.valueOf(result);
+    }
+
+    private static int compare(Object left, Object right) {
+        int kind = getKind(left, right);
+        if (kind == DOUBLE || kind == FLOAT) {
+            double a = toNumber(left).doubleValue();
+            double b = toNumber(right).doubleValue();
+            return a < b ? -1 : (a > b ? 1 : (a == b ? 0 : 2)); // NaN is not equal to anything.
+        }
+        long a = toNumber(left).longValue();
+        long b = toNumber(right).longValue();
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    // binary numeric promotion, the null box is unboxed by the java code.
+    private static int getKind(Object left, Object right) {
+        if (left == null || right == null) {
+            throw new NullPointerException();
+        }
+        if (left instanceof Double || right instanceof Double) {
+            return DOUBLE;
+        } else if (left instanceof Float || right instanceof Float) {
+            return FLOAT;
+        } else if (left instanceof Long || right instanceof Long) {
+            return LONG;
+        } else if ((left instanceof Integer || left instanceof Short || left instanceof Byte || left instanceof Character)
+                && (right instanceof Integer || right instanceof Short || right instanceof Byte || right instanceof Character)) {
+            return INT;
+        }
+        throw new ClassCastException("Not numeric operands "
+                + left.getClass().getName() + " and " + right.getClass().getName());
+    }
+
+    private static Number toNumber(Object value) {
+        if (value instanceof Character) {
+            return Integer.valueOf(((Character) value).charValue());
+        }
+        return (Number) value;
+    }
+
+    public static Object invoke(Method method, Object target, Object[] args) throws ParseException {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (InvocationTargetException e) {
+            throw toRuntimeException(e.getCause());
+        }
+    }
+
+    public static Object newInstance(Constructor<?> constructor, Object[] args) throws ParseException {
+        try {
+            return constructor.newInstance(args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (InvocationTargetException e) {
+            throw toRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Search the constructor as the compiler does for the declared parameter types, the same as ClassUtils.searchMethod.
+     */
+    public static Constructor<?> searchConstructor(Class<?> type, Class<?>[] parameterTypes) throws NoSuchMethodException {
+        try {
+            return type.getConstructor(parameterTypes);
+        } catch (NoSuchMethodException e) {
+            for (Constructor<?> constructor : type.getConstructors()) {
+                Class<?>[] types = constructor.getParameterTypes();
+                if (types.length == parameterTypes.length) {
+                    boolean match = true;
+                    for (int i = 0; i < parameterTypes.length; i ++) {
+                        if (! types[i].isAssignableFrom(parameterTypes[i])) {
+                            match = false;
+                            break;
+                        }
+                    }
+                    if (match) {
+                        return constructor;
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static RuntimeException toRuntimeException(Throwable cause) throws ParseException {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause instanceof ParseException) {
+            throw (ParseException) cause;
+        }
+        return new IllegalStateException(cause.getMessage(), cause);
+    }
+
+}
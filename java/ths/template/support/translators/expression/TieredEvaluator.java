@@ -0,0 +1,286 @@
+package ths.template.support.translators.expression;
+
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.bytecode.ClassFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ths.template.Engine;
+import ths.template.Evaluable;
+import ths.template.Expression;
+import ths.template.Template;
+import ths.template.support.Compiler;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.BytecodeCompiler;
+import ths.template.support.compilers.UnsupportedBytecodeException;
+import ths.template.util.ClassUtils;
+import ths.template.util.StringUtils;
+
+/**
+ * TieredEvaluator. (Tool, Prototype, ThreadSafe)
+ *
+ * Interprets the expression tree until it has been evaluated the compile threshold times,
+ * then compiles it in the background, and switches to the compiled class once it is ready.
+ * A threshold of 0 compiles on the first evaluation, as does a tree not interpretable as a whole,
+ * which is known before the first evaluation, so no evaluation is started over with the compiled class.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TieredEvaluator implements Evaluable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieredEvaluator.class);
+
+    private static final int MAX_PENDING = 1000;
+
+    private static final ThreadPoolExecutor COMPILE_EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ExpressionCompiler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        COMPILE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Engine engine;
+
+    private final Compiler compiler;
+
+    private final String code;
+
+    private final String[] importPackages;
+
+    private final int offset;
+
+    private final AbstractExpression node;
+
+    private final Map<String, Class<?>> variableTypes;
+
+    private final int threshold;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final AtomicBoolean compiling = new AtomicBoolean();
+
+    private final boolean interpretable;
+
+    private volatile Evaluable compiled;
+
+    /**
+     * @param node - the translated expression tree, or null to compile only.
+     * @param threshold - the evaluations interpreted before compiling.
+     */
+    public TieredEvaluator(Engine engine, Compiler compiler, String code, String[] importPackages, int offset, Expression node, int threshold) throws ParseException {
+        this.engine = engine;
+        this.compiler = compiler;
+        this.code = code;
+        this.importPackages = importPackages;
+        this.offset = offset;
+        this.threshold = threshold;
+        this.variableTypes = new LinkedHashMap<String, Class<?>>();
+        if (node != null) {
+            collectVariables(node, variableTypes);
+        }
+        this.node = node instanceof AbstractExpression ? (AbstractExpression) node : null;
+        this.interpretable = this.node != null && threshold > 0 && isInterpretable(this.node);
+    }
+
+    private static boolean isInterpretable(AbstractExpression node) {
+        try {
+            return node.isInterpretable();
+        } catch (ParseException e) {
+            return false; // reported by the compilation.
+        }
+    }
+
+    public Object evaluate(Map<String, Object> parameters) throws ParseException {
+        if (parameters == null) {
+            parameters = Collections.emptyMap();
+        }
+        Evaluable evaluator = compiled;
+        if (evaluator != null) {
+            return evaluator.evaluate(parameters);
+        }
+        if (interpretable) {
+            if (count.incrementAndGet() >= threshold && compiling.compareAndSet(false, true)) {
+                compileAsync();
+            }
+            return node.evaluate(engine, parameters);
+        }
+        return getCompiled().evaluate(parameters);
+    }
+
+    private void compileAsync() {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            COMPILE_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    ClassLoader old = thread.getContextClassLoader();
+                    thread.setContextClassLoader(classLoader);
+                    try {
+                        getCompiled();
+                    } catch (Throwable e) {
+                        // keep interpreting.
+                        logger.warn("Failed to compile expression " + code + ", cause: " + e.getMessage(), e);
+                    } finally {
+                        thread.setContextClassLoader(old);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compiling.set(false); // too many pending, retry on the next evaluation.
+        }
+    }
+
+    private Evaluable getCompiled() throws ParseException {
+        if (compiled == null) {
+            synchronized (this) {
+                if (compiled == null) {
+                    compiled = compile();
+                }
+            }
+        }
+        return compiled;
+    }
+
+    private Evaluable compile() throws ParseException {
+        StringBuilder imports = new StringBuilder();
+        String[] packages = importPackages;
+        if (packages != null && packages.length > 0) {
+            for (String pkg : packages) {
+                imports.append("import ");
+                imports.append(pkg);
+                imports.append(".*;\n");
+            }
+        }
+        StringBuilder variables = new StringBuilder();
+        for (Map.Entry<String, Class<?>> entry : variableTypes.entrySet()) {
+            String name = entry.getKey();
+            Class<?> type = entry.getValue();
+            String typeName = type.getCanonicalName() == null ? type.getName() : type.getCanonicalName();
+            variables.append(typeName + " " + name + " = ");
+            if (type.isPrimitive()) {
+                variables.append(ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(type).getName() + ") $parameters.get(\"" + name + "\"));\n");
+            } else {
+                variables.append("(" + typeName + ") $parameters.get(\"" + name + "\");\n");
+            }
+        }
+        // named by content, so the same expression reuses the class compiled before, even after restart.
+        String className = ExpressionImpl.class.getSimpleName() + "_" + StringUtils.getDigest(imports.toString() + variables + code);
+        if (compiler instanceof BytecodeCompiler && node != null) {
+            Evaluable evaluator = emit(ExpressionImpl.class.getPackage().getName() + "." + className);
+            if (evaluator != null) {
+                return evaluator;
+            }
+        }
+        String sourceCode = "package " + ExpressionImpl.class.getPackage().getName() + ";\n"
+                + imports.toString()
+                + "public class " + className + " extends " + AbstractEvaluator.class.getName() + " {\n"
+                + "public " + className + "(" + Engine.class.getName() + " engine) {\n"
+                + "super(engine);\n"
+                + "}\n"
+                + "@SuppressWarnings(\"unchecked\")\n"
+                + "public " + Object.class.getSimpleName() + " evaluate(" + Map.class.getName() + " $parameters) throws " + ParseException.class.getName() + " {\n"
+                + variables
+                + "return " + ClassUtils.class.getName() + ".boxed(" + code + ");\n"
+                + "}\n"
+                + "}";
+        try {
+            return (Evaluable) compiler.compile(sourceCode).getConstructor(Engine.class).newInstance(engine);
+        } catch (Exception e) {
+            throw new ParseException("Failed to parse expression code: \n" + sourceCode + ", cause:" + ClassUtils.toString(e), offset);
+        }
+    }
+
+    // the same class as the code, emitted as bytecode, or null if it can only be compiled from the code.
+    private Evaluable emit(String name) throws ParseException {
+        BytecodeCompiler bytecodeCompiler = (BytecodeCompiler) compiler;
+        Class<?> clazz = bytecodeCompiler.load(name);
+        if (clazz == null) {
+            byte[] bytecode;
+            try {
+                bytecode = toBytecode(name);
+            } catch (UnsupportedBytecodeException e) {
+                logger.debug("Compile expression " + code + " from the code, cause: " + e.getMessage());
+                return null;
+            }
+            clazz = bytecodeCompiler.compile(name, bytecode);
+        }
+        try {
+            return (Evaluable) clazz.getConstructor(Engine.class).newInstance(engine);
+        } catch (Exception e) {
+            throw new ParseException("Failed to create expression " + code + ", cause:" + ClassUtils.toString(e), offset);
+        }
+    }
+
+    private byte[] toBytecode(String name) throws ParseException, UnsupportedBytecodeException {
+        ClassFile classFile = BytecodeBuilder.newClass(name, AbstractEvaluator.class);
+        BytecodeBuilder constructor = new BytecodeBuilder(classFile, Modifier.PUBLIC, "<init>", void.class, Engine.class);
+        constructor.pushThis();
+        constructor.load(1, Engine.class);
+        constructor.invokeSuperConstructor(Engine.class);
+        constructor.returnValue(void.class);
+        constructor.addMethod();
+        BytecodeBuilder builder = new BytecodeBuilder(classFile, Modifier.PUBLIC, "evaluate", Object.class, Map.class);
+        for (Map.Entry<String, Class<?>> entry : variableTypes.entrySet()) {
+            Class<?> type = entry.getValue();
+            builder.load(1, Map.class);
+            builder.push(entry.getKey());
+            builder.invoke(Map.class, "get", Object.class);
+            if (type.isPrimitive()) {
+                Class<?> boxed = ClassUtils.getBoxedClass(type);
+                builder.checkcast(boxed);
+                builder.invoke(ClassUtils.class, "unboxed", boxed);
+            } else {
+                builder.checkcast(type);
+            }
+            builder.store(builder.declare(entry.getKey(), type), type);
+        }
+        node.emit(builder);
+        Class<?> type = node.getReturnType();
+        if (type != null && type.isPrimitive()) {
+            builder.box(type);
+        }
+        builder.returnValue(Object.class);
+        builder.addMethod();
+        return BytecodeBuilder.toBytecode(classFile);
+    }
+
+    // the variables and macros referenced by the code, declared from the parameters in the compiled class.
+    private static void collectVariables(Expression node, Map<String, Class<?>> variableTypes) throws ParseException {
+        if (node instanceof Variable) {
+            variableTypes.put(((Variable) node).getName(), node.getReturnType());
+        } else if (node instanceof UnaryOperator) {
+            UnaryOperator operator = (UnaryOperator) node;
+            if (StringUtils.isFunction(operator.getName())) {
+                String name = operator.getName().substring(1);
+                Class<?> type = operator.getParameterTypes().get(name);
+                if (type != null && Template.class.isAssignableFrom(type)) {
+                    variableTypes.put(name, type);
+                }
+            }
+            collectVariables(operator.getParameter(), variableTypes);
+        } else if (node instanceof BinaryOperator) {
+            collectVariables(((BinaryOperator) node).getLeftParameter(), variableTypes);
+            collectVariables(((BinaryOperator) node).getRightParameter(), variableTypes);
+        }
+    }
+
+}
@@ -1,15 +1,22 @@
 package ths.template.support.translators.expression;
 
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import ths.template.Engine;
 import ths.template.Expression;
 import ths.template.Template;
 import ths.template.support.Translator;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.UnsupportedBytecodeException;
 import ths.template.util.ClassUtils;
 import ths.template.util.StringUtils;
 
@@ -22,6 +29,11 @@ public final class UnaryOperator extends Operator {
 
     private AbstractExpression parameter;
 
+    // the resolved constructor, function method, or macro name.
+    private volatile Object target;
+
+    private volatile Class<?> function;
+
     public UnaryOperator(Translator resolver, String source, int offset, Map<String, Class<?>> parameterTypes, 
                          Collection<Class<?>> functions, String[] packages, String name, int priority) {
         super(resolver, source, offset, parameterTypes, functions, packages, name, priority);
@@ -120,4 +132,179 @@ public final class UnaryOperator extends Operator {
         }
     }
 
+    @Override
+    public boolean isInterpretable() throws ParseException {
+        if (StringUtils.isTyped(getName()) && ! getName().startsWith("new ")) {
+            return parameter.isInterpretable();
+        } else if (getName().equals("[")) {
+            return parameter.isInterpretableAll();
+        } else if (! getName().startsWith("new ") && ! StringUtils.isFunction(getName())) {
+            return parameter.isInterpretable() && Interpreter.isUnary(getName(), parameter.getResolvedType());
+        }
+        if (! parameter.isInterpretableAll()) {
+            return false;
+        }
+        Object target = resolve();
+        if (target instanceof Constructor<?>) {
+            return Interpreter.isAccessible((Constructor<?>) target);
+        } else if (target instanceof Method) {
+            return Interpreter.isAccessible((Method) target);
+        }
+        return target != null;
+    }
+
+    @Override
+    public Object evaluate(Engine engine, Map<String, Object> parameters) throws ParseException {
+        if (StringUtils.isTyped(getName()) && ! getName().startsWith("new ")) {
+            return Interpreter.cast(getResolvedType(), parameter.evaluate(engine, parameters));
+        } else if (getName().equals("[")) {
+            Object[] values = parameter.evaluateAll(engine, parameters);
+            Class<?> type = getResolvedType();
+            if (Map.class == type) {
+                Map<Object, Object> map = new HashMap<Object, Object>();
+                for (Object value : values) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) value;
+                    map.put(entry.getKey(), entry.getValue());
+                }
+                return map;
+            }
+            Object array = Array.newInstance(type.getComponentType(), values.length);
+            for (int i = 0; i < values.length; i ++) {
+                Array.set(array, i, Interpreter.cast(type.getComponentType(), values[i]));
+            }
+            return array;
+        } else if (! getName().startsWith("new ") && ! StringUtils.isFunction(getName())) {
+            return Interpreter.unary(getName(), parameter.evaluate(engine, parameters));
+        }
+        Object target = resolve();
+        if (target == null) {
+            throw new IllegalStateException("Not interpretable constructor " + getName());
+        }
+        Object[] args = parameter.evaluateAll(engine, parameters);
+        if (target instanceof Constructor<?>) {
+            return Interpreter.newInstance((Constructor<?>) target, args);
+        } else if (target instanceof Method) {
+            return Interpreter.invoke((Method) target, engine.getFunction(function), args);
+        }
+        Template macro = (Template) parameters.get(target);
+        return macro.render(args);
+    }
+
+    @Override
+    public void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        String name = getName();
+        Class<?> type = getResolvedType();
+        if (StringUtils.isTyped(name) && ! name.startsWith("new ")) {
+            parameter.emit(builder);
+            builder.convert(parameter.getResolvedType(), type);
+        } else if (name.equals("[")) {
+            List<AbstractExpression> arguments = parameter.getArguments();
+            Class<?> componentType = Map.class == type ? Map.Entry.class : type.getComponentType();
+            builder.newArray(componentType, arguments.size());
+            for (int i = 0; i < arguments.size(); i ++) {
+                builder.dup(Object[].class);
+                builder.push(Integer.valueOf(i), int.class);
+                arguments.get(i).emit(builder, componentType);
+                builder.arrayStore(componentType);
+            }
+            if (Map.class == type) {
+                builder.invoke(ClassUtils.class, "toMap", Map.Entry[].class);
+            }
+        } else if (! name.startsWith("new ") && ! StringUtils.isFunction(name)) {
+            Class<?> primitive = BytecodeBuilder.getPrimitive(type);
+            if ("!".equals(name) ? primitive != boolean.class 
+                    : primitive != int.class && primitive != long.class && primitive != float.class && primitive != double.class) {
+                // the byte, short and char operands are promoted to int by the java code.
+                throw new UnsupportedBytecodeException("Unsupported emitting operator " + name + " of type " + type);
+            }
+            parameter.emit(builder);
+            builder.convert(type, primitive);
+            if ("!".equals(name)) {
+                builder.push(Boolean.TRUE, boolean.class);
+                builder.arithmetic("^", boolean.class);
+            } else if ("-".equals(name)) {
+                builder.negate(primitive);
+            } else if ("~".equals(name)) {
+                builder.push(primitive == long.class ? (Object) Long.valueOf(-1) : Integer.valueOf(-1), primitive);
+                builder.arithmetic("^", primitive);
+            } else if (! "+".equals(name)) {
+                throw new UnsupportedBytecodeException("Unsupported emitting operator " + name);
+            }
+            builder.convert(primitive, type);
+        } else {
+            Object target = resolve();
+            if (target == null) {
+                throw new UnsupportedBytecodeException("Unsupported emitting constructor " + name);
+            } else if (target instanceof Constructor<?>) {
+                Constructor<?> constructor = (Constructor<?>) target;
+                builder.newInstance(type);
+                parameter.emitAll(builder, constructor.getParameterTypes(), 0);
+                builder.invoke(constructor);
+            } else if (target instanceof Method) {
+                Method method = (Method) target;
+                if (method.getReturnType() == void.class) {
+                    throw new UnsupportedBytecodeException("Unsupported emitting void function " + method);
+                }
+                builder.pushFunction(function);
+                if (Modifier.isStatic(method.getModifiers())) {
+                    builder.pop(function); // the static method is called on the instance by the java code.
+                }
+                parameter.emitAll(builder, method.getParameterTypes(), 0);
+                builder.invoke(function, method);
+            } else {
+                builder.load((String) target);
+                List<AbstractExpression> arguments = parameter.getArguments();
+                builder.newArray(Object.class, arguments.size());
+                for (int i = 0; i < arguments.size(); i ++) {
+                    builder.dup(Object[].class);
+                    builder.push(Integer.valueOf(i), int.class);
+                    arguments.get(i).emit(builder, Object.class);
+                    builder.arrayStore(Object.class);
+                }
+                builder.invoke(Template.class, "render", Object[].class);
+            }
+        }
+    }
+
+    private Object resolve() throws ParseException {
+        Object resolved = target;
+        if (resolved == null) {
+            Class<?>[] types = parameter.getReturnTypes();
+            if (getName().startsWith("new ")) {
+                try {
+                    resolved = Interpreter.searchConstructor(getResolvedType(), types);
+                } catch (NoSuchMethodException e) {
+                    return null; // the java code searches the constructor by javac.
+                }
+            } else {
+                String name = getName().substring(1);
+                Class<?> t = getParameterTypes().get(name);
+                if (t != null && Template.class.isAssignableFrom(t)) {
+                    resolved = name;
+                } else {
+                    Collection<Class<?>> functions = getFunctions();
+                    if (functions != null && functions.size() > 0) {
+                        for (Class<?> function : functions) {
+                            try {
+                                Method method = ClassUtils.searchMethod(function, name, types);
+                                if (Object.class.equals(method.getDeclaringClass())) {
+                                    break;
+                                }
+                                this.function = function;
+                                resolved = method;
+                                break;
+                            } catch (NoSuchMethodException e) {
+                            }
+                        }
+                    }
+                    if (resolved == null) {
+                        throw new ParseException("No such macro \"" + name + "\" or static method \"" + name + "\" with parameters " + Arrays.toString(types) + " in functions!", getOffset());
+                    }
+                }
+            }
+            target = resolved;
+        }
+        return resolved;
+    }
+
 }
@@ -3,7 +3,10 @@ package ths.template.support.translators.expression;
 import java.text.ParseException;
 import java.util.Map;
 
+import ths.template.Engine;
 import ths.template.support.Translator;
+import ths.template.support.compilers.BytecodeBuilder;
+import ths.template.support.compilers.UnsupportedBytecodeException;
 
 /**
  * Variable
@@ -36,4 +39,23 @@ public final class Variable extends AbstractExpression {
         return name;
     }
 
+    @Override
+    public boolean isInterpretable() throws ParseException {
+        return true;
+    }
+
+    @Override
+    public Object evaluate(Engine engine, Map<String, Object> parameters) throws ParseException {
+        Object value = parameters == null ? null : parameters.get(name);
+        if (value == null) {
+            return Interpreter.getInitValue(getResolvedType());
+        }
+        return value;
+    }
+
+    @Override
+    public void emit(BytecodeBuilder builder) throws ParseException, UnsupportedBytecodeException {
+        builder.convert(builder.load(name), getResolvedType());
+    }
+
 }
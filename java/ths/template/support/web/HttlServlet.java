@@ -1,20 +1,41 @@
 package ths.template.support.web;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import ths.core.Configurable;
+import ths.template.Configs;
+import ths.template.Context;
 import ths.template.Engine;
 import ths.template.Template;
+import ths.template.support.Cache;
+import ths.template.util.ClassUtils;
+import ths.template.util.StringUtils;
 import ths.core.loaders.ServletLoader;
 
 /**
  * HttlServlet. (Integration, Singleton, ThreadSafe)
  * 
+ * With the page.cache init parameter, the cache class, the GET pages are rendered once per template
+ * and page.cache.keys values, the comma separated ParameterMap keys, e.g. "parameter.id, cookie.locale".
+ * The cached pages are validated by ETag, the digest of the page content, and by Last-Modified, the newest
+ * of the templates rendered into the page, the included, extended and macro ones too, and answered with 304 if not modified.
+ * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
 public class HttlServlet extends HttpServlet {
@@ -23,10 +44,20 @@ public class HttlServlet extends HttpServlet {
 
     public static final String CONFIGURATION = "configuration";
     
+    public static final String PAGE_CACHE = "page.cache";
+    
+    public static final String PAGE_CACHE_KEYS = "page.cache.keys";
+    
     private transient Engine engine;
     
+    private transient Cache pageCache;
+    
+    private String[] pageCacheKeys;
+    
     private boolean isOutputStream;
     
+    private String outputEncoding;
+    
     @Override
     public void init() throws ServletException {
         ServletLoader.setServletContext(getServletContext());
@@ -42,11 +73,70 @@ public class HttlServlet extends HttpServlet {
             this.engine = Engine.getEngine();
         }
         isOutputStream = "true".equalsIgnoreCase(engine.getConfiguration().getOutputStream());
+        String encoding = engine.getConfiguration().getOutputEncoding();
+        outputEncoding = encoding == null || encoding.trim().length() == 0 ? null : encoding.trim();
+        initPageCache();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void initPageCache() throws ServletException {
+        String cache = getServletConfig().getInitParameter(PAGE_CACHE);
+        if (cache == null || cache.trim().length() == 0) {
+            return;
+        }
+        try {
+            pageCache = (Cache) ClassUtils.newInstance(cache.trim());
+        } catch (Exception e) {
+            throw new ServletException("Failed to create page cache " + cache + ", cause: " + e.getMessage(), e);
+        }
+        if (pageCache instanceof Configurable) {
+            ((Configurable<Configs>) pageCache).configure(engine.getConfiguration());
+        }
+        List<String> keys = new ArrayList<String>();
+        String value = getServletConfig().getInitParameter(PAGE_CACHE_KEYS);
+        if (value != null) {
+            for (String key : value.split(",")) {
+                if (key.trim().length() > 0) {
+                    keys.add(key.trim());
+                }
+            }
+        }
+        pageCacheKeys = keys.toArray(new String[keys.size()]);
     }
 
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        doPost(request, response);
+        if (pageCache == null) {
+            doPost(request, response);
+            return;
+        }
+        try {
+            String path = getTemplatePath(request);
+            Template template = engine.getTemplate(path);
+            ParameterMap context = new ParameterMap(request);
+            List<Object> key = getPageKey(path, context);
+            if (outputEncoding != null) {
+                response.setCharacterEncoding(outputEncoding);
+            }
+            Page page = (Page) pageCache.get(key);
+            if (page == null || page.lastModified != getLastModified(page.dependencies)) {
+                page = render(template, context, response.getCharacterEncoding());
+                pageCache.put(key, page);
+            }
+            response.setHeader("ETag", page.etag);
+            if (page.lastModified > 0) {
+                response.setDateHeader("Last-Modified", page.lastModified);
+            }
+            if (isNotModified(request, page.etag, page.lastModified)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            response.setContentLength(page.content.length);
+            response.getOutputStream().write(page.content);
+            response.flushBuffer();
+        } catch (ParseException e) {
+            throw new ServletException(e.getMessage(), e);
+        }
     }
     
     public void doPost(HttpServletRequest request, HttpServletResponse response)
@@ -54,6 +144,9 @@ public class HttlServlet extends HttpServlet {
         try {
             Template template = engine.getTemplate(getTemplatePath(request));
             ParameterMap context = new ParameterMap(request);
+            if (outputEncoding != null) {
+                response.setCharacterEncoding(outputEncoding);
+            }
             if (isOutputStream) {
                 template.render(context, response.getOutputStream());
             } else {
@@ -65,6 +158,105 @@ public class HttlServlet extends HttpServlet {
         }
     }
 
+    protected List<Object> getPageKey(String path, ParameterMap context) {
+        List<Object> key = new ArrayList<Object>(pageCacheKeys.length + 1);
+        key.add(path);
+        for (String name : pageCacheKeys) {
+            Object value = context.get(name);
+            // the multiple parameter values are compared by the elements.
+            key.add(value instanceof Object[] ? Arrays.asList((Object[]) value) : value);
+        }
+        return key;
+    }
+
+    // the newest of the templates, got again to reload the changed ones, or -1 if any is gone.
+    private long getLastModified(String[] names) {
+        long lastModified = 0;
+        for (String name : names) {
+            try {
+                lastModified = Math.max(lastModified, engine.getTemplate(name).getLastModified());
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+        return lastModified;
+    }
+
+    private boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String match = request.getHeader("If-None-Match");
+        if (match != null) {
+            // the If-Modified-Since is ignored with the If-None-Match.
+            return matches(match, etag);
+        }
+        if (lastModified <= 0) {
+            return false;
+        }
+        long since;
+        try {
+            since = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // the http dates are in seconds.
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    // the If-None-Match list of entity tags, the weak ones compared weakly as for GET.
+    private static boolean matches(String match, String etag) {
+        int i = 0;
+        int length = match.length();
+        while (i < length) {
+            char ch = match.charAt(i);
+            if (ch == ',' || Character.isWhitespace(ch)) {
+                i ++;
+            } else if (ch == '*') {
+                return true;
+            } else {
+                if (match.startsWith("W/", i)) {
+                    i += 2;
+                }
+                if (i >= length || match.charAt(i) != '"') {
+                    return false; // malformed
+                }
+                int end = match.indexOf('"', i + 1);
+                if (end < 0) {
+                    return false;
+                }
+                if (match.regionMatches(i, etag, 0, etag.length()) && end + 1 - i == etag.length()) {
+                    return true;
+                }
+                i = end + 1;
+            }
+        }
+        return false;
+    }
+
+    private Page render(Template template, ParameterMap parameters, String encoding) throws IOException, ParseException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Set<String> dependencies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        Context context = Context.getContext();
+        Set<String> preDependencies = context.getDependencies();
+        context.setDependencies(dependencies);
+        try {
+            if (isOutputStream) {
+                template.render(parameters, output);
+            } else {
+                Writer writer = new OutputStreamWriter(output, encoding);
+                template.render(parameters, writer);
+                writer.flush();
+            }
+        } finally {
+            context.setDependencies(preDependencies);
+        }
+        dependencies.add(template.getName());
+        String[] names = dependencies.toArray(new String[dependencies.size()]);
+        long lastModified = getLastModified(names);
+        byte[] content = output.toByteArray();
+        // the same bytes rendered again, or by another node, keep the tag, and the other ones change it.
+        String etag = "\"" + StringUtils.getDigest(content) + "\"";
+        return new Page(lastModified, etag, names, content);
+    }
+
     protected String getTemplatePath(HttpServletRequest request)
             throws ServletException, IOException {
         String path = request.getPathInfo();
@@ -73,4 +265,25 @@ public class HttlServlet extends HttpServlet {
         return request.getServletPath();
     }
 
+    private static final class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long lastModified;
+
+        private final String etag;
+
+        private final String[] dependencies;
+
+        private final byte[] content;
+
+        Page(long lastModified, String etag, String[] dependencies, byte[] content) {
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.dependencies = dependencies;
+            this.content = content;
+        }
+
+    }
+
 }
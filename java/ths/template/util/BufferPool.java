@@ -0,0 +1,88 @@
+package ths.template.util;
+
+/**
+ * BufferPool. (Tool, Static, ThreadSafe)
+ *
+ * Per thread stacks of render buffers, so nested blocks and templates rendering
+ * templates each get their own. A buffer grown beyond the retain size is dropped
+ * on release, so a single large page does not pin its memory to the thread.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public final class BufferPool {
+
+    public static final int DEFAULT_RETAIN_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED = 8;
+
+    private static final int INITIAL_SIZE = 256;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private BufferPool() {}
+
+    public static UnsafeStringWriter getWriter() {
+        Buffers buffers = BUFFERS.get();
+        if (buffers.writerCount > 0) {
+            UnsafeStringWriter writer = buffers.writers[-- buffers.writerCount];
+            buffers.writers[buffers.writerCount] = null;
+            return writer;
+        }
+        return new UnsafeStringWriter(INITIAL_SIZE);
+    }
+
+    public static void release(UnsafeStringWriter writer, int retainSize) {
+        if (writer == null) {
+            return;
+        }
+        StringBuilder buffer = writer.getBuffer();
+        // chars are two bytes each.
+        if (buffer.capacity() > retainSize / 2) {
+            return;
+        }
+        Buffers buffers = BUFFERS.get();
+        if (buffers.writerCount < MAX_POOLED) {
+            buffer.setLength(0);
+            buffers.writers[buffers.writerCount ++] = writer;
+        }
+    }
+
+    public static UnsafeByteArrayOutputStream getOutputStream() {
+        Buffers buffers = BUFFERS.get();
+        if (buffers.streamCount > 0) {
+            UnsafeByteArrayOutputStream stream = buffers.streams[-- buffers.streamCount];
+            buffers.streams[buffers.streamCount] = null;
+            return stream;
+        }
+        return new UnsafeByteArrayOutputStream(INITIAL_SIZE);
+    }
+
+    public static void release(UnsafeByteArrayOutputStream stream, int retainSize) {
+        if (stream == null || stream.buffer.length > retainSize) {
+            return;
+        }
+        Buffers buffers = BUFFERS.get();
+        if (buffers.streamCount < MAX_POOLED) {
+            stream.reset();
+            buffers.streams[buffers.streamCount ++] = stream;
+        }
+    }
+
+    private static final class Buffers {
+
+        private final UnsafeStringWriter[] writers = new UnsafeStringWriter[MAX_POOLED];
+
+        private int writerCount;
+
+        private final UnsafeByteArrayOutputStream[] streams = new UnsafeByteArrayOutputStream[MAX_POOLED];
+
+        private int streamCount;
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ChunkedOutputStream. Flushes the output stream at the template flush points,
+ * once at least the minimum chunk size is written since the last flush.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private final OutputStream output;
+
+    private final int minSize;
+
+    private int size;
+
+    public ChunkedOutputStream(OutputStream output, int minSize) {
+        if (output == null) {
+            throw new IllegalArgumentException("output == null");
+        }
+        this.output = output;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        output.write(b);
+        size ++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        output.write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * Flush the output stream, if the minimum chunk size is written since the last flush.
+     */
+    public void flushChunk() throws IOException {
+        if (size >= minSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        size = 0;
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+
+}
@@ -0,0 +1,72 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * ChunkedWriter. Flushes the writer at the template flush points,
+ * once at least the minimum chunk size is written since the last flush.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ChunkedWriter extends Writer {
+
+    private final Writer writer;
+
+    private final int minSize;
+
+    private int size;
+
+    public ChunkedWriter(Writer writer, int minSize) {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer == null");
+        }
+        this.writer = writer;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        writer.write(c);
+        size ++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        writer.write(cbuf, off, len);
+        size += len;
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        writer.write(str);
+        size += str.length();
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        writer.write(str, off, len);
+        size += len;
+    }
+
+    /**
+     * Flush the writer, if the minimum chunk size is written since the last flush.
+     */
+    public void flushChunk() throws IOException {
+        if (size >= minSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        size = 0;
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+}
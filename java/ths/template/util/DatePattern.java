@@ -0,0 +1,294 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormatSymbols;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * DatePattern. (Tool, Prototype, ThreadSafe)
+ *
+ * The SimpleDateFormat pattern compiled once into its fields. The gregorian dates are written field by field
+ * from the time, the same as the SimpleDateFormat would, without a calendar; the patterns of the other fields,
+ * and the dates before the first whole gregorian year, are formatted by a per thread copy of it.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public final class DatePattern {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    // 1583-01-02, a day after the first whole gregorian year began, whatever the time zone is.
+    private static final long GREGORIAN_YEARS = -12212467200000L;
+
+    // the supported fields, the same letters as the SimpleDateFormat.
+    private static final String FIELDS = "yMdHkKhmsSEaD";
+
+    private final String pattern;
+
+    private final ThreadLocal<SimpleDateFormat> formats;
+
+    private final TimeZone timeZone;
+
+    // the field letters, or 0 for the literals.
+    private final char[] fields;
+
+    private final int[] counts;
+
+    private final String[] literals;
+
+    private final String[] months;
+
+    private final String[] shortMonths;
+
+    private final String[] weekdays;
+
+    private final String[] shortWeekdays;
+
+    private final String[] amPm;
+
+    private final boolean fast;
+
+    private final int capacity;
+
+    public DatePattern(String pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern == null");
+        }
+        final SimpleDateFormat format = new SimpleDateFormat(pattern);
+        this.pattern = pattern;
+        this.formats = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return (SimpleDateFormat) format.clone();
+            }
+        };
+        this.timeZone = format.getTimeZone();
+        DateFormatSymbols symbols = format.getDateFormatSymbols();
+        months = symbols.getMonths();
+        shortMonths = symbols.getShortMonths();
+        weekdays = symbols.getWeekdays();
+        shortWeekdays = symbols.getShortWeekdays();
+        amPm = symbols.getAmPmStrings();
+        List<Character> fieldList = new ArrayList<Character>();
+        List<Integer> countList = new ArrayList<Integer>();
+        List<String> literalList = new ArrayList<String>();
+        boolean supported = format.getCalendar().getClass() == GregorianCalendar.class
+                && format.getNumberFormat() instanceof DecimalFormat
+                && ((DecimalFormat) format.getNumberFormat()).getDecimalFormatSymbols().getZeroDigit() == '0';
+        int size = 0;
+        int tags = 0;
+        boolean monthName = false;
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i ++) {
+            char ch = pattern.charAt(i);
+            if (ch == '\'') {
+                int end = pattern.indexOf('\'', i + 1);
+                if (end == i + 1) {
+                    literal.append('\''); // the two quotes are the quote.
+                } else {
+                    literal.append(pattern.substring(i + 1, end));
+                    while (end + 1 < pattern.length() && pattern.charAt(end + 1) == '\'') {
+                        int next = pattern.indexOf('\'', end + 2);
+                        literal.append('\'').append(pattern.substring(end + 2, next));
+                        end = next;
+                    }
+                }
+                i = end;
+            } else if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')) {
+                int count = 1;
+                while (i + 1 < pattern.length() && pattern.charAt(i + 1) == ch) {
+                    count ++;
+                    i ++;
+                }
+                if (FIELDS.indexOf(ch) < 0) {
+                    supported = false;
+                }
+                if (literal.length() > 0) {
+                    size += literal.length();
+                    fieldList.add(Character.valueOf('\0'));
+                    countList.add(Integer.valueOf(0));
+                    literalList.add(literal.toString());
+                    literal.setLength(0);
+                }
+                size += Math.max(count, 10) + getMaxLength(ch == 'E' ? weekdays : ch == 'M' ? months : ch == 'a' ? amPm : null);
+                fieldList.add(Character.valueOf(ch));
+                countList.add(Integer.valueOf(count));
+                literalList.add(null);
+                tags ++;
+                monthName |= ch == 'M' && count >= 3;
+            } else {
+                literal.append(ch);
+            }
+        }
+        if (literal.length() > 0) {
+            size += literal.length();
+            fieldList.add(Character.valueOf('\0'));
+            countList.add(Integer.valueOf(0));
+            literalList.add(literal.toString());
+        }
+        fields = new char[fieldList.size()];
+        counts = new int[fieldList.size()];
+        for (int i = 0; i < fields.length; i ++) {
+            fields[i] = fieldList.get(i).charValue();
+            counts[i] = countList.get(i).intValue();
+        }
+        literals = literalList.toArray(new String[literalList.size()]);
+        // the month name alone is the standalone form, not the one of the symbols.
+        fast = supported && ! (tags == 1 && monthName);
+        capacity = size;
+    }
+
+    private static int getMaxLength(String[] names) {
+        int max = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name != null && name.length() > max) {
+                    max = name.length();
+                }
+            }
+        }
+        return max;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public String format(Date value) {
+        if (value == null || ! fast || value.getTime() < GREGORIAN_YEARS) {
+            return formats.get().format(value);
+        }
+        char[] buffer = new char[capacity];
+        return new String(buffer, 0, write(value.getTime(), buffer));
+    }
+
+    public void format(Date value, Writer output) throws IOException {
+        if (value == null || ! fast || value.getTime() < GREGORIAN_YEARS) {
+            output.write(formats.get().format(value));
+            return;
+        }
+        char[] buffer = new char[capacity];
+        output.write(buffer, 0, write(value.getTime(), buffer));
+    }
+
+    private int write(long time, char[] buffer) {
+        long local = time + timeZone.getOffset(time);
+        long days = floorDiv(local, DAY);
+        int millis = (int) (local - days * DAY);
+        // the civil date of the days since 1970-01-01, counted in the 400 years eras from 0000-03-01.
+        long shifted = days + 719468;
+        long era = floorDiv(shifted, 146097);
+        int dayOfEra = (int) (shifted - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        int year = (int) (era * 400 + yearOfEra) + (month <= 2 ? 1 : 0);
+        int hour = millis / 3600000;
+        int length = 0;
+        for (int i = 0; i < fields.length; i ++) {
+            int count = counts[i];
+            switch (fields[i]) {
+                case '\0':
+                    String literal = literals[i];
+                    literal.getChars(0, literal.length(), buffer, length);
+                    length += literal.length();
+                    break;
+                case 'y':
+                    length = count == 2 ? writeNumber(year % 100, 2, buffer, length) : writeNumber(year, count, buffer, length);
+                    break;
+                case 'M':
+                    if (count >= 3) {
+                        length = writeName(count == 3 ? shortMonths[month - 1] : months[month - 1], buffer, length);
+                    } else {
+                        length = writeNumber(month, count, buffer, length);
+                    }
+                    break;
+                case 'd':
+                    length = writeNumber(day, count, buffer, length);
+                    break;
+                case 'D':
+                    length = writeNumber((int) (days - getDays(year) + 1), count, buffer, length);
+                    break;
+                case 'E':
+                    int weekday = (int) floorMod(days + 4, 7) + 1; // 1970-01-01 is thursday, sunday is 1.
+                    length = writeName(count >= 4 ? weekdays[weekday] : shortWeekdays[weekday], buffer, length);
+                    break;
+                case 'a':
+                    length = writeName(amPm[hour < 12 ? 0 : 1], buffer, length);
+                    break;
+                case 'H':
+                    length = writeNumber(hour, count, buffer, length);
+                    break;
+                case 'k':
+                    length = writeNumber(hour == 0 ? 24 : hour, count, buffer, length);
+                    break;
+                case 'K':
+                    length = writeNumber(hour % 12, count, buffer, length);
+                    break;
+                case 'h':
+                    length = writeNumber(hour % 12 == 0 ? 12 : hour % 12, count, buffer, length);
+                    break;
+                case 'm':
+                    length = writeNumber(millis / 60000 % 60, count, buffer, length);
+                    break;
+                case 's':
+                    length = writeNumber(millis / 1000 % 60, count, buffer, length);
+                    break;
+                default: // 'S'
+                    length = writeNumber(millis % 1000, count, buffer, length);
+                    break;
+            }
+        }
+        return length;
+    }
+
+    // the days since 1970-01-01 of the first day of the year.
+    private static long getDays(int year) {
+        long y = year - 1L;
+        return y * 365 + floorDiv(y, 4) - floorDiv(y, 100) + floorDiv(y, 400) - 719162;
+    }
+
+    private static int writeName(String name, char[] buffer, int length) {
+        name.getChars(0, name.length(), buffer, length);
+        return length + name.length();
+    }
+
+    private static int writeNumber(int value, int count, char[] buffer, int length) {
+        int digits = 1;
+        for (int v = value / 10; v > 0; v /= 10) {
+            digits ++;
+        }
+        if (digits < count) {
+            digits = count;
+        }
+        for (int i = length + digits - 1; i >= length; i --) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return length + digits;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+}
@@ -5,6 +5,8 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * DateUtils. (Tool, Static, ThreadSafe)
@@ -17,6 +19,8 @@ public class DateUtils {
 
     private static final ThreadLocal<Map<String, SimpleDateFormat>> LOCAL = new ThreadLocal<Map<String, SimpleDateFormat>>();
 
+    private static final ConcurrentMap<String, DatePattern> PATTERNS = new ConcurrentHashMap<String, DatePattern>();
+
     public static SimpleDateFormat getSimpleDateFormat(String format) {
         if (format == null || format.length() == 0) {
             format = DEFAULT_FORMAT;
@@ -34,8 +38,26 @@ public class DateUtils {
         return formatter;
     }
     
+    /**
+     * Get the pattern compiled once, shared by all the threads.
+     */
+    public static DatePattern getDatePattern(String format) {
+        if (format == null || format.length() == 0) {
+            format = DEFAULT_FORMAT;
+        }
+        DatePattern pattern = PATTERNS.get(format);
+        if (pattern == null) {
+            pattern = new DatePattern(format);
+            DatePattern old = PATTERNS.putIfAbsent(format, pattern);
+            if (old != null) {
+                pattern = old;
+            }
+        }
+        return pattern;
+    }
+    
     public static String formatDate(Date value, String format) {
-        return getSimpleDateFormat(format).format(value);
+        return getDatePattern(format).format(value);
     }
     
     public static Date toDate(String value, String format) {
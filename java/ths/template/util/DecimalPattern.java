@@ -0,0 +1,255 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DecimalPattern. (Tool, Prototype, ThreadSafe)
+ *
+ * The DecimalFormat pattern compiled once. The integers, and the doubles rounded to at most 9 fraction digits,
+ * are written digit by digit the same as the DecimalFormat would, the others are formatted by a per thread copy of it.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public final class DecimalPattern {
+
+    private static final long[] POWERS = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+
+    // the rounded value of the doubles below it is exact, their ulp is at most 1/8.
+    private static final double MAX_SCALED = 1e15;
+
+    private final String pattern;
+
+    private final ThreadLocal<DecimalFormat> formats;
+
+    private final boolean fast;
+
+    private final char[] positivePrefix;
+
+    private final char[] positiveSuffix;
+
+    private final char[] negativePrefix;
+
+    private final char[] negativeSuffix;
+
+    private final char zeroDigit;
+
+    private final char groupingSeparator;
+
+    private final char decimalSeparator;
+
+    private final int groupingSize;
+
+    private final int minIntegerDigits;
+
+    private final int minFractionDigits;
+
+    private final int maxFractionDigits;
+
+    private final int capacity;
+
+    public DecimalPattern(String pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern == null");
+        }
+        final DecimalFormat format = new DecimalFormat(pattern);
+        this.pattern = pattern;
+        this.formats = new ThreadLocal<DecimalFormat>() {
+            @Override
+            protected DecimalFormat initialValue() {
+                return (DecimalFormat) format.clone();
+            }
+        };
+        DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+        positivePrefix = format.getPositivePrefix().toCharArray();
+        positiveSuffix = format.getPositiveSuffix().toCharArray();
+        negativePrefix = format.getNegativePrefix().toCharArray();
+        negativeSuffix = format.getNegativeSuffix().toCharArray();
+        zeroDigit = symbols.getZeroDigit();
+        groupingSeparator = symbols.getGroupingSeparator();
+        decimalSeparator = symbols.getDecimalSeparator();
+        groupingSize = format.isGroupingUsed() ? format.getGroupingSize() : 0;
+        minIntegerDigits = format.getMinimumIntegerDigits();
+        minFractionDigits = format.getMinimumFractionDigits();
+        maxFractionDigits = format.getMaximumFractionDigits();
+        String compiled = format.toPattern();
+        // the exponent, percent, per mille and currency patterns, and the truncated integers, are left to the format.
+        fast = compiled.indexOf("E0") < 0 && pattern.indexOf('\u00A4') < 0
+                && format.getMultiplier() == 1 && format.getRoundingMode() == RoundingMode.HALF_EVEN
+                && ! format.isDecimalSeparatorAlwaysShown()
+                && format.getMaximumIntegerDigits() >= 19 && minIntegerDigits <= 19
+                && maxFractionDigits < POWERS.length;
+        int digits = Math.max(19, minIntegerDigits);
+        capacity = Math.max(positivePrefix.length, negativePrefix.length) + digits + (groupingSize > 0 ? digits / groupingSize : 0)
+                + 1 + maxFractionDigits + Math.max(positiveSuffix.length, negativeSuffix.length);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public String format(Number value) {
+        if (isInteger(value)) {
+            return format(value.longValue());
+        } else if (value == null || value instanceof BigDecimal || value instanceof BigInteger) {
+            return formats.get().format(value);
+        }
+        return format(value.doubleValue());
+    }
+
+    public String format(long value) {
+        if (! fast) {
+            return formats.get().format(value);
+        }
+        char[] buffer = new char[capacity];
+        return new String(buffer, 0, write(value, buffer));
+    }
+
+    public String format(double value) {
+        char[] buffer = fast ? new char[capacity] : null;
+        int length = fast ? write(value, buffer) : -1;
+        if (length < 0) {
+            return formats.get().format(value);
+        }
+        return new String(buffer, 0, length);
+    }
+
+    public void format(Number value, Writer output) throws IOException {
+        if (isInteger(value)) {
+            format(value.longValue(), output);
+        } else if (value == null || value instanceof BigDecimal || value instanceof BigInteger) {
+            output.write(formats.get().format(value));
+        } else {
+            format(value.doubleValue(), output);
+        }
+    }
+
+    public void format(long value, Writer output) throws IOException {
+        if (! fast) {
+            output.write(formats.get().format(value));
+            return;
+        }
+        char[] buffer = new char[capacity];
+        output.write(buffer, 0, write(value, buffer));
+    }
+
+    public void format(double value, Writer output) throws IOException {
+        char[] buffer = fast ? new char[capacity] : null;
+        int length = fast ? write(value, buffer) : -1;
+        if (length < 0) {
+            output.write(formats.get().format(value));
+        } else {
+            output.write(buffer, 0, length);
+        }
+    }
+
+    // the same numbers as the DecimalFormat formats as long.
+    private static boolean isInteger(Number value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicInteger || value instanceof AtomicLong;
+    }
+
+    private int write(long value, char[] buffer) {
+        boolean negative = value < 0;
+        // the digits of the negative value, not to overflow the minimum value.
+        long integer = negative ? value : - value;
+        int length = writePrefix(negative, buffer);
+        length = writeInteger(integer, minFractionDigits > 0, buffer, length);
+        if (minFractionDigits > 0) {
+            buffer[length ++] = decimalSeparator;
+            for (int i = 0; i < minFractionDigits; i ++) {
+                buffer[length ++] = zeroDigit;
+            }
+        }
+        return writeSuffix(negative, buffer, length);
+    }
+
+    /**
+     * @return the length, or -1 if the rounding can not be decided from the double.
+     */
+    private int write(double value, char[] buffer) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return -1;
+        }
+        boolean negative = value < 0.0 || (value == 0.0 && 1 / value < 0.0);
+        double scaled = Math.abs(value) * POWERS[maxFractionDigits];
+        if (scaled >= MAX_SCALED) {
+            return -1;
+        }
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) <= Math.ulp(scaled)) {
+            return -1; // the half may be above or below the exact value.
+        }
+        long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+        long power = POWERS[maxFractionDigits];
+        long integer = rounded / power;
+        long decimals = rounded % power;
+        int digits = maxFractionDigits;
+        while (digits > minFractionDigits && decimals % 10 == 0) {
+            decimals /= 10;
+            digits --;
+        }
+        int length = writePrefix(negative, buffer);
+        length = writeInteger(- integer, digits > 0, buffer, length);
+        if (digits > 0) {
+            buffer[length ++] = decimalSeparator;
+            for (int i = length + digits - 1; i >= length; i --) {
+                buffer[i] = (char) (zeroDigit + decimals % 10);
+                decimals /= 10;
+            }
+            length += digits;
+        }
+        return writeSuffix(negative, buffer, length);
+    }
+
+    private int writePrefix(boolean negative, char[] buffer) {
+        char[] prefix = negative ? negativePrefix : positivePrefix;
+        System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+        return prefix.length;
+    }
+
+    private int writeSuffix(boolean negative, char[] buffer, int length) {
+        char[] suffix = negative ? negativeSuffix : positiveSuffix;
+        System.arraycopy(suffix, 0, buffer, length, suffix.length);
+        return length + suffix.length;
+    }
+
+    // writes the integer digits, grouped, of the negated value.
+    private int writeInteger(long negated, boolean fraction, char[] buffer, int length) {
+        int count = 0;
+        for (long v = negated; v != 0; v /= 10) {
+            count ++;
+        }
+        if (count < minIntegerDigits) {
+            count = minIntegerDigits;
+        }
+        if (count == 0 && ! fraction) {
+            count = 1; // the zero is written if no other digit is.
+        }
+        int end = length + count + (groupingSize > 0 && count > 0 ? (count - 1) / groupingSize : 0);
+        int position = end;
+        long v = negated;
+        for (int i = 0; i < count; i ++) {
+            if (i > 0 && groupingSize > 0 && i % groupingSize == 0) {
+                buffer[-- position] = groupingSeparator;
+            }
+            buffer[-- position] = (char) (zeroDigit - v % 10);
+            v /= 10;
+        }
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+}
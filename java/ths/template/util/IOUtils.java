@@ -1,7 +1,10 @@
 package ths.template.util;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * IOUtils. (Tool, Static, ThreadSafe)
@@ -20,6 +23,29 @@ public class IOUtils {
         return buffer.toString();
     }
     
+    /**
+     * Wait for the future, rethrowing the io and runtime failures as they were thrown.
+     */
+    public static <T> T getFuture(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(ClassUtils.toString(cause), cause);
+        }
+    }
+    
     private IOUtils() {}
 
 }
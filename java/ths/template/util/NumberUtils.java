@@ -3,6 +3,8 @@ package ths.template.util;
 import java.text.DecimalFormat;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * NumberUtils. (Tool, Static, ThreadSafe)
@@ -15,6 +17,8 @@ public class NumberUtils {
 
     private static final ThreadLocal<Map<String, DecimalFormat>> LOCAL = new ThreadLocal<Map<String, DecimalFormat>>();
 
+    private static final ConcurrentMap<String, DecimalPattern> PATTERNS = new ConcurrentHashMap<String, DecimalPattern>();
+
     public static DecimalFormat getDecimalFormat(String format) {
         if (format == null || format.length() == 0) {
             format = DEFAULT_FORMAT;
@@ -32,8 +36,34 @@ public class NumberUtils {
         return formatter;
     }
     
+    /**
+     * Get the pattern compiled once, shared by all the threads.
+     */
+    public static DecimalPattern getDecimalPattern(String format) {
+        if (format == null || format.length() == 0) {
+            format = DEFAULT_FORMAT;
+        }
+        DecimalPattern pattern = PATTERNS.get(format);
+        if (pattern == null) {
+            pattern = new DecimalPattern(format);
+            DecimalPattern old = PATTERNS.putIfAbsent(format, pattern);
+            if (old != null) {
+                pattern = old;
+            }
+        }
+        return pattern;
+    }
+    
     public static String formatNumber(Number value, String format) {
-        return getDecimalFormat(format).format(value);
+        return getDecimalPattern(format).format(value);
+    }
+    
+    public static String formatNumber(long value, String format) {
+        return getDecimalPattern(format).format(value);
+    }
+    
+    public static String formatNumber(double value, String format) {
+        return getDecimalPattern(format).format(value);
     }
     
 }
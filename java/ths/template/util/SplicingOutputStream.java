@@ -0,0 +1,96 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+/**
+ * SplicingOutputStream. Writes through to the output stream until a forked fragment is spliced in,
+ * then buffers the following output, and writes the fragments and the buffers in order as the fragments complete.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class SplicingOutputStream extends OutputStream {
+
+    private final OutputStream output;
+
+    // the pending fragments, each followed by the buffer of the output after it.
+    private final LinkedList<Object> segments = new LinkedList<Object>();
+
+    private UnsafeByteArrayOutputStream buffer;
+
+    public SplicingOutputStream(OutputStream output) {
+        if (output == null) {
+            throw new IllegalArgumentException("output == null");
+        }
+        this.output = output;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Splice the fragment at the current position.
+     */
+    public void splice(Future<byte[]> fragment) {
+        segments.add(fragment);
+        buffer = new UnsafeByteArrayOutputStream();
+        segments.add(buffer);
+    }
+
+    /**
+     * Write the completed fragments and their following buffers, in order.
+     *
+     * @param wait - wait for the pending fragments, or stop at the first one.
+     */
+    public void drain(boolean wait) throws IOException {
+        while (! segments.isEmpty()) {
+            Object segment = segments.getFirst();
+            if (segment instanceof Future) {
+                @SuppressWarnings("unchecked")
+                Future<byte[]> fragment = (Future<byte[]>) segment;
+                if (! wait && ! fragment.isDone()) {
+                    return;
+                }
+                output.write(IOUtils.getFuture(fragment));
+            } else {
+                ((UnsafeByteArrayOutputStream) segment).writeTo(output);
+            }
+            segments.removeFirst();
+        }
+        buffer = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null) {
+            output.write(b);
+        } else {
+            buffer.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buffer == null) {
+            output.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain(false);
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain(true);
+        output.close();
+    }
+
+}
@@ -0,0 +1,114 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+/**
+ * SplicingWriter. Writes through to the writer until a forked fragment is spliced in,
+ * then buffers the following output, and writes the fragments and the buffers in order as the fragments complete.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class SplicingWriter extends Writer {
+
+    private final Writer writer;
+
+    // the pending fragments, each followed by the buffer of the output after it.
+    private final LinkedList<Object> segments = new LinkedList<Object>();
+
+    private UnsafeStringWriter buffer;
+
+    public SplicingWriter(Writer writer) {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer == null");
+        }
+        this.writer = writer;
+    }
+
+    public Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Splice the fragment at the current position.
+     */
+    public void splice(Future<String> fragment) {
+        segments.add(fragment);
+        buffer = new UnsafeStringWriter();
+        segments.add(buffer);
+    }
+
+    /**
+     * Write the completed fragments and their following buffers, in order.
+     *
+     * @param wait - wait for the pending fragments, or stop at the first one.
+     */
+    public void drain(boolean wait) throws IOException {
+        while (! segments.isEmpty()) {
+            Object segment = segments.getFirst();
+            if (segment instanceof Future) {
+                @SuppressWarnings("unchecked")
+                Future<String> fragment = (Future<String>) segment;
+                if (! wait && ! fragment.isDone()) {
+                    return;
+                }
+                writer.write(IOUtils.getFuture(fragment));
+            } else {
+                writer.write(segment.toString());
+            }
+            segments.removeFirst();
+        }
+        buffer = null;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (buffer == null) {
+            writer.write(c);
+        } else {
+            buffer.write(c);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (buffer == null) {
+            writer.write(cbuf, off, len);
+        } else {
+            buffer.write(cbuf, off, len);
+        }
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        if (buffer == null) {
+            writer.write(str);
+        } else {
+            buffer.write(str);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (buffer == null) {
+            writer.write(str, off, len);
+        } else {
+            buffer.write(str, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain(false);
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain(true);
+        writer.close();
+    }
+
+}
@@ -1,7 +1,10 @@
 package ths.template.util;
 
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -88,6 +91,28 @@ public class StringUtils {
         return buf.toString();
     }
 
+    public static String getDigest(String value) {
+        try {
+            return getDigest(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    public static String getDigest(byte[] value) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("MD5").digest(value);
+            StringBuilder buf = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+                buf.append(Character.forDigit(b & 0xF, 16));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
     public static String escapeString(String value) {
         if (value != null) {
             StringBuilder buf = null;
@@ -201,7 +226,10 @@ public class StringUtils {
         return value;
     }
     
-    public static String unescapeHtml(String text) { // TODO 性能
+    public static String unescapeHtml(String text) {
+        if (text.indexOf('&') < 0) {
+            return text;
+        }
         return text.replace("&lt;", "<")
                     .replace("&gt;", ">")
                     .replace("&quot;", "\"")
@@ -0,0 +1,142 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Utf8Writer. Encodes the written chars as UTF-8 into its buffer, written to the output stream
+ * when full or on flushBuffer(). The unpaired surrogates are written as '?', the same as String.getBytes does.
+ * Reused for another output stream with setOutput(), so one per thread is enough.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class Utf8Writer extends Writer {
+
+    private final byte[] buffer;
+
+    private OutputStream output;
+
+    private int position;
+
+    // the high surrogate written last, its low surrogate may come with the next write.
+    private char highSurrogate;
+
+    public Utf8Writer(int size) {
+        if (size < 4) {
+            throw new IllegalArgumentException("size < 4");
+        }
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Set the output stream, the bytes buffered for the previous one are discarded.
+     */
+    public Utf8Writer setOutput(OutputStream output) {
+        this.output = output;
+        this.position = 0;
+        this.highSurrogate = 0;
+        return this;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off, end = off + len; i < end; i ++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off, end = off + len; i < end; i ++) {
+            char ch = str.charAt(i);
+            if (ch < 0x80 && highSurrogate == 0) {
+                if (position == buffer.length) {
+                    output.write(buffer, 0, position);
+                    position = 0;
+                }
+                buffer[position ++] = (byte) ch;
+            } else {
+                encode(ch);
+            }
+        }
+    }
+
+    private void encode(char ch) throws IOException {
+        if (position > buffer.length - 4) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(ch)) {
+                int cp = Character.toCodePoint(high, ch);
+                buffer[position ++] = (byte) (0xF0 | (cp >> 18));
+                buffer[position ++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[position ++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[position ++] = (byte) (0x80 | (cp & 0x3F));
+                return;
+            }
+            buffer[position ++] = '?';
+            encode(ch);
+            return;
+        }
+        if (ch < 0x80) {
+            buffer[position ++] = (byte) ch;
+        } else if (ch < 0x800) {
+            buffer[position ++] = (byte) (0xC0 | (ch >> 6));
+            buffer[position ++] = (byte) (0x80 | (ch & 0x3F));
+        } else if (Character.isHighSurrogate(ch)) {
+            highSurrogate = ch;
+        } else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+            buffer[position ++] = '?';
+        } else {
+            buffer[position ++] = (byte) (0xE0 | (ch >> 12));
+            buffer[position ++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+            buffer[position ++] = (byte) (0x80 | (ch & 0x3F));
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the output stream, without flushing it.
+     * The pending high surrogate, whose low surrogate never came, is written as '?'.
+     */
+    public void flushBuffer() throws IOException {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            if (position == buffer.length) {
+                output.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position ++] = '?';
+        }
+        if (position > 0) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        output.close();
+    }
+
+}
@@ -0,0 +1,110 @@
+package ths.template.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * WriterOutputStream. Decodes the written bytes into the writer as they come,
+ * keeping an incomplete multi-byte sequence until its remaining bytes arrive.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class WriterOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Writer writer;
+
+    private final CharsetDecoder decoder;
+
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final CharBuffer output = CharBuffer.allocate(BUFFER_SIZE);
+
+    public WriterOutputStream(Writer writer, String encoding) {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer == null");
+        }
+        this.writer = writer;
+        Charset charset = encoding == null || encoding.length() == 0 ? Charset.defaultCharset() : Charset.forName(encoding);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (! input.hasRemaining()) {
+            decode(false);
+        }
+        input.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) throw new IndexOutOfBoundsException();
+
+        while (len > 0) {
+            int n = Math.min(len, input.remaining());
+            input.put(b, off, n);
+            off += n;
+            len -= n;
+            decode(false);
+        }
+    }
+
+    /**
+     * Write the decoded chars to the writer and flush it.
+     */
+    @Override
+    public void flush() throws IOException {
+        decode(false);
+        writeOutput();
+        writer.flush();
+    }
+
+    /**
+     * Decode the remaining bytes and write all chars to the writer, without closing or flushing it.
+     */
+    public void finish() throws IOException {
+        decode(true);
+        while (decoder.flush(output).isOverflow()) {
+            writeOutput();
+        }
+        writeOutput();
+        decoder.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        writer.close();
+    }
+
+    private void decode(boolean endOfInput) throws IOException {
+        input.flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(input, output, endOfInput);
+            if (result.isOverflow()) {
+                writeOutput();
+            }
+        } while (result.isOverflow());
+        input.compact();
+    }
+
+    private void writeOutput() throws IOException {
+        if (output.position() > 0) {
+            writer.write(output.array(), 0, output.position());
+            output.clear();
+        }
+    }
+
+}
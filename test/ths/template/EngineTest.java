@@ -0,0 +1,191 @@
+package ths.template;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ths.core.Resource;
+import ths.core.loaders.StringLoader;
+import ths.core.loaders.StringResource;
+import ths.template.support.parsers.CommentParser;
+
+public class EngineTest {
+
+	/**
+	 * Counts the parsed templates, and holds them until released.
+	 */
+	public static class BlockingParser extends CommentParser {
+
+		static final AtomicInteger parsed = new AtomicInteger();
+
+		static volatile CountDownLatch released = new CountDownLatch(0);
+
+		@Override
+		public Template parse(Resource resource) throws IOException, ParseException {
+			parsed.incrementAndGet();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e.getMessage());
+			}
+			return super.parse(resource);
+		}
+
+	}
+
+	/**
+	 * Loads the templates from memory, not from watchable files.
+	 */
+	public static class MemoryLoader extends StringLoader {
+
+		static final Map<String, String> sources = new ConcurrentHashMap<String, String>();
+
+		static volatile long lastModified;
+
+		@Override
+		protected Resource doLoad(String name, String encoding, String path) throws IOException {
+			return new StringResource(this, name, encoding, sources.get(name)) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				public long getLastModified() {
+					return lastModified;
+				}
+			};
+		}
+
+	}
+
+	@Test
+	public void testLoadSingleFlight() throws Exception {
+		File directory = Engines.newDirectory("a.html", "a");
+		final Engine engine = Engines.newEngine(directory, "parser=" + BlockingParser.class.getName());
+		BlockingParser.parsed.set(0);
+		BlockingParser.released = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Template>> templates = new ArrayList<Future<Template>>();
+			for (int i = 0; i < 8; i ++) {
+				templates.add(executor.submit(new Callable<Template>() {
+					public Template call() throws Exception {
+						return engine.getTemplate("a.html");
+					}
+				}));
+			}
+			Thread.sleep(200);
+			BlockingParser.released.countDown();
+			Template template = templates.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<Template> other : templates) {
+				assertSame(template, other.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(1, BlockingParser.parsed.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testReloadServesStale() throws Exception {
+		File directory = Engines.newDirectory("a.html", "old");
+		final Engine engine = Engines.newEngine(directory, "parser=" + BlockingParser.class.getName(), 
+				"reloadable=true", "reload.stale=true");
+		BlockingParser.released = new CountDownLatch(0);
+		Template stale = engine.getTemplate("a.html");
+		File file = new File(directory, "a.html");
+		Engines.write(file, "new");
+		file.setLastModified(System.currentTimeMillis() + 10000);
+		BlockingParser.released = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Template> reloading = executor.submit(new Callable<Template>() {
+				public Template call() throws Exception {
+					return engine.getTemplate("a.html");
+				}
+			});
+			Thread.sleep(200);
+			// the reload is in flight, the old template is served meanwhile.
+			assertSame(stale, engine.getTemplate("a.html"));
+			BlockingParser.released.countDown();
+			Template reloaded = reloading.get(10, TimeUnit.SECONDS);
+			assertNotSame(stale, reloaded);
+			assertEquals("new", reloaded.render(Engines.toMap()));
+		} finally {
+			BlockingParser.released.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testPrecompile() throws Exception {
+		File directory = Engines.newDirectory("a.html", "<!--#define(String name)-->a ${name}", 
+				"b.html", "<!--#foreach(i in 1..3)-->${i}<!--#end-->", 
+				"c.html", "<!--#define(String name)-->${name.undefined()}");
+		Engine engine = Engines.newEngine(directory);
+		Map<String, Throwable> failures = engine.precompile();
+		assertEquals(1, failures.size());
+		assertTrue(failures.keySet().toString(), failures.containsKey("c.html"));
+		assertEquals("a x", Engines.render(engine, "a.html", "name", "x"));
+		assertEquals("123", Engines.render(engine, "b.html"));
+	}
+
+	@Test
+	public void testPrecompileFailureNotRecompiled() throws Exception {
+		File directory = Engines.newDirectory("a.html", "a", 
+				"c.html", "<!--#define(String name)-->${name.undefined()}");
+		Engine engine = Engines.newEngine(directory, "parser=" + BlockingParser.class.getName());
+		BlockingParser.released = new CountDownLatch(0);
+		BlockingParser.parsed.set(0);
+		Map<String, Throwable> failures = engine.precompile();
+		assertEquals(failures.keySet().toString(), 1, failures.size());
+		assertTrue(failures.keySet().toString(), failures.containsKey("c.html"));
+		// only a.html is parsed after the batch compilation.
+		assertEquals(1, BlockingParser.parsed.get());
+	}
+
+	@Test
+	public void testRecordDependencies() throws Exception {
+		File directory = Engines.newDirectory("a.html", "a ${include(\"b.html\")}", "b.html", "b");
+		Engine engine = Engines.newEngine(directory);
+		Set<String> dependencies = new HashSet<String>();
+		Context.getContext().setDependencies(dependencies);
+		try {
+			assertEquals("a b", Engines.render(engine, "a.html"));
+		} finally {
+			Context.getContext().setDependencies(null);
+		}
+		assertTrue(dependencies.toString(), dependencies.contains("/a.html"));
+		assertTrue(dependencies.toString(), dependencies.contains("/b.html"));
+	}
+
+	@Test
+	public void testReloadNotWatched() throws Exception {
+		MemoryLoader.sources.put("/a.html", "old");
+		MemoryLoader.lastModified = 1000;
+		Engine engine = Engines.newEngine(Engines.newDirectory(), "loader=" + MemoryLoader.class.getName(), 
+				"reloadable=true", "reload.watch=true");
+		assertEquals("old", Engines.render(engine, "a.html"));
+		MemoryLoader.sources.put("/a.html", "new");
+		MemoryLoader.lastModified = 2000;
+		assertEquals("new", Engines.render(engine, "a.html"));
+	}
+
+}
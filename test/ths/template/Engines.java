@@ -0,0 +1,79 @@
+package ths.template;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Engines. Creates the engines of the tests, loading the templates written to a temporary directory.
+ * The configuration is shared by the engines, so each test renders with one engine before creating the next.
+ */
+public final class Engines {
+
+	private Engines() {
+	}
+
+	public static File newDirectory(String... templates) throws IOException {
+		File directory = File.createTempFile("templates", "");
+		directory.delete();
+		directory.mkdirs();
+		directory.deleteOnExit();
+		for (int i = 0; i + 1 < templates.length; i += 2) {
+			write(new File(directory, templates[i]), templates[i + 1]);
+		}
+		return directory;
+	}
+
+	/**
+	 * The compilers to render the templates with, each giving the same output.
+	 */
+	public static final String[] COMPILERS = {"ths.template.support.compilers.JdkCompiler", "ths.template.support.compilers.BytecodeCompiler"};
+
+	/**
+	 * Create the engine of the templates.
+	 * 
+	 * @param directory - Template directory
+	 * @param properties - The other configuration, as "key=value"
+	 */
+	public static Engine newEngine(File directory, String... properties) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append("loader=ths.core.loaders.FileLoader\n");
+		buf.append("template.directory=" + directory.getAbsolutePath() + "\n");
+		// the running javac may not target the default version.
+		buf.append("java.version=" + System.getProperty("java.specification.version") + "\n");
+		for (String property : properties) {
+			buf.append(property + "\n");
+		}
+		File file = new File(directory, "template.properties");
+		write(file, buf.toString());
+		return new Engine(file.getAbsolutePath());
+	}
+
+	public static String render(Engine engine, String name, Object... parameters) throws Exception {
+		return engine.getTemplate(name).render(toMap(parameters));
+	}
+
+	public static Map<String, Object> toMap(Object... parameters) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (int i = 0; i + 1 < parameters.length; i += 2) {
+			map.put((String) parameters[i], parameters[i + 1]);
+		}
+		return map;
+	}
+
+	public static void write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+		file.deleteOnExit();
+	}
+
+}
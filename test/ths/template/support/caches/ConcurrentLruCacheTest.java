@@ -0,0 +1,87 @@
+package ths.template.support.caches;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConcurrentLruCacheTest {
+
+	@Test
+	public void testPutGetRemove() {
+		ConcurrentLruCache cache = new ConcurrentLruCache(10);
+		assertNull(cache.get("a"));
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		cache.put("a", "2");
+		assertEquals("2", cache.get("a"));
+		cache.remove("a");
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		ConcurrentLruCache cache = new ConcurrentLruCache(3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals("1", cache.get("a"));
+		cache.put("d", "4");
+		assertNull(cache.get("b"));
+		assertEquals("1", cache.get("a"));
+		assertEquals("3", cache.get("c"));
+		assertEquals("4", cache.get("d"));
+	}
+
+	@Test
+	public void testCapacity() {
+		assertEquals(100, new ConcurrentLruCache(100).getCapacity());
+		assertEquals(1000, new ConcurrentLruCache(1000).getCapacity());
+		ConcurrentLruCache cache = new ConcurrentLruCache();
+		cache.setCapacity(5);
+		assertEquals(5, cache.getCapacity());
+	}
+
+	@Test
+	public void testBoundedWhileResizing() throws Exception {
+		final ConcurrentLruCache cache = new ConcurrentLruCache(64);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t = 0; t < 4; t ++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() {
+						for (int i = 0; i < 20000; i ++) {
+							cache.put(thread + "-" + i, "v");
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < 200; i ++) {
+				cache.setCapacity(i % 2 == 0 ? 32 : 64);
+			}
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue(cache.getSize() + " > " + cache.getCapacity(), cache.getSize() <= cache.getCapacity());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalCapacity() {
+		new ConcurrentLruCache(0);
+	}
+
+}
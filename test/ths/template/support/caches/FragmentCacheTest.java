@@ -0,0 +1,39 @@
+package ths.template.support.caches;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+
+public class FragmentCacheTest {
+
+	@Test
+	public void testCapacity() throws Exception {
+		File directory = Engines.newDirectory();
+		Engine engine = Engines.newEngine(directory, "cache=ths.template.support.caches.ConcurrentLruCache", 
+				"cache.capacity=64", "fragment.cache.capacity=256");
+		assertTrue(engine.getFragmentCache() instanceof FragmentCache);
+		assertEquals(256, ((FragmentCache) engine.getFragmentCache()).getCapacity());
+	}
+
+	@Test
+	public void testFragmentRenderedOncePerKey() throws Exception {
+		File directory = Engines.newDirectory("fragment.html", 
+				"<!--#define(String key, java.util.concurrent.atomic.AtomicInteger count)-->[<!--#cache(key)-->${count.incrementAndGet()}<!--#end-->]");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler);
+			AtomicInteger count = new AtomicInteger();
+			assertEquals(compiler, "[1]", Engines.render(engine, "fragment.html", "key", "a", "count", count));
+			assertEquals(compiler, "[1]", Engines.render(engine, "fragment.html", "key", "a", "count", count));
+			assertEquals(compiler, "[2]", Engines.render(engine, "fragment.html", "key", "b", "count", count));
+			assertEquals(compiler, 2, count.get());
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package ths.template.support.caches;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ths.template.Engines;
+
+public class TinyLfuCacheTest {
+
+	private static TinyLfuCache newCache(String... configs) throws Exception {
+		String[] parameters = new String[configs.length + 1];
+		parameters[0] = "cache=ths.template.support.caches.TinyLfuCache";
+		System.arraycopy(configs, 0, parameters, 1, configs.length);
+		return (TinyLfuCache) Engines.newEngine(Engines.newDirectory(), parameters).getCache();
+	}
+
+	@Test
+	public void testRejectInfrequentCandidate() throws Exception {
+		TinyLfuCache cache = newCache("cache.capacity=2");
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals("1", cache.get("a"));
+		assertEquals("2", cache.get("b"));
+		// kept in the admission window, not in the cache.
+		assertEquals("3", cache.get("c"));
+		assertEquals(2, cache.getSize());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testRejectWithoutPartialEviction() throws Exception {
+		TinyLfuCache cache = newCache("cache=" + WeighedCache.class.getName(), "cache.weight=1000");
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("b");
+		cache.get("b");
+		assertNull(cache.get("c"));
+		// fits over a and b only, b is more frequent than c.
+		cache.put("c", Long.valueOf(800));
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(512, cache.getWeight());
+		assertEquals("1", cache.get("a"));
+		assertEquals("2", cache.get("b"));
+	}
+
+	@Test
+	public void testReplaceHeavier() throws Exception {
+		TinyLfuCache cache = newCache("cache=" + WeighedCache.class.getName(), "cache.weight=1000");
+		cache.put("a", Long.valueOf(400));
+		cache.put("b", Long.valueOf(400));
+		// the reloaded a evicts b to fit.
+		cache.put("a", Long.valueOf(700));
+		assertEquals(700, cache.getWeight());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(Long.valueOf(700), cache.get("a"));
+		assertNull(cache.get("b"));
+		// heavier than the whole cache, kept in the window.
+		cache.put("a", Long.valueOf(1200));
+		assertEquals(0, cache.getWeight());
+		assertEquals(Long.valueOf(1200), cache.get("a"));
+	}
+
+	@Test
+	public void testPromoteFromWindow() throws Exception {
+		TinyLfuCache cache = newCache("cache.capacity=2");
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals("3", cache.get("c"));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.getSize());
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testAdmitFrequentCandidate() throws Exception {
+		TinyLfuCache cache = newCache("cache.capacity=2");
+		cache.put("a", "1");
+		cache.put("b", "2");
+		for (int i = 0; i < 3; i ++) {
+			assertNull(cache.get("c"));
+		}
+		cache.put("c", "3");
+		assertEquals(0, cache.getRejectionCount());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.getSize());
+		assertEquals("3", cache.get("c"));
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testHitRate() throws Exception {
+		TinyLfuCache cache = newCache();
+		assertEquals(1.0, cache.getHitRate(), 0.0);
+		assertNull(cache.get("a"));
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		assertEquals("1", cache.get("a"));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getLoadCount());
+		assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+	}
+
+	@Test
+	public void testWeightBound() throws Exception {
+		// the entries, not templates, weigh 256 each.
+		TinyLfuCache cache = newCache("cache.weight=600");
+		assertEquals(600, cache.getMaxWeight());
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals(512, cache.getWeight());
+		cache.get("c");
+		cache.put("c", "3");
+		assertEquals(512, cache.getWeight());
+		assertEquals(2, cache.getSize());
+		assertEquals(1, cache.getEvictionCount());
+		cache.remove("c");
+		assertEquals(256, cache.getWeight());
+		assertTrue(cache.getWeight() <= cache.getMaxWeight());
+	}
+
+	@Test
+	public void testRejectOverweightEntry() throws Exception {
+		TinyLfuCache cache = newCache("cache.weight=100");
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		assertEquals(0, cache.getWeight());
+		assertEquals(0, cache.getSize());
+		assertEquals(1, cache.getRejectionCount());
+		cache.remove("a");
+		assertNull(cache.get("a"));
+	}
+
+	public static class WeighedCache extends TinyLfuCache {
+
+		@Override
+		protected long weigh(Object value) {
+			return value instanceof Long ? ((Long) value).longValue() : super.weigh(value);
+		}
+
+	}
+
+}
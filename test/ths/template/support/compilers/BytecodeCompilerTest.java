@@ -0,0 +1,98 @@
+package ths.template.support.compilers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+import ths.template.Template;
+
+public class BytecodeCompilerTest {
+
+	private static final String JDK_COMPILER = "compiler=ths.template.support.compilers.JdkCompiler";
+
+	private static final String BYTECODE_COMPILER = "compiler=ths.template.support.compilers.BytecodeCompiler";
+
+	private static final String[] TEMPLATES = {
+		"all.html", "<!--#define(String name, List<String> items, Map<String, Integer> scores, int[] nums, Object o, Date d, double x, boolean flag)-->\n"
+			+ "<h1>${name}</h1> $!{name} ${x} ${x * 2} ${nums.length} ${d} ${flag}\n"
+			+ "<!--#if(flag)-->F<!--#elseif(x > 1)-->X<!--#else-->N<!--#end-->\n"
+			+ "<!--#if(!flag)-->A<!--#elseif(x > 100)-->B<!--#elseif(name)-->C<!--#else-->D<!--#end-->\n"
+			+ "<!--#if(items)-->has<!--#end--><!--#if(o)-->o<!--#end-->\n"
+			+ "<!--#foreach(String item in items)--><li class=\"${foreach.index}\">${item}</li><!--#breakif(item == \"b&c\")--><!--#end-->\n"
+			+ "<!--#foreach(String k in scores.keySet())-->${k}=${scores.get(k)};<!--#end-->\n"
+			+ "<!--#foreach(n in nums)-->${n + 1},<!--#end-->\n"
+			+ "<!--#foreach(int i in 1..3)--><!--#foreach(int j in 1..i)-->${i * j} <!--#end-->|<!--#end-->\n"
+			+ "<!--#foreach(ch in 'a'..'c')-->${ch}<!--#end-->\n"
+			+ "<!--#set(int total = nums.length * 2)-->${total}\n"
+			+ "<!--#set(String s = name + \"!\")-->${s}\n"
+			+ "<!--#macro(greet(String who))-->Hi ${who}!<!--#end-->\n"
+			+ "$!{greet(\"bob\")}\n"
+			+ "<!--#block(b)-->in<!--#block(c)-->ner<!--#end-->$!{c}<!--#end-->[$!{b}]\n"
+			+ "${name.length() > 3 ? \"long\" : \"short\"} ${items.size()} ${items[0]} ${scores.a}\n", 
+		// the escaped literal is not emitted, the template is compiled from its java code.
+		"fallback.html", "<!--#define(String name)-->${name + \"\\t\"}|${1000}"
+	};
+
+	@Test
+	public void testSameOutputAsJdkCompiler() throws Exception {
+		File directory = Engines.newDirectory(TEMPLATES);
+		Map<String, String> expected = render(Engines.newEngine(directory, JDK_COMPILER), false);
+		Map<String, String> actual = render(Engines.newEngine(directory, BYTECODE_COMPILER), false);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSameOutputStreamAsJdkCompiler() throws Exception {
+		File directory = Engines.newDirectory(TEMPLATES);
+		Map<String, String> expected = render(Engines.newEngine(directory, JDK_COMPILER, "output.stream=true"), true);
+		Map<String, String> actual = render(Engines.newEngine(directory, BYTECODE_COMPILER, "output.stream=true"), true);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testFallbackToJavaCode() throws Exception {
+		File directory = Engines.newDirectory(TEMPLATES);
+		Engine engine = Engines.newEngine(directory, BYTECODE_COMPILER);
+		assertFalse(engine.getTemplate("all.html").getCode().contains("$output"));
+		assertTrue(engine.getTemplate("fallback.html").getCode().contains("$output"));
+	}
+
+	private static Map<String, String> render(Engine engine, boolean stream) throws Exception {
+		Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+		parameters.put("name", "<World>");
+		parameters.put("items", Arrays.asList("a", "b&c", "d"));
+		Map<String, Integer> scores = new LinkedHashMap<String, Integer>();
+		scores.put("a", 1);
+		scores.put("b", 2);
+		parameters.put("scores", scores);
+		parameters.put("nums", new int[] {3, 4});
+		parameters.put("o", null);
+		parameters.put("d", new Date(0));
+		parameters.put("x", 1.5d);
+		parameters.put("flag", Boolean.FALSE);
+		Map<String, String> results = new LinkedHashMap<String, String>();
+		for (int i = 0; i < TEMPLATES.length; i += 2) {
+			Template template = engine.getTemplate(TEMPLATES[i]);
+			if (stream) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				template.render(parameters, output);
+				results.put(TEMPLATES[i], output.toString("UTF-8"));
+			} else {
+				results.put(TEMPLATES[i], template.render(parameters));
+			}
+		}
+		return results;
+	}
+
+}
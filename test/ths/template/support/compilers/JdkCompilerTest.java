@@ -0,0 +1,93 @@
+package ths.template.support.compilers;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+
+public class JdkCompilerTest {
+
+	@Test
+	public void testCompileKeepsContextClassLoaderOpen() throws Exception {
+		File directory = Engines.newDirectory("/hello.html", "<!--#define(String name)-->hello ${name}");
+		ClosingClassLoader loader = new ClosingClassLoader(getClass().getClassLoader());
+		Thread thread = Thread.currentThread();
+		ClassLoader old = thread.getContextClassLoader();
+		thread.setContextClassLoader(loader);
+		try {
+			Engine engine = Engines.newEngine(directory, "compiler=ths.template.support.compilers.JdkCompiler");
+			assertEquals("hello world", Engines.render(engine, "/hello.html", "name", "world"));
+		} finally {
+			thread.setContextClassLoader(old);
+		}
+		assertFalse("javac closed the context class loader", loader.closed);
+	}
+
+	@Test
+	public void testCompileOnMoreThreadsThanFileManagers() throws Exception {
+		String[] templates = new String[16];
+		for (int i = 0; i < templates.length; i += 2) {
+			templates[i] = "/t" + i + ".html";
+			templates[i + 1] = "<!--#define(String name)-->" + i + " ${name}";
+		}
+		File directory = Engines.newDirectory(templates);
+		final Engine engine = Engines.newEngine(directory, "compiler=ths.template.support.compilers.JdkCompiler", "precompile.threads=1");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < templates.length; i += 2) {
+				final String name = templates[i];
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return Engines.render(engine, name, "name", "x");
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i ++) {
+				assertEquals(i * 2 + " x", results.get(i).get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static final class ClosingClassLoader extends URLClassLoader {
+
+		private volatile boolean closed;
+
+		// the class path of the tests, which the compiler takes from the context class loader.
+		ClosingClassLoader(ClassLoader parent) throws IOException {
+			super(getClassPath(), parent);
+		}
+
+		private static URL[] getClassPath() throws IOException {
+			String[] paths = System.getProperty("java.class.path").split(File.pathSeparator);
+			URL[] urls = new URL[paths.length];
+			for (int i = 0; i < paths.length; i ++) {
+				urls[i] = new File(paths[i]).toURI().toURL();
+			}
+			return urls;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,48 @@
+package ths.template.support.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+import ths.template.Template;
+
+public class EscapeHtmlFilterTest {
+
+	private static final String[] VALUES = {"", "plain", "<", "&amp;", "<a href=\"x\">it's</a>", "a<b", "a>", ">a", "中<文>😀&"};
+
+	@Test
+	public void testStreamSameAsString() throws Exception {
+		EscapeHtmlFilter filter = new EscapeHtmlFilter();
+		for (String value : VALUES) {
+			StringWriter output = new StringWriter();
+			output.write('[');
+			filter.filter(value, output);
+			output.write(']');
+			assertEquals(value, "[" + filter.filter(value) + "]", output.toString());
+		}
+		assertEquals("&lt;a href=&quot;x&quot;&gt;it&apos;s&lt;/a&gt;", filter.filter("<a href=\"x\">it's</a>"));
+	}
+
+	@Test
+	public void testRenderEscaped() throws Exception {
+		File directory = Engines.newDirectory("escape.html", "<!--#define(String s)--><p>${s}</p>");
+		String value = "中<文>😀&";
+		String expected = "<p>中&lt;文&gt;😀&amp;</p>";
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler, "filters=" + EscapeHtmlFilter.class.getName());
+			assertEquals(compiler, expected, Engines.render(engine, "escape.html", "s", value));
+			engine = Engines.newEngine(directory, "compiler=" + compiler, "filters=" + EscapeHtmlFilter.class.getName(), "output.stream=true");
+			Template template = engine.getTemplate("escape.html");
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			template.render(Engines.toMap("s", value), output);
+			assertEquals(compiler, expected, output.toString("UTF-8"));
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package ths.template.support.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import ths.template.support.Filter;
+import ths.template.support.StreamFilter;
+
+public class MultiFilterTest {
+
+	@Test
+	public void testComposeNone() {
+		assertNull(new MultiFilter().compose());
+	}
+
+	@Test
+	public void testComposeSingle() {
+		MultiFilter multi = new MultiFilter();
+		EscapeHtmlFilter escape = new EscapeHtmlFilter();
+		multi.add(escape);
+		assertSame(escape, multi.compose());
+	}
+
+	@Test
+	public void testComposeChainStreamLast() throws Exception {
+		MultiFilter multi = new MultiFilter();
+		multi.add(new CompressBlankFilter(), new EscapeHtmlFilter());
+		Filter chain = multi.compose();
+		assertTrue(chain instanceof StreamFilter);
+		String value = "<a>  &\n b";
+		assertEquals("&lt;a&gt; &amp; b", chain.filter(value));
+		assertEquals(multi.filter(value), chain.filter(value));
+		StringWriter output = new StringWriter();
+		((StreamFilter) chain).filter(value, output);
+		assertEquals("&lt;a&gt; &amp; b", output.toString());
+	}
+
+	@Test
+	public void testComposeChainStringLast() throws Exception {
+		MultiFilter multi = new MultiFilter();
+		multi.add(new EscapeHtmlFilter(), new CompressBlankFilter());
+		Filter chain = multi.compose();
+		String value = "<a>  &\n b";
+		assertEquals("&lt;a&gt; &amp; b", chain.filter(value));
+		StringWriter output = new StringWriter();
+		((StreamFilter) chain).filter(value, output);
+		assertEquals("&lt;a&gt; &amp; b", output.toString());
+	}
+
+	@Test
+	public void testComposeIsSnapshot() {
+		MultiFilter multi = new MultiFilter();
+		multi.add(new EscapeHtmlFilter(), new CompressBlankFilter());
+		Filter chain = multi.compose();
+		multi.clear();
+		assertEquals("&lt; &gt;", chain.filter("<  >"));
+		assertEquals("<  >", multi.filter("<  >"));
+	}
+
+}
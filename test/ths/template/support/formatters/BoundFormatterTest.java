@@ -0,0 +1,76 @@
+package ths.template.support.formatters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+import ths.template.support.Formatter;
+
+public class BoundFormatterTest {
+
+	private static final String FORMATTERS = "formatters=" + LocaleFormatter.class.getName() + "," + ArrayListFormatter.class.getName() 
+			+ "," + NullFormatter.class.getName();
+
+	public static class LocaleFormatter implements Formatter<Locale> {
+
+		public String format(Locale value) {
+			return value == null ? "none" : value.getDisplayLanguage(Locale.ENGLISH);
+		}
+
+	}
+
+	public static class ArrayListFormatter implements Formatter<ArrayList<?>> {
+
+		public String format(ArrayList<?> value) {
+			return "array" + value.size();
+		}
+
+	}
+
+	public static class NullFormatter implements Formatter<Void> {
+
+		public String format(Void value) {
+			return "-";
+		}
+
+	}
+
+	@Test
+	public void testRegisteredType() throws Exception {
+		File directory = Engines.newDirectory("locale.html", "<!--#define(java.util.Locale l)-->${l};${l}");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler, FORMATTERS);
+			assertEquals(compiler, "French;French", Engines.render(engine, "locale.html", "l", Locale.FRANCE));
+		}
+	}
+
+	@Test
+	public void testFinalTypeWithoutFormatter() throws Exception {
+		File directory = Engines.newDirectory("builder.html", "<!--#define(java.lang.StringBuilder b)-->[${b}]");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler, FORMATTERS);
+			assertEquals(compiler, "[ab]", Engines.render(engine, "builder.html", "b", new StringBuilder("ab")));
+			assertEquals(compiler, "[-]", Engines.render(engine, "builder.html", "b", null));
+		}
+	}
+
+	@Test
+	public void testSubclassFormatterOfUnboundType() throws Exception {
+		File directory = Engines.newDirectory("list.html", "<!--#define(java.util.AbstractList l)-->[${l}]");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler, FORMATTERS);
+			assertEquals(compiler, "[array2]", Engines.render(engine, "list.html", "l", new ArrayList<String>(Arrays.asList("a", "b"))));
+			assertEquals(compiler, "[[a, b]]", Engines.render(engine, "list.html", "l", new LinkedList<String>(Arrays.asList("a", "b"))));
+			assertEquals(compiler, "[-]", Engines.render(engine, "list.html", "l", null));
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package ths.template.support.parsers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+import ths.template.support.filters.CompressBlankFilter;
+
+public class AbstractParserTest {
+
+	public static class Functions {
+		public static String hello() {
+			return "hello";
+		}
+	}
+
+	@Test
+	public void testClassNameOfProgrammaticFunctions() throws Exception {
+		File directory = Engines.newDirectory("a.html", "a");
+		String configured = Engines.newEngine(directory).getTemplate("a.html").getClass().getName();
+		assertEquals(configured, Engines.newEngine(directory).getTemplate("a.html").getClass().getName());
+		Engine engine = Engines.newEngine(directory);
+		engine.addFunctions(new Functions());
+		assertFalse(configured.equals(engine.getTemplate("a.html").getClass().getName()));
+	}
+
+	@Test
+	public void testClassNameOfProgrammaticFilters() throws Exception {
+		File directory = Engines.newDirectory("a.html", "a");
+		String configured = Engines.newEngine(directory).getTemplate("a.html").getClass().getName();
+		Engine engine = Engines.newEngine(directory);
+		engine.setTextFilter(new CompressBlankFilter());
+		assertFalse(configured.equals(engine.getTemplate("a.html").getClass().getName()));
+	}
+
+}
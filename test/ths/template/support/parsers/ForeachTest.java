@@ -0,0 +1,80 @@
+package ths.template.support.parsers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+
+public class ForeachTest {
+
+	private static final String FORMATTERS = "formatters=ths.template.support.formatters.DateFormatter,ths.template.support.formatters.NumberFormatter";
+
+	@Test
+	public void testUntypedRangeFormattedAsBoxed() throws Exception {
+		File directory = Engines.newDirectory("range.html", "<!--#foreach(i in 998..1001)-->${i};<!--#end-->", 
+				"chars.html", "<!--#foreach(c in 'a'..'c')-->${c}<!--#end-->");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler, FORMATTERS);
+			assertEquals(compiler, "998;999;1000;1001;", Engines.render(engine, "range.html"));
+			assertEquals(compiler, "abc", Engines.render(engine, "chars.html"));
+		}
+	}
+
+	@Test
+	public void testTypedRangeFormattedAsPrimitive() throws Exception {
+		File directory = Engines.newDirectory("range.html", "<!--#foreach(int i in 999..1000)-->${i};<!--#end-->");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler, FORMATTERS);
+			assertEquals(compiler, "999;1,000;", Engines.render(engine, "range.html"));
+		}
+	}
+
+	@Test
+	public void testIndexedArrays() throws Exception {
+		File directory = Engines.newDirectory("ints.html", "<!--#define(int[] values)--><!--#foreach(int i in values)-->${i};<!--#end-->", 
+				"strings.html", "<!--#define(String[] values)--><!--#foreach(String s in values)-->${s};<!--#end-->");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler);
+			assertEquals(compiler, "1;2;3;", Engines.render(engine, "ints.html", "values", new int[] {1, 2, 3}));
+			assertEquals(compiler, "", Engines.render(engine, "ints.html", "values", new int[0]));
+			assertEquals(compiler, "", Engines.render(engine, "ints.html", "values", null));
+			assertEquals(compiler, "a;b;", Engines.render(engine, "strings.html", "values", new String[] {"a", "b"}));
+		}
+	}
+
+	@Test
+	public void testIndexedLists() throws Exception {
+		File directory = Engines.newDirectory("list.html", "<!--#define(java.util.List values)--><!--#foreach(String s in values)-->${s};<!--#end-->");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler);
+			List<String> values = Arrays.asList("a", "b", "c");
+			assertEquals(compiler, "a;b;c;", Engines.render(engine, "list.html", "values", new ArrayList<String>(values)));
+			assertEquals(compiler, "a;b;c;", Engines.render(engine, "list.html", "values", new LinkedList<String>(values)));
+			assertEquals(compiler, "", Engines.render(engine, "list.html", "values", new ArrayList<String>()));
+			assertEquals(compiler, "", Engines.render(engine, "list.html", "values", null));
+		}
+	}
+
+	@Test
+	public void testIndexedStatus() throws Exception {
+		File directory = Engines.newDirectory("array.html", 
+				"<!--#define(int[] values)--><!--#foreach(int i in values)-->${foreach.index}/${foreach.size}:${i}<!--#if(! foreach.last)-->,<!--#end--><!--#end-->", 
+				"list.html", 
+				"<!--#define(java.util.List values)--><!--#foreach(String s in values)--><!--#foreach(String t in values)-->${foreach.index}${t}<!--#end-->|${foreach.index}${s};<!--#end-->");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler);
+			assertEquals(compiler, "0/3:7,1/3:8,2/3:9", Engines.render(engine, "array.html", "values", new int[] {7, 8, 9}));
+			assertEquals(compiler, "0a1b|0a;0a1b|1b;", Engines.render(engine, "list.html", "values", Arrays.asList("a", "b")));
+			assertEquals(compiler, "0a1b|0a;0a1b|1b;", Engines.render(engine, "list.html", "values", new LinkedList<String>(Arrays.asList("a", "b"))));
+		}
+	}
+
+}
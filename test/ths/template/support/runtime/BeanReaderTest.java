@@ -0,0 +1,69 @@
+package ths.template.support.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+
+public class BeanReaderTest {
+
+	public static class User {
+
+		public final int age = 30;
+
+		public String getName() {
+			return "alice";
+		}
+
+		public boolean isAdmin() {
+			return true;
+		}
+
+	}
+
+	static class HiddenUser extends User {
+	}
+
+	public static class Admin_User {
+
+		public String getName() {
+			return "bob";
+		}
+
+	}
+
+	public static class Admin {
+
+		// the same mangled name as Admin_User.
+		public static class User {
+
+			public String name = "carol";
+
+		}
+
+	}
+
+	@Test
+	public void testRenderBean() throws Exception {
+		File directory = Engines.newDirectory("user.html", "<!--#define(String name, int age, boolean admin)-->${name} ${age} ${admin}");
+		Engine engine = Engines.newEngine(directory);
+		assertEquals("alice 30 true", engine.getTemplate("user.html").render(new User()));
+		// the reader of the non-public class reads by the reflection.
+		assertEquals("alice 30 true", engine.getTemplate("user.html").render(new HiddenUser()));
+	}
+
+	@Test
+	public void testReadersOfSimilarNames() throws Exception {
+		File directory = Engines.newDirectory("name.html", "<!--#define(String name)-->${name}");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compiler=" + compiler);
+			assertEquals(compiler, "bob", engine.getTemplate("name.html").render(new Admin_User()));
+			assertEquals(compiler, "carol", engine.getTemplate("name.html").render(new Admin.User()));
+		}
+	}
+
+}
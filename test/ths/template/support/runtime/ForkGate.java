@@ -0,0 +1,33 @@
+package ths.template.support.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the forked templates until released, from another fork or from the output.
+ */
+public class ForkGate {
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+
+	public String await(String value) throws InterruptedException {
+		if (! latch.await(5, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Not released");
+		}
+		return value;
+	}
+
+	public String release(String value) {
+		latch.countDown();
+		return value;
+	}
+
+	public String thread() {
+		return Thread.currentThread().getName();
+	}
+
+	public String fail() {
+		throw new IllegalStateException("forked failure");
+	}
+
+}
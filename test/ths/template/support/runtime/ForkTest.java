@@ -0,0 +1,125 @@
+package ths.template.support.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+
+public class ForkTest {
+
+	private static final String GATE = "<!--#define(ths.template.support.runtime.ForkGate gate)-->";
+
+	/**
+	 * Releases the gate when flushed, recording what was written before.
+	 */
+	private static final class FlushWriter extends StringWriter {
+
+		private final ForkGate gate;
+
+		private String flushed;
+
+		FlushWriter(ForkGate gate) {
+			this.gate = gate;
+		}
+
+		@Override
+		public void flush() {
+			if (flushed == null) {
+				flushed = toString();
+			}
+			gate.release(null);
+		}
+
+	}
+
+	private static Engine newEngine(File directory, String... configs) throws Exception {
+		String[] parameters = new String[configs.length + 1];
+		parameters[0] = "fork.threads=2";
+		System.arraycopy(configs, 0, parameters, 1, configs.length);
+		return Engines.newEngine(directory, parameters);
+	}
+
+	@Test
+	public void testForksInDocumentOrder() throws Exception {
+		// b completes after c, as it waits for c to release it.
+		File directory = Engines.newDirectory("a.html", GATE + "1<!--#fork(\"b.html\")-->2<!--#fork(\"c.html\")-->3", 
+				"b.html", GATE + "${gate.await(\"B\")}", 
+				"c.html", GATE + "${gate.release(\"C\")}");
+		for (String compiler : Engines.COMPILERS) {
+			for (String stream : new String[] {"false", "true"}) {
+				Engine engine = newEngine(directory, "compiler=" + compiler, "output.stream=" + stream);
+				String message = compiler + ", output.stream=" + stream;
+				assertEquals(message, "1B2C3", Engines.render(engine, "a.html", "gate", new ForkGate()));
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				engine.getTemplate("a.html").render(Engines.toMap("gate", new ForkGate()), output);
+				assertEquals(message, "1B2C3", new String(output.toByteArray(), "UTF-8"));
+			}
+		}
+	}
+
+	@Test
+	public void testForkInCacheRenderedInPlace() throws Exception {
+		File directory = Engines.newDirectory("a.html", GATE + "[<!--#cache(\"k\")-->(<!--#fork(\"t.html\")-->)<!--#end-->]", 
+				"t.html", GATE + "${gate.thread()}");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = newEngine(directory, "compiler=" + compiler);
+			StringWriter output = new StringWriter();
+			engine.getTemplate("a.html").render(Engines.toMap("gate", new ForkGate()), output);
+			assertEquals(compiler, "[(" + Thread.currentThread().getName() + ")]", output.toString());
+		}
+	}
+
+	@Test
+	public void testNestedFork() throws Exception {
+		File directory = Engines.newDirectory("a.html", "a[<!--#fork(\"b.html\")-->]a", 
+				"b.html", "b(<!--#fork(\"c.html\")-->)b", 
+				"c.html", "c");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = newEngine(directory, "compiler=" + compiler);
+			assertEquals(compiler, "a[b(c)b]a", Engines.render(engine, "a.html"));
+		}
+	}
+
+	@Test
+	public void testForkFailureReachesCaller() throws Exception {
+		File directory = Engines.newDirectory("a.html", GATE + "1<!--#fork(\"b.html\")-->2", 
+				"b.html", GATE + "${gate.fail()}");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = newEngine(directory, "compiler=" + compiler);
+			try {
+				engine.getTemplate("a.html").render(Engines.toMap("gate", new ForkGate()), new StringWriter());
+				fail(compiler + ": the forked failure is not thrown");
+			} catch (RuntimeException e) {
+				boolean found = false;
+				for (Throwable t = e; t != null && ! found; t = t.getCause()) {
+					found = String.valueOf(t.getMessage()).contains("forked failure");
+				}
+				assertTrue(compiler + ": " + e, found);
+			}
+		}
+	}
+
+	@Test
+	public void testFlushStopsAtPendingFork() throws Exception {
+		// b waits until the output is flushed.
+		File directory = Engines.newDirectory("a.html", GATE + "1<!--#fork(\"b.html\")-->2<!--#flush-->3", 
+				"b.html", GATE + "${gate.await(\"B\")}");
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = newEngine(directory, "compiler=" + compiler);
+			ForkGate gate = new ForkGate();
+			FlushWriter output = new FlushWriter(gate);
+			engine.getTemplate("a.html").render(Engines.toMap("gate", gate), output);
+			assertEquals(compiler, "1", output.flushed);
+			assertEquals(compiler, "1B23", output.toString());
+		}
+	}
+
+}
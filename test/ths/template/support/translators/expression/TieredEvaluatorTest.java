@@ -0,0 +1,141 @@
+package ths.template.support.translators.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ths.template.Engine;
+import ths.template.Engines;
+import ths.template.Expression;
+
+public class TieredEvaluatorTest {
+
+	public static class Counter {
+
+		private int count;
+
+		public int hit() {
+			return ++ count;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int check(int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("negative " + value);
+			}
+			return value;
+		}
+
+	}
+
+	// one expression of each operator family, all interpretable.
+	private static final String[] EXPRESSIONS = {
+		"i + j", "i - j * 2", "i / j", "i % j", "l * i", "d / j", "i + d", "ch + 1",
+		"i > j", "l <= i", "d == 2.5", "i != j",
+		"t && f", "t || f", "! f", "t & f", "t ^ f", "i > 0 && s",
+		"i & j", "i | j", "i ^ j", "i << 2", "l >> 1", "i >>> 1",
+		"- i", "- d", "~ i", "+ j",
+		"s + i", "i + s", "s + d", "s + \"c\"", "s == \"ab\"",
+		"t ? i : j", "s ? \"y\" : \"n\"",
+		"list[1]", "arr[2]", "map[\"k\"]", "list[j..i]",
+		"s.length()", "s.toUpperCase()", "list.size", "s | \"z\"",
+		"j..i"
+	};
+
+	private static Map<String, Class<?>> getTypes() {
+		Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+		types.put("i", int.class);
+		types.put("j", int.class);
+		types.put("l", long.class);
+		types.put("d", double.class);
+		types.put("ch", char.class);
+		types.put("t", boolean.class);
+		types.put("f", boolean.class);
+		types.put("s", String.class);
+		types.put("list", List.class);
+		types.put("arr", int[].class);
+		types.put("map", Map.class);
+		types.put("c", Counter.class);
+		return types;
+	}
+
+	private static Map<String, Object> getParameters() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("k", "v");
+		return Engines.toMap("i", 7, "j", 3, "l", 5L, "d", 2.5, "ch", 'x', "t", true, "f", false, "s", "ab",
+				"list", Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17), "arr", new int[] {1, 2, 3}, "map", map);
+	}
+
+	private static Object[] evaluateAll(Engine engine, boolean interpreted) throws Exception {
+		Object[] results = new Object[EXPRESSIONS.length];
+		for (int i = 0; i < EXPRESSIONS.length; i ++) {
+			Expression expression = engine.getExpression(EXPRESSIONS[i], getTypes());
+			AbstractExpression node = (AbstractExpression) ((ExpressionImpl) expression).getNode();
+			assertEquals(EXPRESSIONS[i], interpreted, node.isInterpretable());
+			results[i] = expression.evaluate(getParameters());
+		}
+		return results;
+	}
+
+	@Test
+	public void testInterpretedAsCompiled() throws Exception {
+		File directory = Engines.newDirectory();
+		Object[] interpreted = evaluateAll(Engines.newEngine(directory, "compile.threshold=1000"), true);
+		for (String compiler : Engines.COMPILERS) {
+			Engine engine = Engines.newEngine(directory, "compile.threshold=0", "compiler=" + compiler);
+			for (int i = 0; i < EXPRESSIONS.length; i ++) {
+				Object compiled = engine.getExpression(EXPRESSIONS[i], getTypes()).evaluate(getParameters());
+				assertEquals(compiler + " " + EXPRESSIONS[i], compiled.getClass(), interpreted[i].getClass());
+				assertEquals(compiler + " " + EXPRESSIONS[i], String.valueOf(compiled), String.valueOf(interpreted[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testSideEffectsOnce() throws Exception {
+		File directory = Engines.newDirectory();
+		for (String threshold : new String[] {"1000", "0"}) {
+			Engine engine = Engines.newEngine(directory, "compile.threshold=" + threshold);
+			Counter counter = new Counter();
+			Map<String, Object> parameters = Engines.toMap("c", counter);
+			// the escaped literal is only compiled, decided before the method is called.
+			Expression expression = engine.getExpression("c.hit() + \"a\\tb\"", getTypes());
+			assertFalse(((AbstractExpression) ((ExpressionImpl) expression).getNode()).isInterpretable());
+			assertEquals("1a\tb", expression.evaluate(parameters));
+			assertEquals(1, counter.getCount());
+			assertEquals(2, engine.getExpression("c.hit()", getTypes()).evaluate(parameters));
+			assertEquals(2, counter.getCount());
+		}
+	}
+
+	@Test
+	public void testInvocationErrorPropagated() throws Exception {
+		Engine engine = Engines.newEngine(Engines.newDirectory(), "compile.threshold=1000");
+		Expression expression = engine.getExpression("c.check(i) + c.hit()", getTypes());
+		assertTrue(((AbstractExpression) ((ExpressionImpl) expression).getNode()).isInterpretable());
+		Counter counter = new Counter();
+		try {
+			expression.evaluate(Engines.toMap("c", counter, "i", -1));
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			assertEquals("negative -1", e.getMessage());
+		}
+		assertEquals(0, counter.getCount());
+		// still interpreted, the failure of the invocation is not a fallback to the compiled class.
+		assertEquals(4, expression.evaluate(Engines.toMap("c", counter, "i", 3)));
+		assertEquals(1, counter.getCount());
+	}
+
+}
@@ -0,0 +1,50 @@
+package ths.template.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DatePatternTest {
+
+	private static final String[] PATTERNS = {"yyyy-MM-dd", "yyyy-MM-dd HH:mm:ss.SSS", "yy/M/d h:mm a", "EEEE, MMMM d, yyyy", "EEE MMM dd kk:mm:ss", 
+		"D K 'o''clock' ''", "MMMM", "yyyyy.MMMMM.dd GGG hh:mm aaa", "HH:mm:ss z"};
+
+	private static final long[] TIMES = {0L, -1L, 1L, 951782400000L, 1330473600000L, 1711846800000L, 1730595600000L, 4102444800000L, 
+		-12212467200000L, -12219292800000L, -62135596800000L};
+
+	@Test
+	public void testSameAsSimpleDateFormat() throws Exception {
+		Random random = new Random(42);
+		for (String pattern : PATTERNS) {
+			DatePattern date = new DatePattern(pattern);
+			assertEquals(pattern, date.getPattern());
+			for (long time : TIMES) {
+				assertFormat(pattern, date, new Date(time));
+			}
+			for (int i = 0; i < 1000; i ++) {
+				// from the year 1900 to 2100.
+				assertFormat(pattern, date, new Date(-2208988800000L + (long) (random.nextDouble() * 6311433600000L)));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullPattern() {
+		new DatePattern(null);
+	}
+
+	private static void assertFormat(String pattern, DatePattern date, Date value) throws Exception {
+		String expected = new SimpleDateFormat(pattern).format(value);
+		String message = pattern + " " + value.getTime();
+		assertEquals(message, expected, date.format(value));
+		StringWriter output = new StringWriter();
+		date.format(value, output);
+		assertEquals(message, expected, output.toString());
+	}
+
+}
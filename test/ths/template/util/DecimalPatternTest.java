@@ -0,0 +1,70 @@
+package ths.template.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DecimalPatternTest {
+
+	private static final String[] PATTERNS = {"#", "0", "#,##0", "#,##0.00", "0.###", "000000", "#,##0.0#;(#,##0.0#)", "'$'#,##0.00", "0.00%", "0.###E0", "#.#########"};
+
+	private static final double[] DOUBLES = {0.0, -0.0, 0.5, 1.5, 2.5, -2.5, 0.125, 0.005, 1.005, 0.1 + 0.2, 1234.5678, -1234.5678, 
+		999.9995, 123456789.123456789, 1e14, 1e20, -1e-10, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+	private static final long[] LONGS = {0L, 1L, -1L, 999L, 1000L, -1000L, 1234567L, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+	@Test
+	public void testSameAsDecimalFormat() throws Exception {
+		Random random = new Random(42);
+		for (String pattern : PATTERNS) {
+			DecimalPattern decimal = new DecimalPattern(pattern);
+			assertEquals(pattern, decimal.getPattern());
+			for (long value : LONGS) {
+				assertFormat(pattern, decimal, Long.valueOf(value));
+			}
+			for (double value : DOUBLES) {
+				assertFormat(pattern, decimal, Double.valueOf(value));
+			}
+			for (int i = 0; i < 1000; i ++) {
+				assertFormat(pattern, decimal, Long.valueOf(random.nextLong() >> random.nextInt(64)));
+				assertFormat(pattern, decimal, Double.valueOf((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(16))));
+			}
+		}
+	}
+
+	@Test
+	public void testOtherNumbers() throws Exception {
+		DecimalPattern decimal = new DecimalPattern("#,##0.00");
+		assertFormat("#,##0.00", decimal, Integer.valueOf(1234));
+		assertFormat("#,##0.00", decimal, Float.valueOf(1.25f));
+		assertFormat("#,##0.00", decimal, new BigDecimal("12345678901234567890.125"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullPattern() {
+		new DecimalPattern(null);
+	}
+
+	private static void assertFormat(String pattern, DecimalPattern decimal, Number value) throws Exception {
+		String expected = new DecimalFormat(pattern).format(value);
+		String message = pattern + " " + value;
+		assertEquals(message, expected, decimal.format(value));
+		StringWriter output = new StringWriter();
+		decimal.format(value, output);
+		assertEquals(message, expected, output.toString());
+		if (value instanceof Long) {
+			assertEquals(message, expected, decimal.format(value.longValue()));
+		} else if (value instanceof Double) {
+			assertEquals(message, expected, decimal.format(value.doubleValue()));
+			output = new StringWriter();
+			decimal.format(value.doubleValue(), output);
+			assertEquals(message, expected, output.toString());
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package ths.template.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class Utf8WriterTest {
+
+	private static final String[] VALUES = {"", "ascii", "café ÿĀ߿", "ࠀ中文￿", 
+		"😀 smile 𐀀􏿿", "mixed aé中😀z"};
+
+	@Test
+	public void testSameAsGetBytes() throws Exception {
+		for (int size : new int[] {4, 5, 7, 1024}) {
+			for (String value : VALUES) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				Utf8Writer writer = new Utf8Writer(size).setOutput(output);
+				writer.write(value);
+				writer.flushBuffer();
+				assertArrayEquals(size + " " + value, value.getBytes("UTF-8"), output.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void testSurrogatePairSplitAcrossWrites() throws Exception {
+		String value = "a😀b";
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Utf8Writer writer = new Utf8Writer(16).setOutput(output);
+		writer.write(value, 0, 2);
+		writer.write(value.toCharArray(), 2, 1);
+		writer.write('b');
+		writer.flushBuffer();
+		assertArrayEquals(value.getBytes("UTF-8"), output.toByteArray());
+	}
+
+	@Test
+	public void testUnpairedSurrogates() throws Exception {
+		String[] values = {"a\ud83db", "a\ude00b", "\ude00\ud83d", "a\ud83d😀", "a\ud83d"};
+		for (String value : values) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Utf8Writer writer = new Utf8Writer(16).setOutput(output);
+			writer.write(value);
+			writer.flushBuffer();
+			assertArrayEquals(value, value.getBytes("UTF-8"), output.toByteArray());
+		}
+	}
+
+	@Test
+	public void testBufferedUntilFlush() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Utf8Writer writer = new Utf8Writer(8).setOutput(output);
+		writer.write("abc");
+		assertEquals(0, output.size());
+		writer.write("defghij");
+		assertEquals(8, output.size());
+		writer.flush();
+		assertEquals("abcdefghij", output.toString("UTF-8"));
+	}
+
+	@Test
+	public void testReusedForAnotherOutput() throws Exception {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		Utf8Writer writer = new Utf8Writer(16).setOutput(first);
+		writer.write("discarded\ud83d");
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		writer.setOutput(second);
+		writer.write("é");
+		writer.flushBuffer();
+		assertEquals(0, first.size());
+		assertEquals("é", second.toString("UTF-8"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalSize() {
+		new Utf8Writer(3);
+	}
+
+}